@@ -191,7 +191,9 @@ public class CharsetConverter {
 		// Check if there are any left over bytes that weren't converted from
 		// the last chunk
 		if (underflow != null) {
-			ByteBuffer joinedBuffer = ByteBuffer.allocate(from.array().length
+			// p4ic4idea: size by the bytes left in the buffer, not its backing array,
+			// which may be larger
+			ByteBuffer joinedBuffer = ByteBuffer.allocate(from.remaining()
 					+ underflow.length);
 			joinedBuffer.put(underflow);
 			joinedBuffer.put(from);
@@ -540,10 +540,16 @@ public class Client extends ClientSummary implements IClient {
 					"Attempted to sync a client that is not the server's current client");
 		}
 		
-		List<Map<String, Object>> resultMaps = this.serverImpl.execMapCmdList(CmdSpec.SYNC,
+		List<Map<String, Object>> resultMaps;
+		// p4ic4idea: split large syncs over concurrent connections when asked to
+		if (ParallelSync.canRunParallel(this.serverImpl, syncOpts)) {
+			resultMaps = new ParallelSync(this.serverImpl, this.server, syncOpts).sync(fileSpecs);
+		} else {
+			resultMaps = this.serverImpl.execMapCmdList(CmdSpec.SYNC,
 											Parameters.processParameters(
 													syncOpts, fileSpecs, this.server),
 											null);
+		}
 
 		if (resultMaps != null) {
 			for (Map<String, Object> map : resultMaps) {
@@ -566,6 +572,12 @@ public class Client extends ClientSummary implements IClient {
 					"Attempted to sync a client that is not the server's current client");
 		}
 
+		// p4ic4idea: split large syncs over concurrent connections when asked to
+		if (ParallelSync.canRunParallel(this.serverImpl, syncOpts)) {
+			new ParallelSync(this.serverImpl, this.server, syncOpts).sync(fileSpecs, callback, key);
+			return;
+		}
+
 		this.serverImpl.execStreamingMapCommand(CmdSpec.SYNC.toString(),
 							Parameters.processParameters(
 									syncOpts, fileSpecs, this.server),
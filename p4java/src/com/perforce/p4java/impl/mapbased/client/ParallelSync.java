@@ -0,0 +1,382 @@
+/**
+ *
+ */
+package com.perforce.p4java.impl.mapbased.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.core.file.FileSpecBuilder;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.exception.P4JavaError;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.exception.RequestException;
+import com.perforce.p4java.impl.mapbased.server.Parameters;
+import com.perforce.p4java.impl.mapbased.server.Server;
+import com.perforce.p4java.option.client.SyncOptions;
+import com.perforce.p4java.server.CmdSpec;
+import com.perforce.p4java.server.IServer;
+import com.perforce.p4java.server.callback.IStreamingCallback;
+
+/**
+ * Runs a sync as several smaller syncs over concurrent server connections,
+ * much like the server's own 'sync --parallel' does for the file transfers.<p>
+ *
+ * A preview ('sync -n') with the same options first lists the files the sync
+ * would change and their sizes. These are split into batches of about the same
+ * total size (largest files first, at most SyncOptions.getParallelBatch() files
+ * each), and the batches are synced, each file at the exact revision the preview
+ * reported, by SyncOptions.getParallelThreads() threads at once. The results of
+ * the batches are then passed back in batch order, after the preview's messages
+ * about the files that needed no change.<p>
+ *
+ * Files the sync would delete are left out of the batches: a file that's gone
+ * from the client view can't be named in a sync at all. Once the batches are
+ * done, the original sync is run again (without -f), which then only has the
+ * deletes left to do; its results come last.<p>
+ *
+ * This needs a server implementation that can run commands on several threads at
+ * once (see Server.supportsConcurrentCommands()); the callers check for that.
+ */
+// p4ic4idea: created for the parallel sync mode
+class ParallelSync {
+
+	private static final String DEPOT_FILE_KEY = "depotFile";
+	private static final String REV_KEY = "rev";
+	private static final String FILE_SIZE_KEY = "fileSize";
+	private static final String ACTION_KEY = "action";
+	private static final String DELETED_ACTION = "deleted";
+
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+	private final Server server;
+	private final IServer iserver;
+	private final SyncOptions syncOpts;
+
+	// Set once a batch fails or the callback asks to stop; the batches that
+	// haven't started yet are then skipped.
+	private final AtomicBoolean stopped = new AtomicBoolean(false);
+
+	// Set by the preview if there are deletes, left for the original sync to
+	// do after the batches.
+	private boolean syncDeletes = false;
+
+	ParallelSync(Server server, IServer iserver, SyncOptions syncOpts) {
+		this.server = server;
+		this.iserver = iserver;
+		this.syncOpts = syncOpts;
+	}
+
+	/**
+	 * @return true if the sync with these options can be split up.
+	 */
+	static boolean canRunParallel(Server server, SyncOptions syncOpts) {
+		return syncOpts != null
+				&& syncOpts.getParallelThreads() > 1
+				// string based options can't be changed into the preview
+				&& !syncOpts.isImmutable()
+				// nothing gets transferred for these
+				&& !syncOpts.isNoUpdate()
+				&& !syncOpts.isClientBypass()
+				&& server.supportsConcurrentCommands();
+	}
+
+	/**
+	 * Run the sync, and return the result maps in the order described above.
+	 */
+	List<Map<String, Object>> sync(List<IFileSpec> fileSpecs) throws P4JavaException {
+		final List<Map<String, Object>> ret = new ArrayList<Map<String, Object>>();
+		final List<List<IFileSpec>> batches = preview(fileSpecs, ret);
+		if (batches == null) {
+			return ret;
+		}
+		for (List<Map<String, Object>> batchResults : runBatches(batches, new BatchRunner() {
+					public List<Map<String, Object>> run(List<IFileSpec> batch) throws P4JavaException {
+						return server.execMapCmdList(CmdSpec.SYNC,
+								Parameters.processParameters(syncOpts, batch, iserver), null);
+					}
+				})) {
+			if (batchResults != null) {
+				ret.addAll(batchResults);
+			}
+		}
+		if (syncDeletes) {
+			final List<Map<String, Object>> results = server.execMapCmdList(CmdSpec.SYNC,
+					Parameters.processParameters(getDeleteOptions(), fileSpecs, iserver), null);
+			if (results != null) {
+				ret.addAll(results);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Run the sync, passing each result map to the callback. The callback is
+	 * never called by more than one thread at a time, but the results of the
+	 * different batches are interleaved. Its startResults and endResults
+	 * methods are called once, around the whole sync.
+	 */
+	void sync(final List<IFileSpec> fileSpecs, final IStreamingCallback callback, final int key)
+			throws P4JavaException {
+		try {
+			callback.startResults(key);
+		} catch (Throwable exc) {
+			Log.error("streaming callback startResults method threw exception: " + exc.getLocalizedMessage());
+			Log.exception(exc);
+		}
+		try {
+			final List<Map<String, Object>> previewMessages = new ArrayList<Map<String, Object>>();
+			final List<List<IFileSpec>> batches = preview(fileSpecs, previewMessages);
+			for (Map<String, Object> map : previewMessages) {
+				if (!callback.handleResult(map, key)) {
+					return;
+				}
+			}
+			if (batches == null) {
+				return;
+			}
+			final IStreamingCallback serialized = new IStreamingCallback() {
+				public boolean startResults(int key) throws P4JavaException {
+					return true;
+				}
+
+				public boolean endResults(int key) throws P4JavaException {
+					return true;
+				}
+
+				public synchronized boolean handleResult(Map<String, Object> resultMap, int key)
+						throws P4JavaException {
+					if (stopped.get()) {
+						return false;
+					}
+					if (!callback.handleResult(resultMap, key)) {
+						stopped.set(true);
+						return false;
+					}
+					return true;
+				}
+			};
+			runBatches(batches, new BatchRunner() {
+				public List<Map<String, Object>> run(List<IFileSpec> batch) throws P4JavaException {
+					server.execStreamingMapCommand(CmdSpec.SYNC.toString(),
+							Parameters.processParameters(syncOpts, batch, iserver), null,
+							serialized, key);
+					return null;
+				}
+			});
+			if (syncDeletes && !stopped.get()) {
+				server.execStreamingMapCommand(CmdSpec.SYNC.toString(),
+						Parameters.processParameters(getDeleteOptions(), fileSpecs, iserver), null,
+						serialized, key);
+			}
+		} finally {
+			try {
+				callback.endResults(key);
+			} catch (Throwable exc) {
+				Log.error("streaming callback endResults method threw exception: " + exc.getLocalizedMessage());
+				Log.exception(exc);
+			}
+		}
+	}
+
+	/**
+	 * Preview the sync, adding the messages that aren't about a file to transfer
+	 * to the messages list. The messages about deletes are dropped; the deletes
+	 * are done, and reported, by the original sync after the batches.
+	 *
+	 * @return the batches of file revisions to sync, or null if there's nothing
+	 * 			worth splitting up (in which case the messages already hold the
+	 * 			results of the real sync).
+	 */
+	private List<List<IFileSpec>> preview(List<IFileSpec> fileSpecs,
+			List<Map<String, Object>> messages) throws P4JavaException {
+		final SyncOptions previewOpts = new SyncOptions(
+				syncOpts.isForceUpdate(), true, syncOpts.isClientBypass(),
+				syncOpts.isServerBypass(), syncOpts.isSafetyCheck());
+		final List<Map<String, Object>> resultMaps = server.execMapCmdList(CmdSpec.SYNC,
+				Parameters.processParameters(previewOpts, fileSpecs, iserver), null);
+
+		final List<FileRev> files = new ArrayList<FileRev>();
+		if (resultMaps != null) {
+			for (Map<String, Object> map : resultMaps) {
+				final Object depotFile = map.get(DEPOT_FILE_KEY);
+				final Object rev = map.get(REV_KEY);
+				if (depotFile != null && DELETED_ACTION.equals(map.get(ACTION_KEY))
+						// with -p there's no have list for the last sync to go by
+						&& !syncOpts.isServerBypass()) {
+					syncDeletes = true;
+				} else if (depotFile != null && rev != null) {
+					files.add(new FileRev(depotFile + "#" + rev, getFileSize(map)));
+				} else {
+					messages.add(map);
+				}
+			}
+		}
+
+		if (files.size() < Math.max(2, syncOpts.getParallelMin())) {
+			// Not worth the extra connections; just run it as usual.
+			messages.clear();
+			syncDeletes = false;
+			final List<Map<String, Object>> results = server.execMapCmdList(CmdSpec.SYNC,
+					Parameters.processParameters(syncOpts, fileSpecs, iserver), null);
+			if (results != null) {
+				messages.addAll(results);
+			}
+			return null;
+		}
+		return makeBatches(files);
+	}
+
+	/**
+	 * @return the options for the sync that does the deletes: the original
+	 * 			ones less -f, so the files the batches synced aren't sent again.
+	 */
+	private SyncOptions getDeleteOptions() {
+		return new SyncOptions(false, syncOpts.isNoUpdate(), syncOpts.isClientBypass(),
+				syncOpts.isServerBypass(), syncOpts.isSafetyCheck());
+	}
+
+	private List<List<IFileSpec>> makeBatches(List<FileRev> files) {
+		long totalSize = 0;
+		for (FileRev file : files) {
+			totalSize += file.size;
+		}
+		// Several batches per thread, so the threads even out when some
+		// batches go faster than others.
+		long batchSize = Math.max(1L, totalSize / (syncOpts.getParallelThreads() * 4L));
+		if (syncOpts.getParallelBatchSize() > 0) {
+			batchSize = Math.min(batchSize, syncOpts.getParallelBatchSize());
+		}
+		final int batchFiles = Math.max(1, syncOpts.getParallelBatch());
+
+		// Largest first, so the big files start early and the small ones
+		// fill in at the end.
+		Collections.sort(files, new Comparator<FileRev>() {
+			public int compare(FileRev a, FileRev b) {
+				return a.size < b.size ? 1 : (a.size > b.size ? -1 : 0);
+			}
+		});
+		final List<List<IFileSpec>> ret = new ArrayList<List<IFileSpec>>();
+		List<String> batch = new ArrayList<String>();
+		long size = 0;
+		for (FileRev file : files) {
+			if (!batch.isEmpty() && (size + file.size > batchSize || batch.size() >= batchFiles)) {
+				ret.add(FileSpecBuilder.makeFileSpecList(batch));
+				batch = new ArrayList<String>();
+				size = 0;
+			}
+			batch.add(file.path);
+			size += file.size;
+		}
+		if (!batch.isEmpty()) {
+			ret.add(FileSpecBuilder.makeFileSpecList(batch));
+		}
+		return ret;
+	}
+
+	private List<List<Map<String, Object>>> runBatches(List<List<IFileSpec>> batches,
+			final BatchRunner runner) throws P4JavaException {
+		final int threads = Math.min(syncOpts.getParallelThreads(), batches.size());
+		final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "p4java-parallel-sync-" + THREAD_COUNT.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			final List<Future<List<Map<String, Object>>>> futures =
+					new ArrayList<Future<List<Map<String, Object>>>>(batches.size());
+			for (final List<IFileSpec> batch : batches) {
+				futures.add(executor.submit(new Callable<List<Map<String, Object>>>() {
+					public List<Map<String, Object>> call() throws Exception {
+						if (stopped.get()) {
+							return null;
+						}
+						try {
+							return runner.run(batch);
+						} catch (Exception exc) {
+							stopped.set(true);
+							throw exc;
+						} catch (Error err) {
+							stopped.set(true);
+							throw err;
+						}
+					}
+				}));
+			}
+
+			final List<List<Map<String, Object>>> ret = new ArrayList<List<Map<String, Object>>>(batches.size());
+			Throwable firstError = null;
+			for (Future<List<Map<String, Object>>> future : futures) {
+				try {
+					ret.add(future.get());
+				} catch (ExecutionException exc) {
+					if (firstError == null) {
+						firstError = exc.getCause();
+					}
+				} catch (InterruptedException exc) {
+					stopped.set(true);
+					executor.shutdownNow();
+					Thread.currentThread().interrupt();
+					throw new RequestException("Interrupted during parallel sync", exc);
+				}
+			}
+			if (firstError instanceof P4JavaException) {
+				throw (P4JavaException) firstError;
+			}
+			if (firstError instanceof RuntimeException) {
+				throw (RuntimeException) firstError;
+			}
+			if (firstError instanceof Error) {
+				throw (Error) firstError;
+			}
+			if (firstError != null) {
+				Log.exception(firstError);
+				throw new P4JavaError("Unexpected parallel sync failure: " + firstError, firstError);
+			}
+			return ret;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static long getFileSize(Map<String, Object> map) {
+		final Object value = map.get(FILE_SIZE_KEY);
+		if (value != null) {
+			try {
+				return Math.max(1L, Long.parseLong(value.toString()));
+			} catch (NumberFormatException exc) {
+				// fall through
+			}
+		}
+		// Deletes, and servers that don't report the size.
+		return 1L;
+	}
+
+	private interface BatchRunner {
+		List<Map<String, Object>> run(List<IFileSpec> batch) throws P4JavaException;
+	}
+
+	private static class FileRev {
+		final String path;
+		final long size;
+
+		FileRev(String path, long size) {
+			this.path = path;
+			this.size = size;
+		}
+	}
+}
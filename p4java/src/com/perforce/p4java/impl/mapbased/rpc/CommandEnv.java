@@ -15,6 +15,7 @@ import com.perforce.p4java.impl.mapbased.rpc.func.proto.ProtocolCommand;
 import com.perforce.p4java.impl.mapbased.rpc.packet.helper.RpcPacketFieldRule;
 import com.perforce.p4java.server.callback.IFilterCallback;
 import com.perforce.p4java.server.callback.IProgressCallback;
+import com.perforce.p4java.server.callback.IStreamingBackpressureCallback;
 import com.perforce.p4java.server.callback.IStreamingCallback;
 
 /**
@@ -215,6 +216,26 @@ public class CommandEnv {
 		}
 	}
 
+	/**
+	 * If the command has a streaming callback that supports backpressure,
+	 * give it the chance to hold off reading the next packet until it's
+	 * ready for more results. Marks the command as cancelled if the
+	 * callback asks for that; an exception from the callback is passed
+	 * on, and also stops the command.
+	 */
+	// p4ic4idea: backpressure hook for streaming consumers
+	public void awaitStreamingCapacity() throws P4JavaException {
+		if ((streamingCallback instanceof IStreamingBackpressureCallback) && !userCanceled) {
+			boolean proceed = false;
+			try {
+				proceed = ((IStreamingBackpressureCallback) streamingCallback)
+						.awaitCapacity(streamingCallbackKey);
+			} finally {
+				userCanceled = !proceed;
+			}
+		}
+	}
+
 	public RpcHandler getHandler(String handlerName) {
 		for (RpcHandler handler : handlers) {
 			if ((handler != null) && (handlerName != null)
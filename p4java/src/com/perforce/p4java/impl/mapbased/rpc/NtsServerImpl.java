@@ -13,7 +13,6 @@ import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionSpec;
 import com.perforce.p4java.impl.mapbased.rpc.func.proto.ProtocolCommand;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacket;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDispatcher;
-import com.perforce.p4java.impl.mapbased.rpc.stream.RpcStreamConnection;
 import com.perforce.p4java.impl.mapbased.rpc.sys.RpcOutputStream;
 import com.perforce.p4java.option.UsageOptions;
 import com.perforce.p4java.server.CmdSpec;
@@ -148,9 +147,8 @@ public class NtsServerImpl extends RpcServer {
 
 	public void connect() throws ConnectionException,
 			AccessException, RequestException, ConfigException {
-		this.rpcConnection = new RpcStreamConnection(serverHost, serverPort, props,
-				this.serverStats, this.charset, null, null,
-				this.secure, this.rsh);
+		// p4ic4idea: let the server pick the connection implementation
+		this.rpcConnection = newRpcConnection(null);
 		this.dispatcher = new RpcPacketDispatcher(props, this);
 
 		Log.info("RPC connection to Perforce server "
@@ -174,6 +172,8 @@ public class NtsServerImpl extends RpcServer {
 
 		this.dispatcher.shutdown(this.rpcConnection);
 		this.rpcConnection.disconnect(this.dispatcher);
+		// p4ic4idea: stop the dispatcher's background threads too
+		this.dispatcher.dispose();
 		this.haveSentProtocolSpecs = false;
 		this.protocolSpecs = null;
 		super.disconnect();
@@ -391,6 +391,8 @@ public class NtsServerImpl extends RpcServer {
 			if (cmdEnv != null && cmdEnv.isUserCanceled()) {
 				if (rpcConnection != null) {
 					rpcConnection.disconnect(dispatcher);
+					// p4ic4idea: connect() replaces the dispatcher
+					dispatcher.dispose();
 					try {
 						connect();
 					} catch (ConfigException cfe) {
@@ -561,6 +563,8 @@ public class NtsServerImpl extends RpcServer {
 			if (cmdEnv != null && cmdEnv.isUserCanceled()) {
 				if (rpcConnection != null) {
 					rpcConnection.disconnect(dispatcher);
+					// p4ic4idea: connect() replaces the dispatcher
+					dispatcher.dispose();
 					try {
 						connect();
 					} catch (ConfigException cfe) {
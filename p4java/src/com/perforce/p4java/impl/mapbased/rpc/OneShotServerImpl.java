@@ -91,6 +91,17 @@ public class OneShotServerImpl extends RpcServer {
 	 */
 	protected RpcSocketPool socketPool = null;
 
+	/**
+	 * Every command runs over its own connection.
+	 *
+	 * @see com.perforce.p4java.impl.mapbased.server.Server#supportsConcurrentCommands()
+	 */
+	// p4ic4idea: added
+	@Override
+	public boolean supportsConcurrentCommands() {
+		return true;
+	}
+
 	/**
 	 * Initialize the server. Basically defers to the superclass after setting
 	 * up the required server version and any optional socket pools.
@@ -127,8 +138,10 @@ public class OneShotServerImpl extends RpcServer {
 					}
 				}
 			};
+			// p4ic4idea: report pool metrics through the server stats
 			this.socketPool = new RpcSocketPool(poolSize, this.serverHost,
-					this.serverPort, this.props, handler, this.secure);
+					this.serverPort, this.props, handler, this.secure,
+					this.serverStats);
 		}
 
 		return status;
@@ -298,9 +311,8 @@ public class OneShotServerImpl extends RpcServer {
 			int cmdCallBackKey = this.nextCmdCallBackKey.incrementAndGet();
 			long startTime = System.currentTimeMillis();
 			dispatcher = new RpcPacketDispatcher(props, this);
-			rpcConnection = new RpcStreamConnection(serverHost, serverPort,
-					props, this.serverStats, this.charset, null, this.socketPool,
-					this.secure, this.rsh);
+			// p4ic4idea: let the server pick the connection implementation
+			rpcConnection = newRpcConnection(this.socketPool);
 			ProtocolCommand protocolSpecs = new ProtocolCommand();
 
 			if (inMap != null && ClientLineEnding.CONVERT_TEXT) {
@@ -389,6 +401,10 @@ public class OneShotServerImpl extends RpcServer {
 			if (rpcConnection != null) {
 				rpcConnection.disconnect(dispatcher);
 			}
+			// p4ic4idea: the dispatcher is only used for this one command
+			if (dispatcher != null) {
+				dispatcher.dispose();
+			}
 		}
 	}
 
@@ -466,9 +482,8 @@ public class OneShotServerImpl extends RpcServer {
 			int cmdCallBackKey = this.nextCmdCallBackKey.incrementAndGet();
 			long startTime = System.currentTimeMillis();
 			dispatcher = new RpcPacketDispatcher(props, this);
-			rpcConnection = new RpcStreamConnection(serverHost, serverPort,
-					props, this.serverStats, this.charset, null, this.socketPool,
-					this.secure, this.rsh);
+			// p4ic4idea: let the server pick the connection implementation
+			rpcConnection = newRpcConnection(this.socketPool);
 			ProtocolCommand protocolSpecs = new ProtocolCommand();
 			if (inMap != null && ClientLineEnding.CONVERT_TEXT) {
 				ClientLineEnding.convertMap(inMap);
@@ -555,6 +570,10 @@ public class OneShotServerImpl extends RpcServer {
 			if (rpcConnection != null) {
 				rpcConnection.disconnect(dispatcher);
 			}
+			// p4ic4idea: the dispatcher is only used for this one command
+			if (dispatcher != null) {
+				dispatcher.dispose();
+			}
 		}
 	}
 
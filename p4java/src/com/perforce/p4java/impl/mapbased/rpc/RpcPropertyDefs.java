@@ -174,6 +174,31 @@ public class RpcPropertyDefs {
 	 * Default number of sockets retained in pool
 	 */
 	public static final int RPC_SOCKET_POOL_DEFAULT_SIZE = 0;
+
+	// p4ic4idea: pooled socket lifetime and validation
+	/**
+	 * If this property is set to a positive value, pooled sockets that have
+	 * been open for longer than this many milliseconds are closed rather than
+	 * reused.
+	 */
+	public static final String RPC_SOCKET_POOL_MAX_LIFETIME_NICK = "socketPoolMaxLifetime";
+
+	/**
+	 * Default pooled socket maximum lifetime; zero means no limit.
+	 */
+	public static final int RPC_SOCKET_POOL_DEFAULT_MAX_LIFETIME = 0;
+
+	/**
+	 * Pooled sockets that have sat idle for at least this many milliseconds
+	 * are checked for a server-side close before they're reused. Set to zero
+	 * to check every socket, or to a negative value to never check.
+	 */
+	public static final String RPC_SOCKET_POOL_VALIDATE_IDLE_NICK = "socketPoolValidateIdle";
+
+	/**
+	 * Default pooled socket validation idle time.
+	 */
+	public static final int RPC_SOCKET_POOL_DEFAULT_VALIDATE_IDLE = 1000;
 	
 	/**
 	 * If this property is set and equals "false", do not trust all certificates.
@@ -245,6 +270,104 @@ public class RpcPropertyDefs {
 	 */
 	public static final String RPC_APPLICATION_NAME_NICK = "applicationName";
 
+	// p4ic4idea: lazy decoding of RPC result text values
+	/**
+	 * If this property is set and equals "true", text values in incoming
+	 * RPC packets are left undecoded until the caller first reads them
+	 * from the results map (see RpcLazyResultsMap). This saves a good deal of
+	 * work for tagged commands like fstat where most fields are never read.
+	 * Has no effect on commands run with a filter callback.
+	 */
+	public static final String RPC_LAZY_FIELD_DECODING_NICK = "lazyFieldDecoding";
+
+	/**
+	 * Default lazy field decoding setting.
+	 */
+	public static final boolean RPC_DEFAULT_LAZY_FIELD_DECODING = false;
+
+	// p4ic4idea: NIO socket channel transport
+	/**
+	 * If this property is set and equals "true", plain (non-SSL, non-rsh,
+	 * non-pooled) server connections use the SocketChannel based
+	 * RpcSocketChannelConnection rather than the java.io socket stream
+	 * based RpcStreamConnection. Secure, rsh and pooled connections
+	 * always use RpcStreamConnection.
+	 */
+	public static final String RPC_USE_NIO_TRANSPORT_NICK = "useNioTransport";
+
+	/**
+	 * Default NIO transport setting.
+	 */
+	public static final boolean RPC_DEFAULT_USE_NIO_TRANSPORT = false;
+
+	// p4ic4idea: background file writes for sync and print
+	/**
+	 * If this property is set and equals "true", the file data received by
+	 * sync-type commands and by print (getFileContents) is converted and
+	 * written to disk on a background thread (see RpcAsyncFileWriter), with
+	 * buffered file output, so reading from the server and writing to the
+	 * disk overlap. Not used when progress reporting is enabled, as that
+	 * needs the written (converted) byte counts as they happen.
+	 */
+	public static final String RPC_ASYNC_FILE_WRITES_NICK = "asyncFileWrites";
+
+	/**
+	 * Default background file writes setting.
+	 */
+	public static final boolean RPC_DEFAULT_ASYNC_FILE_WRITES = false;
+
+	/**
+	 * If this property is set, it limits the number of received file bytes
+	 * waiting for the background writer; the reads from the server wait
+	 * while the limit is reached.
+	 */
+	public static final String RPC_ASYNC_FILE_WRITES_MAX_PENDING_NICK = "asyncFileWritesMaxPending";
+
+	// p4ic4idea: digest prefetching for reconcile and diff
+	/**
+	 * If this property is set and equals "true", the client file digests that
+	 * reconcile and 'diff -se' style commands compare against the server's are
+	 * computed on a small thread pool while the following requests are read,
+	 * with the replies sent in order once their digests are done (see
+	 * ClientDigestPrefetcher).
+	 */
+	public static final String RPC_PREFETCH_DIGESTS_NICK = "prefetchDigests";
+
+	/**
+	 * Default digest prefetching setting.
+	 */
+	public static final boolean RPC_DEFAULT_PREFETCH_DIGESTS = false;
+
+	/**
+	 * If this property is set, it gives the number of digest prefetching
+	 * threads; the default is the number of processors, up to four.
+	 */
+	public static final String RPC_PREFETCH_DIGESTS_THREADS_NICK = "prefetchDigestsThreads";
+
+	// p4ic4idea: client file digest cache
+	/**
+	 * If this property is set to a directory, the digests of client files
+	 * computed for reconcile and 'diff -se' style commands are cached in a
+	 * file per client workspace there, keyed by the file's path, size,
+	 * modification time and type, and reused while those don't change
+	 * (see MD5DigestCache). Not set by default.
+	 */
+	public static final String RPC_DIGEST_CACHE_DIR_NICK = "digestCacheDir";
+
+	// p4ic4idea: ignored directory pruning for reconcile add
+	/**
+	 * If this property is set and equals "true", reconcile add doesn't read
+	 * the directories its ignore files rule out as a whole (see
+	 * ClientIgnoreChecker.matchDirectory), and reports each such directory as
+	 * ignored once, rather than each file in it.
+	 */
+	public static final String RPC_RECONCILE_PRUNE_IGNORED_NICK = "reconcilePruneIgnored";
+
+	/**
+	 * Default ignored directory pruning setting.
+	 */
+	public static final boolean RPC_DEFAULT_RECONCILE_PRUNE_IGNORED = false;
+
 	/**
 	 * Convenience method to first try to get the short form from the passed-in
 	 * properties, then try for the long form. Returns null if it can't find
@@ -15,6 +15,8 @@ import com.perforce.p4java.impl.mapbased.rpc.helper.RpcUserAuthCounter;
 import com.perforce.p4java.impl.mapbased.rpc.msg.RpcMessage;
 import com.perforce.p4java.impl.mapbased.rpc.msg.ServerMessage;
 import com.perforce.p4java.impl.mapbased.rpc.packet.helper.RpcPacketFieldRule;
+import com.perforce.p4java.impl.mapbased.rpc.stream.RpcSocketChannelConnection;
+import com.perforce.p4java.impl.mapbased.rpc.stream.RpcSocketPool;
 import com.perforce.p4java.impl.mapbased.rpc.stream.RpcStreamConnection;
 import com.perforce.p4java.impl.mapbased.server.Server;
 import com.perforce.p4java.option.UsageOptions;
@@ -1132,6 +1134,31 @@ public List<Fingerprint> getTrusts(TrustOptions opts) throws P4JavaException {
             return this.serverId;
     }
 
+    // p4ic4idea: pick the connection implementation in one place
+    /**
+     * Open a new RPC connection to the server for running commands.<p>
+     *
+     * Plain socket connections use the SocketChannel based
+     * RpcSocketChannelConnection if the RPC_USE_NIO_TRANSPORT_NICK property
+     * is set; everything else (SSL, 'rsh' mode, pooled sockets) always uses
+     * RpcStreamConnection.
+     *
+     * @param pool socket pool to take the socket from; may be null.
+     * @return non-null, connected RPC connection.
+     * @throws ConnectionException if the connection couldn't be made.
+     */
+    protected RpcConnection newRpcConnection(RpcSocketPool pool) throws ConnectionException {
+        if (!this.secure && (this.rsh == null) && (pool == null)
+                && RpcPropertyDefs.getPropertyAsBoolean(this.props,
+                        RpcPropertyDefs.RPC_USE_NIO_TRANSPORT_NICK,
+                        RpcPropertyDefs.RPC_DEFAULT_USE_NIO_TRANSPORT)) {
+            return new RpcSocketChannelConnection(this.serverHost, this.serverPort,
+                    this.props, this.serverStats, this.charset);
+        }
+        return new RpcStreamConnection(this.serverHost, this.serverPort, this.props,
+                this.serverStats, this.charset, null, pool, this.secure, this.rsh);
+    }
+
     /**
      * Return true iff we should be performing server -> client
      * file write I/O operations in place for this command.<p>
@@ -37,6 +37,34 @@ public class ServerStats {
 	public AtomicLong recvBufSize = new AtomicLong();
 	public AtomicLong incompleteReads = new AtomicLong();
 	
+	// p4ic4idea: track receive buffer allocation
+	/**
+	 * Number of bytes allocated for RPC packet receive buffers; divide
+	 * by packetsRecv for the per-packet allocation figure.
+	 */
+	public AtomicLong recvBufBytesAllocated = new AtomicLong();
+	
+	// p4ic4idea: socket pool metrics
+	/**
+	 * Number of sockets taken from the socket pool.
+	 */
+	public AtomicLong socketPoolHits = new AtomicLong();
+	/**
+	 * Number of sockets newly opened because the pool had none to give.
+	 */
+	public AtomicLong socketPoolMisses = new AtomicLong();
+	/**
+	 * Number of pooled sockets closed instead of reused because they were
+	 * dead, past their maximum lifetime, or the pool was full.
+	 */
+	public AtomicLong socketPoolDiscards = new AtomicLong();
+	/**
+	 * Total and longest time, in milliseconds, spent acquiring a socket
+	 * from the pool (including opening new ones).
+	 */
+	public AtomicLong socketPoolAcquireTime = new AtomicLong();
+	public AtomicLong socketPoolLongestAcquire = new AtomicLong();
+	
 	public void clear() {
 		this.serverConnections.set(0);
 		this.streamSends.set(0);
@@ -54,6 +82,12 @@ public class ServerStats {
 		this.sendBufSize.set(0);
 		this.recvBufSize.set(0);
 		this.incompleteReads.set(0);
+		this.recvBufBytesAllocated.set(0);
+		this.socketPoolHits.set(0);
+		this.socketPoolMisses.set(0);
+		this.socketPoolDiscards.set(0);
+		this.socketPoolAcquireTime.set(0);
+		this.socketPoolLongestAcquire.set(0);
 	}
 	
 	public void logStats() {
@@ -72,5 +106,16 @@ public class ServerStats {
 				+ "; largest socket recv (bytes): " + this.largestRecv);
 		Log.stats("RPC put buffer resizes: " + this.bufferCompacts);
 		Log.stats("RPC read buffer incomplete reads: " + this.incompleteReads);
+		long packets = this.packetsRecv.get();
+		Log.stats("RPC read buffer bytes allocated: " + this.recvBufBytesAllocated
+				+ "; per packet received: "
+				+ (packets == 0 ? 0 : this.recvBufBytesAllocated.get() / packets));
+		long acquires = this.socketPoolHits.get() + this.socketPoolMisses.get();
+		Log.stats("socket pool hits: " + this.socketPoolHits
+				+ "; misses: " + this.socketPoolMisses
+				+ "; discards: " + this.socketPoolDiscards);
+		Log.stats("socket pool acquire time (ms): " + this.socketPoolAcquireTime
+				+ "; average: " + (acquires == 0 ? 0 : this.socketPoolAcquireTime.get() / acquires)
+				+ "; longest: " + this.socketPoolLongestAcquire);
 	}
 }
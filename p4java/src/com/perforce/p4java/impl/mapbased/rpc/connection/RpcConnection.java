@@ -4,8 +4,10 @@
 package com.perforce.p4java.impl.mapbased.rpc.connection;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.Map;
 import java.util.Properties;
 
 import com.perforce.p4java.CharsetDefs;
@@ -13,16 +15,21 @@ import com.perforce.p4java.Log;
 import com.perforce.p4java.exception.ConnectionException;
 import com.perforce.p4java.exception.P4JavaError;
 import com.perforce.p4java.exception.NullPointerError;
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
 import com.perforce.p4java.impl.mapbased.rpc.ServerStats;
+import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacket;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDispatcher;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketFieldNameTable;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketPreamble;
 import com.perforce.p4java.impl.mapbased.rpc.packet.helper.RpcPacketFieldRule;
 import com.perforce.p4java.server.callback.IFilterCallback;
 
 /**
  * Main abstract class for sending and receiving packets (etc.) to and from the
- * Perforce server. There is currently only one known subclass, RpcStreamConnection,
- * which implements the connection using java.io streams on top of sockets.<p>
+ * Perforce server. There are currently two known subclasses: RpcStreamConnection,
+ * which implements the connection using java.io streams on top of sockets, and
+ * RpcSocketChannelConnection, which uses a non-blocking NIO SocketChannel.<p>
  * 
  * Note that charset conversion should never be necessary on connections
  * to non-Unicode servers, as any bytes in the incoming stream that are marked
@@ -78,6 +85,29 @@ public abstract class RpcConnection {
 	 */
 	public static final String NON_UNICODE_SERVER_CHARSET_NAME = CharsetDefs.DEFAULT_NAME;
 
+	// p4ic4idea: packet buffers are kept between packets and grown geometrically; these
+	// are shared by all the connection implementations.
+	/**
+	 * Minimum number of bytes we allocate for the send buffer used for outgoing
+	 * RPC packets. In general we don't know how big the final buffer is, so the
+	 * buffer is kept between packets and doubled whenever it runs out of space.
+	 */
+	protected static final int INITIAL_SENDBUF_SIZE = 2048;
+	
+	/**
+	 * Largest send buffer we keep around for reuse between outgoing packets;
+	 * anything that had to grow beyond this is dropped after the send.
+	 */
+	protected static final int MAX_POOLED_SENDBUF_SIZE = 1024 * 1024;
+	
+	/**
+	 * Largest receive buffer we keep around for reuse between incoming packets.
+	 * Packets bigger than this get a buffer of their own that's dropped once the
+	 * packet's been decoded, so one pathological packet doesn't pin a huge array
+	 * for the rest of the connection's life.
+	 */
+	protected static final int MAX_POOLED_RECVBUF_SIZE = 1024 * 1024;
+
 	protected static final String UNKNOWN_SERVER_HOST = null;
 	protected static final int UNKNOWN_SERVER_PORT = -1;
 	
@@ -99,6 +129,17 @@ public abstract class RpcConnection {
 	protected String fingerprint = null;
 	protected boolean trusted = false;
 	
+	// p4ic4idea: buffers reused for every incoming and outgoing packet; see
+	// getRecvBuffer() and marshalRpcPacket().
+	private byte[] recvBytes = null;
+	private ByteBuffer sendBuf = null;
+
+	// p4ic4idea: canonical field name Strings for incoming packets
+	private final RpcPacketFieldNameTable fieldNames = new RpcPacketFieldNameTable();
+
+	// p4ic4idea: leave text values undecoded until read
+	private boolean lazyFieldDecoding = RpcPropertyDefs.RPC_DEFAULT_LAZY_FIELD_DECODING;
+	
 	/**
 	 * Create a Perforce RPC connection to a given host and port number pair.<p>
 	 * 
@@ -159,6 +200,9 @@ public abstract class RpcConnection {
 		}
 		this.stats.serverConnections.incrementAndGet();
 		this.unicodeServer = (clientCharset != null); // Note: NOT this.clientCharset....
+		this.lazyFieldDecoding = RpcPropertyDefs.getPropertyAsBoolean(this.props,
+				RpcPropertyDefs.RPC_LAZY_FIELD_DECODING_NICK,
+				RpcPropertyDefs.RPC_DEFAULT_LAZY_FIELD_DECODING);
 	}
 
     /**
@@ -225,6 +269,267 @@ public abstract class RpcConnection {
 	
 	public abstract int getSystemRecvBufferSize();
 	
+	/**
+	 * Return true if incoming data is known to be already waiting, so the next
+	 * getRpcPacket call shouldn't need to wait on the server. This may return
+	 * false when it can't tell; callers use it to decide whether they can hold
+	 * back replies a little longer without the server waiting on them.
+	 */
+	// p4ic4idea: used by the reconcile / diff digest prefetching
+	public boolean hasBufferedInput() {
+		return false;
+	}
+	
+	/**
+	 * Return a receive buffer at least payloadLength bytes long. Normally
+	 * this is the connection's reusable receive buffer, grown (by doubling)
+	 * as necessary; the initial size is taken from the
+	 * RpcPropertyDefs.RPC_DEFAULT_RECV_BYTE_BUF_SIZE_NICK property.
+	 * Payloads larger than MAX_POOLED_RECVBUF_SIZE get a one-off buffer.<p>
+	 * 
+	 * The returned buffer is only valid until the next call; RpcPacket
+	 * copies out anything it needs to keep.
+	 */
+	protected byte[] getRecvBuffer(int payloadLength) {
+		if ((this.recvBytes != null) && (this.recvBytes.length >= payloadLength)) {
+			return this.recvBytes;
+		}
+		
+		if (payloadLength > MAX_POOLED_RECVBUF_SIZE) {
+			this.stats.recvBufBytesAllocated.getAndAdd(payloadLength);
+			return new byte[payloadLength];
+		}
+		
+		int newSize = this.recvBytes != null ? this.recvBytes.length
+				: RpcPropertyDefs.getPropertyAsInt(this.props,
+						RpcPropertyDefs.RPC_DEFAULT_RECV_BYTE_BUF_SIZE_NICK,
+						RpcPropertyDefs.RPC_DEFAULT_RECV_BYTE_BUF_SIZE);
+		if (newSize <= 0) {
+			newSize = RpcPropertyDefs.RPC_DEFAULT_RECV_BYTE_BUF_SIZE;
+		}
+		while (newSize < payloadLength) {
+			newSize *= 2;
+		}
+		newSize = Math.min(newSize, MAX_POOLED_RECVBUF_SIZE);
+		
+		this.recvBytes = new byte[newSize];
+		this.stats.recvBufBytesAllocated.getAndAdd(newSize);
+		this.stats.recvBufSize.set(newSize);
+		return this.recvBytes;
+	}
+	
+	/**
+	 * Return the array to read the payload of a packet into. A packet that
+	 * will be decoded lazily keeps its payload, so it gets an array of its
+	 * own, exactly payloadLength bytes long; anything else gets the reusable
+	 * receive buffer from getRecvBuffer(int).
+	 */
+	protected byte[] getRecvBuffer(int payloadLength, IFilterCallback filterCallback) {
+		if (this.lazyFieldDecoding && (filterCallback == null)) {
+			this.stats.recvBufBytesAllocated.getAndAdd(payloadLength);
+			return new byte[payloadLength];
+		}
+		return getRecvBuffer(payloadLength);
+	}
+	
+	/**
+	 * Decode an incoming packet from the first payloadLength bytes of the
+	 * passed-in payload buffer (normally the one returned by getRecvBuffer),
+	 * using the connection's field name table and lazy decoding setting,
+	 * and update the receive stats accordingly. The packet is only decoded
+	 * lazily if the buffer isn't the reusable receive buffer.
+	 */
+	protected RpcPacket decodeRpcPacket(RpcPacketPreamble preamble, byte[] payload,
+					int payloadLength, RpcPacketFieldRule fieldRule, IFilterCallback filterCallback) {
+		RpcPacket packet = RpcPacket.constructRpcPacket(preamble, payload, payloadLength,
+				this.unicodeServer, this.clientCharset, fieldRule, filterCallback,
+				this.fieldNames, this.lazyFieldDecoding && (payload != this.recvBytes));
+		
+		this.stats.packetsRecv.incrementAndGet();
+		this.stats.largestRpcPacketRecv.set(Math.max(this.stats.largestRpcPacketRecv.get(),	packet.getPacketLength()));
+		return packet;
+	}
+	
+	/**
+	 * Marshal the passed-in packet, preamble and all, into the connection's
+	 * reusable send buffer, and return that buffer flipped ready for sending
+	 * (i.e. the packet is the buffer's bytes from 0 to its limit). The buffer
+	 * is only valid until the next call; callers should call releaseSendBuffer()
+	 * once they're done with it.<p>
+	 * 
+	 * Every field is written straight into the buffer using the same wire format
+	 * and charset handling as marshalPacketField.
+	 */
+	protected ByteBuffer marshalRpcPacket(RpcPacket packet) {
+		
+		// Note that in general, we don't know how large the packet's output byte
+		// buffer is going to have to be until we've finished the packet contents
+		// marshaling, so every field is written straight into the connection's
+		// reusable send buffer, which is doubled in size whenever it fills up
+		// (see ensureSendCapacity).
+		
+		if (packet == null) {
+			throw new NullPointerError(
+					"null RPC packet passed to RpcConnection.marshalRpcPacket");
+		}
+
+		if (packet.getFuncNameString() == null) {
+			throw new P4JavaError("Unmapped / unmappable function in RpcPacket.put()");
+		}
+		
+		ByteBuffer sendBuf = getSendBuffer();
+		
+		// Skip over the first few bytes for the preamble, which we'll
+		// come back to fill in later when we know the marshaled length.
+		
+		sendBuf.position(RpcPacketPreamble.RPC_PREAMBLE_SIZE);
+		
+		Map<String, Object> mapArgs = packet.getMapArgs();
+		String[] strArgs = packet.getStrArgs();
+		
+		if (mapArgs != null) {
+			for (Map.Entry<String, Object> entry : mapArgs.entrySet()) {
+				putPacketField(entry.getKey(), entry.getValue());
+			}
+		}
+		
+		if (strArgs != null) {
+			for (String arg : strArgs) {	
+				if (arg != null) {
+					putPacketField(null, arg);
+				}
+			}
+		}
+		
+		if (packet.getEnv() != null) {
+			// ExternalEnv knows how to marshal itself onto a ByteBuffer, but it
+			// can't grow the buffer; if it overflows, grow and start the env again.
+			
+			int envStart = this.sendBuf.position();
+			while (true) {
+				try {
+					packet.getEnv().marshal(this.sendBuf);
+					break;
+				} catch (BufferOverflowException boe) {
+					this.sendBuf.position(envStart);
+					ensureSendCapacity(this.sendBuf.capacity() - envStart + 1);
+				}
+			}
+		}
+		
+		putPacketField(RpcFunctionMapKey.FUNCTION, packet.getFuncNameString());
+		
+		// Now go back and calculate the preamble bytes...
+		
+		sendBuf = this.sendBuf;
+		int sendPos = sendBuf.position();
+		byte[] preambleBytes = RpcPacketPreamble.constructPreamble(
+								sendPos - RpcPacketPreamble.RPC_PREAMBLE_SIZE).marshalAsBytes();
+		
+		System.arraycopy(preambleBytes, 0, sendBuf.array(), 0, preambleBytes.length);
+		sendBuf.flip();
+		return sendBuf;
+	}
+	
+	/**
+	 * Called once the buffer returned by marshalRpcPacket has been sent;
+	 * drops the buffer if it grew unusually large, so one big send doesn't
+	 * pin memory for the rest of the connection's life.
+	 */
+	protected void releaseSendBuffer() {
+		if ((this.sendBuf != null) && (this.sendBuf.capacity() > MAX_POOLED_SENDBUF_SIZE)) {
+			this.sendBuf = null;
+		}
+	}
+	
+	/**
+	 * Return the connection's reusable send buffer, cleared and ready for
+	 * a new packet. The initial size is taken from the
+	 * RpcPropertyDefs.RPC_DEFAULT_SEND_BYTE_BUF_SIZE_NICK property.
+	 */
+	private ByteBuffer getSendBuffer() {
+		if (this.sendBuf == null) {
+			int size = Math.max(INITIAL_SENDBUF_SIZE,
+					RpcPropertyDefs.getPropertyAsInt(this.props,
+							RpcPropertyDefs.RPC_DEFAULT_SEND_BYTE_BUF_SIZE_NICK,
+							RpcPropertyDefs.RPC_DEFAULT_SEND_BYTE_BUF_SIZE));
+			this.sendBuf = ByteBuffer.allocate(size);
+			this.stats.sendBufSize.set(size);
+		}
+		this.sendBuf.clear();
+		return this.sendBuf;
+	}
+	
+	/**
+	 * Make sure the send buffer has room for at least another required
+	 * bytes past its current position, growing it geometrically (and
+	 * copying the bytes marshaled so far) if not. Each reallocation is
+	 * counted in the bufferCompacts stat.
+	 */
+	private void ensureSendCapacity(int required) {
+		if (this.sendBuf.remaining() >= required) {
+			return;
+		}
+		
+		this.stats.bufferCompacts.getAndIncrement(); // We're overloading the meaning here...
+		
+		int used = this.sendBuf.position();
+		int newSize = this.sendBuf.capacity();
+		while ((newSize - used) < required) {
+			newSize *= 2;
+		}
+		
+		ByteBuffer newBuf = ByteBuffer.allocate(newSize);
+		this.sendBuf.flip();
+		newBuf.put(this.sendBuf);
+		this.sendBuf = newBuf;
+		this.stats.sendBufSize.set(newSize);
+	}
+	
+	/**
+	 * Marshal a single key / value packet field directly onto the end of the
+	 * send buffer. The wire format and charset handling are exactly those of
+	 * RpcConnection.marshalPacketField; we just avoid building (and then copying)
+	 * an intermediate byte array for each field.
+	 */
+	private void putPacketField(String key, Object value) {
+		byte[] keyBytes = key == null ? null : getNormalizedBytes(key);
+		int keyLength = keyBytes == null ? 0 : keyBytes.length;
+		
+		ByteBuffer valBuf = null;
+		byte[] valBytes = null;
+		int valLength;
+		if (value instanceof ByteBuffer) {
+			valBuf = (ByteBuffer) value;
+			valLength = valBuf.limit();
+		} else {
+			valBytes = marshalPacketValue(value);
+			valLength = valBytes == null ? 0 : valBytes.length;
+		}
+		
+		// Note that there's a null byte after each sub field, hence the "2 +" here.
+		
+		ensureSendCapacity(2 + keyLength + RpcPacket.RPC_LENGTH_FIELD_LENGTH + valLength);
+		
+		ByteBuffer buf = this.sendBuf;
+		if (keyBytes != null) {
+			buf.put(keyBytes);
+		}
+		buf.put((byte) 0);
+		
+		buf.put((byte) (valLength & 0xFF));
+		buf.put((byte) ((valLength >>> 8) & 0xFF));
+		buf.put((byte) ((valLength >>> 16) & 0xFF));
+		buf.put((byte) ((valLength >>> 24) & 0xFF));
+		
+		if (valBuf != null) {
+			buf.put(valBuf);
+		} else if (valBytes != null) {
+			buf.put(valBytes);
+		}
+		buf.put((byte) 0);
+	}
+	
 	/**
 	 * Marshal a packet field into a key value byte array pair. This must respect
 	 * the relevant charset settings, which can be a little counter-intuitive
@@ -0,0 +1,206 @@
+/**
+ *
+ */
+package com.perforce.p4java.impl.mapbased.rpc.func.client;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.impl.generic.client.ClientLineEnding;
+import com.perforce.p4java.impl.mapbased.rpc.CommandEnv;
+import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
+import com.perforce.p4java.impl.mapbased.rpc.func.helper.MD5DigestCache;
+import com.perforce.p4java.impl.mapbased.rpc.func.helper.MD5Digester;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacket;
+
+/**
+ * Digests the client files for reconcile and 'diff -se' style commands on a
+ * small pool of threads, so the local hashing overlaps with reading the
+ * server's requests.<p>
+ *
+ * The server asks about the files one packet at a time (client-CheckFile or
+ * client-ReconcileEdit), and usually sends a whole window of these before it
+ * waits for the replies. Rather than digesting each file before reading the
+ * next packet, the packet handler hands the digest to the pool and queues the
+ * reply; the replies are then sent, in the order the requests came in, once
+ * their digests are done. The main dispatcher sends all queued replies before
+ * it handles any other packet, and before it would have to wait on the server
+ * for the next packet (see RpcConnection.hasBufferedInput()), so the server
+ * never waits on a reply it would otherwise have had.<p>
+ *
+ * The queued replies are kept in the command's state map.
+ */
+// p4ic4idea: created to digest the files of a reconcile or diff ahead of the replies
+public class ClientDigestPrefetcher {
+
+	/**
+	 * Default number of digest threads.
+	 */
+	public static final int DEFAULT_THREADS =
+			Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	/**
+	 * Maximum number of replies held back for one command; past this, the
+	 * handler waits for the oldest digest.
+	 */
+	public static final int MAX_DEFERRED_REPLIES = 256;
+
+	private static final String DEFERRED_REPLIES_KEY = "p4ic4idea.deferredDigestReplies";
+	private static final long IDLE_TIMEOUT_SECONDS = 10;
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+	private final ThreadPoolExecutor executor;
+
+	public ClientDigestPrefetcher(int threads) {
+		if (threads <= 0) {
+			threads = DEFAULT_THREADS;
+		}
+		this.executor = new ThreadPoolExecutor(threads, threads, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable,
+								"p4java-digester-" + THREAD_COUNT.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Start digesting the file, and queue the reply to send when that's done.
+	 * The reply's status is changed to "same" if the digest matches the
+	 * server's; otherwise it's sent as passed in. The digest cache is used if
+	 * it's not null.
+	 */
+	void deferReply(CommandEnv cmdEnv, final MD5DigestCache digestCache,
+			final File file, final Charset charset,
+			final boolean convertLineEndings, final ClientLineEnding clientLineEnding,
+			String serverDigest, String confirm, Map<String, Object> respMap)
+			throws ConnectionException {
+		Future<String> digest = this.executor.submit(new Callable<String>() {
+			public String call() {
+				if (digestCache != null) {
+					return digestCache.digestFileAs32ByteHex(file, charset,
+							convertLineEndings, clientLineEnding);
+				}
+				return new MD5Digester().digestFileAs32ByteHex(file, charset,
+						convertLineEndings, clientLineEnding);
+			}
+		});
+
+		LinkedList<DeferredReply> replies = getReplies(cmdEnv, true);
+		replies.add(new DeferredReply(digest, serverDigest, confirm, respMap));
+
+		sendReplies(cmdEnv, replies, replies.size() - MAX_DEFERRED_REPLIES);
+	}
+
+	/**
+	 * Stop the digester threads once the files already handed over are digested.
+	 */
+	public void shutdown() {
+		this.executor.shutdown();
+	}
+
+	/**
+	 * @return true if the command has replies waiting on their digests.
+	 */
+	public static boolean hasDeferredReplies(CommandEnv cmdEnv) {
+		LinkedList<DeferredReply> replies = getReplies(cmdEnv, false);
+		return (replies != null) && !replies.isEmpty();
+	}
+
+	/**
+	 * Send all the command's queued replies, waiting on the digests as needed.
+	 */
+	public static void sendDeferredReplies(CommandEnv cmdEnv) throws ConnectionException {
+		LinkedList<DeferredReply> replies = getReplies(cmdEnv, false);
+		if (replies != null) {
+			sendReplies(cmdEnv, replies, replies.size());
+		}
+	}
+
+	/**
+	 * Drop the command's queued replies without sending them; used when the
+	 * command ends early.
+	 */
+	public static void discardDeferredReplies(CommandEnv cmdEnv) {
+		LinkedList<DeferredReply> replies = getReplies(cmdEnv, false);
+		if (replies != null) {
+			for (DeferredReply reply : replies) {
+				reply.digest.cancel(false);
+			}
+			replies.clear();
+		}
+	}
+
+	/**
+	 * Send the first mustSend replies, waiting on their digests, then any
+	 * following replies whose digests are already done.
+	 */
+	private static void sendReplies(CommandEnv cmdEnv, LinkedList<DeferredReply> replies,
+			int mustSend) throws ConnectionException {
+		while (!replies.isEmpty() && ((mustSend > 0) || replies.getFirst().digest.isDone())) {
+			DeferredReply reply = replies.removeFirst();
+			mustSend--;
+
+			String digestStr = null;
+			try {
+				digestStr = reply.digest.get();
+			} catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				discardDeferredReplies(cmdEnv);
+				throw new ConnectionException("Interrupted while digesting client files", exc);
+			} catch (ExecutionException exc) {
+				// Same as the digester failing to read the file.
+				Log.error("error digesting file; exception follows...");
+				Log.exception(exc.getCause());
+			}
+
+			if ((digestStr != null) && digestStr.equals(reply.serverDigest)) {
+				reply.respMap.put(RpcFunctionMapKey.STATUS, "same");
+			}
+			cmdEnv.getRpcConnection().putRpcPacket(
+					RpcPacket.constructRpcPacket(reply.confirm, reply.respMap, null));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static LinkedList<DeferredReply> getReplies(CommandEnv cmdEnv, boolean create) {
+		LinkedList<DeferredReply> replies =
+				(LinkedList<DeferredReply>) cmdEnv.getStateMap().get(DEFERRED_REPLIES_KEY);
+		if ((replies == null) && create) {
+			replies = new LinkedList<DeferredReply>();
+			cmdEnv.getStateMap().put(DEFERRED_REPLIES_KEY, replies);
+		}
+		return replies;
+	}
+
+	private static class DeferredReply {
+		final Future<String> digest;
+		final String serverDigest;
+		final String confirm;
+		final Map<String, Object> respMap;
+
+		DeferredReply(Future<String> digest, String serverDigest, String confirm,
+				Map<String, Object> respMap) {
+			this.digest = digest;
+			this.serverDigest = serverDigest;
+			this.confirm = confirm;
+			this.respMap = respMap;
+		}
+	}
+}
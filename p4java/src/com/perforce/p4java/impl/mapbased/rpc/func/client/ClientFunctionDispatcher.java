@@ -358,5 +358,23 @@ public static final String TRACE_PREFIX = "ClientFunctionDispatcher";
 		
 		return result;
 	}
+
+	/**
+	 * Let the client file commands close what they kept open for the command
+	 * that just finished.
+	 */
+	// p4ic4idea: added so the digest cache file isn't held open between commands
+	public void commandFinished() {
+		this.fileCommands.commandFinished();
+	}
+
+	/**
+	 * Stop the background threads of the client file commands; see
+	 * RpcPacketDispatcher.dispose().
+	 */
+	// p4ic4idea: added so the file writer and digester threads go with the dispatcher
+	public void dispose() {
+		this.fileCommands.dispose();
+	}
 	
 }
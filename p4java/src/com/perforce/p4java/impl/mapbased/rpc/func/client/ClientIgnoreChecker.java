@@ -12,6 +12,9 @@ import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
 /**
  * Handle the checking of patterns in ignore files.
@@ -26,6 +29,13 @@ public class ClientIgnoreChecker {
 
 	/** The charset. */
 	private Charset charset = null;
+
+	/** The client root directory. */
+	private File clientRootDir = null;
+
+	// p4ic4idea: compiled ignore rules, by directory
+	/** The parsed ignore files, keyed by the directory they're in. */
+	private final Map<File, IgnoreRules> rulesCache = new ConcurrentHashMap<File, IgnoreRules>();
 	
 	/**
 	 * Instantiates a new ignore file checker.
@@ -53,6 +63,7 @@ public class ClientIgnoreChecker {
 		this.clientRoot = clientRoot;
 		this.ignoreFileName = ignoreFileName;
 		this.charset = charset;
+		this.clientRootDir = new File(clientRoot);
 	}
 
 	/**
@@ -76,7 +87,56 @@ public class ClientIgnoreChecker {
 	}
 
 	/**
-	 * Check all ignore files up to the client root directory.
+	 * Check whether everything under the directory is ignored, so it needn't
+	 * be read at all. This is only true when a plain (non-wildcard) pattern
+	 * matches the directory's path, and none of the ignore files from its
+	 * parent up to the client root has a '!' line; a wildcard pattern only
+	 * ever matches file names. Ignore files inside the directory aren't
+	 * looked at, so, as with git, a file can't be re-included by a '!' line
+	 * below an ignored directory.
+	 * 
+	 * @param dir
+	 *            the directory
+	 * @return true, if the whole directory is ignored
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	// p4ic4idea: added to skip ignored directories during reconcile
+	public boolean matchDirectory(File dir) throws IOException {
+		if (dir == null) {
+			return false;
+		}
+		boolean matched = false;
+		String dirPath = dir.getAbsolutePath();
+		File ignoreDir = dir;
+		do {
+			ignoreDir = ignoreDir.getParentFile();
+			if (ignoreDir != null) {
+				IgnoreRule[] rules = getIgnoreRules(ignoreDir);
+				if (rules != null) {
+					String relativePath = dirPath.substring(ignoreDir.getAbsolutePath().length())
+							+ File.separator;
+					for (IgnoreRule rule : rules) {
+						if (rule.negation) {
+							return false;
+						}
+						if (!rule.wildcard && rule.matches(null, relativePath)) {
+							matched = true;
+						}
+					}
+				}
+			}
+		} while (ignoreDir != null && !ignoreDir.getAbsoluteFile().equals(clientRootDir));
+
+		return matched;
+	}
+
+	/**
+	 * Check all ignore files up to the client root directory.<p>
+	 * 
+	 * p4ic4idea: each directory's ignore file is parsed and compiled once and
+	 * cached until its modification time changes; a directory without one
+	 * costs a single stat.
 	 * 
 	 * @param file
 	 *            the file
@@ -86,22 +146,23 @@ public class ClientIgnoreChecker {
 	 */
 	private boolean checkIgnoreFiles(File file) throws IOException {
 		if (file != null) {
-			// Signal for inverse match
-			Negate negate = this.new Negate();
-	
-			File clientRootDir = new File(clientRoot);
+			String fileName = file.getName();
+			String filePath = file.getAbsolutePath();
 			File fileDir = file;
 			do {
 				fileDir = fileDir.getParentFile();
 				if (fileDir != null) {
-					File ignoreFile = new File(fileDir, ignoreFileName);
-					if (ignoreFile.exists()) {
-						if (checkIgnoreFile(ignoreFile, fileDir, file, negate)) {
-							// Inverse match
-							if (negate.isMatch()) {
-								return false;
+					IgnoreRule[] rules = getIgnoreRules(fileDir);
+					if (rules != null) {
+						// Non-wildcard patterns match on the path below the ignore file's directory
+						String relativePath = filePath.substring(fileDir.getAbsolutePath().length())
+								+ File.separator;
+						// Last matching line wins, so the rules are stored in reverse order.
+						for (IgnoreRule rule : rules) {
+							if (rule.matches(fileName, relativePath)) {
+								// Inverse match
+								return !rule.negation;
 							}
-							return true;
 						}
 					}
 				}
@@ -112,39 +173,53 @@ public class ClientIgnoreChecker {
 	}
 
 	/**
-	 * Inversely loop through patterns in an ignore file and check for a match.
+	 * Get the compiled rules of the ignore file in the given directory, in
+	 * reverse file order, re-reading the file if it's changed since it was
+	 * last read.
+	 * 
+	 * @param dir
+	 *            the directory
+	 * @return the rules, or null if the directory has no ignore file
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private IgnoreRule[] getIgnoreRules(File dir) throws IOException {
+		File ignoreFile = new File(dir, ignoreFileName);
+		// lastModified() is 0 for a file that doesn't exist.
+		long lastModified = ignoreFile.lastModified();
+		if (lastModified == 0L && !ignoreFile.exists()) {
+			rulesCache.remove(dir);
+			return null;
+		}
+		IgnoreRules cached = rulesCache.get(dir);
+		if (cached != null && cached.lastModified == lastModified) {
+			return cached.rules;
+		}
+		IgnoreRules loaded = new IgnoreRules(lastModified, loadIgnoreFile(ignoreFile));
+		rulesCache.put(dir, loaded);
+		return loaded.rules;
+	}
+
+	/**
+	 * Read and compile the patterns in an ignore file, last line first.
 	 * 
 	 * @param ignoreFile
 	 *            the ignore file
-	 * @param currentDir
-	 *            the current directory
-	 * @param file
-	 *            the file
-	 * @param negate
-	 *            the negate
-	 * @return true, if successful
+	 * @return the compiled rules
 	 * @throws IOException
 	 *             Signals that an I/O exception has occurred.
 	 */
-	private boolean checkIgnoreFile(File ignoreFile, File currentDir, File file, Negate negate)
-			throws IOException {
-
+	private IgnoreRule[] loadIgnoreFile(File ignoreFile) throws IOException {
+		ArrayList<IgnoreRule> list = new ArrayList<IgnoreRule>();
 		BufferedReader br = null;
 		try {
 			br = new BufferedReader(new InputStreamReader(new FileInputStream(
 					ignoreFile), this.charset));
-			ArrayList<String> list = new ArrayList<String>();
 			String line;
 			while ((line = br.readLine()) != null) {
-				list.add(line);
-			}
-
-			// Reverse the lines
-			Collections.reverse(list);
-
-			for (String entry : list) {
-				if (checkIgnorePattern(entry, currentDir, file, negate)) {
-					return true;
+				IgnoreRule rule = compileIgnorePattern(line);
+				if (rule != null) {
+					list.add(rule);
 				}
 			}
 		} finally {
@@ -153,39 +228,31 @@ public class ClientIgnoreChecker {
 			}
 		}
 
-		return false;
+		// Reverse the lines
+		Collections.reverse(list);
+		return list.toArray(new IgnoreRule[list.size()]);
 	}
 
 	/**
-	 * Check for a pattern match.
+	 * Compile an ignore file line into a rule.
 	 * 
 	 * @param pattern
 	 *            the pattern
-	 * @param currentDir
-	 *            the current directory
-	 * @param file
-	 *            the file
-	 * @param negate
-	 *            the negate
-	 * @return true, if successful
+	 * @return the rule, or null if the line is blank or a comment
 	 */
-	private boolean checkIgnorePattern(String pattern, File currentDir, File file, Negate negate) {
+	private IgnoreRule compileIgnorePattern(String pattern) {
 
 		boolean wildcard = false;
 		boolean negation = false;
 
-		if (file == null) {
-			return false;
-		}
-
 		if (pattern == null) {
-			return false;
+			return null;
 		}
 
 		pattern = pattern.trim();
 
 		if (pattern.startsWith("#")) {
-			return false;
+			return null;
 		}
 
 		// Check for negation
@@ -195,7 +262,7 @@ public class ClientIgnoreChecker {
 		}
 
 		if (pattern.length() == 0) {
-			return false;
+			return null;
 		}
 
 		// Check for wildcard
@@ -203,13 +270,8 @@ public class ClientIgnoreChecker {
 			wildcard = true;
 		}
 		
-		// Match file name only
-		String path = file.getName();
-		
 		// Match file name or path
 		if (!wildcard) {
-			path = file.getAbsolutePath().substring(currentDir.getAbsolutePath().length());
-			path += File.separator;
 			pattern = "*" + File.separator + pattern;
 			pattern += File.separator + "*";
 		}
@@ -217,43 +279,48 @@ public class ClientIgnoreChecker {
 		// Escape '\', '.' and '*'
 		pattern = pattern.replace("\\", "\\\\").replace(".", "\\.").replace("*", ".*");
 
-		// Match pattern
-		if (path.matches(pattern)) {
-			if (negation) {
-				negate.setMatch(true);
-			}
+		return new IgnoreRule(Pattern.compile(pattern), wildcard, negation);
+	}
+
+	/**
+	 * A compiled ignore file line.
+	 */
+	private static class IgnoreRule {
+
+		/** The compiled pattern. */
+		private final Pattern pattern;
+
+		/** Match on the file name alone, rather than the relative path. */
+		private final boolean wildcard;
 
-			return true;
+		/** The line starts with '!'. */
+		private final boolean negation;
+
+		IgnoreRule(Pattern pattern, boolean wildcard, boolean negation) {
+			this.pattern = pattern;
+			this.wildcard = wildcard;
+			this.negation = negation;
 		}
 
-		return false;
+		boolean matches(String fileName, String relativePath) {
+			return pattern.matcher(wildcard ? fileName : relativePath).matches();
+		}
 	}
 
 	/**
-	 * Signal for negate pattern.
+	 * The compiled rules of one ignore file, and when it was read.
 	 */
-	private class Negate {
-		
-		/** The match. */
-		private boolean match = false;
-
-		/**
-		 * Checks if is match.
-		 * 
-		 * @return true, if is match
-		 */
-		public boolean isMatch() {
-			return match;
-		}
+	private static class IgnoreRules {
+
+		/** The ignore file modification time. */
+		private final long lastModified;
+
+		/** The rules, last line first. */
+		private final IgnoreRule[] rules;
 
-		/**
-		 * Sets the match.
-		 * 
-		 * @param match
-		 *            the new match
-		 */
-		public void setMatch(boolean match) {
-			this.match = match;
+		IgnoreRules(long lastModified, IgnoreRule[] rules) {
+			this.lastModified = lastModified;
+			this.rules = rules;
 		}
 	}
-}
\ No newline at end of file
+}
@@ -43,10 +43,12 @@ import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionSpec;
 import com.perforce.p4java.impl.mapbased.rpc.func.client.ClientMessage.ClientMessageId;
+import com.perforce.p4java.impl.mapbased.rpc.func.helper.MD5DigestCache;
 import com.perforce.p4java.impl.mapbased.rpc.func.helper.MD5Digester;
 import com.perforce.p4java.impl.mapbased.rpc.msg.RpcMessage;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacket;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDispatcher.RpcPacketDispatcherResult;
+import com.perforce.p4java.impl.mapbased.rpc.sys.RpcAsyncFileWriter;
 import com.perforce.p4java.impl.mapbased.rpc.sys.RpcOutputStream;
 import com.perforce.p4java.impl.mapbased.rpc.sys.RpcPerforceFile;
 import com.perforce.p4java.impl.mapbased.rpc.sys.RpcPerforceFileType;
@@ -106,6 +108,18 @@ public class ClientSystemFileCommands {
 	private String filePath = null;
 	private long fileSize = 0;
 	private long currentSize = 0;
+
+	// p4ic4idea: background writer for the received file data; null if not enabled.
+	private RpcAsyncFileWriter asyncWriter = null;
+
+	// p4ic4idea: digests the reconcile / diff files ahead of the replies; null if not enabled.
+	private ClientDigestPrefetcher digestPrefetcher = null;
+
+	// p4ic4idea: where the client file digests are cached; null if not enabled.
+	private File digestCacheDir = null;
+
+	// p4ic4idea: the digest cache used by the current command, if any.
+	private MD5DigestCache usedDigestCache = null;
 	
 	protected ClientSystemFileCommands(Properties props, RpcServer server) {
 		this.props = props;
@@ -126,6 +140,87 @@ public class ClientSystemFileCommands {
 					+ tmpDirName + " instead");
 			
 		}
+
+		// p4ic4idea: background file writes
+		if (RpcPropertyDefs.getPropertyAsBoolean(this.props,
+				RpcPropertyDefs.RPC_ASYNC_FILE_WRITES_NICK,
+				RpcPropertyDefs.RPC_DEFAULT_ASYNC_FILE_WRITES)) {
+			this.asyncWriter = new RpcAsyncFileWriter(RpcPropertyDefs.getPropertyAsInt(this.props,
+					RpcPropertyDefs.RPC_ASYNC_FILE_WRITES_MAX_PENDING_NICK,
+					RpcAsyncFileWriter.DEFAULT_MAX_PENDING_BYTES));
+		}
+
+		// p4ic4idea: digest prefetching
+		if (RpcPropertyDefs.getPropertyAsBoolean(this.props,
+				RpcPropertyDefs.RPC_PREFETCH_DIGESTS_NICK,
+				RpcPropertyDefs.RPC_DEFAULT_PREFETCH_DIGESTS)) {
+			this.digestPrefetcher = new ClientDigestPrefetcher(RpcPropertyDefs.getPropertyAsInt(this.props,
+					RpcPropertyDefs.RPC_PREFETCH_DIGESTS_THREADS_NICK,
+					ClientDigestPrefetcher.DEFAULT_THREADS));
+		}
+
+		// p4ic4idea: client file digest cache
+		String digestCacheDirName = RpcPropertyDefs.getProperty(this.props,
+				RpcPropertyDefs.RPC_DIGEST_CACHE_DIR_NICK, null);
+		if ((digestCacheDirName != null) && (digestCacheDirName.length() > 0)) {
+			this.digestCacheDir = new File(digestCacheDirName);
+		}
+	}
+
+	// p4ic4idea: stop the background writer and digester threads; they're
+	// not used again.
+	protected void dispose() {
+		if (this.asyncWriter != null) {
+			this.asyncWriter.shutdown();
+		}
+		if (this.digestPrefetcher != null) {
+			this.digestPrefetcher.shutdown();
+		}
+	}
+
+	// p4ic4idea: close the files the command kept open.
+	protected void commandFinished() {
+		if (this.usedDigestCache != null) {
+			this.usedDigestCache.closeFile();
+			this.usedDigestCache = null;
+		}
+	}
+
+	// p4ic4idea: the digest cache for the current client, or null if not enabled.
+	private MD5DigestCache getDigestCache() {
+		if (this.digestCacheDir == null) {
+			return null;
+		}
+		this.usedDigestCache = MD5DigestCache.getCache(this.digestCacheDir,
+				this.server.getClientName());
+		return this.usedDigestCache;
+	}
+
+	// p4ic4idea: the reply to a checkFile or reconcileEdit: the incoming args,
+	// with the type and status set.
+	private Map<String, Object> makeCheckReply(Map<String, Object> resultsMap,
+			String nType, String status) {
+		Map<String,Object> respMap = new HashMap<String, Object>();
+		
+		respMap.put(RpcFunctionMapKey.TYPE, nType);
+		respMap.put(RpcFunctionMapKey.STATUS, status);
+		
+		for (Map.Entry<String, Object> entry : resultsMap.entrySet()) {
+			if ((entry.getKey() != null) && !entry.getKey().equalsIgnoreCase(RpcFunctionMapKey.FUNCTION)
+					&& !entry.getKey().equalsIgnoreCase(RpcFunctionMapKey.TYPE)
+					&& !entry.getKey().equalsIgnoreCase(RpcFunctionMapKey.STATUS)) {
+				respMap.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return respMap;
+	}
+
+	// p4ic4idea: hand the stream's writes to the background writer, if that's on.
+	private void useAsyncWriter(RpcOutputStream stream, CommandEnv cmdEnv) {
+		// The progress reports need the written byte counts as they happen.
+		if (this.asyncWriter != null && !cmdEnv.getProtocolSpecs().isEnableProgress()) {
+			stream.setAsyncWriter(this.asyncWriter);
+		}
 	}
 
 	/**
@@ -447,6 +542,7 @@ public class ClientSystemFileCommands {
 				if (useLocalDigester) {
 					tmpStream.setServerDigest(digest);
 				}
+				useAsyncWriter(tmpStream, cmdEnv);
 				handler.getMap().put(FILE_OPEN_TMP_STREAM_KEY, tmpStream);
 			} else if (targetFile != null) {
 				RpcOutputStream targetStream = new RpcOutputStream(targetFile, rpcConnection.getClientCharset(),
@@ -455,6 +551,7 @@ public class ClientSystemFileCommands {
 				if (useLocalDigester) {
 					targetStream.setServerDigest(digest);
 				}
+				useAsyncWriter(targetStream, cmdEnv);
 				handler.getMap().put(FILE_OPEN_TARGET_STREAM_KEY, targetStream);
 			}
 			
@@ -587,24 +684,30 @@ public class ClientSystemFileCommands {
 		} catch (IOException ioexc) {
 			// FIXME: the message below will be misleading for tmp file writes -- HR.
 			
-			handler.setError(true);
-			cmdEnv.handleResult(
-					new RpcMessage(
-							ClientMessageId.FILE_WRITE_ERROR,
-							MessageSeverityCode.E_FAILED,
-							MessageGenericCode.EV_CLIENT,
-							new String[] {path == null ? "<unknown>" : path,
-									ioexc.getLocalizedMessage()}
-						).toMap()
-				);
-			
-			Log.error("failed write for file " + (path == null ? "<unknown>" : path)
-												+ "; exception follows...");
-			Log.exception(ioexc);
+			reportWriteError(cmdEnv, handler, path, ioexc);
 		}
 		
 		return RpcPacketDispatcherResult.CONTINUE_LOOP;
 	}
+
+	// p4ic4idea: shared with closeFile, for the background write failures.
+	private void reportWriteError(CommandEnv cmdEnv, RpcHandler handler, String path,
+			IOException ioexc) {
+		handler.setError(true);
+		cmdEnv.handleResult(
+				new RpcMessage(
+						ClientMessageId.FILE_WRITE_ERROR,
+						MessageSeverityCode.E_FAILED,
+						MessageGenericCode.EV_CLIENT,
+						new String[] {path == null ? "<unknown>" : path,
+								ioexc.getLocalizedMessage()}
+					).toMap()
+			);
+		
+		Log.error("failed write for file " + (path == null ? "<unknown>" : path)
+											+ "; exception follows...");
+		Log.exception(ioexc);
+	}
 	
 	private void writeToStream(byte[] sourceBytes, int start, int length,
 			OutputStream stream) throws IOException {
@@ -776,7 +879,8 @@ public class ClientSystemFileCommands {
 			}
 		} catch (IOException ioexc) {
 			handler.setError(true);
-			cmdEnv.getResultMaps().add(
+			// p4ic4idea: go through handleResult so streaming callers see the error too
+			cmdEnv.handleResult(
 					new RpcMessage(
 							ClientMessageId.FILE_WRITE_ERROR,
 							MessageSeverityCode.E_FAILED,
@@ -926,6 +1030,23 @@ public class ClientSystemFileCommands {
 			throw new NullPointerError(
 				"Null target file ClientSystemFileCommands.closeFile() state map");
 		}
+
+		// p4ic4idea: make sure the background writes are done, and report a
+		// failure the same way writeFile would have.
+		RpcOutputStream writtenStream = (tmpStream != null ? tmpStream : targetStream);
+		if (writtenStream != null) {
+			try {
+				writtenStream.awaitWrites();
+			} catch (IOException ioexc) {
+				reportWriteError(cmdEnv, handler, targetFile.getPath(), ioexc);
+				try {
+					writtenStream.close();
+				} catch (IOException closeExc) {
+					// already reported
+				}
+				return RpcPacketDispatcherResult.CONTINUE_LOOP;
+			}
+		}
 		
 		
 		if (commit != null) {
@@ -1450,6 +1571,8 @@ public class ClientSystemFileCommands {
 							confirm,
 							respMap,
 							null);
+					// p4ic4idea: the replies held back for their digests go first.
+					ClientDigestPrefetcher.sendDeferredReplies(cmdEnv);
 					rpcConnection.putRpcPacket(respPacket);
 					
 					return RpcPacketDispatcherResult.CONTINUE_LOOP;
@@ -1502,11 +1625,24 @@ public class ClientSystemFileCommands {
 							break;
 					}
 					
+					// p4ic4idea: digest on the prefetch threads, and reply once that's done.
+					if (this.digestPrefetcher != null) {
+						this.digestPrefetcher.deferReply(cmdEnv, getDigestCache(), file, digestCharset,
+								convertLineEndings, file.getLineEnding(), digest, confirm,
+								makeCheckReply(resultsMap, nType, status));
+						return RpcPacketDispatcherResult.CONTINUE_LOOP;
+					}
+
 					// Digest the file using the configured local file content
 					// charset. A null digestCharset specified will cause the
 					// file to be read as raw byte stream directly off disk.
-					String digestStr = digester.digestFileAs32ByteHex(file,
-							digestCharset, convertLineEndings, file.getLineEnding());
+					// p4ic4idea: use the digest cache, if it's on.
+					MD5DigestCache digestCache = getDigestCache();
+					String digestStr = (digestCache != null)
+							? digestCache.digestFileAs32ByteHex(file,
+									digestCharset, convertLineEndings, file.getLineEnding())
+							: digester.digestFileAs32ByteHex(file,
+									digestCharset, convertLineEndings, file.getLineEnding());
 					
 					if ((digestStr != null) && digestStr.equals(digest)) {
 						status = "same";
@@ -1597,6 +1733,9 @@ public class ClientSystemFileCommands {
 				respMap,
 				null);
 		
+		// p4ic4idea: the replies held back for their digests go first, so the
+		// server gets the replies in the order it asked.
+		ClientDigestPrefetcher.sendDeferredReplies(cmdEnv);
 		rpcConnection.putRpcPacket(respPacket);
 		
 		return RpcPacketDispatcherResult.CONTINUE_LOOP;
@@ -1688,11 +1827,25 @@ public class ClientSystemFileCommands {
 						break;
 				}
 				
+				// p4ic4idea: digest on the prefetch threads, and reply once that's done.
+				if (this.digestPrefetcher != null) {
+					handler.getMap().put(RECONCILE_HANDLER_SKIP_ADD_KEY, skipFilesMap);
+					this.digestPrefetcher.deferReply(cmdEnv, getDigestCache(), file, digestCharset,
+							convertLineEndings, null, digest, confirm,
+							makeCheckReply(resultsMap, nType, status));
+					return RpcPacketDispatcherResult.CONTINUE_LOOP;
+				}
+
 				// Digest the file using the configured local file content
 				// charset. A null digestCharset specified will cause the
 				// file to be read as raw byte stream directly off disk.
-				String digestStr = digester.digestFileAs32ByteHex(file,
-						digestCharset, convertLineEndings);
+				// p4ic4idea: use the digest cache, if it's on.
+				MD5DigestCache digestCache = getDigestCache();
+				String digestStr = (digestCache != null)
+						? digestCache.digestFileAs32ByteHex(file,
+								digestCharset, convertLineEndings, null)
+						: digester.digestFileAs32ByteHex(file,
+								digestCharset, convertLineEndings);
 				
 				if ((digestStr != null) && digestStr.equals(digest)) {
 					status = "same";
@@ -1727,6 +1880,8 @@ public class ClientSystemFileCommands {
 				respMap,
 				null);
 		
+		// p4ic4idea: the replies held back for their digests go first.
+		ClientDigestPrefetcher.sendDeferredReplies(cmdEnv);
 		rpcConnection.putRpcPacket(respPacket);
 		
 		return RpcPacketDispatcherResult.CONTINUE_LOOP;
@@ -1737,8 +1892,8 @@ public class ClientSystemFileCommands {
 	 * files in the directory using the full path. This supports traversing
 	 * sub-directories.<p>
 	 * 
-	 * TODO: Check MapApi; if no mapping, continue; Currently, just rely on
-	 * server side MapApi validation.
+	 * p4ic4idea: directories the view can't reach are skipped, but the files
+	 * are still only checked against the view on the server side.
 	 */
 	protected RpcPacketDispatcherResult reconcileAdd(
 			RpcConnection rpcConnection, CommandEnv cmdEnv,
@@ -1782,10 +1937,25 @@ public class ClientSystemFileCommands {
 		boolean isSkipIgnore = (skipIgnore != null && !skipIgnore.equalsIgnoreCase("0")) ? true : false;
 		
 		Map<String, File> addFilesMap = new HashMap<String, File>();
-		// Recursive call
-		traverseDirs(new File(dir), isTraverse, isSkipIgnore, addFilesMap,
-				viewMap, rpcConnection.isUnicodeServer(),
-				rpcConnection.getClientCharset(), cmdEnv);
+		// p4ic4idea: list the directories on several threads, skipping ignored
+		// directories and those outside the view, rather than a recursive listing
+		ReconcileAddFilter filter = new ReconcileAddFilter(
+				isSkipIgnore ? null : getChecker(rpcConnection.getClientCharset()),
+				RpcPropertyDefs.getPropertyAsBoolean(this.props,
+						RpcPropertyDefs.RPC_RECONCILE_PRUNE_IGNORED_NICK,
+						RpcPropertyDefs.RPC_DEFAULT_RECONCILE_PRUNE_IGNORED),
+				viewMap);
+		List<File> files;
+		try {
+			files = FilesHelper.listFiles(new File(dir), isTraverse, filter);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectionException("Interrupted while listing files to reconcile", e);
+		}
+		for (File file : files) {
+			addFilesMap.put(file.getAbsolutePath(), file);
+		}
+		filter.reportIgnored(cmdEnv);
 
 		// If we have a list of files we know are in the depot already,
 		// filter them out of our list of files to add
@@ -1858,72 +2028,6 @@ public class ClientSystemFileCommands {
 		return RpcPacketDispatcherResult.CONTINUE_LOOP;
 	}
 
-	/**
-	 * Recursively (optional) traverse the directory tree for files.<p>
-	 * 
-	 * TODO: Check MapApi; if no mapping, continue. Currently, just rely on
-	 * server side MapApi validation.
-	 */
-	private void traverseDirs(File file, boolean traverse, boolean skipIgnore,
-			Map<String, File> addFilesMap, ViewMap<IMapEntry> viewMap,
-			boolean unicode, Charset charset, CommandEnv cmdEnv) {
-    	if (addFilesMap == null) {
-    		throw new IllegalArgumentException("Must pass in a non-null 'files' list as a parameter.");
-    	}
-
-		if (file == null || !file.exists()) {
-			return;
-		}
-
-		// If this is a file, not a directory, and not to be ignored,
-		// save the filename and return.
-		if (file.isFile()) {
-			if (skipIgnore || !isIgnore(file, charset, cmdEnv)) {
-				addFilesMap.put(file.getAbsolutePath(), file);
-			}
-			return;
-		}
-
-		// If this is a symlink to a directory, and not to be ignored,
-		// save the filename and return.
-		if (file.isDirectory() && RpcPerforceFileType.isProbablySymLink(file)) {
-			if (skipIgnore || !isIgnore(file, charset, cmdEnv)) {
-				addFilesMap.put(file.getAbsolutePath(), file);
-			}
-			return;
-		}
-
-		// This is a directory to be scanned.
-		if (file.isDirectory()) {
-			File[] files = file.listFiles();
-			if (files != null) {
-				for (File f : files) {
-					if (f.isDirectory()) { // Directory
-						if (RpcPerforceFileType.isProbablySymLink(file)) {
-							// TODO: Check MapApi; if no mapping, continue.
-							// Currently, rely on server side MapApi validation.
-							
-							if (skipIgnore || !isIgnore(f, charset, cmdEnv)) {
-								addFilesMap.put(f.getAbsolutePath(), f);
-							}
-						} else if (traverse) {
-							// Recursive call
-							traverseDirs(f, traverse, skipIgnore, addFilesMap,
-									viewMap, unicode, charset, cmdEnv);
-						}
-					} else { // File
-						// TODO: Check MapApi; if no mapping, continue.
-						// Currently, rely on server side MapApi validation.
-						
-						if (skipIgnore || !isIgnore(f, charset, cmdEnv)) {
-							addFilesMap.put(f.getAbsolutePath(), f);
-						}
-					}
-				}
-			}
-		}
-	}
-
 	/**
 	 * Check if the file or symbolic link exists.
 	 */
@@ -2000,6 +2104,7 @@ public class ClientSystemFileCommands {
 									System.getProperty("java.io.tmpdir")));
 					RpcPerforceFile tmpFile = new RpcPerforceFile(tmpFileName, RpcPerforceFileType.FST_BINARY);
 					outStream = new RpcOutputStream(tmpFile);
+					useAsyncWriter(outStream, cmdEnv);
 					// Set the new temp RPC output stream to the command env state map
 					cmdEnv.getStateMap().put(RpcServer.RPC_TMP_OUTFILE_STREAM_KEY, outStream);
 				} catch (IOException ioexc) {
@@ -0,0 +1,180 @@
+/**
+ *
+ */
+package com.perforce.p4java.impl.mapbased.rpc.func.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.core.IMapEntry;
+import com.perforce.p4java.core.IMapEntry.EntryType;
+import com.perforce.p4java.core.ViewMap;
+import com.perforce.p4java.exception.MessageGenericCode;
+import com.perforce.p4java.exception.MessageSeverityCode;
+import com.perforce.p4java.impl.mapbased.rpc.CommandEnv;
+import com.perforce.p4java.impl.mapbased.rpc.func.client.ClientMessage.ClientMessageId;
+import com.perforce.p4java.impl.mapbased.rpc.msg.RpcMessage;
+import com.perforce.p4java.impl.mapbased.rpc.sys.RpcPerforceFileType;
+import com.perforce.p4java.util.FileTreeWalker;
+
+/**
+ * Picks the files a reconcile add (client-ReconcileAdd) reports to the server
+ * while the directory tree is walked.<p>
+ *
+ * Ignored files are left out. If pruneIgnored is set, ignored directories
+ * aren't read at all (see ClientIgnoreChecker.matchDirectory), and each is
+ * reported as ignored once, rather than each file in it. Directories that no
+ * include line of the client view can reach are skipped; the server still
+ * checks each file against the view, so this only needs to be right about
+ * what it skips. That check only looks at the literal part of each line,
+ * before its first wildcard, and is turned off if any line isn't an absolute
+ * local path.<p>
+ *
+ * The walker calls this from several threads, so the "ignored" messages are
+ * collected and sent afterwards, by reportIgnored, on the dispatcher thread.
+ */
+// p4ic4idea: created for the multi-threaded reconcile add file listing
+class ReconcileAddFilter implements FileTreeWalker.Filter {
+
+	private static final String[] WILDCARDS = { "...", "*", "%%" };
+
+	private final ClientIgnoreChecker checker;
+	private final boolean pruneIgnored;
+
+	// Lower case, '/' separated literal prefixes of the included view lines;
+	// null if directories can't be skipped by the view.
+	private final List<String> viewPrefixes;
+
+	private final ConcurrentLinkedQueue<File> ignored = new ConcurrentLinkedQueue<File>();
+
+	/**
+	 * @param checker the ignore checker, or null to not check for ignored files.
+	 * @param pruneIgnored true to skip the ignored directories as a whole.
+	 * @param viewMap the view mapping sent by the server, in local syntax.
+	 */
+	ReconcileAddFilter(ClientIgnoreChecker checker, boolean pruneIgnored,
+			ViewMap<IMapEntry> viewMap) {
+		this.checker = checker;
+		this.pruneIgnored = pruneIgnored;
+		this.viewPrefixes = getViewPrefixes(viewMap);
+	}
+
+	public boolean acceptDirectory(File dir) {
+		if (!isInView(dir)) {
+			return false;
+		}
+		if ((this.checker != null) && this.pruneIgnored) {
+			try {
+				if (this.checker.matchDirectory(dir)) {
+					this.ignored.add(dir);
+					return false;
+				}
+			} catch (IOException e) {
+				Log.error("Exception occurred during ignore files checking: "
+						+ e);
+			}
+		}
+		return true;
+	}
+
+	public boolean acceptFile(File file) {
+		if (this.checker != null) {
+			try {
+				if (this.checker.match(file)) {
+					this.ignored.add(file);
+					return false;
+				}
+			} catch (IOException e) {
+				Log.error("Exception occurred during ignore files checking: "
+						+ e);
+			}
+		}
+		return true;
+	}
+
+	public boolean isSymbolicLink(File dir) {
+		return RpcPerforceFileType.isProbablySymLink(dir);
+	}
+
+	/**
+	 * Send the "ignored" message for each file and directory that was left
+	 * out as ignored, in path order.
+	 */
+	void reportIgnored(CommandEnv cmdEnv) {
+		List<String> paths = new ArrayList<String>(this.ignored.size());
+		for (File file : this.ignored) {
+			paths.add(file.getAbsolutePath());
+		}
+		Collections.sort(paths);
+		for (String path : paths) {
+			cmdEnv.handleResult(new RpcMessage(
+					ClientMessageId.CANT_ADD_FILE_TYPE,
+					MessageSeverityCode.E_INFO,
+					MessageGenericCode.EV_CLIENT, new String[] {
+							path, "ignored" }).toMap());
+		}
+	}
+
+	/**
+	 * A directory is in the view if its path and the literal prefix of some
+	 * included view line are the same as far as the shorter of the two goes.
+	 */
+	private boolean isInView(File dir) {
+		if (this.viewPrefixes == null) {
+			return true;
+		}
+		String path = normalize(dir.getAbsolutePath());
+		if (!path.endsWith("/")) {
+			path += "/";
+		}
+		for (String prefix : this.viewPrefixes) {
+			if (path.startsWith(prefix) || prefix.startsWith(path)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static List<String> getViewPrefixes(ViewMap<IMapEntry> viewMap) {
+		if (viewMap == null || viewMap.getSize() == 0) {
+			return null;
+		}
+		List<String> prefixes = new ArrayList<String>();
+		for (IMapEntry entry : viewMap.getEntryList()) {
+			if (entry == null || entry.getType() == EntryType.EXCLUDE) {
+				continue;
+			}
+			String left = entry.getLeft();
+			if (left == null) {
+				return null;
+			}
+			if (left.startsWith("\"") && left.endsWith("\"") && left.length() > 1) {
+				left = left.substring(1, left.length() - 1);
+			}
+			// Depot or relative syntax; can't compare with local paths.
+			if (left.startsWith("//") || !new File(left).isAbsolute()) {
+				return null;
+			}
+			int end = left.length();
+			for (String wildcard : WILDCARDS) {
+				int pos = left.indexOf(wildcard);
+				if (pos >= 0 && pos < end) {
+					end = pos;
+				}
+			}
+			prefixes.add(normalize(left.substring(0, end)));
+		}
+		return prefixes.isEmpty() ? null : prefixes;
+	}
+
+	private static String normalize(String path) {
+		// Case insensitive, so it can only ever skip too little.
+		return path.replace('\\', '/').toLowerCase(Locale.ENGLISH);
+	}
+}
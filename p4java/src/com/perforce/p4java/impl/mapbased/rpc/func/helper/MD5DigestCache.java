@@ -0,0 +1,438 @@
+/**
+ *
+ */
+package com.perforce.p4java.impl.mapbased.rpc.func.helper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.impl.generic.client.ClientLineEnding;
+
+/**
+ * Remembers the MD5 digests of client files, so unchanged files don't need
+ * to be read again by the next reconcile, 'diff -se', 'revert -a' and so on.<p>
+ *
+ * A digest is reused only if the file's canonical path, size, modification
+ * time, and the way it's digested (charset and line ending conversion) all
+ * match what they were when it was computed; anything else means the file
+ * is digested again. Files modified in the last few seconds aren't cached,
+ * as a later change within the file system's time resolution wouldn't
+ * change the modification time.<p>
+ *
+ * There is one cache file for each client workspace, in the configured
+ * directory. Each new digest is appended to it as a single, checksummed
+ * record, so a cache file that's cut short or garbled loses only the records
+ * past the damage. The file is compacted when it's loaded, once it holds
+ * many more records than live entries; the records for files that no longer
+ * exist are dropped then. The file is kept open for appending only until
+ * closeFile() is called, at the end of each command.<p>
+ *
+ * Only the few most recently used caches are kept, and their entries are
+ * held softly, so they're dropped (and read again when next needed) if memory
+ * runs short.
+ */
+// p4ic4idea: created to avoid digesting unchanged client files over and over
+public class MD5DigestCache {
+
+	/**
+	 * Files modified less than this many milliseconds ago aren't cached.
+	 */
+	public static final long MIN_FILE_AGE_MILLIS = 3000L;
+
+	private static final String CACHE_FILE_SUFFIX = ".md5cache";
+	private static final int FILE_MAGIC = 0x50344443;	// "P4DC"
+	private static final int FILE_VERSION = 1;
+	private static final int DIGEST_LENGTH = 16;
+	private static final int MAX_RECORD_LENGTH = 64 * 1024;
+	private static final int MIN_COMPACT_RECORDS = 4096;
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+	private static final int MAX_CACHES = 4;
+
+	// Most recently used last; guarded by itself.
+	private static final Map<File, MD5DigestCache> CACHES =
+			new LinkedHashMap<File, MD5DigestCache>(MAX_CACHES * 2, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<File, MD5DigestCache> eldest) {
+					if (size() > MAX_CACHES) {
+						eldest.getValue().unload();
+						return true;
+					}
+					return false;
+				}
+			};
+
+	private final File cacheFile;
+	// The entries by canonical path; null until loaded, or once dropped.
+	private SoftReference<Map<String, Entry>> entriesRef = null;
+	private int recordCount = 0;
+	private OutputStream out = null;
+	private boolean writeFailed = false;
+
+	/**
+	 * Get the cache for the client workspace, stored in the given directory.
+	 */
+	public static MD5DigestCache getCache(File cacheDir, String clientName) {
+		File cacheFile = new File(cacheDir, toFileName(clientName) + CACHE_FILE_SUFFIX);
+		synchronized (CACHES) {
+			MD5DigestCache cache = CACHES.get(cacheFile);
+			if (cache == null) {
+				cache = new MD5DigestCache(cacheFile);
+				CACHES.put(cacheFile, cache);
+			}
+			return cache;
+		}
+	}
+
+	MD5DigestCache(File cacheFile) {
+		this.cacheFile = cacheFile;
+	}
+
+	/**
+	 * Return the file's digest as a 32 byte hex string, from the cache if it's
+	 * known, else by digesting it as MD5Digester.digestFileAs32ByteHex would.
+	 * Returns null if the file can't be read or digested.
+	 *
+	 * @see MD5Digester#digestFileAs32ByteHex(File, Charset, boolean, ClientLineEnding)
+	 */
+	public String digestFileAs32ByteHex(File file, Charset charset,
+			boolean convertLineEndings, ClientLineEnding clientLineEnding) {
+		String path = getPath(file);
+		String type = getDigestType(charset, convertLineEndings, clientLineEnding);
+		long size = file.length();
+		long modified = file.lastModified();
+
+		if (modified != 0L) {
+			synchronized (this) {
+				Entry entry = getEntries().get(path);
+				if ((entry != null) && entry.matches(size, modified, type)) {
+					return entry.digest;
+				}
+			}
+		}
+
+		String digest = new MD5Digester().digestFileAs32ByteHex(file, charset,
+				convertLineEndings, clientLineEnding);
+
+		if ((digest != null) && (modified != 0L)
+				&& (modified + MIN_FILE_AGE_MILLIS < System.currentTimeMillis())
+				&& (file.length() == size) && (file.lastModified() == modified)) {
+			Entry entry = new Entry(size, modified, type, digest);
+			synchronized (this) {
+				getEntries().put(path, entry);
+				append(path, entry);
+			}
+		}
+		return digest;
+	}
+
+	/**
+	 * Close the cache file, if it's open for appending, so other processes
+	 * can replace it; the next new digest opens it again.
+	 */
+	public synchronized void closeFile() {
+		closeOutput();
+	}
+
+	/**
+	 * Close the cache file and drop the entries; they're read again if the
+	 * cache is used after this.
+	 */
+	synchronized void unload() {
+		closeOutput();
+		this.entriesRef = null;
+	}
+
+	private static String getPath(File file) {
+		try {
+			return file.getCanonicalPath();
+		} catch (IOException exc) {
+			return file.getAbsolutePath();
+		}
+	}
+
+	private static String getDigestType(Charset charset, boolean convertLineEndings,
+			ClientLineEnding clientLineEnding) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(charset == null ? "raw" : charset.name()).append(':');
+		if (!convertLineEndings) {
+			sb.append("none");
+		} else if (clientLineEnding == null) {
+			sb.append("default");
+		} else {
+			sb.append(clientLineEnding.name());
+		}
+		return sb.toString();
+	}
+
+	private static String toFileName(String clientName) {
+		if ((clientName == null) || (clientName.length() == 0)) {
+			return "default";
+		}
+		StringBuilder sb = new StringBuilder(clientName.length());
+		for (char c : clientName.toCharArray()) {
+			if (Character.isLetterOrDigit(c) || (c == '-') || (c == '_') || (c == '.')) {
+				sb.append(c);
+			} else {
+				sb.append('_').append(Integer.toHexString(c)).append('_');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The entries, read from the cache file if they're not loaded. Called
+	 * while holding the lock.
+	 */
+	private Map<String, Entry> getEntries() {
+		Map<String, Entry> entries = (this.entriesRef == null) ? null : this.entriesRef.get();
+		if (entries == null) {
+			entries = new HashMap<String, Entry>();
+			this.entriesRef = new SoftReference<Map<String, Entry>>(entries);
+			load(entries);
+		}
+		return entries;
+	}
+
+	/**
+	 * Read the cache file into the entries. Called while holding the lock.
+	 */
+	private void load(Map<String, Entry> entries) {
+		this.recordCount = 0;
+		if (!this.cacheFile.exists()) {
+			return;
+		}
+
+		boolean damaged = false;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.cacheFile)));
+			if ((in.readInt() != FILE_MAGIC) || (in.readInt() != FILE_VERSION)) {
+				damaged = true;
+			} else {
+				damaged = !readRecords(in, entries);
+			}
+		} catch (IOException exc) {
+			damaged = true;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException exc) {
+					// ignore
+				}
+			}
+		}
+
+		if (damaged || (this.recordCount > Math.max(MIN_COMPACT_RECORDS, entries.size() * 2))) {
+			compact(entries);
+		}
+	}
+
+	/**
+	 * @return false if a damaged record was found.
+	 */
+	private boolean readRecords(DataInputStream in, Map<String, Entry> entries) throws IOException {
+		CRC32 crc = new CRC32();
+		while (true) {
+			int length;
+			try {
+				length = in.readInt();
+			} catch (EOFException exc) {
+				return true;
+			}
+			if ((length <= 0) || (length > MAX_RECORD_LENGTH)) {
+				return false;
+			}
+			byte[] payload = new byte[length];
+			long checksum;
+			try {
+				in.readFully(payload);
+				checksum = in.readInt() & 0xFFFFFFFFL;
+			} catch (EOFException exc) {
+				// Cut short while being appended to.
+				return false;
+			}
+			crc.reset();
+			crc.update(payload);
+			if (crc.getValue() != checksum) {
+				return false;
+			}
+
+			DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+			String path = record.readUTF();
+			long size = record.readLong();
+			long modified = record.readLong();
+			String type = record.readUTF();
+			byte[] digest = new byte[DIGEST_LENGTH];
+			record.readFully(digest);
+			entries.put(path, new Entry(size, modified, type, toHex(digest)));
+			this.recordCount++;
+		}
+	}
+
+	/**
+	 * Rewrite the cache file with just the live entries, dropping those for
+	 * files that no longer exist. Called while holding the lock.
+	 */
+	private void compact(Map<String, Entry> entries) {
+		closeOutput();
+		Iterator<String> paths = entries.keySet().iterator();
+		while (paths.hasNext()) {
+			if (!new File(paths.next()).exists()) {
+				paths.remove();
+			}
+		}
+		File tmpFile = new File(this.cacheFile.getPath() + ".tmp");
+		OutputStream tmpOut = null;
+		try {
+			tmpOut = new BufferedOutputStream(new FileOutputStream(tmpFile));
+			writeHeader(tmpOut);
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+				tmpOut.write(toRecord(entry.getKey(), entry.getValue()));
+			}
+			tmpOut.close();
+			tmpOut = null;
+			if ((!this.cacheFile.delete() && this.cacheFile.exists())
+					|| !tmpFile.renameTo(this.cacheFile)) {
+				throw new IOException("could not replace " + this.cacheFile);
+			}
+			this.recordCount = entries.size();
+		} catch (IOException exc) {
+			Log.warn("Could not compact the digest cache " + this.cacheFile + ": "
+					+ exc.getLocalizedMessage());
+			this.cacheFile.delete();
+			this.recordCount = 0;
+		} finally {
+			if (tmpOut != null) {
+				try {
+					tmpOut.close();
+				} catch (IOException exc) {
+					// ignore
+				}
+			}
+			tmpFile.delete();
+		}
+	}
+
+	/**
+	 * Add the entry to the end of the cache file. Called while holding the lock.
+	 */
+	private void append(String path, Entry entry) {
+		if (this.writeFailed) {
+			return;
+		}
+		try {
+			if (this.out == null) {
+				File dir = this.cacheFile.getParentFile();
+				if ((dir != null) && !dir.exists()) {
+					dir.mkdirs();
+				}
+				boolean isNew = !this.cacheFile.exists() || (this.cacheFile.length() == 0);
+				this.out = new FileOutputStream(this.cacheFile, true);
+				if (isNew) {
+					writeHeader(this.out);
+				}
+			}
+			// One write per record, so other writers can't split it up.
+			this.out.write(toRecord(path, entry));
+			this.recordCount++;
+		} catch (IOException exc) {
+			Log.warn("Could not write the digest cache " + this.cacheFile
+					+ "; digests will not be saved: " + exc.getLocalizedMessage());
+			this.writeFailed = true;
+			closeOutput();
+		}
+	}
+
+	private void closeOutput() {
+		if (this.out != null) {
+			try {
+				this.out.close();
+			} catch (IOException exc) {
+				// ignore
+			}
+			this.out = null;
+		}
+	}
+
+	private static void writeHeader(OutputStream stream) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(8);
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeInt(FILE_MAGIC);
+		data.writeInt(FILE_VERSION);
+		stream.write(bytes.toByteArray());
+	}
+
+	private static byte[] toRecord(String path, Entry entry) throws IOException {
+		ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(path.length() + 64);
+		DataOutputStream payload = new DataOutputStream(payloadBytes);
+		payload.writeUTF(path);
+		payload.writeLong(entry.size);
+		payload.writeLong(entry.modified);
+		payload.writeUTF(entry.type);
+		payload.write(fromHex(entry.digest));
+		byte[] payloadArray = payloadBytes.toByteArray();
+
+		CRC32 crc = new CRC32();
+		crc.update(payloadArray);
+		ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(payloadArray.length + 8);
+		DataOutputStream record = new DataOutputStream(recordBytes);
+		record.writeInt(payloadArray.length);
+		record.write(payloadArray);
+		record.writeInt((int) crc.getValue());
+		return recordBytes.toByteArray();
+	}
+
+	private static String toHex(byte[] digest) {
+		char[] chars = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			chars[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+			chars[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xF];
+		}
+		return new String(chars);
+	}
+
+	private static byte[] fromHex(String digest) {
+		byte[] bytes = new byte[DIGEST_LENGTH];
+		for (int i = 0; i < DIGEST_LENGTH; i++) {
+			bytes[i] = (byte) Integer.parseInt(digest.substring(i * 2, i * 2 + 2), 16);
+		}
+		return bytes;
+	}
+
+	private static class Entry {
+		final long size;
+		final long modified;
+		final String type;
+		final String digest;
+
+		Entry(long size, long modified, String type, String digest) {
+			this.size = size;
+			this.modified = modified;
+			this.type = type;
+			this.digest = digest;
+		}
+
+		boolean matches(long size, long modified, String type) {
+			return (this.size == size) && (this.modified == modified) && this.type.equals(type);
+		}
+	}
+}
@@ -38,6 +38,13 @@ public class MD5Digester {
 	
 	public static final String DIGEST_TYPE = "MD5";
 	
+	/**
+	 * Largest read buffer used to digest a file without line ending
+	 * conversion; smaller files are read in one go.
+	 */
+	// p4ic4idea: bound the memory used by the concurrent digests
+	public static final int MAX_RAW_READ_BUFFER_SIZE = 1024 * 1024;
+	
 	private MessageDigest md = null;
 	
 	public MD5Digester() {
@@ -174,7 +181,9 @@ public class MD5Digester {
 	
 	private void digestStream(InputStream inStream, boolean convertLineEndings, ClientLineEnding clientLineEnding,
 			long fileSizeBytes) throws IOException {
-		byte[] sourceBytes = new byte[(int) fileSizeBytes];
+		// p4ic4idea: a raw digest doesn't need the whole file in memory at once
+		byte[] sourceBytes = new byte[convertLineEndings ? (int) fileSizeBytes
+				: (int) Math.min(fileSizeBytes, MAX_RAW_READ_BUFFER_SIZE)];
 		int inBytesRead = 0;
 
 		while ((inBytesRead = inStream.read(sourceBytes)) > 0) {
@@ -385,7 +394,7 @@ public class MD5Digester {
 				inStream = new FileInputStream(file);
 				if (inStream != null) {
 					this.reset();
-					byte[] inBytes = new byte[(int) fileSizeInBytes];
+					byte[] inBytes = new byte[(int) Math.min(fileSizeInBytes, MAX_RAW_READ_BUFFER_SIZE)];
 					int inBytesRead = 0;
 					
 					while ((inBytesRead = inStream.read(inBytes)) > 0) {
@@ -0,0 +1,198 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.perforce.p4java.impl.mapbased.rpc.packet;
+
+import java.nio.charset.Charset;
+import java.util.AbstractSet;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * RPC packet results map whose text values are only decoded into Strings
+ * the first time they're asked for.<p>
+ *
+ * Tagged output records (fstat, opened, etc.) commonly carry twenty or more
+ * fields, of which the caller looks at a handful; with eager decoding every
+ * one of those fields costs a charset decode and a String. Here the text
+ * values are kept as slices of the packet payload (which the packet owns)
+ * until read through get(), the entry set or the values view. Charset
+ * handling is exactly as for eager decoding in RpcPacketField.<p>
+ *
+ * The decoded String is kept by the slice's placeholder, not written back
+ * into the map, so reading never modifies the map; as with a HashMap, any
+ * number of threads can read it once it's no longer being changed.<p>
+ *
+ * Callers see the same keys and the same value types they would with a
+ * plain HashMap; binary values are still byte arrays.
+ *
+ * @see com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs#RPC_LAZY_FIELD_DECODING_NICK
+ */
+// p4ic4idea: created to avoid decoding fields that are never read
+public class RpcLazyResultsMap extends AbstractMap<String, Object> {
+
+	/**
+	 * A text value not yet decoded; holds the slice of the packet
+	 * payload the value was found in, and the value once decoded.
+	 */
+	static final class EncodedText {
+		private final byte[] bytes;
+		private final int offset;
+		private final int length;
+		private final Charset charset;
+		// Strings are immutable, so at worst two threads both decode it.
+		private volatile String decoded = null;
+
+		EncodedText(byte[] bytes, int offset, int length, Charset charset) {
+			this.bytes = bytes;
+			this.offset = offset;
+			this.length = length;
+			this.charset = charset;
+		}
+
+		String decode() {
+			String value = this.decoded;
+			if (value == null) {
+				value = new String(this.bytes, this.offset, this.length, this.charset);
+				this.decoded = value;
+			}
+			return value;
+		}
+	}
+
+	private final Map<String, Object> values;
+	private Set<Map.Entry<String, Object>> entrySet = null;
+
+	/**
+	 * Wrap the passed-in map, whose values may include EncodedText
+	 * placeholders. The map is used directly, not copied.
+	 */
+	RpcLazyResultsMap(Map<String, Object> values) {
+		this.values = values;
+	}
+
+	@Override
+	public Object get(Object key) {
+		return decoded(this.values.get(key));
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return this.values.containsKey(key);
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		return decoded(this.values.put(key, value));
+	}
+
+	@Override
+	public Object remove(Object key) {
+		return decoded(this.values.remove(key));
+	}
+
+	@Override
+	public int size() {
+		return this.values.size();
+	}
+
+	@Override
+	public void clear() {
+		this.values.clear();
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		if (this.entrySet == null) {
+			this.entrySet = new AbstractSet<Map.Entry<String, Object>>() {
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator() {
+					final Iterator<Map.Entry<String, Object>> iter = values.entrySet().iterator();
+					return new Iterator<Map.Entry<String, Object>>() {
+						public boolean hasNext() {
+							return iter.hasNext();
+						}
+
+						public Map.Entry<String, Object> next() {
+							return new LazyEntry(iter.next());
+						}
+
+						public void remove() {
+							iter.remove();
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return values.size();
+				}
+			};
+		}
+		return this.entrySet;
+	}
+
+	private static Object decoded(Object value) {
+		if (value instanceof EncodedText) {
+			return ((EncodedText) value).decode();
+		}
+		return value;
+	}
+
+	private static class LazyEntry implements Map.Entry<String, Object> {
+		private final Map.Entry<String, Object> entry;
+
+		LazyEntry(Map.Entry<String, Object> entry) {
+			this.entry = entry;
+		}
+
+		public String getKey() {
+			return this.entry.getKey();
+		}
+
+		public Object getValue() {
+			return decoded(this.entry.getValue());
+		}
+
+		public Object setValue(Object value) {
+			return decoded(this.entry.setValue(value));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Map.Entry)) {
+				return false;
+			}
+			Map.Entry<?, ?> other = (Map.Entry<?, ?>) obj;
+			Object key = getKey();
+			Object value = getValue();
+			return (key == null ? other.getKey() == null : key.equals(other.getKey()))
+					&& (value == null ? other.getValue() == null : value.equals(other.getValue()));
+		}
+
+		@Override
+		public int hashCode() {
+			Object key = getKey();
+			Object value = getValue();
+			return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return getKey() + "=" + getValue();
+		}
+	}
+}
@@ -139,6 +139,30 @@ public class RpcPacket {
 						+ ((bytes[3] & 0xFF) * 0x1000000);
 	}
 	
+	// p4ic4idea: decode in place, without copying the length bytes out first
+	/**
+	 * Decode a Java int from the 4 byte Perforce encoded integer value
+	 * starting at the passed-in offset in the passed-in byte array. Saves
+	 * the caller copying the bytes out into their own array first.
+	 */
+	
+	public static int decodeInt4(byte[] bytes, int offset) {
+		if (bytes == null) {
+			throw new NullPointerError(
+					"Null bytes passed to RpcPacket.decodeInt");
+		}
+		if ((offset < 0) || ((bytes.length - offset) < RPC_LENGTH_FIELD_LENGTH)) {
+			throw new ProtocolError(
+					"Bad byte array offset in RpcPacket.decodeInt: "
+					+ offset + "; array size: " + bytes.length);
+		}
+		
+		return ((bytes[offset] & 0xFF) * 0x1)
+						+ ((bytes[offset + 1] & 0xFF) * 0x100)
+						+ ((bytes[offset + 2] & 0xFF) * 0x10000)
+						+ ((bytes[offset + 3] & 0xFF) * 0x1000000);
+	}
+	
 	/**
 	 * Construct an RPC packet for a user command.
 	 * 
@@ -204,7 +228,35 @@ public class RpcPacket {
 												byte[] bytes, boolean isUnicodeServer,
 												Charset charset, RpcPacketFieldRule fieldRule,
 												IFilterCallback filterCallback) {
-		return new RpcPacket(preamble, bytes, isUnicodeServer, charset, fieldRule, filterCallback);
+		if (bytes == null) {
+			throw new NullPointerError("null payload byte array passed to RpcPacket constructor");
+		}
+		return constructRpcPacket(preamble, bytes, bytes.length, isUnicodeServer, charset,
+				fieldRule, filterCallback, null, false);
+	}
+
+	// p4ic4idea: allow decoding from a reusable receive buffer
+	/**
+	 * Construct an RPC packet from the first bytesLength bytes of the passed-in
+	 * byte array. This allows the caller to decode packets from a (possibly larger)
+	 * reusable receive buffer; the packet retains no reference to the array once
+	 * constructed, so the buffer can safely be reused for the next packet.<p>
+	 * 
+	 * If fieldNames is not null, field names are resolved through it rather
+	 * than being freshly allocated for each field. If lazyDecoding is true
+	 * (and there's no filter callback, which needs to see decoded values),
+	 * the results map is an RpcLazyResultsMap whose text values refer into
+	 * the passed-in array; the array then belongs to the packet, and must
+	 * not be reused by the caller.
+	 */
+	public static RpcPacket constructRpcPacket(RpcPacketPreamble preamble,
+												byte[] bytes, int bytesLength, boolean isUnicodeServer,
+												Charset charset, RpcPacketFieldRule fieldRule,
+												IFilterCallback filterCallback,
+												RpcPacketFieldNameTable fieldNames,
+												boolean lazyDecoding) {
+		return new RpcPacket(preamble, bytes, bytesLength, isUnicodeServer, charset, fieldRule,
+				filterCallback, fieldNames, lazyDecoding);
 	}
 
 	private RpcPacket(RpcFunctionSpec funcName, String realName, String[] args,
@@ -256,9 +308,10 @@ public class RpcPacket {
 		}
 	}
 	
-	private RpcPacket(RpcPacketPreamble preamble, byte[] payloadBytes,
+	private RpcPacket(RpcPacketPreamble preamble, byte[] payloadBytes, int payloadBytesLength,
 						boolean isUnicodeServer, Charset charset,
-						RpcPacketFieldRule fieldRule, IFilterCallback filterCallback) {
+						RpcPacketFieldRule fieldRule, IFilterCallback filterCallback,
+						RpcPacketFieldNameTable fieldNames, boolean lazyDecoding) {
 		if (preamble == null) {
 			throw new NullPointerError("null RPC preamble passed to RpcPacket constructor");
 		}
@@ -271,20 +324,24 @@ public class RpcPacket {
 		}
 		
 		int payloadLength = preamble.getPayloadSize();
-		if (payloadLength != payloadBytes.length) {
+		if ((payloadLength != payloadBytesLength) || (payloadBytesLength > payloadBytes.length)) {
 			throw new P4JavaError("bad byte array size in RpcPacket constructor; byte array length: "
-					+ payloadBytes.length + "; from preamble: " + payloadLength);
+					+ payloadBytesLength + "; from preamble: " + payloadLength);
 		}
 		
 		try {
 			resultsMap = new HashMap<String, Object>();
-			ByteBuffer packetBuf = ByteBuffer.wrap(payloadBytes);
+			// p4ic4idea: lazily decoded values refer back into the payload, which
+			// the caller has handed over to this packet.
+			boolean deferTextDecoding = lazyDecoding && (filterCallback == null);
+			ByteBuffer packetBuf = ByteBuffer.wrap(payloadBytes, 0, payloadBytesLength);
 			
 			final Map<String, String> doNotSkipKeysMap = filterCallback != null ? filterCallback.getDoNotSkipKeysMap() : null;
 			final AtomicBoolean skipSubsequent = new AtomicBoolean(false);
 			
 			while (packetBuf.position() < packetBuf.limit()) {
-				Object[] fields = RpcPacketField.retrievePacketField(packetBuf, isUnicodeServer, charset, fieldRule);
+				Object[] fields = RpcPacketField.retrievePacketField(packetBuf, isUnicodeServer, charset,
+						fieldRule, fieldNames, deferTextDecoding);
 
 				// Filter callback
 				if (filterCallback != null) {
@@ -329,7 +386,13 @@ public class RpcPacket {
 						// "-a -s" flags. The repeating field names: "change",
 						// "parentChange", "copyParent", "mergeParent",
 						// "mergeHighVal", "branchHash" and "status".
-						if (resultsMap.containsKey(fieldName)) {
+						// p4ic4idea: optimistically put the field, and only fall back
+						// to the suffix search if the name was already there. Field
+						// values are never null, so a non-null previous value means
+						// a repeated name.
+						Object previous = resultsMap.put(fieldName, fields[RpcPacketField.VALUE_FIELD]);
+						if (previous != null) {
+							resultsMap.put(fieldName, previous);
 							int suffixCounter = 0;
 							while (true) {
 								if (!resultsMap.containsKey(fieldName + suffixCounter)) {
@@ -338,14 +401,15 @@ public class RpcPacket {
 								suffixCounter++;
 							}
 							resultsMap.put(fieldName + suffixCounter, fields[RpcPacketField.VALUE_FIELD]);
-						} else {
-							resultsMap.put(fieldName, fields[RpcPacketField.VALUE_FIELD]);
 						}
 					}
 				}
 			}
 			
 			this.packetLength = payloadLength;
+			if (deferTextDecoding) {
+				resultsMap = new RpcLazyResultsMap(resultsMap);
+			}
 			if (resultsMap != null) {
 				this.funcNameString = (String) resultsMap.get(RpcFunctionMapKey.FUNCTION);
 			}			
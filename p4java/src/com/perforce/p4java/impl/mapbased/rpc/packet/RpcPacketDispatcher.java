@@ -9,6 +9,7 @@ import com.perforce.p4java.impl.mapbased.rpc.CommandEnv;
 import com.perforce.p4java.impl.mapbased.rpc.RpcServer;
 import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionSpec;
+import com.perforce.p4java.impl.mapbased.rpc.func.client.ClientDigestPrefetcher;
 import com.perforce.p4java.impl.mapbased.rpc.func.client.ClientFunctionDispatcher;
 import com.perforce.p4java.impl.mapbased.rpc.func.proto.FlowControl;
 import com.perforce.p4java.impl.mapbased.rpc.func.proto.ProtocolFunctionDispatcher;
@@ -88,7 +89,7 @@ public class RpcPacketDispatcher {
 	 */
 	
 	public List<Map<String, Object>> dispatch(CommandEnv cmdEnv)
-							throws ConnectionException, AccessException {
+							throws ConnectionException, AccessException, RequestException {
 		
 		// Basic idea is to sit in the receive loop processing commands until we see
 		// a release command come back from the Perforce server.
@@ -115,7 +116,8 @@ public class RpcPacketDispatcher {
 				cmdEnv.getProgressCallback().start(cmdCallBackKey);
 			}
 			
-			while ((packet = rpcConnection.getRpcPacket(cmdEnv.getFieldRule(), cmdEnv.getFilterCallback())) != null) {
+			// p4ic4idea: a streaming consumer may hold off each read until it's ready
+			while ((packet = awaitAndGetRpcPacket(cmdEnv, rpcConnection)) != null) {
 
 				// User cancelled command
 				if (cmdEnv.isUserCanceled()) {
@@ -144,6 +146,13 @@ public class RpcPacketDispatcher {
 					throw new ProtocolError("Unable to decode function in RpcPacket;"
 							+ " func string: " + funcNameStr);
 				}
+				
+				// p4ic4idea: replies held back for their file digests go out
+				// before anything else is handled.
+				if ((func != RpcFunctionSpec.CLIENT_CHECKFILE)
+						&& (func != RpcFunctionSpec.CLIENT_RECONCILEEDIT)) {
+					ClientDigestPrefetcher.sendDeferredReplies(cmdEnv);
+				}
 									
 				switch (func.getType()) {
 				
@@ -219,9 +228,40 @@ public class RpcPacketDispatcher {
 		//	Log.exception(thr);
 		//	// p4ic4idea: just pass in the parent's exception
 		//	throw new ConnectionException(thr);
+		} finally {
+			// p4ic4idea: nothing more will be sent for this command.
+			ClientDigestPrefetcher.discardDeferredReplies(cmdEnv);
+			this.clientDispatcher.commandFinished();
 		}
 	}
 	
+	/**
+	 * Read the next packet for the command, first letting any backpressure-aware
+	 * streaming callback wait until it's ready for more results. An exception
+	 * from that callback stops the command; it's passed on as is if dispatch
+	 * could have thrown it anyway, and otherwise wrapped in a RequestException.
+	 */
+	private RpcPacket awaitAndGetRpcPacket(CommandEnv cmdEnv, RpcConnection rpcConnection)
+							throws ConnectionException, AccessException, RequestException {
+		try {
+			cmdEnv.awaitStreamingCapacity();
+		} catch (ConnectionException exc) {
+			throw exc;
+		} catch (AccessException exc) {
+			throw exc;
+		} catch (RequestException exc) {
+			throw exc;
+		} catch (P4JavaException exc) {
+			throw new RequestException("Streaming callback stopped the command: "
+					+ exc.getLocalizedMessage(), exc);
+		}
+		// p4ic4idea: don't wait on the server while it may be waiting on our replies.
+		if (ClientDigestPrefetcher.hasDeferredReplies(cmdEnv) && !rpcConnection.hasBufferedInput()) {
+			ClientDigestPrefetcher.sendDeferredReplies(cmdEnv);
+		}
+		return rpcConnection.getRpcPacket(cmdEnv.getFieldRule(), cmdEnv.getFilterCallback());
+	}
+	
 	/**
 	 * Attempt to cleanly shut down the dispatcher; this should involve
 	 * sending a release2 packet, but this is not always possible, and
@@ -240,6 +280,18 @@ public class RpcPacketDispatcher {
 		}
 	}
 
+	/**
+	 * Stop the background threads used by the client-side file handling, once
+	 * the work already handed to them is done. Called when the dispatcher won't
+	 * be used again, after its connection has been disconnected; unlike
+	 * shutdown(), this doesn't depend on the connection actually being closed
+	 * rather than going back to the socket pool.
+	 */
+	// p4ic4idea: added so the file writer and digester threads don't outlive the dispatcher
+	public void dispose() {
+		this.clientDispatcher.dispose();
+	}
+
 	public FlowControl getFlowController() {
 		return this.flowController;
 	}
@@ -88,18 +88,143 @@ public class RpcPacketField {
 		return retrievePacketField(buf, isUnicodeServer, charset, null);
 	}
 
+	// p4ic4idea: decode names and text values directly from the backing array
 	/**
 	 * Attempt to pick off a name / value field pair from the passed-in byte
-	 * buffer with an optional rule to handle the RPC packet fields.
+	 * buffer with an optional rule to handle the RPC packet fields.<p>
+	 * 
+	 * If the buffer is backed by an accessible array (the normal case for
+	 * packets read by RpcStreamConnection), the name and any text value are
+	 * decoded directly from the backing array without any intermediate
+	 * copies; only binary values are copied out, as these are retained by
+	 * the caller long after the underlying buffer has been reused.
 	 */
 	public static Object[] retrievePacketField(ByteBuffer buf, boolean isUnicodeServer,
 												Charset charset, RpcPacketFieldRule fieldRule) {
+		return retrievePacketField(buf, isUnicodeServer, charset, fieldRule, null, false);
+	}
+
+	/**
+	 * Attempt to pick off a name / value field pair from the passed-in byte
+	 * buffer, resolving the field name through the passed-in symbol table
+	 * (if it's not null) rather than allocating a new String for it.<p>
+	 * 
+	 * If deferTextDecoding is true and the buffer is array-backed, text values
+	 * are returned as undecoded slices of the buffer's array for use in an
+	 * RpcLazyResultsMap; the caller must then make sure the array isn't reused.
+	 */
+	// p4ic4idea: field names are resolved through a per-connection symbol table,
+	// and text values may be left undecoded until they're asked for.
+	public static Object[] retrievePacketField(ByteBuffer buf, boolean isUnicodeServer,
+												Charset charset, RpcPacketFieldRule fieldRule,
+												RpcPacketFieldNameTable fieldNames,
+												boolean deferTextDecoding) {
 		
 		if (buf == null) {
 			throw new NullPointerError(
 					"Null byte buffer passed to RpcPacketField.retrievePacketField()");
 		}
-				
+
+		if (!buf.hasArray()) {
+			return retrievePacketFieldCopying(buf, isUnicodeServer, charset, fieldRule);
+		}
+
+		Object[] retVal = new Object[NUM_ELEMENTS];
+
+		// Field names and text values are currently always assumed to be in the
+		// default charset, i.e. RpcConnection.NON_UNICODE_SERVER_CHARSET unless
+		// the server is in Unicode mode.
+
+		Charset fieldCharset = getFieldCharset(isUnicodeServer, charset);
+		byte[] bytes = buf.array();
+		int start = buf.arrayOffset() + buf.position();
+		int limit = buf.arrayOffset() + buf.limit();
+
+		// Get name string; may be empty (i.e. first byte is null):
+
+		int nameEnd = start;
+		while (nameEnd < limit && bytes[nameEnd] != 0) {
+			nameEnd++;
+		}
+		if (nameEnd >= limit) {
+			throw new ProtocolError(
+				"Unterminated field name in RPC packet buffer");
+		}
+		if (nameEnd > start) {
+			retVal[NAME_FIELD] = fieldNames == null
+					? new String(bytes, start, nameEnd - start, fieldCharset)
+					: fieldNames.getName(bytes, start, nameEnd - start, fieldCharset);
+		}
+
+		// Get value length (which may be zero):
+
+		int lengthPos = nameEnd + 1;
+		if ((limit - lengthPos) < RpcPacket.RPC_LENGTH_FIELD_LENGTH) {
+			throw new ProtocolError(
+				"Insufficient bytes in buffer to retrieve text value field length");
+		}
+
+		int valLength = RpcPacket.decodeInt4(bytes, lengthPos);
+
+		if (valLength < 0) {
+			throw new ProtocolError(
+					"Negative text field value length in P4JRpcTextField initializer: "
+					+ valLength);
+		}
+
+		// Get value (may be empty); the value is followed by a terminating null.
+
+		int valPos = lengthPos + RpcPacket.RPC_LENGTH_FIELD_LENGTH;
+		if ((limit - valPos) <= valLength) {
+			throw new ProtocolError(
+				"Insufficient bytes in buffer to retrieve text value field");
+		}
+
+		String fieldName = (String) retVal[NAME_FIELD];
+
+		// Check for field rule on data conversion
+
+		boolean skipConversion = false;
+		if (fieldRule != null) {
+			fieldRule.update(fieldName);
+			skipConversion = fieldRule.isSkipConversion();
+		}
+
+		if (!skipConversion &&
+				RpcPacketFieldType.getFieldType(fieldName) == RpcPacketFieldType.TEXT) {
+			retVal[VALUE_FIELD] = deferTextDecoding
+					? new RpcLazyResultsMap.EncodedText(bytes, valPos, valLength, fieldCharset)
+					: new String(bytes, valPos, valLength, fieldCharset);
+		} else {
+			// If unicode is involved here (as, e.g., file contents),
+			// it'll be converted elsewhere...
+			byte[] valBytes = new byte[valLength];
+			System.arraycopy(bytes, valPos, valBytes, 0, valLength);
+			retVal[VALUE_FIELD] = valBytes;
+		}
+
+		// Step over the value and its terminating null
+		buf.position(valPos + valLength + 1 - buf.arrayOffset());
+
+		return retVal;
+	}
+
+	/**
+	 * Return the charset used to decode field names and text values.
+	 */
+	private static Charset getFieldCharset(boolean isUnicodeServer, Charset charset) {
+		if (charset == null) {
+			return RpcConnection.NON_UNICODE_SERVER_CHARSET;
+		}
+		return isUnicodeServer ? CharsetDefs.UTF8 : charset;
+	}
+
+	/**
+	 * Pick off a name / value field pair from a buffer that isn't backed
+	 * by an accessible array (e.g. a direct or read-only buffer).
+	 */
+	private static Object[] retrievePacketFieldCopying(ByteBuffer buf, boolean isUnicodeServer,
+												Charset charset, RpcPacketFieldRule fieldRule) {
 		Object[] retVal;
 
 		retVal = new Object[NUM_ELEMENTS];
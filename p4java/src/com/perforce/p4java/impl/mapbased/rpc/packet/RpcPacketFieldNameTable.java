@@ -0,0 +1,209 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.perforce.p4java.impl.mapbased.rpc.packet;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.perforce.p4java.CharsetDefs;
+import com.perforce.p4java.Log;
+import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
+
+/**
+ * Symbol table mapping the raw bytes of incoming RPC packet field names
+ * onto canonical String objects.<p>
+ *
+ * Field names come from a small, fairly fixed vocabulary ("func", "depotFile",
+ * "clientFile", "headRev", etc.), but without this every field of every packet
+ * would allocate a new String for its name. With the table, decoding a known
+ * name does no allocation at all, and since the same String object is handed
+ * out each time, results map lookups on those names compare by identity and
+ * reuse the String's cached hash code.<p>
+ *
+ * The table is seeded with the RpcFunctionMapKey constants and learns any
+ * other pure-ASCII name it sees, up to MAX_ENTRIES names; anything else
+ * (non-ASCII names, names seen after the table is full, or names decoded with
+ * a charset that isn't ASCII-compatible) is simply allocated as before.<p>
+ *
+ * Instances are not thread safe; each RPC connection keeps its own.
+ */
+// p4ic4idea: created to cut per-field allocation when decoding large result sets
+
+public class RpcPacketFieldNameTable {
+
+	/**
+	 * Maximum number of distinct names we'll remember per table. Servers
+	 * can send arbitrary names (spec fields, attributes, numbered fields,
+	 * etc.), so this keeps a pathological result set from growing the
+	 * table without bound.
+	 */
+	public static final int MAX_ENTRIES = 2048;
+
+	private static final int INITIAL_CAPACITY = 512;	// must be a power of two
+
+	private static final String ASCII_PROBE = "azAZ09-_";
+
+	private static final String[] SEED_NAMES = getSeedNames();
+
+	private byte[][] keys = new byte[INITIAL_CAPACITY][];
+	private String[] names = new String[INITIAL_CAPACITY];
+	private int size = 0;
+
+	private Charset lastCharset = null;
+	private boolean lastCharsetAsciiCompatible = false;
+
+	public RpcPacketFieldNameTable() {
+		for (String name : SEED_NAMES) {
+			byte[] nameBytes = name.getBytes(CharsetDefs.UTF8);
+			insert(nameBytes, 0, nameBytes.length, hash(nameBytes, 0, nameBytes.length), name);
+		}
+	}
+
+	/**
+	 * Return the field name encoded by the length bytes starting at offset in
+	 * the passed-in array, decoded with the passed-in charset. Known names are
+	 * returned as their canonical String without allocating anything.
+	 */
+	public String getName(byte[] bytes, int offset, int length, Charset charset) {
+		if (!isAsciiCompatible(charset)) {
+			return new String(bytes, offset, length, charset);
+		}
+
+		int hash = hash(bytes, offset, length);
+		int mask = this.keys.length - 1;
+		for (int slot = hash & mask; this.keys[slot] != null; slot = (slot + 1) & mask) {
+			if (matches(this.keys[slot], bytes, offset, length)) {
+				return this.names[slot];
+			}
+		}
+
+		String name = new String(bytes, offset, length, charset);
+		if (this.size < MAX_ENTRIES && isAscii(bytes, offset, length)) {
+			insert(bytes, offset, length, hash, name);
+		}
+		return name;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	private void insert(byte[] bytes, int offset, int length, int hash, String name) {
+		if ((this.size + 1) * 2 > this.keys.length) {
+			rehash();
+		}
+		byte[] key = new byte[length];
+		System.arraycopy(bytes, offset, key, 0, length);
+
+		int mask = this.keys.length - 1;
+		int slot = hash & mask;
+		while (this.keys[slot] != null) {
+			if (matches(this.keys[slot], key, 0, length)) {
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		this.keys[slot] = key;
+		this.names[slot] = name;
+		this.size++;
+	}
+
+	private void rehash() {
+		byte[][] oldKeys = this.keys;
+		String[] oldNames = this.names;
+		this.keys = new byte[oldKeys.length * 2][];
+		this.names = new String[oldKeys.length * 2];
+		int mask = this.keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				int slot = hash(oldKeys[i], 0, oldKeys[i].length) & mask;
+				while (this.keys[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				this.keys[slot] = oldKeys[i];
+				this.names[slot] = oldNames[i];
+			}
+		}
+	}
+
+	private boolean isAsciiCompatible(Charset charset) {
+		if (charset != this.lastCharset) {
+			this.lastCharset = charset;
+			this.lastCharsetAsciiCompatible = charset != null
+					&& ASCII_PROBE.equals(new String(ASCII_PROBE.getBytes(CharsetDefs.UTF8), charset));
+		}
+		return this.lastCharsetAsciiCompatible;
+	}
+
+	private static boolean isAscii(byte[] bytes, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (bytes[i] < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean matches(byte[] key, byte[] bytes, int offset, int length) {
+		if (key.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (key[i] != bytes[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hash(byte[] bytes, int offset, int length) {
+		int hash = 0x811c9dc5;
+		for (int i = offset; i < offset + length; i++) {
+			hash = (hash ^ (bytes[i] & 0xFF)) * 0x01000193;
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Collect the (non-empty, ASCII) String constants defined on
+	 * RpcFunctionMapKey; these make up the bulk of the protocol's
+	 * fixed vocabulary.
+	 */
+	private static String[] getSeedNames() {
+		List<String> seeds = new ArrayList<String>();
+		try {
+			for (Field field : RpcFunctionMapKey.class.getFields()) {
+				int modifiers = field.getModifiers();
+				if (Modifier.isStatic(modifiers) && Modifier.isFinal(modifiers)
+						&& field.getType() == String.class) {
+					String name = (String) field.get(null);
+					if ((name != null) && (name.length() > 0)) {
+						byte[] nameBytes = name.getBytes(CharsetDefs.UTF8);
+						if (isAscii(nameBytes, 0, nameBytes.length)) {
+							seeds.add(name);
+						}
+					}
+				}
+			}
+		} catch (IllegalAccessException exc) {
+			// Shouldn't happen for public fields; the table just starts empty.
+			Log.exception(exc);
+		}
+		return seeds.toArray(new String[seeds.size()]);
+	}
+}
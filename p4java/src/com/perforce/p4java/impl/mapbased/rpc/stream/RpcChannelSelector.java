@@ -0,0 +1,230 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.perforce.p4java.impl.mapbased.rpc.stream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.perforce.p4java.Log;
+
+/**
+ * The one Selector shared by all RpcSocketChannelConnections, and the
+ * thread that selects on it.<p>
+ *
+ * A connection registers its channel once, and then, whenever a read, write
+ * or connect on the non-blocking channel can't make progress, asks for the
+ * operation and waits on its registration until the selector thread reports
+ * the channel ready (or the socket timeout expires). The connections share
+ * the selector and its thread, rather than each opening a Selector of its
+ * own (with its own file descriptors).<p>
+ *
+ * The selector thread is a daemon, and stops once no channels have been
+ * registered for a while; the next registration starts a new one.
+ */
+// p4ic4idea: created to share one selector between the NIO connections
+class RpcChannelSelector implements Runnable {
+
+	private static final long IDLE_TIMEOUT_MS = 10000;
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+	private static RpcChannelSelector instance = null;
+
+	private final Selector selector;
+
+	// Held while the selector's keys are changed; the selector thread takes
+	// it before each select, so a change made after a wakeup() is never
+	// blocked on (or lost in) a select that's already running.
+	private final Object gate = new Object();
+
+	private volatile boolean running = true;
+
+	private RpcChannelSelector() throws IOException {
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Register the channel, which must be in non-blocking mode, with the
+	 * shared selector.
+	 */
+	static Registration register(SocketChannel channel) throws IOException {
+		synchronized (RpcChannelSelector.class) {
+			if (instance == null) {
+				instance = new RpcChannelSelector();
+				Thread thread = new Thread(instance,
+						"p4java-nio-selector-" + THREAD_COUNT.incrementAndGet());
+				thread.setDaemon(true);
+				thread.start();
+			}
+			Registration registration = new Registration(instance);
+			synchronized (instance.gate) {
+				instance.selector.wakeup();
+				registration.key = channel.register(instance.selector, 0, registration);
+			}
+			return registration;
+		}
+	}
+
+	public void run() {
+		try {
+			while (this.running) {
+				synchronized (this.gate) {
+					// Just wait out any key changes.
+				}
+				if (this.selector.select(IDLE_TIMEOUT_MS) > 0) {
+					for (SelectionKey key : this.selector.selectedKeys()) {
+						if (key.isValid()) {
+							key.interestOps(0);
+						}
+						((Registration) key.attachment()).signal();
+					}
+					this.selector.selectedKeys().clear();
+				} else if (stopIfIdle()) {
+					return;
+				}
+			}
+		} catch (IOException exc) {
+			Log.error("NIO selector failed: " + exc.getLocalizedMessage());
+			Log.exception(exc);
+		} catch (ClosedSelectorException exc) {
+			// stopped
+		} catch (RuntimeException exc) {
+			Log.error("NIO selector failed: " + exc.getLocalizedMessage());
+			Log.exception(exc);
+		}
+		stop();
+	}
+
+	/**
+	 * Stop the thread if there are no channels left. Registration is done
+	 * with the class locked, so no channel can be added while this decides.
+	 */
+	private boolean stopIfIdle() {
+		synchronized (RpcChannelSelector.class) {
+			if (!this.selector.keys().isEmpty()) {
+				return false;
+			}
+			stop();
+			return true;
+		}
+	}
+
+	/**
+	 * Stop selecting, and wake everyone waiting so they see it.
+	 */
+	private void stop() {
+		synchronized (RpcChannelSelector.class) {
+			this.running = false;
+			if (instance == this) {
+				instance = null;
+			}
+		}
+		try {
+			for (SelectionKey key : this.selector.keys()) {
+				((Registration) key.attachment()).signal();
+			}
+		} catch (ClosedSelectorException exc) {
+			// nothing left to wake
+		}
+		try {
+			this.selector.close();
+		} catch (IOException exc) {
+			Log.exception(exc);
+		}
+	}
+
+	/**
+	 * A channel's registration with the shared selector.
+	 */
+	static class Registration {
+		private final RpcChannelSelector owner;
+		private SelectionKey key = null;
+		private boolean ready = false;
+
+		private Registration(RpcChannelSelector owner) {
+			this.owner = owner;
+		}
+
+		/**
+		 * Wait until the channel is ready for the given operations, or the
+		 * timeout expires. A zero timeout waits forever, as with
+		 * Socket.setSoTimeout.
+		 */
+		void await(int ops, int timeout) throws IOException {
+			synchronized (this) {
+				this.ready = false;
+			}
+			setInterestOps(ops);
+			boolean timedOut = false;
+			synchronized (this) {
+				try {
+					long deadline = System.currentTimeMillis() + timeout;
+					while (!this.ready && this.owner.running) {
+						if (timeout <= 0) {
+							wait();
+						} else {
+							long remaining = deadline - System.currentTimeMillis();
+							if (remaining <= 0) {
+								timedOut = true;
+								break;
+							}
+							wait(remaining);
+						}
+					}
+				} catch (InterruptedException exc) {
+					Thread.currentThread().interrupt();
+					setInterestOps(0);
+					throw new InterruptedIOException("interrupted waiting on the server connection");
+				}
+			}
+			if (timedOut) {
+				setInterestOps(0);
+				throw new SocketTimeoutException(
+						(ops == SelectionKey.OP_CONNECT ? "connect" : "read or write")
+						+ " timed out after " + timeout + "ms");
+			}
+			if (!this.owner.running) {
+				throw new IOException("NIO selector stopped");
+			}
+		}
+
+		/**
+		 * Drop the registration; closing the channel does this too.
+		 */
+		void cancel() {
+			this.key.cancel();
+			this.owner.selector.wakeup();
+		}
+
+		private synchronized void signal() {
+			this.ready = true;
+			notifyAll();
+		}
+
+		private void setInterestOps(int ops) {
+			synchronized (this.owner.gate) {
+				this.owner.selector.wakeup();
+				if (this.key.isValid()) {
+					this.key.interestOps(ops);
+				}
+			}
+		}
+	}
+}
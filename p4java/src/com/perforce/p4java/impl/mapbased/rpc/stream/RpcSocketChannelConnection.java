@@ -0,0 +1,535 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.perforce.p4java.impl.mapbased.rpc.stream;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.exception.NullPointerError;
+import com.perforce.p4java.exception.P4JavaError;
+import com.perforce.p4java.exception.ProtocolError;
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
+import com.perforce.p4java.impl.mapbased.rpc.ServerStats;
+import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
+import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionSpec;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacket;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDispatcher;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketPreamble;
+import com.perforce.p4java.impl.mapbased.rpc.packet.helper.RpcPacketFieldRule;
+import com.perforce.p4java.impl.mapbased.rpc.stream.helper.RpcSocketHelper;
+import com.perforce.p4java.server.callback.IFilterCallback;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Properties;
+
+/**
+ * SocketChannel based implementation of the RpcConnection class.<p>
+ *
+ * The channel is kept in non-blocking mode. A read, write or the initial
+ * connect that can't make progress waits for the one selector thread shared
+ * by all channel connections (RpcChannelSelector) to report the channel
+ * ready, so the socket timeout (RpcPropertyDefs.RPC_SOCKET_SO_TIMEOUT_NICK)
+ * applies to each of them the same way it does for the stream
+ * implementation. The command's own thread still does the waiting, as the
+ * dispatcher reads each reply synchronously. Incoming bytes are staged
+ * through a direct ByteBuffer and copied out into the connection's reusable
+ * receive buffer; outgoing packets are written straight from the marshaled
+ * send buffer.<p>
+ *
+ * Packet framing, decoding and the compress2 handshake are exactly those of
+ * RpcStreamConnection, so RpcPacketDispatcher can't tell the two apart. Once
+ * compression's turned on, the GZIP streams sit on thin stream adapters over
+ * the channel.<p>
+ *
+ * This implementation does not support SSL, 'rsh' mode servers or socket
+ * pools; RpcServer.newRpcConnection falls back to RpcStreamConnection for
+ * those.
+ *
+ * @see RpcPropertyDefs#RPC_USE_NIO_TRANSPORT_NICK
+ */
+// p4ic4idea: created as an NIO alternative to RpcStreamConnection
+public class RpcSocketChannelConnection extends RpcConnection {
+
+	public static final String TRACE_PREFIX = "RpcSocketChannelConnection";
+
+	/**
+	 * Size of the direct buffer incoming bytes are staged through.
+	 */
+	protected static final int CHANNEL_READ_BUF_SIZE = 64 * 1024;
+
+	private SocketChannel channel = null;
+	private RpcChannelSelector.Registration registration = null;
+	private int timeout = RpcPropertyDefs.RPC_SOCKET_SO_TIMEOUT_DEFAULT;
+
+	private final ByteBuffer readBuf = ByteBuffer.allocateDirect(CHANNEL_READ_BUF_SIZE);
+	private final byte[] preambleBytes = new byte[RpcPacketPreamble.RPC_PREAMBLE_SIZE];
+
+	// Only used once connection compression is turned on.
+	private InputStream topInputStream = null;
+	private OutputStream topOutputStream = null;
+
+	/**
+	 * Construct a new Perforce RPC connection to the named Perforce server
+	 * using a non-blocking SocketChannel, and connect it.
+	 *
+	 * @param serverHost
+	 * @param serverPort
+	 * @param props
+	 * @param stats
+	 * @param charset
+	 * @throws ConnectionException
+	 */
+	public RpcSocketChannelConnection(String serverHost, int serverPort,
+			Properties props, ServerStats stats, Charset charset)
+			throws ConnectionException {
+		super(serverHost, serverPort, props, stats, charset, false);
+		init();
+	}
+
+	/**
+	 * Open the channel and connect it to the server.
+	 *
+	 * @throws ConnectionException
+	 */
+	private void init() throws ConnectionException {
+		this.timeout = RpcPropertyDefs.getPropertyAsInt(this.props,
+				RpcPropertyDefs.RPC_SOCKET_SO_TIMEOUT_NICK,
+				RpcPropertyDefs.RPC_SOCKET_SO_TIMEOUT_DEFAULT);
+		if (this.timeout < 0) {
+			this.timeout = 0;
+		}
+		this.readBuf.flip(); // start out empty
+
+		try {
+			InetSocketAddress address = new InetSocketAddress(this.hostName, this.hostPort);
+			if (address.isUnresolved()) {
+				throw new UnknownHostException(this.hostName);
+			}
+
+			this.channel = SocketChannel.open();
+			// The blocking-mode socket options (timeouts aside) carry over to
+			// the channel, so reuse the stream implementation's settings.
+			RpcSocketHelper.configureSocket(this.channel.socket(), this.props);
+			this.channel.configureBlocking(false);
+			this.registration = RpcChannelSelector.register(this.channel);
+
+			if (!this.channel.connect(address)) {
+				while (!this.channel.finishConnect()) {
+					await(SelectionKey.OP_CONNECT);
+				}
+			}
+		} catch (UnknownHostException exc) {
+			closeChannel();
+			throw new ConnectionException("Unable to resolve Perforce server host name '"
+					+ hostName
+					+ "' for RPC connection",
+					exc);
+		} catch (IOException exc) {
+			closeChannel();
+			throw new ConnectionException("Unable to connect to Perforce server at "
+					+ hostName + ":" + hostPort,
+					exc);
+		} catch (RuntimeException thr) {
+			closeChannel();
+			Log.error("Unexpected exception: " + thr.getLocalizedMessage());
+			Log.exception(thr);
+			throw new ConnectionException(thr);
+		}
+
+		// Get IP address from socket connection
+		InetAddress address = this.channel.socket().getInetAddress();
+		if (address != null) {
+			if (address instanceof Inet6Address) {
+				// Add the square brackets for IPv6 address
+				this.hostIp = "[" + address.getHostAddress() + "]";
+			} else {
+				this.hostIp = address.getHostAddress();
+			}
+		}
+	}
+
+	/**
+	 * Wait until the channel is ready for the given operation, or the socket
+	 * timeout expires. A zero timeout waits forever, as with Socket.setSoTimeout.
+	 */
+	private void await(int ops) throws IOException {
+		this.registration.await(ops, this.timeout);
+	}
+
+	/**
+	 * Read at most len bytes into the passed-in array, refilling the direct
+	 * staging buffer from the channel (and waiting on it) if it's empty.
+	 * Returns the number of bytes copied, or -1 at end of stream.
+	 */
+	private int channelRead(byte[] bytes, int offset, int len) throws IOException {
+		if (!this.readBuf.hasRemaining()) {
+			this.readBuf.clear();
+			int bytesRead;
+			try {
+				while ((bytesRead = this.channel.read(this.readBuf)) == 0) {
+					await(SelectionKey.OP_READ);
+				}
+			} finally {
+				this.readBuf.flip();
+			}
+			if (bytesRead < 0) {
+				return -1;
+			}
+			if (this.stats.largestRecv.get() < bytesRead) {
+				this.stats.largestRecv.set(bytesRead);
+			}
+		}
+		int count = Math.min(len, this.readBuf.remaining());
+		this.readBuf.get(bytes, offset, count);
+		return count;
+	}
+
+	/**
+	 * Write the whole of the passed-in buffer to the channel, waiting on it
+	 * whenever the socket's send buffer is full.
+	 */
+	private void channelWrite(ByteBuffer buf) throws IOException {
+		int len = buf.remaining();
+		while (buf.hasRemaining()) {
+			if (this.channel.write(buf) == 0) {
+				await(SelectionKey.OP_WRITE);
+			}
+		}
+		if (this.stats.largestSend.get() < len) {
+			this.stats.largestSend.set(len);
+		}
+	}
+
+	/**
+	 * Read len bytes into the passed-in array, from the GZIP stream if
+	 * compression is on, else straight off the channel.
+	 */
+	private void readFully(byte[] bytes, int offset, int len) throws IOException {
+		int bytesRead = 0;
+		while (bytesRead < len) {
+			int moreBytesRead;
+			if (this.topInputStream != null) {
+				moreBytesRead = this.topInputStream.read(bytes, offset + bytesRead, len - bytesRead);
+			} else {
+				moreBytesRead = channelRead(bytes, offset + bytesRead, len - bytesRead);
+			}
+			this.stats.streamRecvs.incrementAndGet();
+			if (moreBytesRead < 0) {
+				throw new EOFException("server connection unexpectedly closed");
+			}
+			if (bytesRead > 0) {
+				this.stats.incompleteReads.incrementAndGet();
+			}
+			bytesRead += moreBytesRead;
+		}
+		this.stats.totalBytesRecv.getAndAdd(bytesRead);
+	}
+
+	private void closeChannel() {
+		if (this.registration != null) {
+			this.registration.cancel();
+		}
+		try {
+			if (this.channel != null) {
+				this.channel.close();
+			}
+		} catch (IOException exc) {
+			Log.exception(exc);
+		}
+	}
+
+	/**
+	 * @see com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection#getServerIpPort()
+	 */
+	public String getServerIpPort() {
+		String serverIpPort = null;
+		if (this.hostIp != UNKNOWN_SERVER_HOST) {
+			serverIpPort = this.hostIp;
+			if (this.hostPort != UNKNOWN_SERVER_PORT) {
+				serverIpPort += ":" + Integer.toString(this.hostPort);
+			}
+		} else if (this.hostPort != UNKNOWN_SERVER_PORT) {
+			serverIpPort = Integer.toString(this.hostPort);
+		}
+		return serverIpPort;
+	}
+
+	/**
+	 * @see com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection#disconnect(RpcPacketDispatcher)
+	 */
+	public void disconnect(RpcPacketDispatcher dispatcher) throws ConnectionException {
+		// NOTE: as with RpcStreamConnection, no gratuitous flushes here.
+		if (dispatcher != null) {
+			try {
+				dispatcher.shutdown(this);
+			} catch (ConnectionException e) {
+				Log.exception(e);
+			}
+		}
+		try {
+			if (this.topInputStream != null) {
+				this.topInputStream.close();
+			}
+			if (this.topOutputStream != null) {
+				this.topOutputStream.close();
+			}
+		} catch (IOException exc) {
+			throw new ConnectionException(
+					"RPC disconnection error: " + exc.getLocalizedMessage(), exc);
+		} finally {
+			closeChannel();
+		}
+	}
+
+	/**
+	 * @see com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection#useConnectionCompression()
+	 */
+	@Override
+	public void useConnectionCompression() throws ConnectionException {
+		if (!this.usingCompression) {
+			super.useConnectionCompression();
+
+			try {
+				// We do this here immediately to avoid having the compress2 itself
+				// compressed...
+				this.putRpcPacket(RpcPacket.constructRpcPacket(
+									RpcFunctionSpec.PROTOCOL_COMPRESS2,
+									"compress2",
+									(String[]) null, null));
+				this.topOutputStream = new RpcGZIPOutputStream(new ChannelOutputStream());
+				this.topInputStream = new RpcGZIPInputStream(new ChannelInputStream());
+			} catch (IOException exc) {
+				Log.error("I/O exception encountered while setting up GZIP streaming: "
+						+ exc.getLocalizedMessage());
+				Log.exception(exc);
+				throw new ConnectionException(
+						"unable to set up client compression streaming to Perforce server: "
+						+ exc.getLocalizedMessage(), exc);
+			}
+		}
+	}
+
+	/**
+	 * @see com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection#getRpcPacket()
+	 */
+	public RpcPacket getRpcPacket() throws ConnectionException {
+		return getRpcPacket(null, null);
+	}
+
+	/**
+	 * @see com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection#getRpcPacket(RpcPacketFieldRule, IFilterCallback)
+	 */
+	public RpcPacket getRpcPacket(RpcPacketFieldRule fieldRule, IFilterCallback filterCallback) throws ConnectionException {
+		try {
+			readFully(this.preambleBytes, 0, this.preambleBytes.length);
+
+			RpcPacketPreamble preamble = RpcPacketPreamble.retrievePreamble(this.preambleBytes);
+
+			if (preamble == null) {
+				throw new ProtocolError("Null RPC packet preamble in byte buffer");
+			} else if (!preamble.isValidChecksum()) {
+				throw new ProtocolError("Bad checksum in RPC preamble");
+			}
+
+			int payloadLength = preamble.getPayloadSize(); // Note: size is for the *rest of the packet*...
+
+			if (payloadLength <= 0) {
+				throw new ProtocolError("Bad payload size in RPC preamble: " + payloadLength);
+			}
+
+			byte[] packetBytes = getRecvBuffer(payloadLength, filterCallback);
+			readFully(packetBytes, 0, payloadLength);
+
+			return decodeRpcPacket(preamble, packetBytes, payloadLength,
+												fieldRule, filterCallback);
+		} catch (IOException exc) {
+			throw new ConnectionException(exc);
+		} catch (P4JavaError p4je) {
+			// Just passing through...
+			throw p4je;
+		} catch (RuntimeException thr) {
+			// Never a good sign; typically a buffer overflow or positioning
+			// problem, and almost always unrecoverable.
+
+			Log.error("Unexpected exception: " + thr.getLocalizedMessage());
+			Log.exception(thr);
+			throw new P4JavaError(thr.getLocalizedMessage(), thr);
+		}
+	}
+
+	/**
+	 * Without compression, true if there's unread data in the staging buffer,
+	 * or the channel has more (which is then read into the staging buffer).
+	 * The GZIP stream can't say whether a whole block is waiting, so this is
+	 * always false with compression.
+	 * 
+	 * @see com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection#hasBufferedInput()
+	 */
+	// p4ic4idea: added
+	@Override
+	public boolean hasBufferedInput() {
+		if (this.topInputStream != null) {
+			return false;
+		}
+		if (this.readBuf.hasRemaining()) {
+			return true;
+		}
+		this.readBuf.clear();
+		int bytesRead = 0;
+		try {
+			bytesRead = this.channel.read(this.readBuf);
+		} catch (IOException exc) {
+			// Let the next read report it.
+			return true;
+		} finally {
+			this.readBuf.flip();
+		}
+		// An end of stream is picked up by the next read, too.
+		return bytesRead != 0;
+	}
+
+	/**
+	 * @see com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection#putRpcPacket(RpcPacket)
+	 */
+	public long putRpcPacket(RpcPacket packet) throws ConnectionException {
+		ByteBuffer sendBuf = marshalRpcPacket(packet);
+		int sendPos = sendBuf.limit();
+
+		try {
+			if (this.topOutputStream != null) {
+				this.topOutputStream.write(sendBuf.array(), 0, sendPos);
+				this.topOutputStream.flush();
+			} else {
+				channelWrite(sendBuf);
+			}
+			this.stats.streamSends.incrementAndGet();
+			this.stats.totalBytesSent.getAndAdd(sendPos);
+			this.stats.packetsSent.incrementAndGet();
+			if (this.stats.largestRpcPacketSent.get() < sendPos) {
+				this.stats.largestRpcPacketSent.set(sendPos);
+			}
+		} catch (IOException exc) {
+			Log.exception(exc);
+			throw new ConnectionException("Unable to send command to Perforce server: "
+					+ exc.getMessage(), exc);
+		} finally {
+			releaseSendBuffer();
+		}
+
+		return 0;
+	}
+
+	/**
+	 * @see com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection#putRpcPackets(RpcPacket[])
+	 */
+	public long putRpcPackets(RpcPacket[] packets) throws ConnectionException {
+		int retVal = 0;
+
+		if (packets == null) {
+			throw new NullPointerError(
+					"Null RPC packets passed to RpcSocketChannelConnection.putRpcPackets");
+		}
+
+		for (RpcPacket packet : packets) {
+			if (packet != null) {
+				retVal += putRpcPacket(packet);
+			}
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * @see com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection#getSystemSendBufferSize()
+	 */
+	public int getSystemSendBufferSize() {
+		if (this.channel != null) {
+			try {
+				return this.channel.socket().getSendBufferSize();
+			} catch (SocketException exc) {
+				Log.error("unexpected exception: " + exc.getLocalizedMessage());
+				Log.exception(exc);
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * @see com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection#getSystemRecvBufferSize()
+	 */
+	public int getSystemRecvBufferSize() {
+		if (this.channel != null) {
+			try {
+				return this.channel.socket().getReceiveBufferSize();
+			} catch (SocketException exc) {
+				Log.error("unexpected exception: " + exc.getLocalizedMessage());
+				Log.exception(exc);
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Input stream view of the channel for the GZIP stream to read from.
+	 */
+	private class ChannelInputStream extends InputStream {
+		@Override
+		public int read() throws IOException {
+			byte[] oneByte = new byte[1];
+			return read(oneByte, 0, 1) < 0 ? -1 : (oneByte[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			return channelRead(bytes, offset, len);
+		}
+
+		@Override
+		public int available() {
+			return readBuf.remaining();
+		}
+	}
+
+	/**
+	 * Output stream view of the channel for the GZIP stream to write to.
+	 */
+	private class ChannelOutputStream extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int len) throws IOException {
+			channelWrite(ByteBuffer.wrap(bytes, offset, len));
+		}
+	}
+}
@@ -109,6 +109,16 @@ public class RpcSocketInputStream extends InputStream {
 		return retVal;
 	}
 
+	// p4ic4idea: added so callers can tell if a read would wait
+	@Override
+	public int available() throws IOException {
+		if (this.socketStream == null) {
+			throw new NullPointerError(
+					"null socket stream in RpcSocketInputStream.available()");
+		}
+		return this.socketStream.available();
+	}
+
 	protected Socket getSocket() {
 		return this.socket;
 	}
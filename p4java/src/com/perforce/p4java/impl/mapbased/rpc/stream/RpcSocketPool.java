@@ -4,17 +4,34 @@
 package com.perforce.p4java.impl.mapbased.rpc.stream;
 
 import com.perforce.p4java.Log;
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
+import com.perforce.p4java.impl.mapbased.rpc.ServerStats;
 import com.perforce.p4java.impl.mapbased.rpc.stream.helper.RpcSocketHelper;
 
+import javax.net.ssl.SSLSocket;
 import java.io.IOException;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.LinkedList;
+import java.net.SocketTimeoutException;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Pool of idle sockets to a single server address.<p>
+ *
+ * p4ic4idea: acquire and release no longer take a lock; idle sockets sit
+ * in a concurrent queue, with an atomic count keeping the pool within its
+ * size. Sockets past their maximum lifetime are closed rather than reused,
+ * and sockets that have been idle for a while are checked for a server-side
+ * close before they're handed out (see the RpcPropertyDefs socket pool
+ * properties). Hits, misses and acquire times go to the ServerStats passed
+ * in, if any.
+ *
  * @author Kevin Sawicki (ksawicki@perforce.com)
  */
 public class RpcSocketPool {
@@ -52,14 +69,15 @@ public class RpcSocketPool {
 		private static final int DEFAULT_SOCKET_IDLE_TIME = 30000;
 
 		private int idleTime;
+		// p4ic4idea: copy-on-write, so the manager thread never locks out registration
 		private List<RpcSocketPool> pools;
-		private boolean started = false;
+		private volatile boolean started = false;
 
 		/**
 		 * Create a new pool manager
 		 */
 		public PoolManager() {
-			this.pools = new ArrayList<RpcSocketPool>();
+			this.pools = new CopyOnWriteArrayList<RpcSocketPool>();
 			int time = DEFAULT_SOCKET_IDLE_TIME;
 			String configuredTime = System.getProperty(RPC_SOCKET_IDLE_TIME);
 			if (configuredTime != null) {
@@ -74,9 +92,7 @@ public class RpcSocketPool {
 
 		public void register(RpcSocketPool pool) {
 			if (pool != null) {
-				synchronized (this) {
-					pools.add(pool);
-				}
+				pools.add(pool);
 				if (started) {
 					synchronized (this.pools) {
 						this.pools.notify();
@@ -87,7 +103,10 @@ public class RpcSocketPool {
 			}
 		}
 
-		public void start() {
+		public synchronized void start() {
+			if (started) {
+				return;
+			}
 			started = true;
 			Thread thread = new Thread(this);
 			thread.setName("P4Java Socket Pool Manager");
@@ -98,9 +117,7 @@ public class RpcSocketPool {
 
 		public void unregister(RpcSocketPool pool) {
 			if (pool != null) {
-				synchronized (this) {
-					pools.remove(pool);
-				}
+				pools.remove(pool);
 			}
 		}
 
@@ -109,21 +126,16 @@ public class RpcSocketPool {
 		 */
 		public void run() {
 			while (true) {
-				while (this.pools.isEmpty()) {
-					synchronized (this.pools) {
+				synchronized (this.pools) {
+					while (this.pools.isEmpty()) {
 						try {
 							this.pools.wait();
 						} catch (InterruptedException e) {
-							break;
+							return;
 						}
 					}
 				}
-				RpcSocketPool[] pools = null;
-				synchronized (this) {
-					pools = this.pools.toArray(new RpcSocketPool[this.pools
-							.size()]);
-				}
-				for (RpcSocketPool pool : pools) {
+				for (RpcSocketPool pool : this.pools) {
 					pool.timeout(this.idleTime);
 				}
 				try {
@@ -137,9 +149,9 @@ public class RpcSocketPool {
 
 	private static PoolManager MANAGER = new PoolManager();
 
-	private class SocketEntry {
-		Socket socket;
-		long releaseTime;
+	private static class SocketEntry {
+		final Socket socket;
+		final long releaseTime;
 
 		/**
 		 * Create a new socket entry with the specified socket with a release
@@ -160,6 +172,14 @@ public class RpcSocketPool {
 	private ShutdownHandler shutdownHandler;
 	private Queue<SocketEntry> pool;
 	private boolean secure = false;
+
+	// p4ic4idea: idle count kept alongside the queue, as its size() isn't constant time
+	private final AtomicInteger idleCount = new AtomicInteger();
+	// p4ic4idea: when each socket this pool opened was opened, for the lifetime check
+	private final Map<Socket, Long> openTimes = new ConcurrentHashMap<Socket, Long>();
+	private long maxLifetime;
+	private long validateIdle;
+	private ServerStats stats = null;
 	
 	/**
 	 * Create a new socket pool indicating whether it is secure (SSL) or not.
@@ -178,6 +198,26 @@ public class RpcSocketPool {
 		this.secure = secure;
 	}
 
+	/**
+	 * Create a new socket pool indicating whether it is secure (SSL) or not,
+	 * recording pool metrics in the passed-in stats.
+	 *
+	 * @param poolSize
+	 * @param host
+	 * @param port
+	 * @param socketProperties
+	 * @param shutdownHandler
+	 * @param secure
+	 * @param stats if not null, pool hits, misses and acquire times are added here.
+	 */
+	// p4ic4idea: added to report pool metrics
+	public RpcSocketPool(int poolSize, String host, int port,
+			Properties socketProperties, ShutdownHandler shutdownHandler,
+			boolean secure, ServerStats stats) {
+		this(poolSize, host, port, socketProperties, shutdownHandler, secure);
+		this.stats = stats;
+	}
+
 	/**
 	 * Create a new socket pool with a max pool size, host, port, and socket
 	 * properties, and an optional shutdown handler
@@ -194,8 +234,14 @@ public class RpcSocketPool {
 		this.host = host;
 		this.port = port;
 		this.socketProperties = socketProperties;
-		this.pool = new LinkedList<SocketEntry>();
+		this.pool = new ConcurrentLinkedQueue<SocketEntry>();
 		this.shutdownHandler = shutdownHandler;
+		this.maxLifetime = RpcPropertyDefs.getPropertyAsInt(socketProperties,
+				RpcPropertyDefs.RPC_SOCKET_POOL_MAX_LIFETIME_NICK,
+				RpcPropertyDefs.RPC_SOCKET_POOL_DEFAULT_MAX_LIFETIME);
+		this.validateIdle = RpcPropertyDefs.getPropertyAsInt(socketProperties,
+				RpcPropertyDefs.RPC_SOCKET_POOL_VALIDATE_IDLE_NICK,
+				RpcPropertyDefs.RPC_SOCKET_POOL_DEFAULT_VALIDATE_IDLE);
 		MANAGER.register(this);
 	}
 
@@ -206,20 +252,109 @@ public class RpcSocketPool {
 	 * @throws IOException
 	 */
 	public Socket acquire() throws IOException {
+		long start = System.currentTimeMillis();
 		Socket socket = null;
-		synchronized (this.pool) {
-			SocketEntry entry = this.pool.poll();
-			if (entry != null) {
+		SocketEntry entry;
+		while ((entry = this.pool.poll()) != null) {
+			this.idleCount.decrementAndGet();
+			if (isReusable(entry, start)) {
 				socket = entry.socket;
+				break;
 			}
+			// No point trying to send a release over a socket the server has dropped.
+			discard(entry.socket, isExpired(entry.socket, start) ? this.shutdownHandler : null);
 		}
-		if (!isAlive(socket)) {
-			quietClose(socket);
+		if (socket == null) {
 			socket = RpcSocketHelper.createSocket(this.host, this.port, this.socketProperties, this.secure);
+			this.openTimes.put(socket, System.currentTimeMillis());
+		}
+		if (this.stats != null) {
+			if (entry == null) {
+				this.stats.socketPoolMisses.incrementAndGet();
+			} else {
+				this.stats.socketPoolHits.incrementAndGet();
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			this.stats.socketPoolAcquireTime.addAndGet(elapsed);
+			if (this.stats.socketPoolLongestAcquire.get() < elapsed) {
+				this.stats.socketPoolLongestAcquire.set(elapsed);
+			}
 		}
 		return socket;
 	}
 
+	/**
+	 * Is the pooled socket still fit for use? It must be open, within its
+	 * maximum lifetime, and (if it's been idle a while) not closed or
+	 * written to by the server behind our back.
+	 */
+	private boolean isReusable(SocketEntry entry, long now) {
+		if (!isAlive(entry.socket) || isExpired(entry.socket, now)) {
+			return false;
+		}
+		if ((this.validateIdle >= 0) && (now - entry.releaseTime >= this.validateIdle)) {
+			return probe(entry.socket);
+		}
+		return true;
+	}
+
+	private boolean isExpired(Socket socket, long now) {
+		if (this.maxLifetime <= 0) {
+			return false;
+		}
+		Long openTime = this.openTimes.get(socket);
+		return (openTime != null) && (now - openTime >= this.maxLifetime);
+	}
+
+	/**
+	 * Check an idle socket for a server-side close. Between commands the
+	 * server never sends anything unasked, so end of stream and stray bytes
+	 * both mean the socket can't be reused; a read timeout means all's well.
+	 * SSL sockets only get the available() check, as a read on them may
+	 * start processing records.
+	 */
+	private boolean probe(Socket socket) {
+		int soTimeout = -1;
+		try {
+			if (socket.getInputStream().available() > 0) {
+				return false;
+			}
+			if (socket instanceof SSLSocket) {
+				return true;
+			}
+			soTimeout = socket.getSoTimeout();
+			socket.setSoTimeout(1);
+			socket.getInputStream().read();
+			return false;
+		} catch (SocketTimeoutException e) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (soTimeout >= 0) {
+				try {
+					socket.setSoTimeout(soTimeout);
+				} catch (IOException e) {
+					// socket's unusable anyway
+				}
+			}
+		}
+	}
+
+	/**
+	 * Close a socket that won't be going (back) into the pool.
+	 */
+	private void discard(Socket socket, ShutdownHandler shutdownHandler) {
+		this.openTimes.remove(socket);
+		if (this.stats != null) {
+			this.stats.socketPoolDiscards.incrementAndGet();
+		}
+		if (isAlive(socket) && (shutdownHandler != null)) {
+			shutdownHandler.shutdown(socket);
+		}
+		quietClose(socket);
+	}
+
 	private void quietClose(Socket socket) {
 		if (socket != null) {
 			try {
@@ -253,26 +388,23 @@ public class RpcSocketPool {
 	public void release(Socket socket, ShutdownHandler shutdownHandler)
 			throws IOException {
 		if (isAlive(socket)) {
-			boolean close = false;
-			synchronized (this.pool) {
-				if (this.pool.size() < size) {
-					this.pool.add(new SocketEntry(socket));
-				} else {
-					close = true;
+			if (isExpired(socket, System.currentTimeMillis())) {
+				discard(socket, shutdownHandler);
+			} else if (this.idleCount.incrementAndGet() <= size) {
+				this.pool.add(new SocketEntry(socket));
+			} else {
+				this.idleCount.decrementAndGet();
+				this.openTimes.remove(socket);
+				if (this.stats != null) {
+					this.stats.socketPoolDiscards.incrementAndGet();
 				}
-			}
-			if (close) {
 				if (shutdownHandler != null) {
 					shutdownHandler.shutdown(socket);
 				}
-				if (!socket.isClosed()) {
-					socket.getInputStream().close();
-				}
-				if (!socket.isClosed()) {
-					socket.getOutputStream().close();
-				}
-				socket.close();
+				close(socket);
 			}
+		} else if (socket != null) {
+			this.openTimes.remove(socket);
 		}
 	}
 
@@ -292,23 +424,16 @@ public class RpcSocketPool {
 	 * Disconnect all sockets from the specified host and port
 	 */
 	public void disconnect() {
-		Socket[] sockets = null;
 		try {
-			synchronized (this.pool) {
-				sockets = new Socket[this.pool.size()];
-				int count = 0;
-				for (SocketEntry entry : this.pool) {
-					sockets[count] = entry.socket;
-					count++;
-				}
-				this.pool.clear();
-			}
-			for (Socket socket : sockets) {
+			SocketEntry entry;
+			while ((entry = this.pool.poll()) != null) {
+				this.idleCount.decrementAndGet();
+				this.openTimes.remove(entry.socket);
 				if (this.shutdownHandler != null) {
-					this.shutdownHandler.shutdown(socket);
+					this.shutdownHandler.shutdown(entry.socket);
 				}
 				try {
-					close(socket);
+					close(entry.socket);
 				} catch (IOException e) {
 					Log.exception(e);
 				}
@@ -325,20 +450,21 @@ public class RpcSocketPool {
 	 * @param idleDuration
 	 */
 	public void timeout(int idleDuration) {
-		synchronized (this.pool) {
-			long openTime;
-			List<SocketEntry> closed = new ArrayList<SocketEntry>();
-			for (SocketEntry entry : this.pool) {
-				openTime = System.currentTimeMillis() - entry.releaseTime;
-				if (openTime >= idleDuration) {
-					if (this.shutdownHandler != null) {
-						this.shutdownHandler.shutdown(entry.socket);
-					}
-					quietClose(entry.socket);
-					closed.add(entry);
+		long now = System.currentTimeMillis();
+		for (SocketEntry entry : this.pool) {
+			if ((now - entry.releaseTime >= idleDuration) || isExpired(entry.socket, now)) {
+				// Only close it if an acquire didn't get to it first.
+				if (this.pool.remove(entry)) {
+					this.idleCount.decrementAndGet();
+					discard(entry.socket, this.shutdownHandler);
 				}
 			}
-			this.pool.removeAll(closed);
+		}
+		// Forget sockets that were handed out and then closed by their user.
+		for (Socket socket : this.openTimes.keySet()) {
+			if (socket.isClosed()) {
+				this.openTimes.remove(socket);
+			}
 		}
 	}
 }
@@ -29,6 +29,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
@@ -53,22 +54,6 @@ public class RpcStreamConnection extends RpcConnection {
 
 	public static final String TRACE_PREFIX = "RpcStreamConnection";
 
-	/**
-	 * Number of bytes we allocate for initial byte arrays for sending RPC packets.
-	 * In general we don't know how big the final buffer is, so this figure is a bit
-	 * of a guessed compromise between over-allocation and frequent resizing.
-	 */
-	protected static final int INITIAL_SENDBUF_SIZE = 2048;
-	
-	/**
-	 * When we run out of send buffer space in putPacket, we allocate another,
-	 * larger, buffer; this constant determines how much larger than the existing
-	 * buffer the new one should be, or, alternatively, how much bigger than the
-	 * incoming field length the new buffer should be. Should probably be more
-	 * tunable...
-	 */
-	protected static final int SENDBUF_REALLOC_INCR = 1024;
-	
 	private RpcSocketPool pool = null;
 	private Socket socket = null;
 	private InputStream inputStream = null;
@@ -76,6 +61,10 @@ public class RpcStreamConnection extends RpcConnection {
 	private InputStream topInputStream = null;
 	private OutputStream topOutputStream = null;
 
+	// p4ic4idea: preamble buffer reused for every incoming packet; the payload
+	// buffer is managed by RpcConnection.getRecvBuffer().
+	private final byte[] preambleBytes = new byte[RpcPacketPreamble.RPC_PREAMBLE_SIZE];
+
 	// 'rsh' mode server launch command
 	private String rsh = null;
 
@@ -516,7 +505,8 @@ public class RpcStreamConnection extends RpcConnection {
 	 */
 	public RpcPacket getRpcPacket(RpcPacketFieldRule fieldRule, IFilterCallback filterCallback) throws ConnectionException {
 		
-		byte[] preambleBytes = new byte[RpcPacketPreamble.RPC_PREAMBLE_SIZE];
+		// p4ic4idea: reuse the connection's preamble and payload buffers
+		byte[] preambleBytes = this.preambleBytes;
 		RpcPacket packet = null;
 		
 		try {
@@ -568,7 +558,7 @@ public class RpcStreamConnection extends RpcConnection {
 			// try to read this in. This can be a ginormous packet in some pathological
 			// cases, so we need to be flexible...
 			
-			byte[] packetBytes = new byte[payloadLength];
+			byte[] packetBytes = getRecvBuffer(payloadLength, filterCallback);
 			
 			int packetBytesRead = this.topInputStream.read(packetBytes, 0, payloadLength);
 			this.stats.streamRecvs.incrementAndGet();
@@ -599,11 +589,8 @@ public class RpcStreamConnection extends RpcConnection {
 						+ payloadLength + "; got: " + packetBytesRead);
 			}
 			
-			packet = RpcPacket.constructRpcPacket(preamble, packetBytes, this.unicodeServer,
-													this.clientCharset, fieldRule, filterCallback);
-			
-			this.stats.packetsRecv.incrementAndGet();
-			this.stats.largestRpcPacketRecv.set(Math.max(this.stats.largestRpcPacketRecv.get(),	packet.getPacketLength()));
+			packet = decodeRpcPacket(preamble, packetBytes, payloadLength,
+													fieldRule, filterCallback);
 
 		} catch (IOException exc) {
 			throw new ConnectionException(exc);
@@ -632,103 +619,10 @@ public class RpcStreamConnection extends RpcConnection {
 	 */
 	public long putRpcPacket(RpcPacket packet) throws ConnectionException {
 		
-		// Note that in general, we don't know how large the packet's output byte
-		// buffer is going to have to be until we've finished the packet contents
-		// marshaling, so we implement buffer resizing when needed. Our initial
-		// guess is INITIAL_SENDBUF_SIZE bytes; we grow the buffer by increasing
-		// it SENDBUF_REALLOC_INCR times each buffer increase.
-		
-		byte[] sendBytes = new byte[INITIAL_SENDBUF_SIZE];
-		int sendPos = 0;
-		
-		if (packet == null) {
-			throw new NullPointerError(
-					"null RPC packet passed to RpcStreamConnection.putPacket");
-		}
-
-		if (packet.getFuncNameString() == null) {
-			throw new P4JavaError("Unmapped / unmappable function in RpcPacket.put()");
-		}
-		
-		// Skip over the first few bytes for the preamble, which we'll
-		// come back to fill in later when we know the marshaled length.
-		
-		sendPos += RpcPacketPreamble.RPC_PREAMBLE_SIZE;
-		
-		Map<String, Object> mapArgs = packet.getMapArgs();
-		String[] strArgs = packet.getStrArgs();
-		
-		if (mapArgs != null) {
-			for (Map.Entry<String, Object> entry : mapArgs.entrySet()) {
-				byte[] fieldBytes = marshalPacketField(entry.getKey(), entry.getValue());
-				
-				if ((sendBytes.length - sendPos)  <= fieldBytes.length) {
-					this.stats.bufferCompacts.getAndIncrement(); // We're overloading the meaning here...
-					int newBytesLength = sendBytes.length + fieldBytes.length + SENDBUF_REALLOC_INCR;
-					byte[] newBytes = new byte[newBytesLength];
-					System.arraycopy(sendBytes, 0, newBytes, 0, sendPos);
-					sendBytes = newBytes;
-				}
-				
-				System.arraycopy(fieldBytes, 0, sendBytes, sendPos, fieldBytes.length);
-				sendPos += fieldBytes.length;
-			}
-		}
-		
-		if (strArgs != null) {
-			for (String arg : strArgs) {	
-				if (arg != null) {
-					byte[] fieldBytes = marshalPacketField(null, arg);
-					
-					if ((sendBytes.length - sendPos)  <= fieldBytes.length) {
-						this.stats.bufferCompacts.getAndIncrement(); // We're overloading the meaning here...
-						int newBytesLength = sendBytes.length + fieldBytes.length + SENDBUF_REALLOC_INCR;
-						byte[] newBytes = new byte[newBytesLength];
-						System.arraycopy(sendBytes, 0, newBytes, 0, sendPos);
-						sendBytes = newBytes;
-					}
-					
-					System.arraycopy(fieldBytes, 0, sendBytes, sendPos, fieldBytes.length);
-					sendPos += fieldBytes.length;
-				}
-			}
-		}
-		
-		if (packet.getEnv() != null) {
-			byte[] envBytes = packet.getEnv().marshal();
-			
-			if ((sendBytes.length - sendPos)  <= envBytes.length) {
-				this.stats.bufferCompacts.getAndIncrement(); // We're overloading the meaning here...
-				int newBytesLength = sendBytes.length + envBytes.length + SENDBUF_REALLOC_INCR;
-				byte[] newBytes = new byte[newBytesLength];
-				System.arraycopy(sendBytes, 0, newBytes, 0, sendPos);
-				sendBytes = newBytes;
-			}
-			
-			System.arraycopy(envBytes, 0, sendBytes, sendPos, envBytes.length);
-			sendPos += envBytes.length;
-		}
-		
-		byte[] nameBytes = marshalPacketField(RpcFunctionMapKey.FUNCTION,
-												packet.getFuncNameString());
-		
-		if ((sendBytes.length - sendPos)  <= nameBytes.length) {
-			this.stats.bufferCompacts.getAndIncrement(); // We're overloading the meaning here...
-			int newBytesLength = sendBytes.length + nameBytes.length;
-			byte[] newBytes = new byte[newBytesLength];
-			System.arraycopy(sendBytes, 0, newBytes, 0, sendPos);
-			sendBytes = newBytes;
-		}
-		
-		System.arraycopy(nameBytes, 0, sendBytes, sendPos, nameBytes.length);
-		sendPos += nameBytes.length;
-		
-		// Now go back and calculate the preamble bytes...
-		
-		byte[] preambleBytes = RpcPacketPreamble.constructPreamble(
-								sendPos - RpcPacketPreamble.RPC_PREAMBLE_SIZE).marshalAsBytes();
-		
-		System.arraycopy(preambleBytes, 0, sendBytes, 0, preambleBytes.length);
+		// p4ic4idea: marshal straight into the connection's reusable send buffer
+		ByteBuffer sendBuf = marshalRpcPacket(packet);
+		int sendPos = sendBuf.limit();
+		byte[] sendBytes = sendBuf.array();
 		
 		// Now let's try sending it downstream and see what happens...
 		
@@ -754,6 +648,8 @@ public class RpcStreamConnection extends RpcConnection {
 			}
 			message.append(exc.getMessage());
 			throw new ConnectionException(message.toString(), exc);
+		} finally {
+			releaseSendBuffer();
 		}
 		
 		return 0;
@@ -779,6 +675,27 @@ public class RpcStreamConnection extends RpcConnection {
 		return retVal;
 	}
 	
+	/**
+	 * True if the socket has unread data. Always false with compression, as
+	 * the GZIP stream can't say whether a whole block is waiting, and for rsh
+	 * mode servers.
+	 * 
+	 * @see com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection#hasBufferedInput()
+	 */
+	// p4ic4idea: added
+	@Override
+	public boolean hasBufferedInput() {
+		if (this.usingCompression || (this.topInputStream != this.inputStream)) {
+			return false;
+		}
+		try {
+			return this.inputStream.available() > 0;
+		} catch (IOException exc) {
+			// Let the next read report it.
+			return true;
+		}
+	}
+
 	/**
 	 * @see com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection#getSystemSendBufferSize()
 	 */
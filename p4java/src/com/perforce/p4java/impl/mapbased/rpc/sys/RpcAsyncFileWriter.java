@@ -0,0 +1,126 @@
+/**
+ *
+ */
+package com.perforce.p4java.impl.mapbased.rpc.sys;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Converts and writes the file data chunks of a sync or print on a background
+ * thread, so the RPC dispatcher can go straight back to reading packets off the
+ * connection.<p>
+ *
+ * There is a single writer thread, so chunks are written in the order they were
+ * handed over, and so in order within each file. The number of bytes waiting to
+ * be written is limited; once the limit is reached the dispatcher waits, so a
+ * slow disk holds back the network reads rather than filling up the heap. The
+ * thread goes away when it has been idle for a while.<p>
+ *
+ * A write failure is kept by the stream, and thrown from its next write, flush,
+ * close or awaitWrites call.
+ *
+ * @see RpcOutputStream#setAsyncWriter(RpcAsyncFileWriter)
+ */
+// p4ic4idea: created to overlap the network reads and the disk writes of a sync or print
+public class RpcAsyncFileWriter {
+
+	/**
+	 * Default limit on the bytes handed over but not yet written.
+	 */
+	public static final int DEFAULT_MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+	private static final long IDLE_TIMEOUT_SECONDS = 10;
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+	private static final ThreadLocal<Boolean> WRITER_THREAD = new ThreadLocal<Boolean>();
+
+	private final int maxPendingBytes;
+	private final Semaphore pendingBytes;
+	private final ThreadPoolExecutor executor;
+
+	public RpcAsyncFileWriter() {
+		this(DEFAULT_MAX_PENDING_BYTES);
+	}
+
+	public RpcAsyncFileWriter(int maxPendingBytes) {
+		this.maxPendingBytes = maxPendingBytes > 0 ? maxPendingBytes : DEFAULT_MAX_PENDING_BYTES;
+		this.pendingBytes = new Semaphore(this.maxPendingBytes);
+		this.executor = new ThreadPoolExecutor(1, 1, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable,
+								"p4java-file-writer-" + THREAD_COUNT.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @return true if the current thread is a writer thread; writes made here
+	 * 			are part of an already handed over chunk.
+	 */
+	static boolean isWriterThread() {
+		return WRITER_THREAD.get() != null;
+	}
+
+	/**
+	 * Hand the chunk over to be converted and written by the stream on the writer
+	 * thread. The chunk must not be changed afterwards. Blocks while too many bytes
+	 * are already waiting.
+	 */
+	void write(final RpcOutputStream stream, final byte[] sourceBytes) throws IOException {
+		final int permits = Math.min(sourceBytes.length, this.maxPendingBytes);
+		try {
+			this.pendingBytes.acquire(permits);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting for file writes");
+		}
+
+		stream.writeStarted();
+		try {
+			this.executor.execute(new Runnable() {
+				public void run() {
+					WRITER_THREAD.set(Boolean.TRUE);
+					try {
+						// Once a write has failed, the rest of the file is dropped.
+						if (stream.getAsyncWriteError() == null) {
+							stream.writeConvertedNow(sourceBytes);
+						}
+					} catch (IOException exc) {
+						stream.setAsyncWriteError(exc);
+					} catch (RuntimeException exc) {
+						IOException ioexc = new IOException("file write failed: " + exc);
+						ioexc.initCause(exc);
+						stream.setAsyncWriteError(ioexc);
+					} finally {
+						WRITER_THREAD.remove();
+						pendingBytes.release(permits);
+						stream.writeFinished();
+					}
+				}
+			});
+		} catch (RejectedExecutionException exc) {
+			this.pendingBytes.release(permits);
+			stream.writeFinished();
+			throw new IOException("file writer stopped");
+		}
+	}
+
+	/**
+	 * Stop the writer thread once the chunks already handed over are written.
+	 */
+	public void shutdown() {
+		this.executor.shutdown();
+	}
+}
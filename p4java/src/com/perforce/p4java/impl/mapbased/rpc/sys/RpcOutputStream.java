@@ -87,6 +87,15 @@ public class RpcOutputStream extends FileOutputStream {
 	private MD5Digester localDigester = null;	// Also used in the 10.2+ transfer
 												// integrity checks.
 
+	// p4ic4idea: background conversion and buffered writes; see setAsyncWriter().
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+	private RpcAsyncFileWriter asyncWriter = null;
+	private int pendingWrites = 0;				// guarded by this
+	private volatile IOException asyncWriteError = null;
+	private byte[] writeBuffer = null;
+	private int writeBufferCount = 0;
+	private LineEndBuffer lineEndBuffer = null;
+
 	public RpcOutputStream(RpcPerforceFile file) throws IOException {
 		this(file, null, false, false);
 	}
@@ -152,9 +161,109 @@ public class RpcOutputStream extends FileOutputStream {
 		}
 	}
 
+	// p4ic4idea: start of the background write support
+	/**
+	 * Convert and write the chunks passed to writeConverted on the given writer's
+	 * thread rather than the caller's, and buffer the writes to the file. Must be
+	 * called before anything is written.<p>
+	 *
+	 * Other writes, and flush and close, first wait for the chunks handed over so
+	 * far to be written, so they land in the same order as before. Write failures
+	 * on the writer thread are thrown by the next call on this stream.
+	 */
+	public void setAsyncWriter(RpcAsyncFileWriter asyncWriter) {
+		this.asyncWriter = asyncWriter;
+		if (this.writeBuffer == null) {
+			this.writeBuffer = new byte[WRITE_BUFFER_SIZE];
+		}
+	}
+
+	/**
+	 * Wait until the chunks already handed over to the writer thread are written.
+	 *
+	 * @throws IOException if any of them failed.
+	 */
+	public void awaitWrites() throws IOException {
+		if (this.asyncWriter != null && !RpcAsyncFileWriter.isWriterThread()) {
+			boolean interrupted = false;
+			synchronized (this) {
+				// The local disk writes always finish, so wait them out even
+				// if interrupted; the stream can't be used until they're done.
+				while (this.pendingWrites > 0) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		IOException error = this.asyncWriteError;
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	synchronized void writeStarted() {
+		this.pendingWrites++;
+	}
+
+	synchronized void writeFinished() {
+		this.pendingWrites--;
+		if (this.pendingWrites <= 0) {
+			notifyAll();
+		}
+	}
+
+	IOException getAsyncWriteError() {
+		return this.asyncWriteError;
+	}
+
+	void setAsyncWriteError(IOException asyncWriteError) {
+		if (this.asyncWriteError == null) {
+			this.asyncWriteError = asyncWriteError;
+		}
+	}
+
+	private void writeBuffered(byte[] sourceBytes, int off, int len) throws IOException {
+		if (len >= this.writeBuffer.length) {
+			flushWriteBuffer();
+			super.write(sourceBytes, off, len);
+			return;
+		}
+		if (len > this.writeBuffer.length - this.writeBufferCount) {
+			flushWriteBuffer();
+		}
+		System.arraycopy(sourceBytes, off, this.writeBuffer, this.writeBufferCount, len);
+		this.writeBufferCount += len;
+	}
+
+	private void flushWriteBuffer() throws IOException {
+		if (this.writeBufferCount > 0) {
+			int count = this.writeBufferCount;
+			this.writeBufferCount = 0;
+			super.write(this.writeBuffer, 0, count);
+		}
+	}
+	// p4ic4idea: end of the background write support
+
 	@Override
 	public void close() throws IOException {
 		if (!closed) {
+			if (this.asyncWriter != null) {
+				// p4ic4idea: if a background write failed, just close the file;
+				// finishing the conversion would only fail again.
+				try {
+					awaitWrites();
+				} catch (IOException exc) {
+					closed = true;
+					super.close();
+					throw exc;
+				}
+			}
 			closed = true;
 			switch (this.fileType) {
 				case FST_TEXT:
@@ -171,7 +280,15 @@ public class RpcOutputStream extends FileOutputStream {
 					this.checkedOutStream.close();
 					break;
 			}
-			super.close();
+			if (this.writeBuffer != null) {
+				try {
+					flushWriteBuffer();
+				} finally {
+					super.close();
+				}
+			} else {
+				super.close();
+			}
 		}
 	}
 
@@ -179,14 +296,19 @@ public class RpcOutputStream extends FileOutputStream {
 	 * @see java.io.OutputStream#flush()
 	 */
 	public void flush() throws IOException {
+		// p4ic4idea: wait for the background writes
+		awaitWrites();
 		super.flush();
 		// Flush unicode chars
 		if (this.converter != null) {
 			byte[] underflow = this.converter.clearUnderflow();
 			if( underflow != null) {
-				writeConverted(underflow);
+				writeConvertedNow(underflow);
 			}
 		}
+		if (this.writeBuffer != null) {
+			flushWriteBuffer();
+		}
 	}
 	
 	/**
@@ -223,6 +345,12 @@ public class RpcOutputStream extends FileOutputStream {
 		if (len < 0) {
 			throw new P4JavaError("Negative length in RpcOutputStream.write()");
 		}
+		// p4ic4idea: buffered writes, in order with the background ones
+		if (this.writeBuffer != null) {
+			awaitWrites();
+			writeBuffered(sourceBytes, off, len);
+			return;
+		}
 		super.write(sourceBytes, off, len);
 	}
 
@@ -232,6 +360,10 @@ public class RpcOutputStream extends FileOutputStream {
 			throw new NullPointerError(
 					"Null bytes passed to RpcOutputStream.write()");
 		}
+		if (this.writeBuffer != null) {
+			write(b, 0, b.length);
+			return;
+		}
 		super.write(b, 0, b.length);
 	}
 	
@@ -245,6 +377,23 @@ public class RpcOutputStream extends FileOutputStream {
 	 * @throws IOException
 	 */
 	public long writeConverted(byte[] sourceBytes) throws IOException {
+		// p4ic4idea: hand the chunk to the writer thread, if there is one.
+		// The returned count is then the unconverted length.
+		if (this.asyncWriter != null && !RpcAsyncFileWriter.isWriterThread()) {
+			IOException error = this.asyncWriteError;
+			if (error != null) {
+				throw error;
+			}
+			if (sourceBytes.length <= 0) {
+				return 0;
+			}
+			this.asyncWriter.write(this, sourceBytes);
+			return sourceBytes.length;
+		}
+		return writeConvertedNow(sourceBytes);
+	}
+
+	long writeConvertedNow(byte[] sourceBytes) throws IOException {
 		int len = sourceBytes.length;
 		
 		if (len <= 0) {
@@ -265,19 +414,24 @@ public class RpcOutputStream extends FileOutputStream {
 						this.localDigester.update(sourceBytes);
 					}
 					//Convert line endings before converting to unicode
+					ByteBuffer sourceBuffer;
 					if (this.lineEndStream != null) {
 						// Use intermediate buffer to hold line ending converted
 						// source bytes
-						ByteArrayOutputStream out = new ByteArrayOutputStream(
-								RpcPropertyDefs.RPC_DEFAULT_FILE_BUF_SIZE);
-						this.lineEndStream.write(out, sourceBytes, start, len);
-	
-						sourceBytes = out.toByteArray();
-						len = sourceBytes.length;
-						start = 0;
+						// p4ic4idea: reuse the intermediate buffer between chunks,
+						// and convert from it in place rather than from a copy
+						if (this.lineEndBuffer == null) {
+							this.lineEndBuffer = new LineEndBuffer(
+									RpcPropertyDefs.RPC_DEFAULT_FILE_BUF_SIZE);
+						} else {
+							this.lineEndBuffer.reset();
+						}
+						this.lineEndStream.write(this.lineEndBuffer, sourceBytes, start, len);
+						sourceBuffer = this.lineEndBuffer.toByteBuffer();
+					} else {
+						sourceBuffer = ByteBuffer.wrap(sourceBytes);
 					}
 				
-					ByteBuffer sourceBuffer = ByteBuffer.wrap(sourceBytes);
 					ByteBuffer converted = this.converter.convert(sourceBuffer);
 					if (converted != null) {
 						sourceBytes = converted.array();
@@ -401,6 +555,15 @@ public class RpcOutputStream extends FileOutputStream {
 
 	@Override
 	public void write(int b) throws IOException {		
+		// p4ic4idea: buffered writes
+		if (this.writeBuffer != null) {
+			awaitWrites();
+			if (this.writeBufferCount >= this.writeBuffer.length) {
+				flushWriteBuffer();
+			}
+			this.writeBuffer[this.writeBufferCount++] = (byte) b;
+			return;
+		}
 		super.write(b);
 	}
 
@@ -517,4 +680,19 @@ public class RpcOutputStream extends FileOutputStream {
 	public void setLocalDigester(MD5Digester localDigester) {
 		this.localDigester = localDigester;
 	}
+
+	// p4ic4idea: the line ending converted bytes of a chunk, read in place.
+	private static class LineEndBuffer extends ByteArrayOutputStream {
+		LineEndBuffer(int size) {
+			super(size);
+		}
+
+		/**
+		 * @return the bytes written since the last reset, without copying them;
+		 * 			only valid until the next write or reset.
+		 */
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(this.buf, 0, this.count);
+		}
+	}
 }
@@ -4934,6 +4934,15 @@ public abstract class Server implements IServerControl, IOptionsServer {
 		return false;
 	}
 	
+	/**
+	 * Whether this server object can run several commands at once on
+	 * different threads, each over its own connection.
+	 */
+	// p4ic4idea: lets the client split up a sync over concurrent connections
+	public boolean supportsConcurrentCommands() {
+		return false;
+	}
+
 	public IFileSpec handleFileReturn(Map<String, Object> map)
 									// p4ic4idea: expand exception types
 									throws P4JavaException {
@@ -44,6 +44,29 @@ public class SyncOptions extends Options {
          */
         protected boolean safetyCheck = false; // -s
 
+        // p4ic4idea: client side equivalent of the server's 'sync --parallel'
+        // settings; these aren't passed to the server.
+
+        /**
+         * Number of concurrent connections to sync the files over; 0 or 1
+         * syncs over the one connection as usual. Only used by server
+         * implementations that can run commands concurrently, and ignored
+         * when noUpdate or clientBypass is set.
+         */
+        protected int parallelThreads = 0;
+
+        /** Maximum number of files in each parallel batch. */
+        protected int parallelBatch = 1000;
+
+        /** Maximum number of bytes in each parallel batch; 0 for no limit. */
+        protected long parallelBatchSize = 0;
+
+        /**
+         * Minimum number of files to sync before the files are split
+         * across the parallel connections.
+         */
+        protected int parallelMin = 10;
+
         /**
          * Default constructor.
          */
@@ -167,4 +190,40 @@ public class SyncOptions extends Options {
                 this.safetyCheck = safetyCheck;
                 return this;
         }
+
+        public int getParallelThreads() {
+                return parallelThreads;
+        }
+
+        public SyncOptions setParallelThreads(int parallelThreads) {
+                this.parallelThreads = parallelThreads;
+                return this;
+        }
+
+        public int getParallelBatch() {
+                return parallelBatch;
+        }
+
+        public SyncOptions setParallelBatch(int parallelBatch) {
+                this.parallelBatch = parallelBatch;
+                return this;
+        }
+
+        public long getParallelBatchSize() {
+                return parallelBatchSize;
+        }
+
+        public SyncOptions setParallelBatchSize(long parallelBatchSize) {
+                this.parallelBatchSize = parallelBatchSize;
+                return this;
+        }
+
+        public int getParallelMin() {
+                return parallelMin;
+        }
+
+        public SyncOptions setParallelMin(int parallelMin) {
+                this.parallelMin = parallelMin;
+                return this;
+        }
 }
@@ -10,9 +10,12 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.perforce.p4java.Log;
 import com.perforce.p4java.impl.generic.sys.ISystemFileCommandsHelper;
@@ -32,6 +35,39 @@ public abstract class AbstractAuthHelper {
 	public static final int DEFAULT_LOCK_TRY = 100; // 100 tries
 	public static final long DEFAULT_LOCK_DELAY = 300000; // 300 seconds delay time
 	public static final long DEFAULT_LOCK_WAIT = 1000; // 1 second wait time
+
+	// p4ic4idea: parsed auth files, keyed by the absolute file path.  Every
+	// connection looks up its ticket and trust entries on each command, so
+	// the file is only parsed again when its modification time or size
+	// changes.  Entries are immutable, so reads don't need a lock.
+	private static final ConcurrentMap<String, ParsedAuthFile> parsedAuthFiles =
+			new ConcurrentHashMap<String, ParsedAuthFile>();
+
+	// p4ic4idea: a file modified this close to when it was read could be
+	// changed again without its time stamp moving (many file systems only
+	// keep seconds), and a new ticket is the same length as the old one,
+	// so such a read is not trusted.
+	private static final long PARSED_AUTH_FILE_MIN_AGE = 2000;
+
+	private static final class ParsedAuthFile {
+		final long lastModified;
+		final long length;
+		final long readTime;
+		final List<Map<String, String>> entries;
+
+		ParsedAuthFile(long lastModified, long length, long readTime,
+				List<Map<String, String>> entries) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.readTime = readTime;
+			this.entries = entries;
+		}
+
+		boolean matches(long lastModified, long length) {
+			return this.lastModified == lastModified && this.length == length
+					&& this.readTime - lastModified >= PARSED_AUTH_FILE_MIN_AGE;
+		}
+	}
 	
 	/**
 	 * Get the auth entry in the specified auth map that matches the specified
@@ -134,9 +170,41 @@ public abstract class AbstractAuthHelper {
 	 * @throws IOException
 	 *             - io exception from reading auth file
 	 */
-	protected static synchronized List<Map<String, String>> getFileEntries(File authFile) throws IOException {
+	protected static List<Map<String, String>> getFileEntries(File authFile) throws IOException {
+		// p4ic4idea: use the last parse of the file if it hasn't changed.
+		if (authFile == null || !authFile.exists()) {
+			if (authFile != null) {
+				parsedAuthFiles.remove(authFile.getAbsolutePath());
+			}
+			return new ArrayList<Map<String, String>>();
+		}
+		final String key = authFile.getAbsolutePath();
+		final long lastModified = authFile.lastModified();
+		final long length = authFile.length();
+		final ParsedAuthFile parsed = parsedAuthFiles.get(key);
+		if (parsed != null && parsed.matches(lastModified, length)) {
+			return new ArrayList<Map<String, String>>(parsed.entries);
+		}
+		final long readTime = System.currentTimeMillis();
+		final List<Map<String, String>> authList = readFileEntries(authFile);
+		final List<Map<String, String>> entries = new ArrayList<Map<String, String>>(authList.size());
+		for (Map<String, String> map : authList) {
+			entries.add(Collections.unmodifiableMap(map));
+		}
+		// The file could have changed while it was read; then it's read
+		// again next time.
+		if (authFile.lastModified() == lastModified && authFile.length() == length) {
+			parsedAuthFiles.put(key, new ParsedAuthFile(lastModified, length, readTime,
+					Collections.unmodifiableList(entries)));
+		} else {
+			parsedAuthFiles.remove(key);
+		}
+		return new ArrayList<Map<String, String>>(entries);
+	}
+
+	private static List<Map<String, String>> readFileEntries(File authFile) throws IOException {
 		List<Map<String, String>> authList = new ArrayList<Map<String, String>>();
-		if (authFile != null && authFile.exists()) {
+		if (authFile.exists()) {
 			BufferedReader reader = new BufferedReader(new FileReader(
 					authFile));
 			try {
@@ -287,6 +355,9 @@ public abstract class AbstractAuthHelper {
 				}
 			}
 
+			// p4ic4idea: the next read must see the new contents.
+			parsedAuthFiles.remove(authFile.getAbsolutePath());
+
 			// Update read bit of actual auth file
 			updateReadBit(authFile);
 
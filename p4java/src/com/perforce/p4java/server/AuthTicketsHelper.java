@@ -67,7 +67,9 @@ public class AuthTicketsHelper extends AbstractAuthHelper {
 	 * @throws IOException
 	 *             - io exception from reading tickets file
 	 */
-	public static synchronized AuthTicket[] getTickets(File ticketsFile)
+	// p4ic4idea: not synchronized; the file entries are cached, and the
+	// memory entries are guarded by the helper.
+	public static AuthTicket[] getTickets(File ticketsFile)
 			throws IOException {
 		AuthTicket[] tickets = EMPTY;
 		List<Map<String, String>> authList = ticketsFile != null ? 
@@ -67,7 +67,9 @@ public class FingerprintsHelper extends AbstractAuthHelper {
 	 * @throws IOException
 	 *             - io exception from reading trust file
 	 */
-	public static synchronized Fingerprint[] getFingerprints(File trustFile) throws IOException {
+	// p4ic4idea: not synchronized; the file entries are cached, and the
+	// memory entries are guarded by the helper.
+	public static Fingerprint[] getFingerprints(File trustFile) throws IOException {
 		Fingerprint[] fingerprints = EMPTY;
 		List<Map<String, String>> authList = trustFile != null ? 
 				getFileEntries(trustFile) : getMemoryEntries(fingerprintsMap);
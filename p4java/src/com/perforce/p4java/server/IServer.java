@@ -2090,6 +2090,11 @@ public interface IServer {
 	 * unpacks or processes the results from the other low-level exec methods
 	 * like execMapCommand.<p>
 	 * 
+	 * Results passed to the callback are not retained by the RPC layer. If the
+	 * callback also implements IStreamingBackpressureCallback, the RPC layer
+	 * waits on its awaitCapacity method before reading each packet, so a slow
+	 * consumer can hold back the reader.<p>
+	 * 
 	 * NOTE: 'streaming' here has nothing at all to do with Perforce 'streams', which
 	 * are (or will be) implemented elsewhere.
 	 * 
@@ -0,0 +1,53 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.perforce.p4java.server.callback;
+
+import com.perforce.p4java.exception.P4JavaException;
+
+/**
+ * Streaming callback that can hold off the RPC layer's reads from the
+ * Perforce server until the consumer is ready for more results.<p>
+ *
+ * With a plain IStreamingCallback each result map is handed to the consumer
+ * and then dropped, so memory use is bounded by whatever the consumer keeps;
+ * but a consumer that passes results on to another thread (through a queue,
+ * say) has no way of telling the reader to slow down. Implementing this
+ * interface gives it one: awaitCapacity is called before each packet is read
+ * off the connection, outside the critical section handleResult is called
+ * from, and may block until the consumer has caught up. While it blocks, the
+ * socket isn't read, so the server is in turn held back by normal TCP flow
+ * control.<p>
+ *
+ * Blocking here for very long periods may cause the server (or anything in
+ * between) to time the connection out; implementations should bound their
+ * waits accordingly.
+ */
+// p4ic4idea: created to let streaming consumers apply backpressure to the reader
+public interface IStreamingBackpressureCallback extends IStreamingCallback {
+
+	/**
+	 * Called before the RPC layer reads the next packet for the command; block
+	 * until the consumer is ready to receive more results.
+	 *
+	 * @param key opaque integer key as passed to the associated streaming method.
+	 * @return true if the command should continue normally; false if it should
+	 * 				be cancelled.
+	 * @throws P4JavaException if any problem that should stop normal command processing;
+	 * 				the command is stopped, and the exception is thrown from the
+	 * 				streaming method (as the cause of a RequestException, unless it's
+	 * 				a ConnectionException, AccessException or RequestException).
+	 */
+	boolean awaitCapacity(int key) throws P4JavaException;
+}
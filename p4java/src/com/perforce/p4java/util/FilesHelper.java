@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.List;
 
 import com.perforce.p4java.Log;
 import com.perforce.p4java.impl.generic.sys.ISystemFileCommandsHelper;
@@ -75,4 +76,15 @@ public class FilesHelper {
 		
 		return false;
 	}
+
+	/**
+	 * List the files under the root directory, reading the directories on
+	 * several threads; see FileTreeWalker for the details. The filter also
+	 * tells which directories are symbolic links.
+	 */
+	// p4ic4idea: added for reconcile and the plugin's directory scans
+	public static List<File> listFiles(File root, boolean recursive, FileTreeWalker.Filter filter)
+			throws InterruptedException {
+		return new FileTreeWalker().walk(root, recursive, filter);
+	}
 }
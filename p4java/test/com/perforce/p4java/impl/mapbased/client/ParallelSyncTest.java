@@ -0,0 +1,183 @@
+/**
+ *
+ */
+package com.perforce.p4java.impl.mapbased.client;
+
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.perforce.p4java.core.file.FileSpecBuilder;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.impl.mapbased.rpc.OneShotServerImpl;
+import com.perforce.p4java.option.client.SyncOptions;
+import com.perforce.p4java.server.callback.IStreamingCallback;
+
+public class ParallelSyncTest {
+	private static final List<IFileSpec> CLIENT_FILES =
+			FileSpecBuilder.makeFileSpecList("//client/...");
+
+	@Test
+	public void testDeletesAreLeftToTheOriginalSync() throws Exception {
+		// c.txt was dropped from the client view, d.txt deleted at head.
+		SyncServer server = new SyncServer(
+				file("//depot/a.txt", "3", "updated", "10"),
+				file("//depot/b.txt", "2", "added", "20"),
+				file("//depot/c.txt", "1", "deleted", null),
+				file("//depot/d.txt", "4", "deleted", null));
+
+		List<Map<String, Object>> results = new ParallelSync(server, server, options())
+				.sync(CLIENT_FILES);
+
+		assertThat(server.getCommands(), is(Arrays.asList(
+				Arrays.asList("-n", "//client/..."),
+				Arrays.asList("//depot/b.txt#2"),
+				Arrays.asList("//depot/a.txt#3"),
+				Arrays.asList("//client/..."))));
+		assertThat(depotFiles(results), is(Arrays.asList(
+				"//depot/b.txt", "//depot/a.txt", "//depot/c.txt", "//depot/d.txt")));
+	}
+
+	@Test
+	public void testDeletesSyncedWithoutForce() throws Exception {
+		SyncServer server = new SyncServer(
+				file("//depot/a.txt", "3", "refreshed", "10"),
+				file("//depot/b.txt", "2", "refreshed", "20"),
+				file("//depot/c.txt", "1", "deleted", null));
+		final List<Map<String, Object>> results =
+				Collections.synchronizedList(new ArrayList<Map<String, Object>>());
+
+		new ParallelSync(server, server, options().setForceUpdate(true))
+				.sync(CLIENT_FILES, new IStreamingCallback() {
+					public boolean startResults(int key) {
+						return true;
+					}
+
+					public boolean endResults(int key) {
+						return true;
+					}
+
+					public boolean handleResult(Map<String, Object> resultMap, int key) {
+						results.add(resultMap);
+						return true;
+					}
+				}, 1);
+
+		List<List<String>> commands = server.getCommands();
+		assertThat(commands.size(), is(4));
+		for (List<String> batch : commands.subList(1, 3)) {
+			assertThat(batch, hasItem("-f"));
+			assertThat(batch, not(hasItem("//depot/c.txt#1")));
+		}
+		assertThat(commands.get(3), is(Arrays.asList("//client/...")));
+		assertThat(depotFiles(results), hasItem("//depot/c.txt"));
+	}
+
+	@Test
+	public void testNoOriginalSyncWithoutDeletes() throws Exception {
+		SyncServer server = new SyncServer(
+				file("//depot/a.txt", "3", "updated", "10"),
+				file("//depot/b.txt", "2", "added", "20"));
+
+		new ParallelSync(server, server, options()).sync(CLIENT_FILES);
+
+		assertThat(server.getCommands().size(), is(3));
+	}
+
+	private static SyncOptions options() {
+		return new SyncOptions().setParallelThreads(2).setParallelMin(2).setParallelBatch(1);
+	}
+
+	private static Map<String, Object> file(String depotFile, String rev, String action,
+			String fileSize) {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("depotFile", depotFile);
+		map.put("rev", rev);
+		map.put("action", action);
+		if (fileSize != null) {
+			map.put("fileSize", fileSize);
+		}
+		return map;
+	}
+
+	private static List<String> depotFiles(List<Map<String, Object>> results) {
+		List<String> ret = new ArrayList<String>();
+		for (Map<String, Object> map : results) {
+			ret.add((String) map.get("depotFile"));
+		}
+		return ret;
+	}
+
+	/**
+	 * Answers sync commands from a fixed list of file changes: a sync of a
+	 * depot revision returns its change, and the sync of the client files
+	 * returns the changes it would make (all of them with -n, and the deletes
+	 * without). Syncing a deleted revision fails, as it would for a file that
+	 * has left the client view.
+	 */
+	private static class SyncServer extends OneShotServerImpl {
+		private final List<Map<String, Object>> changes;
+		private final List<List<String>> commands = new ArrayList<List<String>>();
+
+		SyncServer(Map<String, Object>... changes) {
+			this.changes = Arrays.asList(changes);
+		}
+
+		@Override
+		public boolean supportsConcurrentCommands() {
+			return true;
+		}
+
+		synchronized List<List<String>> getCommands() {
+			return new ArrayList<List<String>>(this.commands);
+		}
+
+		@Override
+		public List<Map<String, Object>> execMapCmdList(String cmdName, String[] cmdArgs,
+				Map<String, Object> inMap) throws P4JavaException {
+			List<String> args = Arrays.asList(cmdArgs);
+			synchronized (this) {
+				this.commands.add(args);
+			}
+			List<Map<String, Object>> ret = new ArrayList<Map<String, Object>>();
+			for (Map<String, Object> change : this.changes) {
+				boolean deleted = "deleted".equals(change.get("action"));
+				if (args.contains("//client/...")) {
+					if (args.contains("-n") || deleted) {
+						ret.add(change);
+					}
+				} else if (args.contains(change.get("depotFile") + "#" + change.get("rev"))) {
+					if (deleted) {
+						Map<String, Object> error = new HashMap<String, Object>();
+						error.put("code0", "822220833");
+						error.put("fmt0", "%depotFile% - file(s) not in client view.");
+						ret.add(error);
+					} else {
+						ret.add(change);
+					}
+				}
+			}
+			return ret;
+		}
+
+		@Override
+		public void execStreamingMapCommand(String cmdName, String[] cmdArgs,
+				Map<String, Object> inMap, IStreamingCallback callback, int key)
+				throws P4JavaException {
+			for (Map<String, Object> map : execMapCmdList(cmdName, cmdArgs, inMap)) {
+				callback.handleResult(map, key);
+			}
+		}
+	}
+}
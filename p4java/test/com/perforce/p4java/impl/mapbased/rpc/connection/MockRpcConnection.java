@@ -0,0 +1,126 @@
+/**
+ *
+ */
+package com.perforce.p4java.impl.mapbased.rpc.connection;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import com.perforce.p4java.CharsetDefs;
+import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.exception.ConnectionNotConnectedException;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacket;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDispatcher;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketField;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketPreamble;
+import com.perforce.p4java.impl.mapbased.rpc.packet.helper.RpcPacketFieldRule;
+import com.perforce.p4java.server.callback.IFilterCallback;
+
+/**
+ * Connection that hands out a scripted list of incoming packets, and keeps
+ * the packets sent to it.
+ */
+public class MockRpcConnection extends RpcConnection {
+	private final LinkedList<RpcPacket> incoming = new LinkedList<RpcPacket>();
+	private final List<RpcPacket> sent = new ArrayList<RpcPacket>();
+	private boolean bufferedInput = false;
+	private int reads = 0;
+
+	public MockRpcConnection() throws ConnectionException {
+		super("localhost", 1666, new Properties(), null, CharsetDefs.UTF8);
+	}
+
+	/**
+	 * Queue an incoming packet with the given function and fields, given as
+	 * name, value pairs.
+	 */
+	public MockRpcConnection receive(String func, String... fields) throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+		RpcPacketField.marshal(buf, "func", func, CharsetDefs.UTF8);
+		for (int i = 0; i < fields.length; i += 2) {
+			RpcPacketField.marshal(buf, fields[i], fields[i + 1], CharsetDefs.UTF8);
+		}
+		byte[] payload = Arrays.copyOf(buf.array(), buf.position());
+		this.incoming.add(RpcPacket.constructRpcPacket(
+				RpcPacketPreamble.constructPreamble(payload.length),
+				payload, true, CharsetDefs.UTF8));
+		return this;
+	}
+
+	/**
+	 * Sets what hasBufferedInput() reports.
+	 */
+	public void setBufferedInput(boolean bufferedInput) {
+		this.bufferedInput = bufferedInput;
+	}
+
+	public synchronized List<Map<String, Object>> getSentMaps() {
+		List<Map<String, Object>> ret = new ArrayList<Map<String, Object>>();
+		for (RpcPacket packet : this.sent) {
+			ret.add(packet.getMapArgs());
+		}
+		return ret;
+	}
+
+	public synchronized int getReads() {
+		return this.reads;
+	}
+
+	@Override
+	public String getServerIpPort() {
+		return "localhost:1666";
+	}
+
+	@Override
+	public void disconnect(RpcPacketDispatcher dispatcher) throws ConnectionException {
+	}
+
+	@Override
+	public synchronized long putRpcPacket(RpcPacket rpcPacket) throws ConnectionException {
+		this.sent.add(rpcPacket);
+		return 0;
+	}
+
+	@Override
+	public long putRpcPackets(RpcPacket[] rpcPackets) throws ConnectionException {
+		for (RpcPacket packet : rpcPackets) {
+			putRpcPacket(packet);
+		}
+		return 0;
+	}
+
+	@Override
+	public RpcPacket getRpcPacket() throws ConnectionException {
+		return getRpcPacket(null, null);
+	}
+
+	@Override
+	public synchronized RpcPacket getRpcPacket(RpcPacketFieldRule fieldRule,
+			IFilterCallback filterCallback) throws ConnectionException {
+		this.reads++;
+		if (this.incoming.isEmpty()) {
+			throw new ConnectionNotConnectedException("no more scripted packets");
+		}
+		return this.incoming.removeFirst();
+	}
+
+	@Override
+	public boolean hasBufferedInput() {
+		return this.bufferedInput;
+	}
+
+	@Override
+	public int getSystemSendBufferSize() {
+		return 0;
+	}
+
+	@Override
+	public int getSystemRecvBufferSize() {
+		return 0;
+	}
+}
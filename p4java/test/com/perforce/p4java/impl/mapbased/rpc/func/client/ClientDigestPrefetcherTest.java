@@ -0,0 +1,129 @@
+/**
+ *
+ */
+package com.perforce.p4java.impl.mapbased.rpc.func.client;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.perforce.p4java.impl.mapbased.rpc.CommandEnv;
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
+import com.perforce.p4java.impl.mapbased.rpc.connection.MockRpcConnection;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDispatcher;
+
+public class ClientDigestPrefetcherTest {
+	private static final String BINARY = "1";
+	private static final String DIGEST = "00000000000000000000000000000000";
+
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		this.dir = File.createTempFile("p4java-digests", "");
+		this.dir.delete();
+		this.dir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : this.dir.listFiles()) {
+			file.delete();
+		}
+		this.dir.delete();
+	}
+
+	@Test
+	public void testCheckFileRepliesInOrder() throws Exception {
+		String a = existing("a.bin");
+		String b = missing("b.bin");
+		String c = existing("c.bin");
+		String d = missing("d.bin");
+		// Buffered input, so the dispatcher itself doesn't send the held back
+		// replies between the requests.
+		MockRpcConnection connection = new MockRpcConnection()
+				.receive("client-CheckFile", "path", a, "type", BINARY, "digest", DIGEST, "confirm", "dm-OpenFile")
+				.receive("client-CheckFile", "path", b, "type", BINARY, "digest", DIGEST, "confirm", "dm-OpenFile")
+				.receive("client-CheckFile", "path", c, "type", BINARY, "digest", DIGEST, "confirm", "dm-OpenFile")
+				.receive("client-CheckFile", "path", d, "type", BINARY, "digest", DIGEST, "confirm", "dm-OpenFile")
+				.receive("release");
+		connection.setBufferedInput(true);
+
+		dispatch(connection);
+
+		assertThat(sentPaths(connection), is(Arrays.asList(a, b, c, d)));
+		assertThat(sentValues(connection, "status"),
+				is(Arrays.asList("exists", "missing", "exists", "missing")));
+	}
+
+	@Test
+	public void testReconcileEditRepliesInOrder() throws Exception {
+		String a = missing("a.bin");
+		String b = existing("b.bin");
+		String c = missing("c.bin");
+		MockRpcConnection connection = new MockRpcConnection()
+				.receive("client-ReconcileEdit", "path", a, "type", BINARY, "digest", DIGEST,
+						"confirm", "dm-ReconcileEdit", "handle", "recon")
+				.receive("client-ReconcileEdit", "path", b, "type", BINARY, "digest", DIGEST,
+						"confirm", "dm-ReconcileEdit", "handle", "recon")
+				.receive("client-ReconcileEdit", "path", c, "type", BINARY, "digest", DIGEST,
+						"confirm", "dm-ReconcileEdit", "handle", "recon")
+				.receive("release");
+		connection.setBufferedInput(true);
+
+		dispatch(connection);
+
+		assertThat(sentPaths(connection), is(Arrays.asList(a, b, c)));
+	}
+
+	private static void dispatch(MockRpcConnection connection) throws Exception {
+		Properties props = new Properties();
+		props.setProperty(RpcPropertyDefs.RPC_PREFETCH_DIGESTS_NICK, "true");
+		RpcPacketDispatcher dispatcher = new RpcPacketDispatcher(props, null);
+		try {
+			dispatcher.dispatch(new CommandEnv(null, connection, null, null, null, 0, false, false));
+		} finally {
+			dispatcher.dispose();
+		}
+	}
+
+	private String existing(String name) throws Exception {
+		File file = new File(this.dir, name);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			// Big enough that the digest isn't done by the time the next
+			// request is handled.
+			out.write(new byte[4 * 1024 * 1024]);
+		} finally {
+			out.close();
+		}
+		return file.getPath();
+	}
+
+	private String missing(String name) {
+		return new File(this.dir, name).getPath();
+	}
+
+	private static List<String> sentPaths(MockRpcConnection connection) {
+		return sentValues(connection, "path");
+	}
+
+	private static List<String> sentValues(MockRpcConnection connection, String key) {
+		List<String> ret = new ArrayList<String>();
+		for (Map<String, Object> map : connection.getSentMaps()) {
+			ret.add((String) map.get(key));
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ *
+ */
+package com.perforce.p4java.impl.mapbased.rpc.func.client;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.perforce.p4java.CharsetDefs;
+import com.perforce.p4java.impl.mapbased.rpc.CommandEnv;
+import com.perforce.p4java.util.FileTreeWalker;
+
+public class ReconcileAddFilterTest {
+	private File root;
+
+	@Before
+	public void setUp() throws Exception {
+		this.root = File.createTempFile("p4java-reconcile", "").getCanonicalFile();
+		this.root.delete();
+		this.root.mkdir();
+		write(".p4ignore", "build\n");
+		write("a.txt", "a");
+		write("src/b.txt", "b");
+		write("build/x.class", "x");
+		write("build/sub/y.class", "y");
+	}
+
+	@After
+	public void tearDown() {
+		delete(this.root);
+	}
+
+	@Test
+	public void testIgnoredFilesReportedOneByOne() throws Exception {
+		ReconcileAddFilter filter = new ReconcileAddFilter(checker(), false, null);
+
+		List<String> files = walk(filter);
+
+		assertThat(files, is(paths(".p4ignore", "a.txt", "src/b.txt")));
+		assertThat(reportedIgnored(filter), is(paths("build/sub/y.class", "build/x.class")));
+	}
+
+	@Test
+	public void testIgnoredDirectoryPruned() throws Exception {
+		final List<File> seen = Collections.synchronizedList(new ArrayList<File>());
+		final ReconcileAddFilter filter = new ReconcileAddFilter(checker(), true, null);
+
+		List<String> files = walk(new FileTreeWalker.Filter() {
+			public boolean acceptDirectory(File dir) {
+				seen.add(dir);
+				return filter.acceptDirectory(dir);
+			}
+
+			public boolean acceptFile(File file) {
+				seen.add(file);
+				return filter.acceptFile(file);
+			}
+
+			public boolean isSymbolicLink(File dir) {
+				return filter.isSymbolicLink(dir);
+			}
+		});
+
+		assertThat(files, is(paths(".p4ignore", "a.txt", "src/b.txt")));
+		assertThat(reportedIgnored(filter), is(paths("build")));
+		assertThat(seen.contains(new File(this.root, "build/x.class")), is(false));
+		assertThat(seen.contains(new File(this.root, "build/sub")), is(false));
+	}
+
+	private ClientIgnoreChecker checker() {
+		return new ClientIgnoreChecker(this.root.getPath(), ".p4ignore", CharsetDefs.UTF8);
+	}
+
+	private List<String> walk(FileTreeWalker.Filter filter) throws Exception {
+		List<String> ret = new ArrayList<String>();
+		for (File file : new FileTreeWalker(2).walk(this.root, true, filter)) {
+			ret.add(file.getAbsolutePath());
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	private static List<String> reportedIgnored(ReconcileAddFilter filter) throws Exception {
+		CommandEnv cmdEnv = new CommandEnv(null, null, null, null, null, 0, false, false);
+		List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+		cmdEnv.setResultMaps(results);
+		filter.reportIgnored(cmdEnv);
+		List<String> ret = new ArrayList<String>();
+		for (Map<String, Object> map : results) {
+			ret.add((String) map.get("file"));
+		}
+		return ret;
+	}
+
+	private List<String> paths(String... names) {
+		List<String> ret = new ArrayList<String>();
+		for (String name : names) {
+			ret.add(new File(this.root, name).getAbsolutePath());
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	private void write(String name, String contents) throws Exception {
+		File file = new File(this.root, name);
+		file.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
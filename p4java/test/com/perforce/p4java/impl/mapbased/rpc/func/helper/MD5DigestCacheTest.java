@@ -0,0 +1,107 @@
+/**
+ *
+ */
+package com.perforce.p4java.impl.mapbased.rpc.func.helper;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MD5DigestCacheTest {
+	private File dir;
+	private File cacheFile;
+
+	@Before
+	public void setUp() throws Exception {
+		this.dir = File.createTempFile("p4java-md5cache", "");
+		this.dir.delete();
+		this.dir.mkdir();
+		this.cacheFile = new File(this.dir, "client.md5cache");
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : this.dir.listFiles()) {
+			file.delete();
+		}
+		this.dir.delete();
+	}
+
+	@Test
+	public void testDigestsAreReadBackFromTheFile() throws Exception {
+		File file = write("a.txt", "abc");
+		MD5DigestCache cache = new MD5DigestCache(this.cacheFile);
+		String digest = digest(cache, file);
+		cache.closeFile();
+
+		// Same size and time, so the cached digest is used rather than the
+		// file's actual one.
+		long modified = file.lastModified();
+		write("a.txt", "xyz");
+		file.setLastModified(modified);
+
+		assertThat(digest(new MD5DigestCache(this.cacheFile), file), is(digest));
+		assertThat(digest(new MD5DigestCache(new File(this.dir, "other.md5cache")), file),
+				not(digest));
+	}
+
+	@Test
+	public void testCompactionDropsDeletedFiles() throws Exception {
+		File a = write("a.txt", "abc");
+		File b = write("b.txt", "def");
+		MD5DigestCache cache = new MD5DigestCache(this.cacheFile);
+		digest(cache, a);
+		cache.closeFile();
+		long oneRecordLength = this.cacheFile.length();
+		digest(cache, b);
+		cache.closeFile();
+		assertThat(this.cacheFile.length() > oneRecordLength, is(true));
+
+		// A damaged record makes the next load compact the file.
+		b.delete();
+		FileOutputStream out = new FileOutputStream(this.cacheFile, true);
+		try {
+			out.write(new byte[] { 0, 0, 0, 5, 1, 2 });
+		} finally {
+			out.close();
+		}
+		digest(new MD5DigestCache(this.cacheFile), a);
+
+		assertThat(this.cacheFile.length(), is(oneRecordLength));
+	}
+
+	@Test
+	public void testOnlyRecentCachesAreKept() {
+		MD5DigestCache first = MD5DigestCache.getCache(this.dir, "client0");
+		assertThat(MD5DigestCache.getCache(this.dir, "client0"), sameInstance(first));
+		for (int i = 1; i <= 10; i++) {
+			MD5DigestCache.getCache(this.dir, "client" + i);
+		}
+		assertThat(MD5DigestCache.getCache(this.dir, "client0"), not(sameInstance(first)));
+	}
+
+	private File write(String name, String contents) throws Exception {
+		File file = new File(this.dir, name);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		// Old enough to be cached.
+		file.setLastModified(System.currentTimeMillis() - 60000L);
+		return file;
+	}
+
+	private static String digest(MD5DigestCache cache, File file) {
+		return cache.digestFileAs32ByteHex(file, null, false, null);
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ *
+ */
+package com.perforce.p4java.impl.mapbased.rpc.packet;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.perforce.p4java.CharsetDefs;
+
+public class RpcLazyResultsMapTest {
+	private static final Charset UTF8 = CharsetDefs.UTF8;
+
+	@Test
+	public void testReadsDontModifyTheMap() throws Exception {
+		Map<String, Object> values = new HashMap<String, Object>();
+		values.put("depotFile", encoded("//depot/a.txt"));
+		values.put("headRev", encoded("3"));
+		// Any write back into the wrapped map would throw.
+		RpcLazyResultsMap map = new RpcLazyResultsMap(Collections.unmodifiableMap(values));
+
+		assertThat(map.get("depotFile"), is((Object) "//depot/a.txt"));
+		assertThat(map.get("depotFile"), sameInstance(map.get("depotFile")));
+		for (Map.Entry<String, Object> entry : map.entrySet()) {
+			assertThat(entry.getValue(), instanceOf(String.class));
+		}
+		assertThat(map.containsValue("3"), is(true));
+		assertThat(map.get("missing"), is((Object) null));
+	}
+
+	@Test
+	public void testLazyPacketMatchesEagerPacket() throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(1024);
+		RpcPacketField.marshal(buf, "func", "client-FstatInfo", UTF8);
+		RpcPacketField.marshal(buf, "depotFile", "//depot/\u00e9t\u00e9.txt", UTF8);
+		RpcPacketField.marshal(buf, "headRev", "7", UTF8);
+		RpcPacketField.marshal(buf, "data", new byte[] { 0, 1, 2 });
+		byte[] payload = Arrays.copyOf(buf.array(), buf.position());
+
+		RpcPacket eager = decode(payload, false);
+		RpcPacket lazy = decode(payload.clone(), true);
+
+		assertThat(lazy.getResultsMap(), instanceOf(RpcLazyResultsMap.class));
+		assertThat(eager.getResultsMap(), not(instanceOf(RpcLazyResultsMap.class)));
+		assertThat(lazy.getFuncNameString(), is("client-FstatInfo"));
+		assertThat(lazy.getResultsMap().get("depotFile"), is((Object) "//depot/\u00e9t\u00e9.txt"));
+		assertThat(lazy.getResultsMap().get("headRev"), is(eager.getResultsMap().get("headRev")));
+		assertThat((byte[]) lazy.getResultsMap().get("data"), is(new byte[] { 0, 1, 2 }));
+	}
+
+	private static RpcLazyResultsMap.EncodedText encoded(String value) {
+		byte[] bytes = ("xx" + value).getBytes(UTF8);
+		return new RpcLazyResultsMap.EncodedText(bytes, 2, bytes.length - 2, UTF8);
+	}
+
+	private static RpcPacket decode(byte[] payload, boolean lazy) {
+		return RpcPacket.constructRpcPacket(RpcPacketPreamble.constructPreamble(payload.length),
+				payload, payload.length, true, UTF8, null, null, null, lazy);
+	}
+}
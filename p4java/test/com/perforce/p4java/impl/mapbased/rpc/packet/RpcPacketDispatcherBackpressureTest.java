@@ -0,0 +1,103 @@
+/**
+ *
+ */
+package com.perforce.p4java.impl.mapbased.rpc.packet;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.exception.RequestException;
+import com.perforce.p4java.impl.mapbased.rpc.CommandEnv;
+import com.perforce.p4java.impl.mapbased.rpc.connection.MockRpcConnection;
+import com.perforce.p4java.server.callback.IStreamingBackpressureCallback;
+
+public class RpcPacketDispatcherBackpressureTest {
+
+	@Test
+	public void testCapacityFalseCancels() throws Exception {
+		MockRpcConnection connection = new MockRpcConnection()
+				.receive("client-Message", "fmt0", "hello");
+		CommandEnv cmdEnv = createCmdEnv(connection, new Callback(false, null));
+
+		new RpcPacketDispatcher(new Properties(), null).dispatch(cmdEnv);
+
+		assertThat(cmdEnv.isUserCanceled(), is(true));
+		assertThat(connection.getReads(), is(1));
+	}
+
+	@Test
+	public void testCapacityExceptionStopsCommand() throws Exception {
+		P4JavaException failure = new P4JavaException("consumer failed");
+		MockRpcConnection connection = new MockRpcConnection()
+				.receive("client-Message", "fmt0", "hello");
+		CommandEnv cmdEnv = createCmdEnv(connection, new Callback(true, failure));
+
+		try {
+			new RpcPacketDispatcher(new Properties(), null).dispatch(cmdEnv);
+			fail("callback exception was not passed on");
+		} catch (RequestException e) {
+			assertThat(e.getCause(), sameInstance((Throwable) failure));
+		}
+		assertThat(cmdEnv.isUserCanceled(), is(true));
+		assertThat(connection.getReads(), is(0));
+	}
+
+	@Test
+	public void testCapacityRequestExceptionPassedAsIs() throws Exception {
+		RequestException failure = new RequestException("consumer failed");
+		MockRpcConnection connection = new MockRpcConnection();
+		CommandEnv cmdEnv = createCmdEnv(connection, new Callback(true, failure));
+
+		try {
+			new RpcPacketDispatcher(new Properties(), null).dispatch(cmdEnv);
+			fail("callback exception was not passed on");
+		} catch (RequestException e) {
+			assertThat(e, sameInstance(failure));
+		}
+	}
+
+	private static CommandEnv createCmdEnv(MockRpcConnection connection,
+			IStreamingBackpressureCallback callback) {
+		CommandEnv cmdEnv = new CommandEnv(null, connection, null, null, null, 0, false, false);
+		cmdEnv.setStreamingCallback(callback);
+		cmdEnv.setStreamingCallbackKey(1);
+		return cmdEnv;
+	}
+
+	private static class Callback implements IStreamingBackpressureCallback {
+		private final boolean capacity;
+		private final P4JavaException failure;
+
+		Callback(boolean capacity, P4JavaException failure) {
+			this.capacity = capacity;
+			this.failure = failure;
+		}
+
+		public boolean awaitCapacity(int key) throws P4JavaException {
+			if (this.failure != null) {
+				throw this.failure;
+			}
+			return this.capacity;
+		}
+
+		public boolean startResults(int key) throws P4JavaException {
+			return true;
+		}
+
+		public boolean endResults(int key) throws P4JavaException {
+			return true;
+		}
+
+		public boolean handleResult(Map<String, Object> resultMap, int key) throws P4JavaException {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ *
+ */
+package com.perforce.p4java.impl.mapbased.rpc.stream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RpcChannelSelectorTest {
+	private ServerSocket server;
+
+	@Before
+	public void before() throws Exception {
+		this.server = new ServerSocket(0);
+	}
+
+	@After
+	public void after() throws Exception {
+		this.server.close();
+	}
+
+	@Test
+	public void testChannelsShareOneSelectorThread() throws Exception {
+		int before = countSelectorThreads();
+		SocketChannel first = connect();
+		SocketChannel second = connect();
+		RpcChannelSelector.Registration firstReg = RpcChannelSelector.register(first);
+		RpcChannelSelector.Registration secondReg = RpcChannelSelector.register(second);
+		try {
+			assertThat(countSelectorThreads() - before <= 1, is(true));
+		} finally {
+			firstReg.cancel();
+			secondReg.cancel();
+			first.close();
+			second.close();
+		}
+	}
+
+	@Test
+	public void testAwaitReadWakesOnData() throws Exception {
+		SocketChannel channel = connect();
+		Socket peer = this.server.accept();
+		RpcChannelSelector.Registration registration = RpcChannelSelector.register(channel);
+		try {
+			try {
+				registration.await(SelectionKey.OP_READ, 100);
+				fail("nothing to read, but the wait didn't time out");
+			} catch (SocketTimeoutException e) {
+				// expected
+			}
+
+			peer.getOutputStream().write(new byte[] { 1, 2, 3 });
+			peer.getOutputStream().flush();
+			registration.await(SelectionKey.OP_READ, 5000);
+			ByteBuffer buf = ByteBuffer.allocate(16);
+			assertThat(channel.read(buf) > 0, is(true));
+		} finally {
+			registration.cancel();
+			channel.close();
+			peer.close();
+		}
+	}
+
+	private SocketChannel connect() throws Exception {
+		SocketChannel channel = SocketChannel.open(
+				new InetSocketAddress("localhost", this.server.getLocalPort()));
+		channel.configureBlocking(false);
+		return channel;
+	}
+
+	private static int countSelectorThreads() {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("p4java-nio-selector-") && thread.isAlive()) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
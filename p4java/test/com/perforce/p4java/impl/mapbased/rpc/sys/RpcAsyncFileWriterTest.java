@@ -0,0 +1,93 @@
+/**
+ *
+ */
+package com.perforce.p4java.impl.mapbased.rpc.sys;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.perforce.p4java.impl.generic.client.ClientLineEnding;
+
+public class RpcAsyncFileWriterTest {
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		this.file = File.createTempFile("p4java-writer", ".txt");
+	}
+
+	@After
+	public void tearDown() {
+		this.file.delete();
+	}
+
+	@Test
+	public void testConvertedChunksAreWrittenInOrder() throws Exception {
+		// The e-acute is split between the chunks.
+		RpcPerforceFile target = new RpcPerforceFile(this.file.getPath(),
+				RpcPerforceFileType.FST_UTF16);
+		target.setLineEnding(ClientLineEnding.FST_L_CRLF);
+		RpcAsyncFileWriter writer = new RpcAsyncFileWriter();
+		RpcOutputStream stream = new RpcOutputStream(target, null, true, false);
+		stream.setAsyncWriter(writer);
+
+		byte[] first = "a\nb".getBytes("UTF-8");
+		byte[] chunk1 = new byte[first.length + 1];
+		System.arraycopy(first, 0, chunk1, 0, first.length);
+		chunk1[first.length] = (byte) 0xC3;
+		byte[] last = "\nc".getBytes("UTF-8");
+		byte[] chunk2 = new byte[last.length + 1];
+		chunk2[0] = (byte) 0xA9;
+		System.arraycopy(last, 0, chunk2, 1, last.length);
+
+		stream.writeConverted(chunk1);
+		stream.writeConverted(chunk2);
+		stream.close();
+		writer.shutdown();
+
+		assertThat(new String(read(this.file), "UTF-16"), is("a\r\nb\u00e9\r\nc"));
+	}
+
+	@Test
+	public void testWritesFailAfterShutdown() throws Exception {
+		RpcAsyncFileWriter writer = new RpcAsyncFileWriter();
+		RpcOutputStream stream = new RpcOutputStream(
+				new RpcPerforceFile(this.file.getPath(), RpcPerforceFileType.FST_BINARY));
+		stream.setAsyncWriter(writer);
+		writer.shutdown();
+
+		try {
+			stream.writeConverted(new byte[] { 1, 2, 3 });
+			fail("write accepted after shutdown");
+		} catch (IOException e) {
+			// expected
+		}
+		stream.close();
+	}
+
+	private static byte[] read(File file) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[1024];
+			int len;
+			while ((len = in.read(buf)) > 0) {
+				out.write(buf, 0, len);
+			}
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+}
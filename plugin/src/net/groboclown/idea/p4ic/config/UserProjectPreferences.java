@@ -30,6 +30,8 @@ import org.jetbrains.annotations.Nullable;
 )
 public class UserProjectPreferences implements PersistentStateComponent<UserProjectPreferences.State> {
     public static final int DEFAULT_SERVER_CONNECTIONS = 2;
+    public static final int MIN_SERVER_CONNECTIONS = 1;
+    public static final int MAX_SERVER_CONNECTIONS = 8;
     public static final int MIN_CONNECTION_WAIT_TIME_MILLIS = 500;
     public static final int MAX_CONNECTION_WAIT_TIME_MILLIS = 5 * 60 * 1000;
     public static final int DEFAULT_CONNECTION_WAIT_TIME_MILLIS = 30 * 1000;
@@ -188,6 +190,44 @@ public class UserProjectPreferences implements PersistentStateComponent<UserProj
         state.editedWithoutCheckoutDontVerify = ! value;
     }
 
+    /**
+     * @return the number of connections, per client, that queries can run
+     *      on at the same time.  The update actions have their own.
+     */
+    public static int getMaxServerConnections(@Nullable final Project project) {
+        if (project == null) {
+            return DEFAULT_SERVER_CONNECTIONS;
+        }
+        UserProjectPreferences prefs = UserProjectPreferences.getInstance(project);
+        if (prefs == null) {
+            return DEFAULT_SERVER_CONNECTIONS;
+        }
+        return prefs.getMaxServerConnections();
+    }
+
+    public int getMaxServerConnections() {
+        return Math.max(MIN_SERVER_CONNECTIONS,
+                Math.min(MAX_SERVER_CONNECTIONS,
+                state.maxServerConnections));
+    }
+
+    public void setMaxServerConnections(int value) {
+        state.maxServerConnections =
+                Math.max(MIN_SERVER_CONNECTIONS,
+                        Math.min(MAX_SERVER_CONNECTIONS, value));
+    }
+
+    public static int getMaxConnectionWaitTimeMillis(@Nullable final Project project) {
+        if (project == null) {
+            return DEFAULT_CONNECTION_WAIT_TIME_MILLIS;
+        }
+        UserProjectPreferences prefs = UserProjectPreferences.getInstance(project);
+        if (prefs == null) {
+            return DEFAULT_CONNECTION_WAIT_TIME_MILLIS;
+        }
+        return prefs.getMaxConnectionWaitTimeMillis();
+    }
+
     public static int getMaxAuthenticationRetries(@Nullable final Project project) {
         if (project == null) {
             return DEFAULT_MAX_AUTHENTICATION_RETRIES;
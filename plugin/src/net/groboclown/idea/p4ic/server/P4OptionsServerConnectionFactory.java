@@ -14,6 +14,7 @@
 
 package net.groboclown.idea.p4ic.server;
 
+import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.perforce.p4java.PropertyDefs;
 import com.perforce.p4java.exception.P4JavaException;
@@ -191,6 +192,28 @@ public class P4OptionsServerConnectionFactory {
         // short connection time, and least importance to high bandwidth.
         // RpcPropertyDefs.RPC_SOCKET_PERFORMANCE_PREFERENCES_NICK
 
+        // Only decode result values when they're read.  The fstat and opened
+        // calls return many more fields than the plugin ever looks at.
+        props.setProperty(RpcPropertyDefs.RPC_LAZY_FIELD_DECODING_NICK, "true");
+
+        // Write the synced and printed file contents on a background thread,
+        // so the server reads don't wait for the disk.
+        props.setProperty(RpcPropertyDefs.RPC_ASYNC_FILE_WRITES_NICK, "true");
+
+        // Digest the local files for reconcile and diff on a few threads,
+        // while the server's next requests are read.
+        props.setProperty(RpcPropertyDefs.RPC_PREFETCH_DIGESTS_NICK, "true");
+
+        // Remember the local file digests between commands (and IDE
+        // restarts), so unchanged files aren't read again by the next
+        // reconcile or revert-unchanged.
+        props.setProperty(RpcPropertyDefs.RPC_DIGEST_CACHE_DIR_NICK,
+                new File(PathManager.getSystemPath(), "p4ic-digests").getAbsolutePath());
+
+        // Don't read the directories the ignore files rule out as a whole;
+        // they're reported as ignored once, instead of file by file.
+        props.setProperty(RpcPropertyDefs.RPC_RECONCILE_PRUNE_IGNORED_NICK, "true");
+
         //props.setProperty(PropertyDefs.ENABLE_PROGRESS, "1");
 
         // This is the -ZTrack option, which spits out a bunch of
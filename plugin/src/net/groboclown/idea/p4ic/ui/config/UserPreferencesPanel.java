@@ -37,6 +37,7 @@ public class UserPreferencesPanel {
     private JRadioButton myPreferChangelist;
     private JCheckBox myEditedWithoutCheckoutCheckBox;
     private JSpinner myMaxRetryAuthenticationSpinner;
+    private JSpinner myMaxServerConnectionsSpinner;
     private JCheckBox myReconnectWithEachRequest;
     private JCheckBox myConcatenateChangelistNameComment;
     private ButtonGroup myPreferRevisionGroup;
@@ -53,6 +54,11 @@ public class UserPreferencesPanel {
                 UserProjectPreferences.MAX_MAX_AUTHENTICATION_RETRIES,
                 1,
                 UserProjectPreferences.DEFAULT_MAX_AUTHENTICATION_RETRIES));
+        myMaxServerConnectionsSpinner.setModel(new MinMaxSpinnerModel(
+                UserProjectPreferences.MIN_SERVER_CONNECTIONS,
+                UserProjectPreferences.MAX_SERVER_CONNECTIONS,
+                1,
+                UserProjectPreferences.DEFAULT_SERVER_CONNECTIONS));
         myPreferRevisionGroup = new ButtonGroup();
         myPreferRevisionGroup.add(myPreferChangelist);
         myPreferRevisionGroup.add(myPreferRevisionNumber);
@@ -63,6 +69,7 @@ public class UserPreferencesPanel {
         myOpenForEditInCheckBox.setSelected(userPrefs.getEditInSeparateThread());
         myMaxTimeout.setValue(userPrefs.getMaxConnectionWaitTimeMillis());
         myMaxRetryAuthenticationSpinner.setValue(userPrefs.getMaxAuthenticationRetries());
+        myMaxServerConnectionsSpinner.setValue(userPrefs.getMaxServerConnections());
         myPreferRevisionGroup.setSelected(
                 userPrefs.getPreferRevisionsForFiles()
                         ? myPreferRevisionNumber.getModel()
@@ -80,6 +87,7 @@ public class UserPreferencesPanel {
         userPrefs.setPreferRevisionsForFiles(getPreferRevisionsForFiles());
         userPrefs.setEditedWithoutCheckoutVerify(getEditedWithoutCheckoutVerify());
         userPrefs.setMaxAuthenticationRetries(getMaxAuthenticationRetries());
+        userPrefs.setMaxServerConnections(getMaxServerConnections());
         userPrefs.setReconnectWithEachRequest(getReconnectWithEachRequest());
         userPrefs.setConcatenateChangelistNameComment(getConcatenateChangelistNameComment());
     }
@@ -92,6 +100,7 @@ public class UserPreferencesPanel {
                         getPreferRevisionsForFiles() != preferences.getPreferRevisionsForFiles() ||
                         getEditedWithoutCheckoutVerify() != preferences.getEditedWithoutCheckoutVerify() ||
                         getMaxAuthenticationRetries() != preferences.getMaxAuthenticationRetries() ||
+                        getMaxServerConnections() != preferences.getMaxServerConnections() ||
                         getReconnectWithEachRequest() != preferences.getReconnectWithEachRequest() ||
                         getConcatenateChangelistNameComment() != preferences.getConcatenateChangelistNameComment();
     }
@@ -119,6 +128,10 @@ public class UserPreferencesPanel {
         return (Integer) myMaxRetryAuthenticationSpinner.getModel().getValue();
     }
 
+    private int getMaxServerConnections() {
+        return (Integer) myMaxServerConnectionsSpinner.getModel().getValue();
+    }
+
     private boolean getReconnectWithEachRequest() {
         return myReconnectWithEachRequest.isSelected();
     }
@@ -147,7 +160,7 @@ public class UserPreferencesPanel {
      */
     private void $$$setupUI$$$() {
         myRootPanel = new JPanel();
-        myRootPanel.setLayout(new GridLayoutManager(5, 2, new Insets(0, 0, 0, 0), -1, -1));
+        myRootPanel.setLayout(new GridLayoutManager(6, 2, new Insets(0, 0, 0, 0), -1, -1));
         final JLabel label1 = new JLabel();
         this.$$$loadLabelText$$$(label1, ResourceBundle.getBundle("net/groboclown/idea/p4ic/P4Bundle").getString("user.prefs.max_timeout"));
         label1.setToolTipText(ResourceBundle.getBundle("net/groboclown/idea/p4ic/P4Bundle").getString("user.prefs.max_timeout.tooltip"));
@@ -175,7 +188,7 @@ public class UserPreferencesPanel {
         panel1.add(myConcatenateChangelistNameComment, new GridConstraints(3, 0, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 1, false));
         final JPanel panel2 = new JPanel();
         panel2.setLayout(new GridLayoutManager(1, 3, new Insets(0, 0, 0, 0), -1, -1));
-        myRootPanel.add(panel2, new GridConstraints(3, 0, 1, 2, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_BOTH, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, null, null, null, 0, false));
+        myRootPanel.add(panel2, new GridConstraints(4, 0, 1, 2, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_BOTH, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, null, null, null, 0, false));
         panel2.setBorder(BorderFactory.createTitledBorder(BorderFactory.createLineBorder(Color.black), ResourceBundle.getBundle("net/groboclown/idea/p4ic/P4Bundle").getString("user.prefs.rev_display"), TitledBorder.DEFAULT_JUSTIFICATION, TitledBorder.DEFAULT_POSITION, new Font(panel2.getFont().getName(), panel2.getFont().getStyle(), panel2.getFont().getSize())));
         myPreferRevisionNumber = new JRadioButton();
         this.$$$loadButtonText$$$(myPreferRevisionNumber, ResourceBundle.getBundle("net/groboclown/idea/p4ic/P4Bundle").getString("user.prefs.revision"));
@@ -186,15 +199,22 @@ public class UserPreferencesPanel {
         this.$$$loadButtonText$$$(myPreferChangelist, ResourceBundle.getBundle("net/groboclown/idea/p4ic/P4Bundle").getString("user.prefs.prefer_changelist"));
         panel2.add(myPreferChangelist, new GridConstraints(0, 1, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
         final Spacer spacer2 = new Spacer();
-        myRootPanel.add(spacer2, new GridConstraints(4, 0, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_VERTICAL, 1, GridConstraints.SIZEPOLICY_WANT_GROW, null, null, null, 0, false));
+        myRootPanel.add(spacer2, new GridConstraints(5, 0, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_VERTICAL, 1, GridConstraints.SIZEPOLICY_WANT_GROW, null, null, null, 0, false));
         final JLabel label2 = new JLabel();
         this.$$$loadLabelText$$$(label2, ResourceBundle.getBundle("net/groboclown/idea/p4ic/P4Bundle").getString("user.prefs.max_auth_retry"));
         myRootPanel.add(label2, new GridConstraints(2, 0, 1, 1, GridConstraints.ANCHOR_EAST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_FIXED, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
         myMaxRetryAuthenticationSpinner = new JSpinner();
         myMaxRetryAuthenticationSpinner.setToolTipText(ResourceBundle.getBundle("net/groboclown/idea/p4ic/P4Bundle").getString("user.prefs.max_auth_retry.tooltip"));
         myRootPanel.add(myMaxRetryAuthenticationSpinner, new GridConstraints(2, 1, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_WANT_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
+        final JLabel label3 = new JLabel();
+        this.$$$loadLabelText$$$(label3, ResourceBundle.getBundle("net/groboclown/idea/p4ic/P4Bundle").getString("user.prefs.max_connections"));
+        myRootPanel.add(label3, new GridConstraints(3, 0, 1, 1, GridConstraints.ANCHOR_EAST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_FIXED, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
+        myMaxServerConnectionsSpinner = new JSpinner();
+        myMaxServerConnectionsSpinner.setToolTipText(ResourceBundle.getBundle("net/groboclown/idea/p4ic/P4Bundle").getString("user.prefs.max_connections.tooltip"));
+        myRootPanel.add(myMaxServerConnectionsSpinner, new GridConstraints(3, 1, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_WANT_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
         label1.setLabelFor(myMaxTimeout);
         label2.setLabelFor(myMaxRetryAuthenticationSpinner);
+        label3.setLabelFor(myMaxServerConnectionsSpinner);
     }
 
     /**
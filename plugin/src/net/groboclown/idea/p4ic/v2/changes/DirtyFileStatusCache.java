@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.groboclown.idea.p4ic.v2.changes;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.vcs.FilePath;
+import com.perforce.p4java.core.file.IExtendedFileSpec;
+import net.groboclown.idea.p4ic.v2.server.P4Server;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Short-lived memory of the server status (fstat) of dirty files that
+ * aren't open, so that the quick bursts of dirty scopes IDEA sends while
+ * the user is typing and saving don't each cost a trip to the server.
+ * Files asked about in one dirty scope that aren't remembered are fetched
+ * with a single fstat per server.
+ * <p>
+ * Whether a file that isn't open is on the server only changes through a
+ * submit or sync, so a few seconds of staleness is harmless; a full
+ * ("everything dirty") refresh clears it all anyway.
+ * <p>
+ * The statuses are kept per server, and dropped once the server is disposed
+ * (or no longer referenced).  The server is only asked outside the cache's
+ * lock, so one slow fstat doesn't hold up the other servers' lookups.
+ */
+class DirtyFileStatusCache {
+    private static final Logger LOG = Logger.getInstance(DirtyFileStatusCache.class);
+
+    static final long STATUS_LIFETIME_MILLIS = 5000L;
+
+    private final Map<P4Server, Map<FilePath, CachedStatus>> statusByServer =
+            new WeakHashMap<P4Server, Map<FilePath, CachedStatus>>();
+
+
+    /**
+     * Get the status of the given files, from memory where possible.
+     *
+     * @param server server the files map to
+     * @param files  files to find the status for
+     * @return the status of each file, or null if the server couldn't be asked.
+     * @throws InterruptedException if interrupted while talking to the server
+     */
+    @Nullable
+    Map<FilePath, IExtendedFileSpec> getFileStatus(@NotNull P4Server server,
+            @NotNull Collection<FilePath> files)
+            throws InterruptedException {
+        final long now = System.currentTimeMillis();
+        final Map<FilePath, IExtendedFileSpec> ret = new HashMap<FilePath, IExtendedFileSpec>();
+        final List<FilePath> unknown = new ArrayList<FilePath>();
+        synchronized (this) {
+            removeDisposed();
+            final Map<FilePath, CachedStatus> known = statusByServer.get(server);
+            if (known != null) {
+                removeExpired(known, now);
+            }
+            for (FilePath file : files) {
+                final CachedStatus status = known == null ? null : known.get(file);
+                if (status == null) {
+                    unknown.add(file);
+                } else {
+                    ret.put(file, status.spec);
+                }
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("File status for " + server + ": " + ret.size() + " remembered, "
+                    + unknown.size() + " to fetch");
+        }
+        if (! unknown.isEmpty()) {
+            final Map<FilePath, IExtendedFileSpec> fetched = server.getFileStatus(unknown);
+            if (fetched == null) {
+                // Offline, or an error that's already been reported.
+                return null;
+            }
+            ret.putAll(fetched);
+            synchronized (this) {
+                if (! server.isDisposed()) {
+                    Map<FilePath, CachedStatus> known = statusByServer.get(server);
+                    if (known == null) {
+                        known = new HashMap<FilePath, CachedStatus>();
+                        statusByServer.put(server, known);
+                    }
+                    for (Map.Entry<FilePath, IExtendedFileSpec> entry : fetched.entrySet()) {
+                        known.put(entry.getKey(), new CachedStatus(entry.getValue(), now));
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+
+    synchronized void clear() {
+        statusByServer.clear();
+    }
+
+
+    private void removeDisposed() {
+        final Iterator<P4Server> iter = statusByServer.keySet().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().isDisposed()) {
+                iter.remove();
+            }
+        }
+    }
+
+
+    private static void removeExpired(@NotNull Map<FilePath, CachedStatus> known, long now) {
+        final Iterator<CachedStatus> iter = known.values().iterator();
+        while (iter.hasNext()) {
+            if (now - iter.next().fetched >= STATUS_LIFETIME_MILLIS) {
+                iter.remove();
+            }
+        }
+    }
+
+
+    private static class CachedStatus {
+        @Nullable
+        final IExtendedFileSpec spec;
+        final long fetched;
+
+        CachedStatus(@Nullable IExtendedFileSpec spec, long fetched) {
+            this.spec = spec;
+            this.fetched = fetched;
+        }
+    }
+}
@@ -53,6 +53,7 @@ public class P4ChangeProvider implements ChangeProvider {
     private final P4Vcs vcs;
     private final AlertManager alerts;
     private final ChangeListMatcher changeListMatcher;
+    private final DirtyFileStatusCache dirtyFileStatus = new DirtyFileStatusCache();
 
     public P4ChangeProvider(@NotNull P4Vcs vcs) {
         this.project = vcs.getProject();
@@ -112,6 +113,7 @@ public class P4ChangeProvider implements ChangeProvider {
         final Set<FilePath> dirtyFiles;
         if (dirtyScope.wasEveryThingDirty()) {
             dirtyFiles = null;
+            dirtyFileStatus.clear();
         } else {
             dirtyFiles = dirtyScope.getDirtyFiles();
             if (dirtyFiles == null || dirtyFiles.isEmpty()) {
@@ -277,7 +279,7 @@ public class P4ChangeProvider implements ChangeProvider {
             @NotNull final ProgressIndicator progress)
             throws InterruptedException {
         if (dirtyFiles != null) {
-            return new MappedOpenFiles(vcs, alerts, dirtyFiles, progress);
+            return new MappedOpenFiles(vcs, alerts, dirtyFiles, dirtyFileStatus, progress);
         } else {
             return new MappedOpenFiles(vcs, alerts, progress);
         }
@@ -307,102 +309,176 @@ public class P4ChangeProvider implements ChangeProvider {
         final Map<P4Server, Set<P4FileAction>> notDirtyOpenedFiles;
 
         MappedOpenFiles(@NotNull P4Vcs vcs, @NotNull AlertManager alerts,
-                @NotNull Set<FilePath> scopedDirtyFiles, @NotNull final ProgressIndicator progress)
+                @NotNull Set<FilePath> scopedDirtyFiles, @NotNull DirtyFileStatusCache statusCache,
+                @NotNull final ProgressIndicator progress)
                 throws InterruptedException {
             this.scopedDirtyFiles = scopedDirtyFiles;
 
-            // We could just discover the open state for the dirty files,
-            // which is the optimal way to handle this method, but for now,
-            // just find everything that's dirty and organize it.
-            // TODO optimize this to only check dirty files.
-            final Set<FilePath> unknownDirties = new HashSet<FilePath>(scopedDirtyFiles);
+            // Only the dirty files are looked at: each is matched to its
+            // server, and that server's opened files are consulted first
+            // (through an index, rather than one pass per dirty file).
+            // Client roots can overlap, so a dirty file that isn't open on
+            // the server it maps to is then looked for in the other
+            // servers' opened files, as the old scan over every server did.
+            // Dirty files that aren't open anywhere get their server status
+            // through the status cache, so a burst of small dirty scopes
+            // costs at most one fstat per server per scope.
             this.notDirtyOpenedFiles = new HashMap<P4Server, Set<P4FileAction>>();
             this.dirtyP4Files = new HashMap<FilePath, ServerAction>();
+            this.noServerDirtyFiles = new HashSet<FilePath>();
+            this.notEditedDirtyFiles = new HashMap<FilePath, P4Server>();
+            this.notAddedDirtyFiles = new HashMap<FilePath, P4Server>();
 
+            // Changelist mapping still covers every server.
             this.affectedServers = new HashSet<P4Server>(vcs.getP4Servers());
 
-            for (P4Server server: affectedServers) {
-                final Collection<P4FileAction> opened = server.getOpenFiles();
-                if (! opened.isEmpty()) {
-                    affectedServers.add(server);
-                }
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Opened files for " + server + ": " + opened);
+            // ensure that directories aren't marked as unknown and dirty;
+            // they can never be opened, either.
+            final List<FilePath> dirtyNonDirs = new ArrayList<FilePath>(scopedDirtyFiles.size());
+            for (FilePath file : scopedDirtyFiles) {
+                if (! file.isDirectory()) {
+                    dirtyNonDirs.add(file);
                 }
-                for (P4FileAction file: opened) {
-                    final FilePath fp = file.getFile();
-                    if (fp == null) {
-                        alerts.addNotice(vcs.getProject(),
-                                P4Bundle.message("unknown.opened.file.path", file.getDepotPath()),
-                                null);
-                        Set<P4FileAction> fileSet = notDirtyOpenedFiles.get(server);
-                        if (fileSet == null) {
-                            fileSet = new HashSet<P4FileAction>();
-                            notDirtyOpenedFiles.put(server, fileSet);
-                        }
-                        fileSet.add(file);
-                        continue;
-                    }
+            }
 
-                    if (unknownDirties.remove(fp)) {
-                        if (LOG.isDebugEnabled()) {
-                            LOG.debug("Marking dirty file for " + server.getClientServerId() + ": " + fp);
-                        }
-                        dirtyP4Files.put(fp, new ServerAction(server, file));
-                    } else {
-                        Set<P4FileAction> fileSet = notDirtyOpenedFiles.get(server);
-                        if (fileSet == null) {
-                            fileSet = new HashSet<P4FileAction>();
-                            notDirtyOpenedFiles.put(server, fileSet);
+            final Map<P4Server, Map<FilePath, P4FileAction>> openedIndexes =
+                    new HashMap<P4Server, Map<FilePath, P4FileAction>>();
+            final Map<P4Server, List<FilePath>> dirtyMap = vcs.mapFilePathsToP4Server(dirtyNonDirs);
+            final Map<P4Server, List<FilePath>> unknownMap = new HashMap<P4Server, List<FilePath>>();
+            boolean hasUnknown = false;
+            for (Entry<P4Server, List<FilePath>> serverListEntry : dirtyMap.entrySet()) {
+                final P4Server server = serverListEntry.getKey();
+                if (serverListEntry.getValue().isEmpty()) {
+                    continue;
+                }
+                final List<FilePath> unknownDirties = new ArrayList<FilePath>();
+                if (server == null) {
+                    unknownDirties.addAll(serverListEntry.getValue());
+                } else {
+                    affectedServers.add(server);
+                    final Map<FilePath, P4FileAction> openedIndex = indexOpenedFiles(vcs, alerts, server);
+                    openedIndexes.put(server, openedIndex);
+                    for (FilePath fp : serverListEntry.getValue()) {
+                        if (! markOpened(server, openedIndex, fp)) {
+                            unknownDirties.add(fp);
                         }
-                        fileSet.add(file);
                     }
                 }
+                hasUnknown |= ! unknownDirties.isEmpty();
+                unknownMap.put(server, unknownDirties);
             }
 
-            // Setup the unknown files that are marked as dirty
-
-            // ensure that directories aren't marked as unknown and dirty.
-            final Iterator<FilePath> iter = unknownDirties.iterator();
-            while (iter.hasNext()) {
-                if (iter.next().isDirectory()) {
-                    iter.remove();
+            if (hasUnknown) {
+                for (P4Server server : vcs.getP4Servers()) {
+                    if (! openedIndexes.containsKey(server)) {
+                        openedIndexes.put(server, indexOpenedFiles(vcs, alerts, server));
+                    }
                 }
             }
-            this.noServerDirtyFiles = new HashSet<FilePath>();
-            this.notEditedDirtyFiles = new HashMap<FilePath, P4Server>();
-            this.notAddedDirtyFiles = new HashMap<FilePath, P4Server>();
-            final Map<P4Server, List<FilePath>> unknownMap = vcs.mapFilePathsToP4Server(unknownDirties);
+
             for (Entry<P4Server, List<FilePath>> serverListEntry : unknownMap.entrySet()) {
-                P4Server server = serverListEntry.getKey();
+                final P4Server server = serverListEntry.getKey();
+                final List<FilePath> unknownDirties = new ArrayList<FilePath>();
+                for (FilePath fp : serverListEntry.getValue()) {
+                    if (! markOpenedElsewhere(server, openedIndexes, fp)) {
+                        unknownDirties.add(fp);
+                    }
+                }
+                if (unknownDirties.isEmpty()) {
+                    continue;
+                }
                 if (server == null) {
-                    for (FilePath filePath : serverListEntry.getValue()) {
-                        noServerDirtyFiles.add(filePath);
+                    noServerDirtyFiles.addAll(unknownDirties);
+                    continue;
+                }
+                final Map<FilePath, IExtendedFileSpec> status =
+                        statusCache.getFileStatus(server, unknownDirties);
+                if (status == null) {
+                    // Mapped to the server, but we're disconnected, so we can't tell
+                    // if they've actually been added or not.
+                    // Just assume that they're on the server.
+                    for (FilePath filePath : unknownDirties) {
+                        notEditedDirtyFiles.put(filePath, server);
                     }
-                } else if (! serverListEntry.getValue().isEmpty()) {
-                    affectedServers.add(server);
-                    final Map<FilePath, IExtendedFileSpec> status =
-                            server.getFileStatus(serverListEntry.getValue());
-                    if (status == null) {
-                        // Mapped to the server, but we're disconnected, so we can't tell
-                        // if they've actually been added or not.
-                        // Just assume that they're on the server.
-                        for (FilePath filePath : serverListEntry.getValue()) {
-                            notEditedDirtyFiles.put(filePath, server);
-                        }
-                    } else {
-                        // Mapped to the server, and we can tell if they've been
-                        // added or not.
-                        for (Entry<FilePath, IExtendedFileSpec> entry: status.entrySet()) {
-                            if (isStoredOnServer(entry.getValue())) {
-                                notEditedDirtyFiles.put(entry.getKey(), server);
-                            } else {
-                                notAddedDirtyFiles.put(entry.getKey(), server);
-                            }
+                } else {
+                    // Mapped to the server, and we can tell if they've been
+                    // added or not.
+                    for (Entry<FilePath, IExtendedFileSpec> entry: status.entrySet()) {
+                        if (isStoredOnServer(entry.getValue())) {
+                            notEditedDirtyFiles.put(entry.getKey(), server);
+                        } else {
+                            notAddedDirtyFiles.put(entry.getKey(), server);
                         }
                     }
                 }
             }
+
+            if (LOG.isDebugEnabled()) {
+                for (Entry<P4Server, Map<FilePath, P4FileAction>> entry : openedIndexes.entrySet()) {
+                    if (! entry.getValue().isEmpty()) {
+                        notDirtyOpenedFiles.put(entry.getKey(),
+                                new HashSet<P4FileAction>(entry.getValue().values()));
+                    }
+                }
+            }
+        }
+
+        /**
+         * If the dirty file is in the opened file index, mark it as opened
+         * on the server, and take it out of the index.
+         */
+        private boolean markOpened(@NotNull P4Server server,
+                @NotNull Map<FilePath, P4FileAction> openedIndex, @NotNull FilePath fp) {
+            final P4FileAction action = openedIndex.remove(fp);
+            if (action == null) {
+                return false;
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Marking dirty file for " + server.getClientServerId() + ": " + fp);
+            }
+            dirtyP4Files.put(fp, new ServerAction(server, action));
+            return true;
+        }
+
+        /**
+         * Look for the dirty file in the opened files of the servers other
+         * than the one it mapped to.
+         */
+        private boolean markOpenedElsewhere(@Nullable P4Server mappedServer,
+                @NotNull Map<P4Server, Map<FilePath, P4FileAction>> openedIndexes, @NotNull FilePath fp) {
+            for (Entry<P4Server, Map<FilePath, P4FileAction>> entry : openedIndexes.entrySet()) {
+                if (entry.getKey() != mappedServer && markOpened(entry.getKey(), entry.getValue(), fp)) {
+                    affectedServers.add(entry.getKey());
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Index the server's opened files by local path.  Opened files without
+         * a local path are reported, as before.
+         */
+        @NotNull
+        private static Map<FilePath, P4FileAction> indexOpenedFiles(@NotNull P4Vcs vcs,
+                @NotNull AlertManager alerts, @NotNull P4Server server)
+                throws InterruptedException {
+            final Collection<P4FileAction> opened = server.getOpenFiles();
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Opened files for " + server + ": " + opened);
+            }
+            final Map<FilePath, P4FileAction> index = new HashMap<FilePath, P4FileAction>(opened.size() * 2);
+            for (P4FileAction file : opened) {
+                final FilePath fp = file.getFile();
+                if (fp == null) {
+                    alerts.addNotice(vcs.getProject(),
+                            P4Bundle.message("unknown.opened.file.path", file.getDepotPath()),
+                            null);
+                    continue;
+                }
+                index.put(fp, file);
+            }
+            return index;
         }
 
         MappedOpenFiles(@NotNull P4Vcs vcs, @NotNull AlertManager alerts,
@@ -30,6 +30,9 @@ import java.util.*;
 public class P4AnnotatedLine {
     private static final Logger LOG = Logger.getInstance(P4AnnotatedLine.class);
 
+    // Number of revisions asked for in a single filelog call.
+    private static final int REVISION_BATCH_SIZE = 100;
+
 
     private final FilePath baseFile;
     private final String depotPath;
@@ -88,8 +91,8 @@ public class P4AnnotatedLine {
     }
 
     public static List<P4AnnotatedLine> loadAnnotatedLines(@NotNull P4Exec2 exec,
-            @NotNull FilePath baseFile, @NotNull List<IFileAnnotation> annotations) throws VcsException {
-        Map<String, IFileRevisionData> revisions = new HashMap<String, IFileRevisionData>();
+            @NotNull FilePath baseFile, @NotNull List<IFileAnnotation> annotations,
+            @NotNull RevisionDataCache revisionCache) throws VcsException {
         List<P4AnnotatedLine> ret = new ArrayList<P4AnnotatedLine>(annotations.size());
         Map<String, IExtendedFileSpec> fileSpecs = new HashMap<String, IExtendedFileSpec>();
 
@@ -105,6 +108,10 @@ public class P4AnnotatedLine {
             fileSpecs.put(spec.getDepotPathString(), spec);
         }
 
+        // Second pass: load the details of all the blamed revisions that
+        // aren't already known, in as few calls as possible.
+        Map<String, IFileRevisionData> revisions = loadRevisions(exec, annotations, revisionCache);
+
         int lineNumber = 0;
         for (IFileAnnotation ann : annotations) {
             if (ann.getDepotPath() == null) {
@@ -129,11 +136,11 @@ public class P4AnnotatedLine {
 
             int blameRev = ann.getLower();
             if (blameRev > 0) {
-                String depotRev = ann.getDepotPath() + '#' + blameRev;
+                String depotRev = RevisionDataCache.toKey(ann.getDepotPath(), blameRev);
                 IFileRevisionData data = revisions.get(depotRev);
-                if (blameRev > 0 && data == null) {
-                    data = getHistoryFor(exec, depotRev);
-                    revisions.put(depotRev, data);
+                if (data == null) {
+                    LOG.warn("No revision for " + depotRev);
+                    throw new P4FileException(P4Bundle.message("error.annotate.no-revision", depotRev));
                 }
                 if (LOG.isDebugEnabled()) {
                     LOG.debug("Annotating line " + (lineNumber + 1) + " from " + depotRev + " || " +
@@ -184,28 +191,67 @@ public class P4AnnotatedLine {
     }
 
 
+    /**
+     * Find the revision details for every blamed revision in the annotations.
+     * Those not already in the cache are fetched with one filelog per batch
+     * of revisions, rather than one per revision.
+     *
+     * @return the revision data, keyed by {@link RevisionDataCache#toKey(String, int)}
+     */
     @NotNull
-    private static IFileRevisionData getHistoryFor(@NotNull P4Exec2 exec, @NotNull String depotRev)
+    private static Map<String, IFileRevisionData> loadRevisions(@NotNull P4Exec2 exec,
+            @NotNull List<IFileAnnotation> annotations, @NotNull RevisionDataCache revisionCache)
             throws VcsException {
-        // The "depotRev" came from a Perforce named depot file,
-        // so it is already escaped.  Therefore it's okay to use
-        // getAlreadyEscapedSpec.
-        IFileSpec depotFile = FileSpecUtil.getAlreadyEscapedSpec(depotRev);
-        Map<IFileSpec, List<IFileRevisionData>> history = exec.getRevisionHistory(
-                Collections.singletonList(depotFile), 1);
-        for (Map.Entry<IFileSpec, List<IFileRevisionData>> en : history.entrySet()) {
-            List<IFileRevisionData> ret = en.getValue();
-            // it can return empty values for a server message
-            if (ret != null && !ret.isEmpty()) {
-                if (ret.size() != 1) {
-                    LOG.warn("unexpected revision data for " + depotRev + ": " + ret);
-                    throw new P4FileException(P4Bundle.message("error.annotate.revision", depotRev, ret));
+        Map<String, IFileRevisionData> ret = new HashMap<String, IFileRevisionData>();
+        List<IFileSpec> needed = new ArrayList<IFileSpec>();
+        for (IFileAnnotation ann : annotations) {
+            if (ann.getDepotPath() == null || ann.getLower() <= 0) {
+                continue;
+            }
+            String depotRev = RevisionDataCache.toKey(ann.getDepotPath(), ann.getLower());
+            if (ret.containsKey(depotRev)) {
+                continue;
+            }
+            IFileRevisionData data = revisionCache.get(ann.getDepotPath(), ann.getLower());
+            ret.put(depotRev, data);
+            if (data == null) {
+                // The "depotRev" came from a Perforce named depot file,
+                // so it is already escaped.  Therefore it's okay to use
+                // getAlreadyEscapedSpec.  The "#n,#n" range limits the
+                // filelog to just that revision.
+                needed.add(FileSpecUtil.getAlreadyEscapedSpec(
+                        ann.getDepotPath() + '#' + ann.getLower() + ",#" + ann.getLower()));
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Annotation needs " + ret.size() + " revisions; " + needed.size() + " not cached");
+        }
+
+        for (int start = 0; start < needed.size(); start += REVISION_BATCH_SIZE) {
+            List<IFileSpec> batch = needed.subList(start, Math.min(needed.size(), start + REVISION_BATCH_SIZE));
+            // The filelog follows branch history (-i), so keep it bounded to
+            // the one revision per file asked for, as the single lookups did.
+            Map<IFileSpec, List<IFileRevisionData>> history = exec.getRevisionHistory(
+                    new ArrayList<IFileSpec>(batch), 1);
+            for (List<IFileRevisionData> revs : history.values()) {
+                // it can return empty values for a server message
+                if (revs == null) {
+                    continue;
+                }
+                // Anything else returned is still a submitted revision,
+                // and worth remembering.
+                revisionCache.addAll(revs);
+                for (IFileRevisionData data : revs) {
+                    if (data != null && data.getDepotFileName() != null) {
+                        String depotRev = RevisionDataCache.toKey(data.getDepotFileName(), data.getRevision());
+                        if (ret.containsKey(depotRev) && ret.get(depotRev) == null) {
+                            ret.put(depotRev, data);
+                        }
+                    }
                 }
-                return ret.get(0);
             }
         }
-        LOG.warn("No revision for " + depotRev);
-        throw new P4FileException(P4Bundle.message("error.annotate.no-revision", depotRev));
+        return ret;
     }
 
 }
@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.groboclown.idea.p4ic.v2.history;
+
+import com.perforce.p4java.core.file.IFileRevisionData;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Least-recently-used memory of the submitted revision details (filelog
+ * results) for a single server, keyed by the depot path and revision.
+ * A submitted revision never changes, so nothing here ever goes stale;
+ * the size limit only keeps the memory use down.
+ * <p>
+ * Shared between the annotations and the file history, so that a history
+ * view fills in what a later annotation of the same file needs.
+ */
+public class RevisionDataCache {
+    public static final int DEFAULT_SIZE = 2000;
+
+    private final Map<String, IFileRevisionData> revisions;
+
+
+    public RevisionDataCache() {
+        this(DEFAULT_SIZE);
+    }
+
+
+    public RevisionDataCache(final int maxSize) {
+        this.revisions = new LinkedHashMap<String, IFileRevisionData>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, IFileRevisionData> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+
+    /**
+     * @param depotPath escaped depot path, as the server reports it.
+     * @param revision submitted revision number
+     * @return the remembered revision details, or null if not known.
+     */
+    @Nullable
+    public synchronized IFileRevisionData get(@NotNull String depotPath, int revision) {
+        return revisions.get(toKey(depotPath, revision));
+    }
+
+
+    public synchronized void add(@NotNull IFileRevisionData data) {
+        // Only real, submitted revisions are worth keeping; local and
+        // deleted placeholders have revisions <= 0.
+        if (data.getDepotFileName() != null && data.getRevision() > 0) {
+            revisions.put(toKey(data.getDepotFileName(), data.getRevision()), data);
+        }
+    }
+
+
+    public synchronized void addAll(@Nullable List<IFileRevisionData> dataList) {
+        if (dataList != null) {
+            for (IFileRevisionData data : dataList) {
+                if (data != null) {
+                    add(data);
+                }
+            }
+        }
+    }
+
+
+    @NotNull
+    static String toKey(@NotNull String depotPath, int revision) {
+        return depotPath + '#' + revision;
+    }
+}
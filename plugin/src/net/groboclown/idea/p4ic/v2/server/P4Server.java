@@ -40,8 +40,10 @@ import net.groboclown.idea.p4ic.v2.changes.P4ChangeListMapping;
 import net.groboclown.idea.p4ic.v2.changes.P4CommittedChangeList;
 import net.groboclown.idea.p4ic.v2.history.P4AnnotatedLine;
 import net.groboclown.idea.p4ic.v2.history.P4FileRevision;
+import net.groboclown.idea.p4ic.v2.history.RevisionDataCache;
 import net.groboclown.idea.p4ic.v2.server.cache.ClientServerRef;
 import net.groboclown.idea.p4ic.v2.server.cache.P4ChangeListValue;
+import net.groboclown.idea.p4ic.v2.server.cache.local.RevisionContentCache;
 import net.groboclown.idea.p4ic.v2.server.cache.state.P4FileSyncState;
 import net.groboclown.idea.p4ic.v2.server.cache.state.PendingUpdateState;
 import net.groboclown.idea.p4ic.v2.server.cache.sync.ClientCacheManager;
@@ -49,6 +51,7 @@ import net.groboclown.idea.p4ic.v2.server.connection.*;
 import net.groboclown.idea.p4ic.v2.server.connection.ServerConnection.CacheQuery;
 import net.groboclown.idea.p4ic.v2.server.connection.ServerConnection.CreateUpdate;
 import net.groboclown.idea.p4ic.v2.server.util.FilePathUtil;
+import net.groboclown.idea.p4ic.v2.server.util.RemoteFileContents;
 import net.groboclown.idea.p4ic.v2.server.util.RemoteFileReader;
 import net.groboclown.idea.p4ic.v2.server.util.RootDiscoveryUtil;
 import net.groboclown.idea.p4ic.v2.ui.alerts.DisconnectedHandler;
@@ -82,6 +85,7 @@ public class P4Server {
     private final ServerConnection connection;
     private final AlertManager alertManager;
     private final ClientConfig source;
+    private final RevisionDataCache revisionCache = new RevisionDataCache();
 
     private boolean valid = true;
     private boolean disposed = false;
@@ -313,7 +317,7 @@ public class P4Server {
                     @NotNull final AlertManager alerts)
                     throws InterruptedException {
                 try {
-                    return exec.getFileStatus(fileSpecs);
+                    return connection.getFileStatus(exec, fileSpecs);
                 } catch (VcsException e) {
                     alertManager.addWarning(project,
                             P4Bundle.message("error.file-status.fetch.title"),
@@ -871,11 +875,23 @@ public class P4Server {
     @Nullable
     public String loadFileAsStringOnline(@NotNull final FilePath file, @NotNull final IFileSpec spec)
             throws P4DisconnectedException, InterruptedException {
+        // Submitted revisions named by depot path can come straight from
+        // the content cache, even while offline.
+        final RevisionContentCache contentCache = RevisionContentCache.getInstance();
+        final String serverId = getClientServerId().getServerDisplayId();
+        final String depotPath = RevisionContentCache.getCacheableDepotPath(spec);
+        if (contentCache != null && depotPath != null) {
+            final String cached = contentCache.getString(serverId, depotPath, spec.getEndRevision());
+            if (cached != null) {
+                return cached;
+            }
+        }
         validateOnline();
         return connection.cacheQuery(new CacheQuery<String>() {
             @Override
             public String query(@NotNull final ClientCacheManager mgr) throws InterruptedException {
-                return connection.query(project, RemoteFileReader.createStringReader(file, spec));
+                return connection.query(project,
+                        RemoteFileReader.createStringReader(file, spec, serverId, contentCache));
             }
         });
     }
@@ -895,16 +911,46 @@ public class P4Server {
         }
     }
 
+    /**
+     * Fetch the file spec's complete contents.  These are used for binary
+     * diffs and for writing a revision out to a file, so unlike
+     * {@link #loadFileAsStringOnline(FilePath, IFileSpec)} they're never cut
+     * short at the IDE's loaded file size limit; the contents are streamed
+     * into a temporary file first, and read from there.
+     *
+     * @return the file contents, or null if it does not exist.
+     */
     @Nullable
     public byte[] loadFileAsBytesOnline(@NotNull final FilePath file, @NotNull final IFileSpec spec)
             throws P4DisconnectedException, InterruptedException {
-        validateOnline();
-        return connection.cacheQuery(new CacheQuery<byte[]>() {
-            @Override
-            public byte[] query(@NotNull final ClientCacheManager mgr) throws InterruptedException {
-                return connection.query(project, RemoteFileReader.createByteReader(file, spec));
+        final RevisionContentCache contentCache = RevisionContentCache.getInstance();
+        final String serverId = getClientServerId().getServerDisplayId();
+        final String depotPath = RevisionContentCache.getCacheableDepotPath(spec);
+        if (contentCache != null && depotPath != null) {
+            final byte[] cached = contentCache.getBytes(serverId, depotPath, spec.getEndRevision());
+            if (cached != null) {
+                return cached;
             }
-        });
+        }
+        final RemoteFileContents contents = loadFileToTempOnline(file, spec);
+        if (contents == null) {
+            return null;
+        }
+        try {
+            final byte[] ret = contents.toByteArray();
+            if (contentCache != null && depotPath != null) {
+                contentCache.put(serverId, depotPath, spec.getEndRevision(), ret, contents.getCharset());
+            }
+            return ret;
+        } catch (IOException e) {
+            alertManager.addWarning(project,
+                    P4Bundle.message("exception.load-file.title"),
+                    P4Bundle.message("exception.load-file", spec.toString()),
+                    e, file);
+            return null;
+        } finally {
+            contents.delete();
+        }
     }
 
     @Nullable
@@ -922,6 +968,27 @@ public class P4Server {
         }
     }
 
+    /**
+     * Fetch the file spec's contents into a temporary file, for callers
+     * that can read the contents as a stream; unlike the other load
+     * methods, the contents are never held in memory or cut short.
+     *
+     * @return the contents, which the caller must delete when finished,
+     *      or null if the file does not exist.
+     */
+    @Nullable
+    public RemoteFileContents loadFileToTempOnline(@NotNull final FilePath file, @NotNull final IFileSpec spec)
+            throws P4DisconnectedException, InterruptedException {
+        validateOnline();
+        final File tempDir = P4Vcs.getInstance(project).getTempDir();
+        return connection.cacheQuery(new CacheQuery<RemoteFileContents>() {
+            @Override
+            public RemoteFileContents query(@NotNull final ClientCacheManager mgr) throws InterruptedException {
+                return connection.query(project, RemoteFileReader.createTempFileReader(file, spec, tempDir));
+            }
+        });
+    }
+
     public void deleteFiles(@NotNull final List<FilePath> files, final int changelistId) {
         if (files.isEmpty()) {
             return;
@@ -990,7 +1057,8 @@ public class P4Server {
                         usedSpec = FileSpecUtil.getAlreadyEscapedSpec(spec.getDepotPathString() + '#' + revNumber);
                     }
                     return P4AnnotatedLine.loadAnnotatedLines(exec, baseFile,
-                            exec.getAnnotationsFor(Collections.singletonList(usedSpec)));
+                            exec.getAnnotationsFor(Collections.singletonList(usedSpec)),
+                            revisionCache);
                 } catch (VcsException e) {
                     ex.set(e);
                     return null;
@@ -1040,6 +1108,8 @@ public class P4Server {
                     if (entry.getValue() == null) {
                         LOG.info("history for " + spec.getDepotPathString() + ": null values for " + entry.getKey());
                     } else {
+                        // Remember these for any later annotation of the file.
+                        revisionCache.addAll(entry.getValue());
                         for (IFileRevisionData rev : entry.getValue()) {
                             if (rev != null) {
                                 final P4FileRevision p4rev = createRevision(
@@ -47,6 +47,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -69,6 +70,12 @@ public class P4ServerManager implements ProjectComponent {
     private volatile boolean hasServers = false;
     private volatile boolean connectionsValid = true;
 
+    // Which server owns which file is answered from a tree of the server
+    // roots.  Anything that changes the servers or their roots bumps the
+    // generation, and the tree is rebuilt on the next lookup.
+    private final AtomicInteger rootsGeneration = new AtomicInteger();
+    private volatile RootTrieRef rootTrie;
+
 
     @NotNull
     public static P4ServerManager getInstance(@NotNull Project project) {
@@ -197,6 +204,9 @@ public class P4ServerManager implements ProjectComponent {
         } finally {
             serverLock.unlock();
         }
+        if (! removed.isEmpty() || ! updated.isEmpty()) {
+            invalidateRoots();
+        }
 
         return ret;
     }
@@ -210,13 +220,13 @@ public class P4ServerManager implements ProjectComponent {
     @NotNull
     public Map<P4Server, List<FilePath>> mapFilePathsToP4Server(Collection<FilePath> files)
             throws InterruptedException {
-        return mapToP4Server(files, FILE_PATH_SERVER_MATCHER);
+        return mapToP4Server(files, filePathServerMatcher);
     }
 
     @NotNull
     public Map<P4Server, List<VirtualFile>> mapVirtualFilesToP4Server(@NotNull final Collection<VirtualFile> files)
             throws InterruptedException {
-        return mapToP4Server(files, VIRTUAL_FILE_SERVER_MATCHER);
+        return mapToP4Server(files, virtualFileServerMatcher);
     }
 
     @NotNull
@@ -229,12 +239,22 @@ public class P4ServerManager implements ProjectComponent {
             LOG.info("configs not valid");
             return Collections.emptyMap();
         }
-        return mapToP4Server(getOnlineServers(), files, VIRTUAL_FILE_SERVER_MATCHER);
+        return mapToP4Server(getOnlineServers(), files, virtualFileServerMatcher);
     }
 
 
 
 
+    /**
+     * Mark the root directories of the servers as changed, so that the next
+     * file to server lookup reloads them.  This must be called whenever a
+     * server's client roots change.
+     */
+    public void invalidateRoots() {
+        rootsGeneration.incrementAndGet();
+    }
+
+
     @Nullable
     public P4Server getForFilePath(@NotNull FilePath fp) throws InterruptedException {
         if (connectionsValid) {
@@ -311,6 +331,7 @@ public class P4ServerManager implements ProjectComponent {
 
                 // Connections are temporarily invalid.
                 connectionsValid = false;
+                invalidateRoots();
                 serverLock.lock();
                 try {
                     for (P4Server server : servers.values()) {
@@ -353,28 +374,33 @@ public class P4ServerManager implements ProjectComponent {
 
 
     @Nullable
-    private static P4Server getServerForPath(@NotNull List<P4Server> servers, @NotNull FilePath file)
+    private P4Server getServerForPath(@NotNull List<P4Server> servers, @NotNull FilePath file)
             throws InterruptedException {
-        int minDepth = Integer.MAX_VALUE;
-        P4Server minDepthServer = null;
-        for (P4Server server : servers) {
-            if (! server.isValid()) {
-                LOG.warn("Tried to use an invalid server " + server);
-                continue;
-            }
-            int depth = server.getFilePathMatchDepth(file);
-            if (LOG.isDebugEnabled()) {
-                LOG.debug(" --- server " + server + " match depth: " + depth);
-            }
-            if (depth < minDepth && depth >= 0) {
-                minDepth = depth;
-                minDepthServer = server;
-            }
+        return getRootTrie().getServerFor(file, servers);
+    }
+
+
+    @NotNull
+    private ServerRootTrie getRootTrie() throws InterruptedException {
+        final int generation = rootsGeneration.get();
+        final RootTrieRef current = rootTrie;
+        if (current != null && current.generation == generation && ! current.trie.isMissingServers()) {
+            return current.trie;
         }
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("Matched " + file + " to " + minDepthServer);
+
+        // Built outside the lock, because loading the roots may need to
+        // wait on the server cache.  If the roots changed while building,
+        // the generation won't match, and the next call rebuilds it again.
+        final List<P4Server> serverCopy;
+        serverLock.lock();
+        try {
+            serverCopy = new ArrayList<P4Server>(servers.values());
+        } finally {
+            serverLock.unlock();
         }
-        return minDepthServer;
+        final ServerRootTrie trie = ServerRootTrie.build(serverCopy);
+        rootTrie = new RootTrieRef(trie, generation);
+        return trie;
     }
 
 
@@ -389,6 +415,7 @@ public class P4ServerManager implements ProjectComponent {
             } finally {
                 serverLock.unlock();
             }
+            invalidateRoots();
             return;
         }
 
@@ -413,6 +440,7 @@ public class P4ServerManager implements ProjectComponent {
         } finally {
             serverLock.unlock();
         }
+        invalidateRoots();
 
         // Send the announcement that the configs are updated.
         cp.announceBaseConfigUpdated();
@@ -454,6 +482,7 @@ public class P4ServerManager implements ProjectComponent {
         } finally {
             serverLock.unlock();
         }
+        invalidateRoots();
         connectionsValid = true;
 
         for (Warning warning : warnings) {
@@ -466,7 +495,7 @@ public class P4ServerManager implements ProjectComponent {
         P4Server match(@NotNull List<P4Server> servers, T file) throws InterruptedException;
     }
 
-    private static final ServerMatcher<FilePath> FILE_PATH_SERVER_MATCHER = new ServerMatcher<FilePath>() {
+    private final ServerMatcher<FilePath> filePathServerMatcher = new ServerMatcher<FilePath>() {
         @Nullable
         @Override
         public P4Server match(@NotNull final List<P4Server> servers, final FilePath file) throws InterruptedException {
@@ -474,7 +503,7 @@ public class P4ServerManager implements ProjectComponent {
         }
     };
 
-    private static final ServerMatcher<VirtualFile> VIRTUAL_FILE_SERVER_MATCHER = new ServerMatcher<VirtualFile>() {
+    private final ServerMatcher<VirtualFile> virtualFileServerMatcher = new ServerMatcher<VirtualFile>() {
         @Nullable
         @Override
         public P4Server match(@NotNull final List<P4Server> servers, final VirtualFile file)
@@ -534,6 +563,17 @@ public class P4ServerManager implements ProjectComponent {
     }
 
 
+    private static class RootTrieRef {
+        final ServerRootTrie trie;
+        final int generation;
+
+        RootTrieRef(@NotNull ServerRootTrie trie, int generation) {
+            this.trie = trie;
+            this.generation = generation;
+        }
+    }
+
+
     private static class Warning {
         private final Project project;
         private final String title;
@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.groboclown.idea.p4ic.v2.server;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vcs.FilePath;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable prefix tree of the client roots for a set of servers, split by
+ * path element, so that finding the server for a file only walks the
+ * file's own path rather than every root of every server.
+ * <p>
+ * It matches the same way as
+ * {@link net.groboclown.idea.p4ic.v2.server.util.RootDiscoveryUtil#getFilePathMatchDepth(FilePath, Collection, List)}
+ * across all the servers did: the server with the shallowest root containing
+ * the file wins, and servers with a root at the same depth are preferred in
+ * the order they were given to {@link #build(Collection)}.
+ * <p>
+ * The roots come from the server caches, so this must be rebuilt whenever
+ * the servers or their roots change.
+ */
+final class ServerRootTrie {
+    private static final Logger LOG = Logger.getInstance(ServerRootTrie.class);
+
+    private final Node top;
+    private final List<P4Server> skipped;
+
+
+    @NotNull
+    static ServerRootTrie build(@NotNull Collection<P4Server> servers)
+            throws InterruptedException {
+        final Node top = new Node();
+        final List<P4Server> skipped = new ArrayList<P4Server>();
+        for (P4Server server : servers) {
+            if (! server.isValid()) {
+                // Its roots can't be loaded; try again when it's valid.
+                skipped.add(server);
+                continue;
+            }
+            for (List<File> rootParts : server.getRoots()) {
+                Node node = top;
+                for (int i = 0; i < rootParts.size(); i++) {
+                    final String key = keyFor(rootParts.get(i), i);
+                    Node child = node.children.get(key);
+                    if (child == null) {
+                        child = new Node();
+                        node.children.put(key, child);
+                    }
+                    node = child;
+                }
+                if (! node.servers.contains(server)) {
+                    node.servers.add(server);
+                }
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Built root trie for " + servers);
+        }
+        return new ServerRootTrie(top, skipped);
+    }
+
+
+    private ServerRootTrie(@NotNull Node top, @NotNull List<P4Server> skipped) {
+        this.top = top;
+        this.skipped = skipped;
+    }
+
+
+    /**
+     * @return true if a server left out of the tree because it was invalid
+     *      has since become valid.
+     */
+    boolean isMissingServers() {
+        for (P4Server server : skipped) {
+            if (server.isValid()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * @param file file to find the owning server for.
+     * @param allowed only these servers may be returned.
+     * @return the valid, allowed server with the shallowest root containing
+     *      the file, or null if there is none.
+     */
+    @Nullable
+    P4Server getServerFor(@NotNull FilePath file, @NotNull Collection<P4Server> allowed) {
+        final List<File> parts = getPathParts(file);
+        Node node = top;
+        for (int i = 0; i < parts.size(); i++) {
+            node = node.children.get(keyFor(parts.get(i), i));
+            if (node == null) {
+                break;
+            }
+            for (P4Server server : node.servers) {
+                if (! server.isValid()) {
+                    LOG.warn("Tried to use an invalid server " + server);
+                    continue;
+                }
+                if (allowed.contains(server)) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Matched " + file + " to " + server + " at depth " + (i + 1));
+                    }
+                    return server;
+                }
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Matched " + file + " to no server");
+        }
+        return null;
+    }
+
+
+    @NotNull
+    private static String keyFor(@NotNull File part, int depth) {
+        // The top element is the file system root, which has no name.
+        String key = depth == 0
+                ? FileUtil.toSystemIndependentName(part.getPath())
+                : part.getName();
+        if (! SystemInfo.isFileSystemCaseSensitive) {
+            key = key.toLowerCase();
+        }
+        return key;
+    }
+
+
+    @NotNull
+    private static List<File> getPathParts(@NotNull final FilePath child) {
+        List<File> ret = new ArrayList<File>();
+        FilePath next = child;
+        while (next != null) {
+            ret.add(next.getIOFile());
+            next = next.getParentPath();
+        }
+        Collections.reverse(ret);
+        return ret;
+    }
+
+
+    private static class Node {
+        final Map<String, Node> children = new HashMap<String, Node>();
+        final List<P4Server> servers = new ArrayList<P4Server>(1);
+    }
+}
@@ -14,9 +14,20 @@
 
 package net.groboclown.idea.p4ic.v2.server.cache.local;
 
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vcs.FilePath;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
 import net.groboclown.idea.p4ic.config.ClientConfig;
 import net.groboclown.idea.p4ic.v2.server.util.FilePathUtil;
 import org.jetbrains.annotations.NotNull;
@@ -24,20 +35,41 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A hybrid local cached file.  The ignore file is stored entirely on the client (it can be in Perforce,
  * but the storage will still be considered local), but we'll treat it like the local cache.
+ * <p>
+ * Both the parsed ignore files and the directory to ignore file lookups are kept
+ * in memory.  They are thrown away whenever the VFS reports a change to a file
+ * with an ignore file name, or a directory is moved, renamed or deleted.
  */
 public class IgnoreFiles {
     private static final Logger LOG = Logger.getInstance(IgnoreFiles.class);
 
     private final String ignoreFileName;
 
+    // Directory -> the ignore file that applies to the files in it.
+    private final Map<File, IgnoreFileRef> ignoreFileForDir = new ConcurrentHashMap<File, IgnoreFileRef>();
+
+    // Ignore file -> its parsed patterns.
+    private final Map<FilePath, List<IgnoreFilePattern>> patternsForIgnoreFile =
+            new ConcurrentHashMap<FilePath, List<IgnoreFilePattern>>();
+
+    private volatile long cacheGeneration;
+
 
     public IgnoreFiles(@NotNull final ClientConfig clientConfig) {
         this.ignoreFileName = clientConfig.getIgnoreFileName();
+        IgnoreFileChangeTracker.watch(ignoreFileName);
+        this.cacheGeneration = IgnoreFileChangeTracker.getGeneration();
     }
 
     public String getIgnoreFileName() {
@@ -48,6 +80,7 @@ public class IgnoreFiles {
         if (file == null) {
             return true;
         }
+        checkCacheGeneration();
         final FilePath ignoreFile = findApplicableIgnoreFile(file);
         return isMatch(file, ignoreFile);
     }
@@ -67,11 +100,8 @@ public class IgnoreFiles {
             return false;
         }
 
-        // TODO look at caching these ignore file results.
-        // It would mean needing to be aware of file reload events, though.
-
         try {
-            final List<IgnoreFilePattern> patterns = IgnoreFilePattern.parseFile(ignoreFile.getVirtualFile());
+            final List<IgnoreFilePattern> patterns = getPatterns(ignoreFile);
             for (IgnoreFilePattern pattern: patterns) {
                 if (pattern.matches(preparedPath)) {
                     return pattern.isIgnoreMatchType();
@@ -86,8 +116,36 @@ public class IgnoreFiles {
     }
 
 
+    @NotNull
+    private List<IgnoreFilePattern> getPatterns(@NotNull FilePath ignoreFile) throws IOException {
+        List<IgnoreFilePattern> patterns = patternsForIgnoreFile.get(ignoreFile);
+        if (patterns == null) {
+            VirtualFile vf = ignoreFile.getVirtualFile();
+            if (vf == null) {
+                return Collections.emptyList();
+            }
+            patterns = IgnoreFilePattern.parseFile(vf);
+            patternsForIgnoreFile.put(ignoreFile, patterns);
+        }
+        return patterns;
+    }
+
+
+    private void checkCacheGeneration() {
+        long generation = IgnoreFileChangeTracker.getGeneration();
+        if (generation != cacheGeneration) {
+            // Set the generation first, so a change while clearing causes another clear.
+            cacheGeneration = generation;
+            ignoreFileForDir.clear();
+            patternsForIgnoreFile.clear();
+        }
+    }
+
+
     /**
      * Search up the directory tree for the most applicable p4ignore file.
+     * Every directory passed through on the way is remembered, so later
+     * lookups for files in the same part of the tree don't touch the disk.
      *
      * @param file source file
      * @return the ignore file, or {@code null} if it wasn't found
@@ -96,17 +154,135 @@ public class IgnoreFiles {
     private FilePath findApplicableIgnoreFile(@NotNull FilePath file) {
         String ignoreFileName = getIgnoreFileName();
         if (ignoreFileName != null) {
+            List<File> searched = new ArrayList<File>();
+            FilePath found = null;
             File prevDir = file.getIOFile();
             File f = prevDir.getParentFile();
-            while (f != null && f.isDirectory() && !FileUtil.filesEqual(f, prevDir)) {
+            while (true) {
+                if (f == null || FileUtil.filesEqual(f, prevDir)) {
+                    // Reached the top without finding one.
+                    break;
+                }
+                IgnoreFileRef cached = ignoreFileForDir.get(f);
+                if (cached != null) {
+                    found = cached.ignoreFile;
+                    break;
+                }
+                if (!f.isDirectory()) {
+                    // Not there (yet); don't remember anything about it.
+                    return null;
+                }
+                searched.add(f);
                 File c = new File(f, ignoreFileName);
                 if (c.exists() && c.isFile() && c.canRead()) {
-                    return FilePathUtil.getFilePath(c);
+                    found = FilePathUtil.getFilePath(c);
+                    break;
                 }
                 prevDir = f;
                 f = f.getParentFile();
             }
+            IgnoreFileRef ref = new IgnoreFileRef(found);
+            for (File dir : searched) {
+                ignoreFileForDir.put(dir, ref);
+            }
+            return found;
         }
         return null;
     }
+
+
+    // ConcurrentHashMap values can't be null.
+    private static class IgnoreFileRef {
+        @Nullable
+        final FilePath ignoreFile;
+
+        IgnoreFileRef(@Nullable FilePath ignoreFile) {
+            this.ignoreFile = ignoreFile;
+        }
+    }
+
+
+    /**
+     * Application-wide VFS listener that bumps a generation counter whenever
+     * something happens that could change which ignore file applies to a
+     * file, or what an ignore file says.  The tracker is disposed along with
+     * the application, which closes its message bus connection.
+     */
+    static class IgnoreFileChangeTracker implements BulkFileListener, Disposable {
+        private static final AtomicLong GENERATION = new AtomicLong();
+        private static final Set<String> WATCHED_NAMES =
+                Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private static boolean registered = false;
+
+        static long getGeneration() {
+            return GENERATION.get();
+        }
+
+        static synchronized void watch(@Nullable String ignoreFileName) {
+            if (ignoreFileName != null) {
+                WATCHED_NAMES.add(ignoreFileName);
+            }
+            if (!registered) {
+                final Application application = ApplicationManager.getApplication();
+                if (application != null) {
+                    final IgnoreFileChangeTracker tracker = new IgnoreFileChangeTracker();
+                    Disposer.register(application, tracker);
+                    application.getMessageBus().connect(tracker).subscribe(
+                            VirtualFileManager.VFS_CHANGES, tracker);
+                    registered = true;
+                }
+            }
+        }
+
+        @Override
+        public void dispose() {
+            synchronized (IgnoreFileChangeTracker.class) {
+                registered = false;
+            }
+        }
+
+        @Override
+        public void before(@NotNull List<? extends VFileEvent> events) {
+            // do nothing
+        }
+
+        @Override
+        public void after(@NotNull List<? extends VFileEvent> events) {
+            for (VFileEvent event : events) {
+                if (affectsIgnoreFiles(event)) {
+                    LOG.debug("Ignore file cache invalidated by " + event);
+                    GENERATION.incrementAndGet();
+                    return;
+                }
+            }
+        }
+
+        private static boolean affectsIgnoreFiles(@NotNull VFileEvent event) {
+            if (isWatchedName(event.getPath())) {
+                return true;
+            }
+            if (event instanceof VFilePropertyChangeEvent) {
+                VFilePropertyChangeEvent propEvent = (VFilePropertyChangeEvent) event;
+                if (VirtualFile.PROP_NAME.equals(propEvent.getPropertyName())) {
+                    return WATCHED_NAMES.contains(String.valueOf(propEvent.getNewValue()))
+                            || propEvent.getFile().isDirectory();
+                }
+                return false;
+            }
+            if (event instanceof VFileMoveEvent || event instanceof VFileDeleteEvent) {
+                // The directory might hold an ignore file, or sit under one.
+                final VirtualFile vf = event.getFile();
+                return vf == null || vf.isDirectory();
+            }
+            return false;
+        }
+
+        private static boolean isWatchedName(@Nullable String path) {
+            if (path == null) {
+                return false;
+            }
+            int pos = Math.max(path.lastIndexOf('/'), path.lastIndexOf(File.separatorChar));
+            return WATCHED_NAMES.contains(path.substring(pos + 1));
+        }
+    }
 }
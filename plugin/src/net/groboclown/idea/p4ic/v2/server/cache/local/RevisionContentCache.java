@@ -0,0 +1,507 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.groboclown.idea.p4ic.v2.server.cache.local;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.components.ApplicationComponent;
+import com.intellij.openapi.diagnostic.Logger;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.impl.mapbased.rpc.func.helper.MD5Digester;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Keeps the contents of submitted file revisions, so that opening the same
+ * diff, annotation or history revision again doesn't need to go back to the
+ * server, and still works while offline.  A submitted revision never
+ * changes, so the entries never need to be refreshed; they're only evicted
+ * to stay within the size limits.
+ * <p>
+ * The contents are stored on disk by their MD5 digest (so identical
+ * revisions, say across branches, are only stored once), with a small index
+ * file per server, depot path and revision pointing to the digest.  The most
+ * recently used contents are also kept in memory.  Disk eviction is by the
+ * last time the content was read (reads served from memory count too), and
+ * takes the index files pointing to the evicted contents with it.  Files are
+ * written in a separate temporary directory first, so the eviction never
+ * sees a partly written file.  Callers always get their own copy of the
+ * contents.
+ */
+public class RevisionContentCache implements ApplicationComponent {
+    private static final Logger LOG = Logger.getInstance(RevisionContentCache.class);
+
+    private static final long DEFAULT_MAX_DISK_BYTES = 256L * 1024L * 1024L;
+    private static final long DEFAULT_MAX_MEMORY_BYTES = 16L * 1024L * 1024L;
+    private static final String INDEX_DIR = "index";
+    private static final String CONTENT_DIR = "content";
+    private static final String TEMP_DIR = "tmp";
+    // How often a revision read from memory marks its disk file as used.
+    private static final long TOUCH_INTERVAL_MILLIS = 60L * 1000L;
+    private static final String ENCODING = "UTF-8";
+
+    private final File indexDir;
+    private final File contentDir;
+    private final File tempDir;
+    private final long maxDiskBytes;
+    private final long maxMemoryBytes;
+
+    private final Object sync = new Object();
+    // access-ordered, so the first entry is the least recently used.
+    private final LinkedHashMap<String, CachedRevision> memory =
+            new LinkedHashMap<String, CachedRevision>(64, 0.75f, true);
+    private long memoryBytes = 0;
+    // -1 means the disk hasn't been scanned yet.
+    private long diskBytes = -1;
+    private boolean sweepingIndexes = false;
+
+
+    public static RevisionContentCache getInstance() {
+        return ApplicationManager.getApplication().getComponent(RevisionContentCache.class);
+    }
+
+
+    // Used by PicoContainer
+    public RevisionContentCache() {
+        this(new File(PathManager.getSystemPath(), "p4ic-revisions"),
+                DEFAULT_MAX_DISK_BYTES, DEFAULT_MAX_MEMORY_BYTES);
+    }
+
+
+    public RevisionContentCache(@NotNull File rootDir, long maxDiskBytes, long maxMemoryBytes) {
+        this.indexDir = new File(rootDir, INDEX_DIR);
+        this.contentDir = new File(rootDir, CONTENT_DIR);
+        this.tempDir = new File(rootDir, TEMP_DIR);
+        this.maxDiskBytes = maxDiskBytes;
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+
+    /**
+     * The depot path of the spec, if the spec names exactly one submitted
+     * revision of a depot file (that is, "//depot/path#n"), which is the only
+     * kind of spec that can be looked up without asking the server.
+     *
+     * @param spec file spec
+     * @return the depot path, or null if the spec can't be looked up directly.
+     */
+    @Nullable
+    public static String getCacheableDepotPath(@NotNull IFileSpec spec) {
+        final String path = spec.getOriginalPathString();
+        if (path == null || ! path.startsWith("//") || spec.getEndRevision() <= 0 ||
+                spec.getStartRevision() > 0 || spec.getLabel() != null || spec.getDate() != null) {
+            return null;
+        }
+        return path;
+    }
+
+
+    /**
+     * @return a copy of the contents of the revision, or null if it isn't known.
+     */
+    @Nullable
+    public byte[] getBytes(@NotNull String serverId, @NotNull String depotPath, int rev) {
+        final CachedRevision cached = get(toKey(serverId, depotPath, rev));
+        return cached == null ? null : cached.contents.clone();
+    }
+
+
+    /**
+     * @return the contents of the revision, decoded with the charset it was
+     *      stored with, or null if it isn't known or was stored without a
+     *      charset.
+     */
+    @Nullable
+    public String getString(@NotNull String serverId, @NotNull String depotPath, int rev) {
+        final CachedRevision cached = get(toKey(serverId, depotPath, rev));
+        if (cached == null || cached.charset == null) {
+            return null;
+        }
+        try {
+            return new String(cached.contents, cached.charset);
+        } catch (UnsupportedEncodingException e) {
+            LOG.info("Cached " + depotPath + "#" + rev + " has unknown charset " + cached.charset);
+            return null;
+        }
+    }
+
+
+    /**
+     * Remember the contents of a submitted revision.
+     *
+     * @param charset the charset the contents are decoded with, if known.  A
+     *                null charset keeps any charset already stored.
+     */
+    public void put(@NotNull String serverId, @NotNull String depotPath, int rev,
+            @NotNull byte[] contents, @Nullable String charset) {
+        if (rev <= 0 || contents.length > maxDiskBytes / 8) {
+            return;
+        }
+        final String key = toKey(serverId, depotPath, rev);
+        if (charset == null) {
+            final CachedRevision existing = get(key);
+            if (existing != null) {
+                // Already stored, possibly with a better charset.
+                return;
+            }
+        }
+        final MD5Digester digester = new MD5Digester();
+        digester.update(contents);
+        // Keep a copy, so the caller can't change what's cached.
+        final CachedRevision revision = new CachedRevision(key, digester.digestAs32ByteHex(),
+                contents.clone(), charset);
+        putInMemory(revision);
+        try {
+            writeToDisk(revision);
+        } catch (IOException e) {
+            LOG.info("Could not store revision " + depotPath + "#" + rev, e);
+        }
+    }
+
+
+    @Override
+    public void initComponent() {
+        // intentionally empty; the disk is only read when needed.
+    }
+
+
+    @Override
+    public void disposeComponent() {
+        synchronized (sync) {
+            memory.clear();
+            memoryBytes = 0;
+        }
+    }
+
+
+    @NotNull
+    @Override
+    public String getComponentName() {
+        return "Perforce Revision Content Cache";
+    }
+
+
+    @Nullable
+    private CachedRevision get(@NotNull String key) {
+        final CachedRevision inMemory;
+        final boolean touch;
+        synchronized (sync) {
+            inMemory = memory.get(key);
+            final long now = System.currentTimeMillis();
+            touch = inMemory != null && now - inMemory.lastTouched >= TOUCH_INTERVAL_MILLIS;
+            if (touch) {
+                inMemory.lastTouched = now;
+            }
+        }
+        if (inMemory != null) {
+            if (touch) {
+                // Keep the disk eviction from dropping the most used
+                // revisions, which are only read from memory.
+                touchFile(new File(contentDir, inMemory.digest));
+            }
+            return inMemory;
+        }
+        try {
+            final CachedRevision ret = readFromDisk(key);
+            if (ret != null) {
+                putInMemory(ret);
+            }
+            return ret;
+        } catch (IOException e) {
+            LOG.info("Could not read cached revision " + key, e);
+            return null;
+        }
+    }
+
+
+    private void putInMemory(@NotNull CachedRevision revision) {
+        if (revision.contents.length > maxMemoryBytes / 4) {
+            return;
+        }
+        synchronized (sync) {
+            final CachedRevision previous = memory.put(revision.key, revision);
+            if (previous != null) {
+                memoryBytes -= previous.contents.length;
+            }
+            memoryBytes += revision.contents.length;
+            final Iterator<CachedRevision> iter = memory.values().iterator();
+            while (memoryBytes > maxMemoryBytes && iter.hasNext()) {
+                memoryBytes -= iter.next().contents.length;
+                iter.remove();
+            }
+        }
+    }
+
+
+    @Nullable
+    private CachedRevision readFromDisk(@NotNull String key) throws IOException {
+        final File indexFile = getIndexFile(key);
+        if (! indexFile.isFile()) {
+            return null;
+        }
+        final String[] index = new String(readFile(indexFile), ENCODING).split("\n", -1);
+        if (index.length < 3 || ! key.equals(index[0])) {
+            // Not for this key (an index name collision), or damaged.
+            return null;
+        }
+        final String digest = index[1];
+        final File contentFile = new File(contentDir, digest);
+        if (! contentFile.isFile()) {
+            // The contents were evicted.
+            deleteFile(indexFile);
+            return null;
+        }
+        final byte[] contents = readFile(contentFile);
+        final MD5Digester digester = new MD5Digester();
+        digester.update(contents);
+        if (! digest.equals(digester.digestAs32ByteHex())) {
+            LOG.info("Cached contents for " + key + " are damaged; discarding");
+            deleteFile(indexFile);
+            synchronized (sync) {
+                removeContent(contentFile);
+            }
+            return null;
+        }
+
+        // Mark it as recently used, for the eviction.
+        touchFile(contentFile);
+        return new CachedRevision(key, digest, contents, index[2].length() > 0 ? index[2] : null);
+    }
+
+
+    private void writeToDisk(@NotNull CachedRevision revision) throws IOException {
+        final File contentFile = new File(contentDir, revision.digest);
+        if (! contentFile.isFile()) {
+            writeFile(contentFile, revision.contents, tempDir);
+            synchronized (sync) {
+                if (diskBytes >= 0) {
+                    diskBytes += revision.contents.length;
+                }
+            }
+        }
+        final String index = revision.key + '\n' + revision.digest + '\n' +
+                (revision.charset == null ? "" : revision.charset);
+        writeFile(getIndexFile(revision.key), index.getBytes(ENCODING), tempDir);
+        if (evictFromDisk()) {
+            removeOrphanedIndexes();
+        }
+    }
+
+
+    /**
+     * @return true if any contents were evicted, and no other thread is
+     *      already removing the orphaned index files.
+     */
+    private boolean evictFromDisk() {
+        synchronized (sync) {
+            if (diskBytes < 0) {
+                diskBytes = 0;
+                final File[] files = contentDir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        diskBytes += file.length();
+                    }
+                }
+            }
+            if (diskBytes <= maxDiskBytes) {
+                return false;
+            }
+
+            // Remove the least recently read until well under the limit, so
+            // this doesn't happen on every write.
+            final File[] files = contentDir.listFiles();
+            if (files == null) {
+                return false;
+            }
+            final long[] lastModified = new long[files.length];
+            final Integer[] order = new Integer[files.length];
+            for (int i = 0; i < files.length; i++) {
+                lastModified[i] = files[i].lastModified();
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return lastModified[a] < lastModified[b] ? -1 : (lastModified[a] == lastModified[b] ? 0 : 1);
+                }
+            });
+            final long target = maxDiskBytes * 3 / 4;
+            boolean removed = false;
+            for (int i = 0; i < order.length && diskBytes > target; i++) {
+                removed |= removeContent(files[order[i]]);
+            }
+            if (! removed || sweepingIndexes) {
+                return false;
+            }
+            sweepingIndexes = true;
+            return true;
+        }
+    }
+
+
+    /**
+     * Remove the index files whose contents are gone.  This only runs after
+     * an eviction, which clears a quarter of the disk limit at a time.  It
+     * reads every index file, so it runs without holding the lock.  If a
+     * revision is written again while this runs, its new index file may be
+     * removed too, which only costs a later cache miss.
+     */
+    private void removeOrphanedIndexes() {
+        try {
+            final File[] indexFiles = indexDir.listFiles();
+            if (indexFiles == null) {
+                return;
+            }
+            for (File indexFile : indexFiles) {
+                try {
+                    final String[] index = new String(readFile(indexFile), ENCODING).split("\n", -1);
+                    if (index.length < 3 || ! new File(contentDir, index[1]).isFile()) {
+                        deleteFile(indexFile);
+                    }
+                } catch (FileNotFoundException e) {
+                    // Removed by a reader that found its contents gone.
+                } catch (IOException e) {
+                    LOG.info("Could not read index " + indexFile, e);
+                    deleteFile(indexFile);
+                }
+            }
+        } finally {
+            synchronized (sync) {
+                sweepingIndexes = false;
+            }
+        }
+    }
+
+
+    // must be called while holding sync
+    private boolean removeContent(@NotNull File contentFile) {
+        final long length = contentFile.length();
+        if (! deleteFile(contentFile)) {
+            return false;
+        }
+        if (diskBytes >= 0) {
+            diskBytes -= length;
+        }
+        return true;
+    }
+
+
+    @NotNull
+    private File getIndexFile(@NotNull String key) throws IOException {
+        final MD5Digester digester = new MD5Digester();
+        digester.update(key.getBytes(ENCODING));
+        return new File(indexDir, digester.digestAs32ByteHex());
+    }
+
+
+    @NotNull
+    private static String toKey(@NotNull String serverId, @NotNull String depotPath, int rev) {
+        return serverId + '|' + depotPath + '#' + rev;
+    }
+
+
+    @NotNull
+    private static byte[] readFile(@NotNull File file) throws IOException {
+        final byte[] ret = new byte[(int) file.length()];
+        final InputStream in = new FileInputStream(file);
+        try {
+            int pos = 0;
+            int len;
+            while (pos < ret.length && (len = in.read(ret, pos, ret.length - pos)) > 0) {
+                pos += len;
+            }
+            if (pos < ret.length) {
+                throw new EOFException(file.toString());
+            }
+        } finally {
+            in.close();
+        }
+        return ret;
+    }
+
+
+    private static void writeFile(@NotNull File file, @NotNull byte[] contents, @NotNull File tempDir)
+            throws IOException {
+        mkdirs(file.getParentFile());
+        mkdirs(tempDir);
+        // Write to a temporary file first, so a reader never sees a partial
+        // file.  It's kept out of the content directory, so the eviction
+        // can't remove it from under the writer.
+        final File tmp = File.createTempFile(file.getName(), ".tmp", tempDir);
+        try {
+            final OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(contents);
+            } finally {
+                out.close();
+            }
+            if (! tmp.renameTo(file)) {
+                // Windows won't rename over an existing file.
+                deleteFile(file);
+                if (! tmp.renameTo(file)) {
+                    throw new IOException("could not rename " + tmp + " to " + file);
+                }
+            }
+        } finally {
+            if (tmp.exists()) {
+                deleteFile(tmp);
+            }
+        }
+    }
+
+
+    private static void mkdirs(@NotNull File dir) throws IOException {
+        if (! dir.isDirectory() && ! dir.mkdirs() && ! dir.isDirectory()) {
+            throw new IOException("could not create " + dir);
+        }
+    }
+
+
+    private static void touchFile(@NotNull File file) {
+        if (! file.setLastModified(System.currentTimeMillis())) {
+            LOG.debug("Could not touch " + file);
+        }
+    }
+
+
+    private static boolean deleteFile(@NotNull File file) {
+        if (! file.delete() && file.exists()) {
+            LOG.info("Could not delete " + file);
+            return false;
+        }
+        return true;
+    }
+
+
+    private static class CachedRevision {
+        final String key;
+        final String digest;
+        final byte[] contents;
+        final String charset;
+        // guarded by sync
+        long lastTouched = System.currentTimeMillis();
+
+        CachedRevision(@NotNull String key, @NotNull String digest, @NotNull byte[] contents,
+                @Nullable String charset) {
+            this.key = key;
+            this.digest = digest;
+            this.contents = contents;
+            this.charset = charset;
+        }
+    }
+}
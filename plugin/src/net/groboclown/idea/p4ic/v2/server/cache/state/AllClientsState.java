@@ -15,12 +15,14 @@
 package net.groboclown.idea.p4ic.v2.server.cache.state;
 
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.components.*;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.SystemInfo;
 import com.intellij.openapi.vcs.VcsConnectionProblem;
 import com.intellij.util.messages.MessageBusConnection;
+import com.perforce.p4java.impl.mapbased.rpc.func.helper.MD5Digester;
 import net.groboclown.idea.p4ic.config.ClientConfig;
 import net.groboclown.idea.p4ic.config.P4ProjectConfig;
 import net.groboclown.idea.p4ic.server.exceptions.P4InvalidClientException;
@@ -32,11 +34,15 @@ import org.jdom.Element;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Top level state storage for the view of all the clients.  This is per workspace.
@@ -45,6 +51,12 @@ import java.util.concurrent.Callable;
  * The plugin should work fine under these circumstances, but it may have to do
  * more work than necessary.  To alleviate some of this, we can have application-wide
  * messaging of the objects for when the state changes.
+ * <p>
+ * The (potentially very large) client states aren't stored in the IDE
+ * settings file.  Instead, each client is written to its own binary
+ * snapshot file (see {@link ClientStateSnapshot}) on a background thread,
+ * and the settings only hold the snapshot directory and the list of
+ * clients.  A client's snapshot isn't read until that client is first used.
  */
 @State(
         name = "PerforceCachedClientServerState",
@@ -55,8 +67,17 @@ import java.util.concurrent.Callable;
 public class AllClientsState implements ApplicationComponent, PersistentStateComponent<Element> {
     private static final Logger LOG = Logger.getInstance(AllClientsState.class);
 
+    // Version of the settings element format.  Version 1 (no attribute)
+    // contained the full state as XML.
+    private static final String STATE_VERSION = "2";
+
     private final Map<ClientServerRef, ClientLocalServerState> clientStates =
             new HashMap<ClientServerRef, ClientLocalServerState>();
+    // Clients listed in the settings whose snapshot hasn't been read yet.
+    private final Map<ClientServerRef, File> unloadedStates = new HashMap<ClientServerRef, File>();
+    private final Object snapshotWriteLock = new Object();
+    private final AtomicBoolean snapshotWritePending = new AtomicBoolean(false);
+    private volatile File snapshotDir = new File(PathManager.getSystemPath(), "p4ic-client-state");
     private MessageBusConnection messageBus;
 
     @NotNull
@@ -68,7 +89,7 @@ public class AllClientsState implements ApplicationComponent, PersistentStateCom
     @Nullable
     public ClientLocalServerState getCachedStateForClient(@NotNull ClientServerRef clientServerRef) {
         synchronized (clientStates) {
-            return clientStates.get(clientServerRef);
+            return getLoadedState(clientServerRef);
         }
     }
 
@@ -80,7 +101,7 @@ public class AllClientsState implements ApplicationComponent, PersistentStateCom
             throw new P4InvalidClientException(clientServerRef);
         }
         synchronized (clientStates) {
-            ClientLocalServerState ret = clientStates.get(clientServerRef);
+            ClientLocalServerState ret = getLoadedState(clientServerRef);
             if (ret == null) {
                 Boolean isServerCaseInsensitive = null;
                 try {
@@ -119,44 +140,146 @@ public class AllClientsState implements ApplicationComponent, PersistentStateCom
             if (state != null) {
                 clientStates.remove(client);
             }
+            unloadedStates.remove(client);
+        }
+        synchronized (snapshotWriteLock) {
+            final File snapshot = getSnapshotFile(client);
+            if (snapshot.exists() && ! snapshot.delete()) {
+                LOG.info("Could not remove cached state " + snapshot);
+            }
+        }
+    }
+
+
+    // must be called while synchronized on clientStates
+    @Nullable
+    private ClientLocalServerState getLoadedState(@NotNull ClientServerRef clientServerRef) {
+        ClientLocalServerState ret = clientStates.get(clientServerRef);
+        if (ret == null) {
+            final File snapshot = unloadedStates.remove(clientServerRef);
+            if (snapshot != null) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Loading cached state for " + clientServerRef + " from " + snapshot);
+                }
+                synchronized (snapshotWriteLock) {
+                    ret = ClientStateSnapshot.read(snapshot, clientServerRef);
+                }
+                if (ret != null) {
+                    clientStates.put(clientServerRef, ret);
+                }
+            }
         }
+        return ret;
     }
 
 
     @Nullable
     @Override
     public Element getState() {
+        // Only the list of clients goes in the settings; the states
+        // themselves are written in the background.
+        Element ret = new Element("all-clients-state");
+        ret.setAttribute("version", STATE_VERSION);
+        ret.setAttribute("dir", snapshotDir.getPath());
         synchronized (clientStates) {
-            Element ret = new Element("all-clients-state");
-            EncodeReferences refs = new EncodeReferences();
-            for (Entry<ClientServerRef, ClientLocalServerState> entry : clientStates.entrySet()) {
-                Element child = new Element("client-state");
-                ret.addContent(child);
-                entry.getKey().marshal(child);
-                entry.getValue().serialize(child, refs);
+            for (ClientServerRef ref : clientStates.keySet()) {
+                addClientHeader(ret, ref);
+            }
+            for (ClientServerRef ref : unloadedStates.keySet()) {
+                addClientHeader(ret, ref);
             }
-            refs.serialize(ret);
-            return ret;
         }
+        scheduleSnapshotWrite();
+        return ret;
     }
 
     @Override
     public void loadState(@NotNull final Element state) {
         synchronized (clientStates) {
             clientStates.clear();
-            DecodeReferences refs = DecodeReferences.deserialize(state);
+            unloadedStates.clear();
+            if (! STATE_VERSION.equals(state.getAttributeValue("version"))) {
+                // Old format, with all the states in the XML.  These are
+                // written as snapshots on the next save.
+                loadXmlState(state);
+                return;
+            }
+            final String dir = state.getAttributeValue("dir");
+            if (dir != null && dir.length() > 0) {
+                snapshotDir = new File(dir);
+            }
             for (Element child : state.getChildren("client-state")) {
                 ClientServerRef id = ClientServerRef.deserialize(child);
-                if (id != null) {
-                    ClientLocalServerState localServerState = ClientLocalServerState.deserialize(child, refs);
-                    if (localServerState != null) {
-                        clientStates.put(id, localServerState);
-                    }
+                String file = child.getAttributeValue("file");
+                if (id != null && file != null) {
+                    unloadedStates.put(id, new File(snapshotDir, file));
+                }
+            }
+        }
+    }
+
+    // must be called while synchronized on clientStates
+    private void loadXmlState(@NotNull final Element state) {
+        DecodeReferences refs = DecodeReferences.deserialize(state);
+        for (Element child : state.getChildren("client-state")) {
+            ClientServerRef id = ClientServerRef.deserialize(child);
+            if (id != null) {
+                ClientLocalServerState localServerState = ClientLocalServerState.deserialize(child, refs);
+                if (localServerState != null) {
+                    clientStates.put(id, localServerState);
+                }
+            }
+        }
+    }
+
+    private void addClientHeader(@NotNull Element parent, @NotNull ClientServerRef ref) {
+        Element child = new Element("client-state");
+        parent.addContent(child);
+        ref.marshal(child);
+        child.setAttribute("file", getSnapshotFile(ref).getName());
+    }
+
+    private void scheduleSnapshotWrite() {
+        if (snapshotWritePending.compareAndSet(false, true)) {
+            ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+                @Override
+                public void run() {
+                    snapshotWritePending.set(false);
+                    writeSnapshots();
+                }
+            });
+        }
+    }
+
+    private void writeSnapshots() {
+        final Map<ClientServerRef, ClientLocalServerState> toWrite;
+        synchronized (clientStates) {
+            // Unloaded states haven't changed, so their snapshots are still good.
+            toWrite = new HashMap<ClientServerRef, ClientLocalServerState>(clientStates);
+        }
+        synchronized (snapshotWriteLock) {
+            for (Entry<ClientServerRef, ClientLocalServerState> entry : toWrite.entrySet()) {
+                final File snapshot = getSnapshotFile(entry.getKey());
+                try {
+                    ClientStateSnapshot.write(snapshot, entry.getKey(), entry.getValue());
+                } catch (IOException e) {
+                    LOG.warn("Could not write cached state for " + entry.getKey() + " to " + snapshot, e);
                 }
             }
         }
     }
 
+    @NotNull
+    private File getSnapshotFile(@NotNull ClientServerRef ref) {
+        final MD5Digester digester = new MD5Digester();
+        try {
+            digester.update((ref.getServerName().getFullPort() + '\n' + ref.getClientName()).getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return new File(snapshotDir, digester.digestAs32ByteHex() + ".bin");
+    }
+
     @Override
     public void initComponent() {
         messageBus = ApplicationManager.getApplication().getMessageBus().connect();
@@ -189,6 +312,8 @@ public class AllClientsState implements ApplicationComponent, PersistentStateCom
         if (messageBus != null) {
             messageBus.disconnect();
         }
+        // The last background write may not have happened yet.
+        writeSnapshots();
     }
 
     @NotNull
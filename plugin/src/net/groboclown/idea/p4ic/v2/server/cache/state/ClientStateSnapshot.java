@@ -0,0 +1,264 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.groboclown.idea.p4ic.v2.server.cache.state;
+
+import com.intellij.openapi.diagnostic.Logger;
+import net.groboclown.idea.p4ic.v2.server.cache.ClientServerRef;
+import org.jdom.Attribute;
+import org.jdom.Element;
+import org.jdom.Text;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes the cached state of a single client as a compact binary
+ * snapshot file, so the IDE's own settings file only needs to point at it.
+ * <p>
+ * The snapshot keeps the same element structure the state classes already
+ * serialize to (so their serialize / deserialize methods stay the single
+ * definition of what's stored), but writes it as a compressed stream where
+ * each distinct name and value is only written once; the cached file
+ * states repeat the same few attribute names and many path prefixes.
+ * <p>
+ * Format (inside a gzip stream): the magic number and version, then the
+ * root element.  An element is its name, its attribute count and
+ * name/value pairs, then its content count and the content items (each
+ * tagged as an element or text).  Every string is written as a reference
+ * to an earlier string, or as a new string added to the table.
+ */
+final class ClientStateSnapshot {
+    private static final Logger LOG = Logger.getInstance(ClientStateSnapshot.class);
+
+    private static final int MAGIC = 0x50344353; // "P4CS"
+    static final int VERSION = 1;
+
+    private static final int CONTENT_ELEMENT = 1;
+    private static final int CONTENT_TEXT = 2;
+
+
+    private ClientStateSnapshot() {
+        // utility class
+    }
+
+
+    static void write(@NotNull File file, @NotNull ClientServerRef ref, @NotNull ClientLocalServerState state)
+            throws IOException {
+        // The references are per client, so each snapshot can be loaded
+        // on its own.
+        final Element root = new Element("client-state");
+        final EncodeReferences refs = new EncodeReferences();
+        ref.marshal(root);
+        state.serialize(root, refs);
+        refs.serialize(root);
+
+        final File dir = file.getParentFile();
+        if (! dir.isDirectory() && ! dir.mkdirs() && ! dir.isDirectory()) {
+            throw new IOException("could not create " + dir);
+        }
+        final File tmp = new File(dir, file.getName() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(tmp))));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            new Writer(out).writeElement(root);
+        } finally {
+            out.close();
+        }
+        if (! tmp.renameTo(file)) {
+            // Windows won't rename over an existing file.
+            if (! file.delete() || ! tmp.renameTo(file)) {
+                throw new IOException("could not rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+
+    /**
+     * @return the client state in the snapshot, or null if the snapshot is
+     *      missing, from another version, or for a different client.
+     */
+    @Nullable
+    static ClientLocalServerState read(@NotNull File file, @NotNull ClientServerRef expected) {
+        if (! file.isFile()) {
+            LOG.info("No cached state snapshot " + file);
+            return null;
+        }
+        final Element root;
+        try {
+            final InputStream raw = new FileInputStream(file);
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(raw)));
+                if (in.readInt() != MAGIC) {
+                    LOG.info("Not a cached state snapshot: " + file);
+                    return null;
+                }
+                final int version = in.readInt();
+                if (version != VERSION) {
+                    LOG.info("Ignoring cached state snapshot " + file + " with version " + version);
+                    return null;
+                }
+                root = new Reader(in).readElement();
+            } finally {
+                if (in != null) {
+                    in.close();
+                } else {
+                    raw.close();
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not read cached state snapshot " + file, e);
+            return null;
+        }
+        if (! expected.equals(ClientServerRef.deserialize(root))) {
+            LOG.info("Cached state snapshot " + file + " is not for " + expected);
+            return null;
+        }
+        final DecodeReferences refs = DecodeReferences.deserialize(root);
+        return ClientLocalServerState.deserialize(root, refs);
+    }
+
+
+    private static final class Writer {
+        private final DataOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+        Writer(@NotNull DataOutputStream out) {
+            this.out = out;
+        }
+
+        void writeElement(@NotNull Element element) throws IOException {
+            writeString(element.getName());
+            final List<?> attributes = element.getAttributes();
+            writeCount(attributes.size());
+            for (Object o : attributes) {
+                final Attribute attribute = (Attribute) o;
+                writeString(attribute.getName());
+                writeString(attribute.getValue());
+            }
+            final List<Object> contents = new ArrayList<Object>();
+            for (Object o : element.getContent()) {
+                if (o instanceof Element || o instanceof Text) {
+                    contents.add(o);
+                }
+            }
+            writeCount(contents.size());
+            for (Object o : contents) {
+                if (o instanceof Element) {
+                    out.writeByte(CONTENT_ELEMENT);
+                    writeElement((Element) o);
+                } else {
+                    out.writeByte(CONTENT_TEXT);
+                    writeString(((Text) o).getText());
+                }
+            }
+        }
+
+        private void writeString(@NotNull String value) throws IOException {
+            final Integer index = strings.get(value);
+            if (index != null) {
+                writeCount(index + 1);
+                return;
+            }
+            // 0 marks a new string.
+            writeCount(0);
+            final byte[] bytes = value.getBytes("UTF-8");
+            writeCount(bytes.length);
+            out.write(bytes);
+            strings.put(value, strings.size());
+        }
+
+        // variable length, 7 bits at a time, for the many small numbers.
+        private void writeCount(int value) throws IOException {
+            while ((value & ~0x7f) != 0) {
+                out.writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+    }
+
+
+    private static final class Reader {
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<String>();
+
+        Reader(@NotNull DataInputStream in) {
+            this.in = in;
+        }
+
+        @NotNull
+        Element readElement() throws IOException {
+            final Element ret = new Element(readString());
+            final int attributeCount = readCount();
+            for (int i = 0; i < attributeCount; i++) {
+                final String name = readString();
+                ret.setAttribute(name, readString());
+            }
+            final int contentCount = readCount();
+            for (int i = 0; i < contentCount; i++) {
+                final int type = in.readByte();
+                if (type == CONTENT_ELEMENT) {
+                    ret.addContent(readElement());
+                } else if (type == CONTENT_TEXT) {
+                    ret.addContent(new Text(readString()));
+                } else {
+                    throw new IOException("unknown content type " + type);
+                }
+            }
+            return ret;
+        }
+
+        @NotNull
+        private String readString() throws IOException {
+            final int index = readCount();
+            if (index > 0) {
+                if (index > strings.size()) {
+                    throw new IOException("bad string reference " + index);
+                }
+                return strings.get(index - 1);
+            }
+            final byte[] bytes = new byte[readCount()];
+            in.readFully(bytes);
+            final String ret = new String(bytes, "UTF-8");
+            strings.add(ret);
+            return ret;
+        }
+
+        private int readCount() throws IOException {
+            int ret = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (shift > 28) {
+                    throw new IOException("bad count");
+                }
+                b = in.readByte() & 0xff;
+                ret |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return ret;
+        }
+    }
+}
@@ -22,7 +22,8 @@ import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -32,23 +33,33 @@ import java.util.concurrent.locks.ReentrantLock;
  * be updated via this class.  The primary concern of this class is to keep track
  * of the {@link P4ClientFileMapping} instances so that they can be correctly updated if
  * a client mapping changes.
+ * <p/>
+ * Lookups of known files don't lock; the change provider, the VFS listener and
+ * the cache sync all look up files at the same time.  Creating a mapping only
+ * locks the stripes for its depot path and location, so unrelated files can
+ * be added in parallel.  Changing an existing mapping's depot path or location
+ * (and the bulk operations) lock all the stripes, because the mapping's old
+ * keys can be on any of them.  Always lock the stripes in index order.
+ * <p/>
+ * Mappings that are no longer used are only weakly held; when one is
+ * collected, its reference comes back on the queue, and just its own
+ * entries are removed.
  */
 public class FileMappingRepo {
-    private static final int CACHE_MISS_THRESHOLD = 100;
+    private static final int STRIPE_COUNT = 16;
 
     private final boolean serverIsCaseInsensitive;
 
-    private final Lock lock = new ReentrantLock();
+    private final Lock[] stripes = new Lock[STRIPE_COUNT];
 
     private final ReferenceQueue<P4ClientFileMapping> queue;
-    private final Set<WeakReference<P4ClientFileMapping>> files = new HashSet<WeakReference<P4ClientFileMapping>>();
-    private final Map<FilePath, WeakReference<P4ClientFileMapping>> filesByLocal = new HashMap<FilePath, WeakReference<P4ClientFileMapping>>();
+    private final Set<MappingRef> files =
+            Collections.newSetFromMap(new ConcurrentHashMap<MappingRef, Boolean>());
+    private final ConcurrentMap<FilePath, MappingRef> filesByLocal = new ConcurrentHashMap<FilePath, MappingRef>();
 
     // Because of the case sensitivity of the server, access to this map should
     // go through the specialized functions below.
-    private final Map<String, WeakReference<P4ClientFileMapping>> filesByDepot = new HashMap<String, WeakReference<P4ClientFileMapping>>();
-
-    private int cacheMissCount = 0;
+    private final ConcurrentMap<String, MappingRef> filesByDepot = new ConcurrentHashMap<String, MappingRef>();
 
     public FileMappingRepo(final boolean serverIsCaseInsensitive) {
         this(serverIsCaseInsensitive, new ReferenceQueue<P4ClientFileMapping>());
@@ -57,16 +68,15 @@ public class FileMappingRepo {
     FileMappingRepo(final boolean serverIsCaseInsensitive, @NotNull ReferenceQueue<P4ClientFileMapping> queue) {
         this.serverIsCaseInsensitive = serverIsCaseInsensitive;
         this.queue = queue;
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new ReentrantLock();
+        }
     }
 
     @NotNull
     public Iterable<P4ClientFileMapping> getAllFiles() {
-        lock.lock();
-        try {
-            return new WeakIterable(files);
-        } finally {
-            lock.unlock();
-        }
+        expungeStaleEntries();
+        return new WeakIterable(files);
     }
 
     /*
@@ -97,33 +107,28 @@ public class FileMappingRepo {
      */
     @NotNull
     public P4ClientFileMapping getByLocation(@NotNull FilePath location) {
-        // Discover if the location is already registered.  This includes possible cache missing
-        // computations.
-        P4ClientFileMapping map = null;
+        P4ClientFileMapping map = get(filesByLocal.get(location));
+        if (map != null) {
+            // The mapping still exists for this location.
+            // Because we don't know the new state of the depot path,
+            // we can ignore any possible updates that it requires.
+            return map;
+        }
 
-        lock.lock();
+        final int stripe = stripeFor(location);
+        lockStripes(stripe, stripe);
         try {
-            WeakReference<P4ClientFileMapping> ref = filesByLocal.get(location);
-            if (ref != null) {
-                map = ref.get();
-                if (map == null) {
-                    // cache miss logic and cleanup
-                    filesByLocal.remove(location);
-                    onCacheMiss();
-                }
-                // else: the mapping still exists for this location.
-                // Because we don't know the new state of the depot path,
-                // we can ignore any possible updates that it requires.
-            }
+            expungeStaleEntries();
+            map = get(filesByLocal.get(location));
             if (map == null) {
                 map = new P4ClientFileMapping(null, location);
-                ref = createRef(map);
+                final MappingRef ref = createRef(map);
                 files.add(ref);
-                filesByLocal.put(location, ref);
+                putLocal(location, ref);
                 // no depot associated with this mapping.
             }
         } finally {
-            lock.unlock();
+            unlockStripes(stripe, stripe);
         }
         return map;
     }
@@ -140,59 +145,90 @@ public class FileMappingRepo {
      */
     @NotNull
     public P4ClientFileMapping getByDepotLocation(@NotNull String depot, @Nullable FilePath location) {
-        // Discover if the location is already registered.  This includes possible cache missing
-        // computations.
-        P4ClientFileMapping map = null;
+        final String internalDepotPath = internalDepotPath(depot);
+        P4ClientFileMapping map = findByDepotLocation(internalDepotPath, location);
+        if (map != null && ! needsUpdate(map, depot, location)) {
+            return map;
+        }
 
-        lock.lock();
-        try {
-            final String internalDepotPath = internalDepotPath(depot);
-            WeakReference<P4ClientFileMapping> ref = filesByDepot.get(internalDepotPath);
-            if (ref == null && location != null) {
-                ref = filesByLocal.get(location);
+        if (map == null) {
+            // Probably a new mapping, which only needs its own stripes.
+            final int depotStripe = stripeFor(internalDepotPath);
+            final int localStripe = location == null ? depotStripe : stripeFor(location);
+            lockStripes(depotStripe, localStripe);
+            try {
+                expungeStaleEntries();
+                map = getByDepotLocationLocked(depot, internalDepotPath, location, false);
+            } finally {
+                unlockStripes(depotStripe, localStripe);
             }
-            if (ref != null) {
-                map = ref.get();
-                if (map == null) {
-                    // cache miss logic and cleanup
-                    filesByDepot.remove(internalDepotPath);
-                    filesByLocal.remove(location);
-                    onCacheMiss();
-                } else if (location != null && !location.equals(map.getLocalFilePath())) {
-                    // This is a location update.
-                    filesByLocal.remove(map.getLocalFilePath());
-                    filesByLocal.put(location, ref);
-                    map.updateLocalPath(location);
-                } else if (!depot.equals(map.getDepotPath())) {
-                    // This is a depot update
-                    // depot is always not-null
-                    if (map.getDepotPath() != null) {
-                        filesByDepot.remove(internalDepotPath(map.getDepotPath()));
-                    }
-                    filesByDepot.put(depot, ref);
-                    map.updateDepot(depot);
-                }
-                // else, either the location is not known by the callee (it might be known
-                // by the cached object), or both the callee and the cache version have
-                // the same location object and depot location.  Either way, there's no need to
-                // touch the map's location or the lookups.
+            if (map != null) {
+                return map;
             }
-            if (map == null) {
-                if (location != null) {
-                    map = new P4ClientFileMapping(depot, location);
-                    ref = createRef(map);
-                    filesByLocal.put(location, ref);
-                } else {
-                    map = new P4ClientFileMapping(depot);
-                    ref = createRef(map);
-                    // no local assignment
+        }
+
+        // An existing mapping needs to change its keys.
+        lockAll();
+        try {
+            expungeStaleEntries();
+            map = getByDepotLocationLocked(depot, internalDepotPath, location, true);
+        } finally {
+            unlockAll();
+        }
+        assert map != null;
+        return map;
+    }
+
+    // Must be run with the stripes for the depot path and location locked,
+    // or all the stripes if canUpdate is true.  Returns null if an update is
+    // needed but not allowed.
+    @Nullable
+    private P4ClientFileMapping getByDepotLocationLocked(@NotNull String depot, @NotNull String internalDepotPath,
+            @Nullable FilePath location, boolean canUpdate) {
+        MappingRef ref = filesByDepot.get(internalDepotPath);
+        if (ref == null && location != null) {
+            ref = filesByLocal.get(location);
+        }
+        P4ClientFileMapping map = get(ref);
+        if (map != null) {
+            if (location != null && !location.equals(map.getLocalFilePath())) {
+                if (! canUpdate) {
+                    return null;
                 }
-                filesByDepot.put(internalDepotPath, ref);
-                files.add(ref);
+                // This is a location update.
+                removeLocal(map.getLocalFilePath(), ref);
+                putLocal(location, ref);
+                map.updateLocalPath(location);
+            } else if (!depot.equals(map.getDepotPath())) {
+                if (! canUpdate) {
+                    return null;
+                }
+                // This is a depot update
+                // depot is always not-null
+                removeByDepot(map.getDepotPath(), ref);
+                addByDepot(depot, ref);
+                map.updateDepot(depot);
             }
-        } finally {
-            lock.unlock();
+            // else, either the location is not known by the callee (it might be known
+            // by the cached object), or both the callee and the cache version have
+            // the same location object and depot location.  Either way, there's no need to
+            // touch the map's location or the lookups.
+            return map;
+        }
+
+        // Any collected mapping under these keys is replaced here; its
+        // queued reference won't remove the new entries.
+        if (location != null) {
+            map = new P4ClientFileMapping(depot, location);
+            ref = createRef(map);
+            putLocal(location, ref);
+        } else {
+            map = new P4ClientFileMapping(depot);
+            ref = createRef(map);
+            // no local assignment
         }
+        addByDepot(depot, ref);
+        files.add(ref);
         return map;
     }
 
@@ -220,28 +256,22 @@ public class FileMappingRepo {
             // nothing to do
             return;
         }
-        lock.lock();
+        lockAll();
         try {
-            WeakReference<P4ClientFileMapping> ref;
-            if (mapping.getLocalFilePath() != null) {
-                ref = filesByLocal.get(mapping.getLocalFilePath());
-            } else if (mapping.getDepotPath() != null) {
-                ref = getWeakRefByDepot(mapping.getDepotPath());
-            } else {
-                throw new IllegalArgumentException("bad mapping: " + mapping);
-            }
+            expungeStaleEntries();
+            MappingRef ref = getRefFor(mapping);
             if (ref == null) {
                 ref = createRef(mapping);
                 files.add(ref);
                 if (mapping.getLocalFilePath() != null) {
-                    filesByLocal.put(mapping.getLocalFilePath(), ref);
+                    putLocal(mapping.getLocalFilePath(), ref);
                 }
             }
-            removeByDepot(mapping.getDepotPath());
+            removeByDepot(mapping.getDepotPath(), ref);
             mapping.updateDepot(depotPath);
             addByDepot(depotPath, ref);
         } finally {
-            lock.unlock();
+            unlockAll();
         }
     }
 
@@ -250,28 +280,21 @@ public class FileMappingRepo {
             // nothing to do
             return;
         }
-        lock.lock();
+        lockAll();
         try {
-            WeakReference<P4ClientFileMapping> ref;
-            if (mapping.getLocalFilePath() != null) {
-                ref = filesByLocal.get(mapping.getLocalFilePath());
-            } else if (mapping.getDepotPath() != null) {
-                ref = getWeakRefByDepot(mapping.getDepotPath());
-            } else {
-                throw new IllegalArgumentException("bad mapping: " + mapping);
-            }
+            expungeStaleEntries();
+            MappingRef ref = getRefFor(mapping);
             if (ref != null) {
-                filesByLocal.remove(mapping.getLocalFilePath());
-            }
-            if (ref == null) {
+                removeLocal(mapping.getLocalFilePath(), ref);
+            } else {
                 ref = createRef(mapping);
                 files.add(ref);
                 addByDepot(mapping.getDepotPath(), ref);
             }
             mapping.updateLocalPath(path);
-            filesByLocal.put(path, ref);
+            putLocal(path, ref);
         } finally {
-            lock.unlock();
+            unlockAll();
         }
     }
 
@@ -282,19 +305,21 @@ public class FileMappingRepo {
      * @param mappings new, fully configured mappings
      */
     public void refreshFiles(@NotNull Collection<P4ClientFileMapping> mappings) {
-        lock.lock();
+        lockAll();
         try {
+            // Everything is replaced, so the queued references don't matter.
+            while (queue.poll() != null) {
+                // drain
+            }
             files.clear();
             filesByDepot.clear();
             filesByLocal.clear();
-            // this implicitly did a flush, so the cache misses can return to 0.
-            cacheMissCount = 0;
 
             for (P4ClientFileMapping mapping : mappings) {
                 addMapping(mapping);
             }
         } finally {
-            lock.unlock();
+            unlockAll();
         }
     }
 
@@ -303,83 +328,106 @@ public class FileMappingRepo {
      * depot mappings.
      */
     public void clearLocations() {
-        lock.lock();
+        lockAll();
         try {
+            expungeStaleEntries();
             filesByLocal.clear();
-            Iterator<WeakReference<P4ClientFileMapping>> iter = files.iterator();
+            Iterator<MappingRef> iter = files.iterator();
             while (iter.hasNext()) {
-                WeakReference<P4ClientFileMapping> ref = iter.next();
+                MappingRef ref = iter.next();
+                ref.localKey = null;
                 final P4ClientFileMapping map = ref.get();
                 if (map == null) {
                     iter.remove();
-                    // delay the cache miss check until the end.
-                    cacheMissCount++;
                 } else {
                     map.updateLocalPath(null);
                 }
             }
-            if (cacheMissCount > CACHE_MISS_THRESHOLD) {
-                flush();
-            }
         } finally {
-            lock.unlock();
+            unlockAll();
         }
     }
 
-    // Must be run from within a write lock.
+    // Must be run with all the stripes locked.
     private void addMapping(@NotNull final P4ClientFileMapping mapping) {
-        final WeakReference<P4ClientFileMapping> originalRef = filesByLocal.remove(mapping.getLocalFilePath());
-        if (originalRef != null) {
-            final P4ClientFileMapping original = originalRef.get();
-            if (original != null) {
-                removeByDepot(original.getDepotPath());
-                filesByLocal.remove(original.getLocalFilePath());
-                files.remove(originalRef);
+        if (mapping.getLocalFilePath() != null) {
+            final MappingRef originalRef = filesByLocal.get(mapping.getLocalFilePath());
+            if (originalRef != null) {
+                removeLocal(mapping.getLocalFilePath(), originalRef);
+                final P4ClientFileMapping original = originalRef.get();
+                if (original != null) {
+                    removeByDepot(original.getDepotPath(), originalRef);
+                    files.remove(originalRef);
+                }
             }
         }
-        final WeakReference<P4ClientFileMapping> mapRef = createRef(mapping);
+        final MappingRef mapRef = createRef(mapping);
         files.add(mapRef);
-        filesByLocal.put(mapping.getLocalFilePath(), mapRef);
+        if (mapping.getLocalFilePath() != null) {
+            putLocal(mapping.getLocalFilePath(), mapRef);
+        }
         addByDepot(mapping.getDepotPath(), mapRef);
     }
 
 
-    // Must be run from within a write lock.
-    private void flush() {
-        Set<Reference<? extends P4ClientFileMapping>> refs = new HashSet<Reference<? extends P4ClientFileMapping>>();
+    /**
+     * Remove the entries of the mappings that have been collected.  Only the
+     * keys that still point to the collected reference are removed, so this
+     * is safe to run at any time.
+     */
+    private void expungeStaleEntries() {
         Reference<? extends P4ClientFileMapping> ref;
         while ((ref = queue.poll()) != null) {
-            refs.add(ref);
-            // The type is what was passed into the queue; so it may
-            // not be a correct object, but it should be.
-            //noinspection SuspiciousMethodCalls
-            files.remove(ref);
-        }
-
-
-        {
-            // Careful not to compare by key (depot path) here...
-            Iterator<Entry<String, WeakReference<P4ClientFileMapping>>> iter =
-                    filesByDepot.entrySet().iterator();
-            while (iter.hasNext()) {
-                final Entry<String, WeakReference<P4ClientFileMapping>> next = iter.next();
-                if (refs.contains(next.getValue())) {
-                    iter.remove();
+            if (ref instanceof MappingRef) {
+                final MappingRef mapRef = (MappingRef) ref;
+                final FilePath localKey = mapRef.localKey;
+                if (localKey != null) {
+                    filesByLocal.remove(localKey, mapRef);
                 }
-            }
-        }
-        {
-            final Iterator<Entry<FilePath, WeakReference<P4ClientFileMapping>>> iter =
-                    filesByLocal.entrySet().iterator();
-            while (iter.hasNext()) {
-                final Entry<FilePath, WeakReference<P4ClientFileMapping>> next = iter.next();
-                if (refs.contains(next.getValue())) {
-                    iter.remove();
+                final String depotKey = mapRef.depotKey;
+                if (depotKey != null) {
+                    filesByDepot.remove(depotKey, mapRef);
                 }
+                //noinspection SuspiciousMethodCalls
+                files.remove(mapRef);
             }
         }
+    }
+
 
-        cacheMissCount = 0;
+    @Nullable
+    private P4ClientFileMapping findByDepotLocation(@NotNull String internalDepotPath, @Nullable FilePath location) {
+        MappingRef ref = filesByDepot.get(internalDepotPath);
+        if (ref == null && location != null) {
+            ref = filesByLocal.get(location);
+        }
+        return get(ref);
+    }
+
+
+    private static boolean needsUpdate(@NotNull P4ClientFileMapping map, @NotNull String depot,
+            @Nullable FilePath location) {
+        return (location != null && !location.equals(map.getLocalFilePath())) ||
+                !depot.equals(map.getDepotPath());
+    }
+
+
+    // The reference that the indexes hold for this mapping, if any.
+    @Nullable
+    private MappingRef getRefFor(@NotNull P4ClientFileMapping mapping) {
+        MappingRef ref = null;
+        if (mapping.getLocalFilePath() != null) {
+            ref = filesByLocal.get(mapping.getLocalFilePath());
+        } else if (mapping.getDepotPath() != null) {
+            ref = getWeakRefByDepot(mapping.getDepotPath());
+        } else {
+            throw new IllegalArgumentException("bad mapping: " + mapping);
+        }
+        if (ref != null && ref.get() != mapping) {
+            // The key was taken over by another mapping.
+            return null;
+        }
+        return ref;
     }
 
 
@@ -392,60 +440,108 @@ public class FileMappingRepo {
     }
 
 
-    private WeakReference<P4ClientFileMapping> getWeakRefByDepot(@NotNull String depot) {
+    private MappingRef getWeakRefByDepot(@NotNull String depot) {
         return filesByDepot.get(internalDepotPath(depot));
     }
 
-    // Must be run from within a write lock.
-    private void addByDepot(@Nullable String depot, @NotNull WeakReference<P4ClientFileMapping> map) {
+    // Must be run with the stripe for the depot path locked.
+    private void addByDepot(@Nullable String depot, @NotNull MappingRef map) {
         if (depot != null) {
-            filesByDepot.put(internalDepotPath(depot), map);
+            final String key = internalDepotPath(depot);
+            filesByDepot.put(key, map);
+            map.depotKey = key;
         }
     }
 
-    // Must be run from within a write lock.
-    private void removeByDepot(@Nullable String depot) {
+    // Must be run with the stripe for the depot path locked.
+    private void removeByDepot(@Nullable String depot, @NotNull MappingRef map) {
         if (depot != null) {
-            filesByDepot.remove(internalDepotPath(depot));
+            filesByDepot.remove(internalDepotPath(depot), map);
+            map.depotKey = null;
+        }
+    }
+
+    // Must be run with the stripe for the location locked.
+    private void putLocal(@NotNull FilePath location, @NotNull MappingRef map) {
+        filesByLocal.put(location, map);
+        map.localKey = location;
+    }
+
+    // Must be run with the stripe for the location locked.
+    private void removeLocal(@Nullable FilePath location, @NotNull MappingRef map) {
+        if (location != null) {
+            filesByLocal.remove(location, map);
+            map.localKey = null;
         }
     }
 
-    // Must be run from within a write lock.
     @Nullable
-    private <T> P4ClientFileMapping cacheGet(@NotNull Map<T, WeakReference<P4ClientFileMapping>> mapper, @NotNull T key) {
-        final WeakReference<P4ClientFileMapping> ref = mapper.get(key);
-        if (ref != null) {
-            final P4ClientFileMapping val = ref.get();
-            if (val != null) {
-                return val;
-            }
+    private static P4ClientFileMapping get(@Nullable MappingRef ref) {
+        return ref == null ? null : ref.get();
+    }
 
-            // Clean up our map; there's no more references to this thing.
-            mapper.remove(key);
+    private int stripeFor(@NotNull Object key) {
+        int h = key.hashCode();
+        // spread the higher bits down, as in HashMap.
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & (STRIPE_COUNT - 1);
+    }
 
-            onCacheMiss();
+    private void lockStripes(int first, int second) {
+        if (first > second) {
+            lockStripes(second, first);
+            return;
+        }
+        stripes[first].lock();
+        if (second != first) {
+            stripes[second].lock();
         }
-        return null;
     }
 
-    // Check if we need to flush our cache
-    private void onCacheMiss() {
-        if (cacheMissCount++ > CACHE_MISS_THRESHOLD) {
-            cacheMissCount = 0;
-            flush();
+    private void unlockStripes(int first, int second) {
+        stripes[first].unlock();
+        if (second != first) {
+            stripes[second].unlock();
+        }
+    }
+
+    private void lockAll() {
+        for (Lock stripe : stripes) {
+            stripe.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].unlock();
         }
     }
 
     @NotNull
-    WeakReference<P4ClientFileMapping> createRef(@NotNull P4ClientFileMapping map) {
-        return new WeakReference<P4ClientFileMapping>(map, queue);
+    MappingRef createRef(@NotNull P4ClientFileMapping map) {
+        return new MappingRef(map, queue);
+    }
+
+
+    /**
+     * Remembers the keys it is stored under, so that once the mapping is
+     * collected, just those entries can be removed.
+     */
+    static final class MappingRef extends WeakReference<P4ClientFileMapping> {
+        volatile FilePath localKey;
+        volatile String depotKey;
+
+        MappingRef(@NotNull P4ClientFileMapping map, @NotNull ReferenceQueue<P4ClientFileMapping> queue) {
+            super(map, queue);
+        }
     }
 
 
     static class WeakIterable implements Iterable<P4ClientFileMapping> {
-        private final Iterable<WeakReference<P4ClientFileMapping>> proxy;
+        private final Iterable<? extends WeakReference<P4ClientFileMapping>> proxy;
 
-        WeakIterable(final Collection<WeakReference<P4ClientFileMapping>> proxy) {
+        WeakIterable(final Collection<? extends WeakReference<P4ClientFileMapping>> proxy) {
             this.proxy = new ArrayList<WeakReference<P4ClientFileMapping>>(proxy);
         }
 
@@ -457,10 +553,10 @@ public class FileMappingRepo {
     }
 
     static class WeakIterator implements Iterator<P4ClientFileMapping> {
-        private final Iterator<WeakReference<P4ClientFileMapping>> iterator;
+        private final Iterator<? extends WeakReference<P4ClientFileMapping>> iterator;
         private P4ClientFileMapping next;
 
-        public WeakIterator(@NotNull final Iterator<WeakReference<P4ClientFileMapping>> iterator) {
+        public WeakIterator(@NotNull final Iterator<? extends WeakReference<P4ClientFileMapping>> iterator) {
             this.iterator = iterator;
         }
 
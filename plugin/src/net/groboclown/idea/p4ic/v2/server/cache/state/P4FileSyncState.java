@@ -14,6 +14,7 @@
 
 package net.groboclown.idea.p4ic.v2.server.cache.state;
 
+import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.perforce.p4java.core.file.IFileSpec;
 import net.groboclown.idea.p4ic.server.P4StatusMessage;
@@ -61,6 +62,16 @@ public final class P4FileSyncState extends CachedState {
         return file.getLocalFilePath().getVirtualFile();
     }
 
+    @Nullable
+    public String getDepotPath() {
+        return file.getDepotPath();
+    }
+
+    @Nullable
+    public FilePath getLocalFilePath() {
+        return file.getLocalFilePath();
+    }
+
     @NotNull
     public IFileSpec getFileSpec() throws P4Exception {
         return file.getFileSpec();
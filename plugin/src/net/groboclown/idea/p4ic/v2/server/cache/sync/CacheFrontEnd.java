@@ -26,6 +26,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Package-level marker for the cache front ends.  This just enforces
@@ -38,6 +40,11 @@ abstract class CacheFrontEnd {
     // TODO make this configurable
     static final long MIN_REFRESH_INTERVAL_MS = 1000L;
 
+    // Queries can run at the same time, so keep two refreshes of the same
+    // cache from both going to the server.  A refresh also holds the
+    // connection's cache refresh lock, so it doesn't overlap an update action.
+    final Lock refreshLock = new ReentrantLock();
+
 
     final ServerQuery<CacheFrontEnd> createRefreshQuery(final boolean forceRefresh) {
         return new ServerQuery<CacheFrontEnd>() {
@@ -49,7 +56,18 @@ abstract class CacheFrontEnd {
                     throws InterruptedException {
                 ServerConnection.assertInServerConnection();
                 // TODO pass in the syncRunner?
-                loadServerCache(exec, cacheManager, alerts, forceRefresh);
+                final Lock updateLock = connection.getCacheRefreshLock();
+                updateLock.lockInterruptibly();
+                try {
+                    refreshLock.lockInterruptibly();
+                    try {
+                        loadServerCache(exec, cacheManager, alerts, forceRefresh);
+                    } finally {
+                        refreshLock.unlock();
+                    }
+                } finally {
+                    updateLock.unlock();
+                }
                 return CacheFrontEnd.this;
             }
         };
@@ -20,6 +20,7 @@ import com.intellij.openapi.vcs.VcsException;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.perforce.p4java.core.file.IFileSpec;
 import net.groboclown.idea.p4ic.P4Bundle;
+import net.groboclown.idea.p4ic.server.P4StatusMessage;
 import net.groboclown.idea.p4ic.server.exceptions.P4Exception;
 import net.groboclown.idea.p4ic.v2.server.cache.UpdateGroup;
 import net.groboclown.idea.p4ic.v2.server.cache.state.FileMappingRepo;
@@ -31,6 +32,7 @@ import net.groboclown.idea.p4ic.v2.server.util.FilePathUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.locks.Lock;
@@ -63,22 +65,6 @@ class KnownHaveStateServerCacheSync extends CacheFrontEnd {
     }
 
 
-    @NotNull
-    private VirtualFile[] getKnownFilePaths() {
-        List<VirtualFile> ret;
-        serverStateLock.lock();
-        try {
-            ret = new ArrayList<VirtualFile>(cachedServerState.size());
-            for (P4FileSyncState p4FileSyncState : cachedServerState) {
-                ret.add(p4FileSyncState.getVirtualFile());
-            }
-        } finally {
-            serverStateLock.unlock();
-        }
-        return ret.toArray(new VirtualFile[ret.size()]);
-    }
-
-
     @NotNull
     public Map<VirtualFile, P4FileSyncState> getHaveFiles(@NotNull final Collection<VirtualFile> haves) {
         return mapToStates(haves);
@@ -102,8 +88,18 @@ class KnownHaveStateServerCacheSync extends CacheFrontEnd {
                 // We have a lock, so setup the mapping that we'll return.
                 Map<VirtualFile, P4FileSyncState> ret = mapToStates(haves);
 
-                // TODO use a read lock?
-                loadServerCache(exec, alerts, ret);
+                final Lock updateLock = connection.getCacheRefreshLock();
+                updateLock.lockInterruptibly();
+                try {
+                    refreshLock.lockInterruptibly();
+                    try {
+                        loadServerCache(exec, alerts, ret);
+                    } finally {
+                        refreshLock.unlock();
+                    }
+                } finally {
+                    updateLock.unlock();
+                }
                 return ret;
             }
         };
@@ -152,57 +148,129 @@ class KnownHaveStateServerCacheSync extends CacheFrontEnd {
             @NotNull Collection<P4FileSyncState> toUpdate) {
         ServerConnection.assertInServerConnection();
 
-        // Indexes should all match up.
-        List<P4FileSyncState> syncStates = new ArrayList<P4FileSyncState>(toUpdate);
-        List<IFileSpec> syncFiles = new ArrayList<IFileSpec>(syncStates.size());
-        try {
-            for (P4FileSyncState syncState : syncStates) {
+        // Every requested file is asked about.  A sync of one file back to
+        // an older revision doesn't show up in any client-wide counter, so
+        // there's no cheaper way to know which have revisions are still
+        // right.
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Loading " + toUpdate.size() + " have files");
+        }
+        if (! toUpdate.isEmpty() && loadHaveList(exec, alerts, new ArrayList<P4FileSyncState>(toUpdate))) {
+            lastRefresh = new Date();
+        }
+    }
+
+
+    /**
+     * Load the have list for the states, and merge the results into them
+     * file by file.
+     *
+     * @return false if the server could not be queried.
+     */
+    private boolean loadHaveList(@NotNull P4Exec2 exec, @NotNull AlertManager alerts,
+            @NotNull List<P4FileSyncState> toLoad) {
+        // Indexes of these two match up.
+        final List<P4FileSyncState> syncStates = new ArrayList<P4FileSyncState>(toLoad.size());
+        final List<IFileSpec> syncFiles = new ArrayList<IFileSpec>(toLoad.size());
+        for (P4FileSyncState syncState : toLoad) {
+            try {
                 syncFiles.add(syncState.getFileSpec());
+            } catch (P4Exception e) {
+                LOG.warn("Could not create a spec for " + syncState, e);
+                continue;
             }
-        } catch (P4Exception e) {
-            LOG.error(e);
-            return;
+            syncStates.add(syncState);
         }
-        final List<IFileSpec> haveList;
-        try {
-            haveList = exec.getHaveList(syncFiles);
-        } catch (VcsException e) {
-            LOG.info("Files with problems: " + syncStates);
-            alerts.addWarning(
-                    exec.getProject(),
-                    P4Bundle.message("error.load-have.title"),
-                    P4Bundle.message("error.load-have"),
-                    e, FilePathUtil.getFilePath(exec.getProject().getBaseDir()));
-            // cannot use the cached server state, so clear it out.
-            serverStateLock.lock();
+
+        // A refresh can cover every tracked file, so it's split into
+        // commands of a limited size, each merged on its own.
+        for (int start = 0; start < syncFiles.size(); start += P4Exec2.MAX_SPECS_PER_COMMAND) {
+            final int end = Math.min(syncFiles.size(), start + P4Exec2.MAX_SPECS_PER_COMMAND);
+            final List<IFileSpec> haveList;
             try {
-                cachedServerState.clear();
-            } finally {
-                serverStateLock.unlock();
+                haveList = exec.getHaveList(new ArrayList<IFileSpec>(syncFiles.subList(start, end)));
+            } catch (VcsException e) {
+                LOG.info("Files with problems: " + syncStates.subList(start, end));
+                alerts.addWarning(
+                        exec.getProject(),
+                        P4Bundle.message("error.load-have.title"),
+                        P4Bundle.message("error.load-have"),
+                        e, FilePathUtil.getFilePath(exec.getProject().getBaseDir()));
+                // The cached values are kept; they are refreshed on the next
+                // successful load.
+                return false;
             }
-            return;
+            mergeHaveList(syncStates.subList(start, end), haveList);
         }
-        if (haveList.size() != syncStates.size()) {
-            LOG.info("Files with problems: " + syncStates + "; found " + haveList);
-            alerts.addWarning(
-                    exec.getProject(),
-                    P4Bundle.message("error.load-have.title"),
-                    P4Bundle.message("error.load-have"),
-                    null, getKnownFilePaths());
-            // cannot use the cached server state, so clear it out.
-            serverStateLock.lock();
-            try {
-                cachedServerState.clear();
-            } finally {
-                serverStateLock.unlock();
+        return true;
+    }
+
+
+    /**
+     * Merge the have results of one command into the states it was run
+     * for, matching them by path.
+     */
+    private void mergeHaveList(@NotNull List<P4FileSyncState> syncStates, @NotNull List<IFileSpec> haveList) {
+        final Map<String, P4FileSyncState> byDepot = new HashMap<String, P4FileSyncState>();
+        final Map<File, P4FileSyncState> byLocal = new HashMap<File, P4FileSyncState>();
+        for (P4FileSyncState syncState : syncStates) {
+            if (syncState.getDepotPath() != null) {
+                byDepot.put(syncState.getDepotPath(), syncState);
+            }
+            if (syncState.getLocalFilePath() != null) {
+                byLocal.put(syncState.getLocalFilePath().getIOFile(), syncState);
             }
-            return;
         }
 
-        for (int i = 0; i < syncStates.size(); i++) {
-            syncStates.get(i).update(haveList.get(i), fileMappingRepo);
+        final Set<P4FileSyncState> matched = newIdentitySet();
+        final boolean[] used = new boolean[haveList.size()];
+        for (int i = 0; i < haveList.size(); i++) {
+            final IFileSpec have = haveList.get(i);
+            if (! P4StatusMessage.isValid(have)) {
+                continue;
+            }
+            P4FileSyncState syncState = null;
+            if (have.getDepotPathString() != null) {
+                syncState = byDepot.get(have.getDepotPathString());
+            }
+            if (syncState == null && have.getLocalPathString() != null) {
+                syncState = byLocal.get(new File(have.getLocalPathString()));
+            }
+            if (syncState != null && matched.add(syncState)) {
+                syncState.update(have, fileMappingRepo);
+                used[i] = true;
+            }
+        }
+        if (matched.size() < syncStates.size()) {
+            if (haveList.size() == syncStates.size()) {
+                // The server answers each spec in order, so the remaining
+                // entries should be the "not on client" messages for the
+                // others.  Only those messages are taken by position; a
+                // have result that didn't match its file by path is
+                // ignored rather than given to the wrong file.
+                for (int i = 0; i < syncStates.size(); i++) {
+                    if (! used[i] && ! matched.contains(syncStates.get(i)) &&
+                            ! P4StatusMessage.isValid(haveList.get(i))) {
+                        syncStates.get(i).update(haveList.get(i), fileMappingRepo);
+                    }
+                }
+            } else if (LOG.isDebugEnabled()) {
+                final List<P4FileSyncState> missing = new ArrayList<P4FileSyncState>();
+                for (P4FileSyncState syncState : syncStates) {
+                    if (! matched.contains(syncState)) {
+                        missing.add(syncState);
+                    }
+                }
+                LOG.debug("No have information for " + missing + "; found " + haveList);
+            }
         }
-        lastRefresh = new Date();
+    }
+
+
+    @NotNull
+    private static Set<P4FileSyncState> newIdentitySet() {
+        // The sync state hash code changes with its revision.
+        return Collections.newSetFromMap(new IdentityHashMap<P4FileSyncState, Boolean>());
     }
 
     @Override
@@ -28,6 +28,7 @@ import net.groboclown.idea.p4ic.P4Bundle;
 import net.groboclown.idea.p4ic.extension.P4Vcs;
 import net.groboclown.idea.p4ic.server.FileSpecUtil;
 import net.groboclown.idea.p4ic.server.P4StatusMessage;
+import net.groboclown.idea.p4ic.v2.server.P4ServerManager;
 import net.groboclown.idea.p4ic.v2.server.cache.FileUpdateAction;
 import net.groboclown.idea.p4ic.v2.server.cache.UpdateAction;
 import net.groboclown.idea.p4ic.v2.server.cache.UpdateGroup;
@@ -430,8 +431,14 @@ public class WorkspaceServerCacheSync extends CacheFrontEnd {
         // roots change, then just force a refresh.
         if (! roots.equals(cachedServerWorkspace.getRoots())) {
             doRefresh = true;
+            cachedServerWorkspace.setRoots(roots);
+
+            // The file to server mapping is based on these roots.
+            final P4ServerManager serverManager = exec.getProject().getComponent(P4ServerManager.class);
+            if (serverManager != null) {
+                serverManager.invalidateRoots();
+            }
         }
-        cachedServerWorkspace.setRoots(roots);
 
 
         // The mappings need to match up exactly.
@@ -0,0 +1,284 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.groboclown.idea.p4ic.v2.server.connection;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.vcs.VcsException;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IExtendedFileSpec;
+import com.perforce.p4java.core.file.IFileSpec;
+import net.groboclown.idea.p4ic.server.FileSpecUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Combines the file status (fstat) requests that different callers make
+ * against one server at nearly the same time into a single command.
+ * <p>
+ * The first caller to arrive opens a batch and, if another batch is
+ * already running (so more requests are likely on the way), waits a short
+ * window for others to join it.  It then runs the combined, de-duplicated
+ * request (split into chunks of at most {@link P4Exec2#MAX_SPECS_PER_COMMAND}
+ * files) on its own connection.  Each caller gets back the results for
+ * just its own specs, in the same order, exactly as if it had run the
+ * request itself.
+ * <p>
+ * The results are matched back to the specs by depot or local path.  The
+ * error results don't carry a path, so those are only matched by position,
+ * when the command returned exactly one result per spec.  A caller with a
+ * spec that couldn't be matched runs its own request instead.
+ */
+class FileStatusBatcher {
+    private static final Logger LOG = Logger.getInstance(FileStatusBatcher.class);
+
+    static final long BATCH_WINDOW_MS = 15L;
+    // A batch that has grown this large is sent without waiting for more.
+    private static final int MAX_SPECS_PER_BATCH = P4Exec2.MAX_SPECS_PER_COMMAND * 4;
+
+    private final Object sync = new Object();
+    private Batch open;
+    private int running = 0;
+
+
+    @NotNull
+    List<IExtendedFileSpec> getFileStatus(@NotNull P4Exec2 exec, @NotNull List<IFileSpec> specs)
+            throws VcsException, CancellationException, InterruptedException {
+        if (specs.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final Request request = new Request(specs);
+        final Batch batch;
+        final boolean leader;
+        final boolean wait;
+        synchronized (sync) {
+            if (open != null && open.specCount + specs.size() <= MAX_SPECS_PER_BATCH) {
+                batch = open;
+                leader = false;
+                wait = false;
+            } else {
+                batch = new Batch();
+                open = batch;
+                leader = true;
+                // Alone, there's nobody to wait for.
+                wait = running > 0;
+                running++;
+            }
+            batch.add(request);
+        }
+
+        if (leader) {
+            try {
+                if (wait) {
+                    Thread.sleep(BATCH_WINDOW_MS);
+                }
+            } finally {
+                synchronized (sync) {
+                    if (open == batch) {
+                        open = null;
+                    }
+                }
+                // Even if the sleep was interrupted, the batch is still
+                // sent, so the other callers aren't left waiting.
+                try {
+                    batch.run(exec);
+                } finally {
+                    synchronized (sync) {
+                        running--;
+                    }
+                }
+            }
+        } else {
+            batch.done.await();
+        }
+
+        final List<IExtendedFileSpec> ret = batch.getResults(request);
+        if (ret == null) {
+            return exec.getFileStatus(specs);
+        }
+        return ret;
+    }
+
+
+    private static class Request {
+        final List<IFileSpec> specs;
+        final int[] indexes;
+
+        Request(@NotNull List<IFileSpec> specs) {
+            this.specs = specs;
+            this.indexes = new int[specs.size()];
+        }
+    }
+
+
+    private static class Batch {
+        final List<Request> requests = new ArrayList<Request>();
+        final Map<String, Integer> uniqueIndexes = new HashMap<String, Integer>();
+        final List<IFileSpec> unique = new ArrayList<IFileSpec>();
+        final CountDownLatch done = new CountDownLatch(1);
+        int specCount = 0;
+
+        // Only set by the leader before counting down the latch.
+        IExtendedFileSpec[] results;
+        VcsException vcsError;
+        RuntimeException runtimeError;
+
+        // called while holding the batcher lock.
+        void add(@NotNull Request request) {
+            requests.add(request);
+            specCount += request.specs.size();
+            for (int i = 0; i < request.specs.size(); i++) {
+                final IFileSpec spec = request.specs.get(i);
+                final String key = spec.getAnnotatedPreferredPathString();
+                Integer index = key == null ? null : uniqueIndexes.get(key);
+                if (index == null) {
+                    index = unique.size();
+                    unique.add(spec);
+                    if (key != null) {
+                        uniqueIndexes.put(key, index);
+                    }
+                }
+                request.indexes[i] = index;
+            }
+        }
+
+        void run(@NotNull P4Exec2 exec) {
+            try {
+                if (requests.size() > 1) {
+                    LOG.debug("fstat for " + requests.size() + " requests, " + specCount + " specs, " +
+                            unique.size() + " unique");
+                }
+                final IExtendedFileSpec[] found = new IExtendedFileSpec[unique.size()];
+                for (int start = 0; start < unique.size(); start += P4Exec2.MAX_SPECS_PER_COMMAND) {
+                    final List<IFileSpec> chunk = unique.subList(start,
+                            Math.min(unique.size(), start + P4Exec2.MAX_SPECS_PER_COMMAND));
+                    final List<IExtendedFileSpec> status = exec.getFileStatus(new ArrayList<IFileSpec>(chunk));
+                    match(chunk, status, found, start);
+                }
+                results = found;
+            } catch (VcsException e) {
+                vcsError = e;
+            } catch (RuntimeException e) {
+                runtimeError = e;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        /**
+         * Match the results of one command to the specs it was run with,
+         * by path, and by position for the rest if the counts line up.
+         */
+        private static void match(@NotNull List<IFileSpec> chunk, @NotNull List<IExtendedFileSpec> status,
+                @NotNull IExtendedFileSpec[] found, int start) {
+            final Map<Object, List<Integer>> byPath = new HashMap<Object, List<Integer>>();
+            for (int i = 0; i < status.size(); i++) {
+                final IExtendedFileSpec result = status.get(i);
+                if (result == null || result.getOpStatus() != FileSpecOpStatus.VALID) {
+                    continue;
+                }
+                // P4Exec2 has already unescaped the result paths.
+                addPath(byPath, pathKey(result.getDepotPathString(), false), i);
+                addPath(byPath, pathKey(result.getClientPathString(), false), i);
+                addPath(byPath, pathKey(result.getLocalPathString(), false), i);
+            }
+            final boolean[] used = new boolean[status.size()];
+            for (int i = 0; i < chunk.size(); i++) {
+                final List<Integer> candidates = byPath.get(pathKey(chunk.get(i).getPreferredPathString(), true));
+                if (candidates == null) {
+                    continue;
+                }
+                for (Integer index : candidates) {
+                    if (! used[index]) {
+                        used[index] = true;
+                        found[start + i] = status.get(index);
+                        break;
+                    }
+                }
+            }
+            if (status.size() == chunk.size()) {
+                // fstat answers each spec in order, so the others are the
+                // error results for the specs that weren't matched.
+                for (int i = 0; i < chunk.size(); i++) {
+                    if (found[start + i] == null && ! used[i]) {
+                        found[start + i] = status.get(i);
+                    }
+                }
+            } else if (LOG.isDebugEnabled()) {
+                LOG.debug("fstat returned " + status.size() + " results for " + chunk.size() + " files");
+            }
+        }
+
+        private static void addPath(@NotNull Map<Object, List<Integer>> byPath, @Nullable Object key, int index) {
+            if (key == null) {
+                return;
+            }
+            List<Integer> indexes = byPath.get(key);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>(1);
+                byPath.put(key, indexes);
+            } else if (indexes.contains(index)) {
+                return;
+            }
+            indexes.add(index);
+        }
+
+        /**
+         * Depot paths compare as strings; local paths as files, so they
+         * follow the platform's case sensitivity.
+         */
+        @Nullable
+        private static Object pathKey(@Nullable String path, boolean escaped) {
+            if (path == null) {
+                return null;
+            }
+            final String unescaped = escaped ? FileSpecUtil.unescapeP4Path(path) : path;
+            if (unescaped.startsWith("//")) {
+                return unescaped;
+            }
+            return new File(unescaped);
+        }
+
+        /**
+         * @return the results for the request, or null if the request needs
+         *      to be run on its own.
+         */
+        @Nullable
+        List<IExtendedFileSpec> getResults(@NotNull Request request) throws VcsException {
+            if (vcsError != null) {
+                throw vcsError;
+            }
+            if (runtimeError != null) {
+                throw runtimeError;
+            }
+            if (results == null) {
+                return null;
+            }
+            final List<IExtendedFileSpec> ret = new ArrayList<IExtendedFileSpec>(request.indexes.length);
+            for (int index : request.indexes) {
+                if (results[index] == null) {
+                    // Couldn't tell which result was this spec's.
+                    return null;
+                }
+                ret.add(results[index]);
+            }
+            return ret;
+        }
+    }
+}
@@ -53,10 +53,13 @@ import net.groboclown.idea.p4ic.v2.server.connection.ClientExec.WithClient;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.util.*;
 import java.util.Map.Entry;
@@ -72,6 +75,12 @@ public class P4Exec2 {
     private static final Logger LOG = Logger.getInstance(P4Exec2.class);
     private static final int BUFFER_SIZE = 4 * 1024;
 
+    /**
+     * The most file arguments to send in one command; larger requests are
+     * split up by the callers.
+     */
+    public static final int MAX_SPECS_PER_COMMAND = 500;
+
     private final Project project;
     private final ClientExec exec;
 
@@ -621,9 +630,9 @@ public class P4Exec2 {
                     throws P4JavaException, IOException, InterruptedException, TimeoutException, URISyntaxException,
                     P4Exception {
                 count.invoke("getFileStatus");
-                GetExtendedFilesOptions opts = new GetExtendedFilesOptions(
-                        "-m", Integer.toString(files.size()));
-                return getExtendedFiles(files, server, opts);
+                // No "-m": the files are plain files, so there's one result
+                // each anyway, and a limit would only truncate the output.
+                return getExtendedFiles(files, server, new GetExtendedFilesOptions());
             }
         });
     }
@@ -675,6 +684,13 @@ public class P4Exec2 {
     }
 
 
+    /**
+     * Load the file contents into memory.  The contents are cut short at
+     * the IDE's maximum loaded file size; callers that can handle a stream
+     * should use {@link #loadFile(IFileSpec, File)} instead.
+     *
+     * @return the contents, or null if the server returned none.
+     */
     @Nullable
     public byte[] loadFile(@NotNull final IFileSpec spec)
             throws VcsException, CancellationException, IOException {
@@ -685,25 +701,12 @@ public class P4Exec2 {
                     throws P4JavaException, IOException, InterruptedException, TimeoutException, URISyntaxException, P4Exception {
                 int maxFileSize = VcsUtil.getMaxVcsLoadedFileSize();
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                GetFileContentsOptions fileContentsOptions = new GetFileContentsOptions(false, true);
-                // setting "don't annotate files" to true means we ignore the revision
-                fileContentsOptions.setDontAnnotateFiles(false);
-                count.invoke("getFileContents");
-                InputStream inp = server.getFileContents(Collections.singletonList(spec),
-                        fileContentsOptions);
-                if (inp == null) {
+                final long len = copyFileContents(server, count, spec, baos, maxFileSize);
+                if (len < 0) {
                     return null;
                 }
-
-                try {
-                    byte[] buff = new byte[BUFFER_SIZE];
-                    int len;
-                    while ((len = inp.read(buff, 0, BUFFER_SIZE)) > 0 && baos.size() < maxFileSize) {
-                        baos.write(buff, 0, len);
-                    }
-                } finally {
-                    // Note: be absolutely sure to close the InputStream that is returned.
-                    inp.close();
+                if (len >= maxFileSize) {
+                    LOG.info("Contents of " + spec + " cut short at " + maxFileSize + " bytes");
                 }
                 return baos.toByteArray();
             }
@@ -711,6 +714,77 @@ public class P4Exec2 {
     }
 
 
+    /**
+     * Stream the whole file contents into the target file, without holding
+     * them in memory.  The target is overwritten, so a retried request
+     * starts over with an empty file.
+     *
+     * @return false if the server returned no contents.
+     */
+    public boolean loadFile(@NotNull final IFileSpec spec, @NotNull final File target)
+            throws VcsException, CancellationException {
+        return exec.runWithClient(project, new ClientExec.WithClient<Boolean>() {
+            @Override
+            public Boolean run(@NotNull IOptionsServer server, @NotNull IClient client,
+                    @NotNull ClientExec.ServerCount count)
+                    throws P4JavaException, IOException, InterruptedException, TimeoutException, URISyntaxException, P4Exception {
+                return copyFileContents(server, count, spec, target);
+            }
+        });
+    }
+
+
+    /**
+     * Copy the file contents into the target, replacing whatever it held
+     * before, so that each retry starts over.
+     *
+     * @return false if there were no contents.
+     */
+    static boolean copyFileContents(@NotNull IOptionsServer server, @NotNull ServerCount count,
+            @NotNull IFileSpec spec, @NotNull File target)
+            throws P4JavaException, IOException {
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(target), BUFFER_SIZE * 4);
+        try {
+            return copyFileContents(server, count, spec, out, Long.MAX_VALUE) >= 0;
+        } finally {
+            out.close();
+        }
+    }
+
+
+    /**
+     * @return the number of bytes copied, or -1 if there were no contents.
+     *      The copy stops once at least maxBytes have been copied.
+     */
+    private static long copyFileContents(@NotNull IOptionsServer server, @NotNull ClientExec.ServerCount count,
+            @NotNull IFileSpec spec, @NotNull OutputStream out, long maxBytes)
+            throws P4JavaException, IOException {
+        GetFileContentsOptions fileContentsOptions = new GetFileContentsOptions(false, true);
+        // setting "don't annotate files" to true means we ignore the revision
+        fileContentsOptions.setDontAnnotateFiles(false);
+        count.invoke("getFileContents");
+        InputStream inp = server.getFileContents(Collections.singletonList(spec),
+                fileContentsOptions);
+        if (inp == null) {
+            return -1;
+        }
+
+        long total = 0;
+        try {
+            byte[] buff = new byte[BUFFER_SIZE];
+            int len;
+            while (total < maxBytes && (len = inp.read(buff, 0, BUFFER_SIZE)) > 0) {
+                out.write(buff, 0, len);
+                total += len;
+            }
+        } finally {
+            // Note: be absolutely sure to close the InputStream that is returned.
+            inp.close();
+        }
+        return total;
+    }
+
+
     @NotNull
     public Map<IFileSpec, List<IFileRevisionData>> getRevisionHistory(
             @NotNull final List<IFileSpec> depotFiles, final int maxRevisions)
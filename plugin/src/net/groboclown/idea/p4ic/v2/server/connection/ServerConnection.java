@@ -19,10 +19,13 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vcs.VcsException;
+import com.perforce.p4java.core.file.IExtendedFileSpec;
+import com.perforce.p4java.core.file.IFileSpec;
 import com.perforce.p4java.server.IServerInfo;
 import net.groboclown.idea.p4ic.P4Bundle;
 import net.groboclown.idea.p4ic.changes.P4ChangesViewRefresher;
 import net.groboclown.idea.p4ic.config.ClientConfig;
+import net.groboclown.idea.p4ic.config.UserProjectPreferences;
 import net.groboclown.idea.p4ic.server.VcsExceptionUtil;
 import net.groboclown.idea.p4ic.server.exceptions.P4ConnectionDisposedException;
 import net.groboclown.idea.p4ic.server.exceptions.P4DisconnectedException;
@@ -45,12 +48,26 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * The multi-threaded connections to the Perforce server for a specific client.
+ * <p>
+ * The update actions run one at a time, in order, on the background thread
+ * (or immediately, with the same connection lock).  The queries only read
+ * from the server, so each borrows its own connection from a small pool,
+ * and they run alongside each other and the update actions; a long sync
+ * doesn't hold up the file status queries.  Cache refresh queries are the
+ * exception: they replace the cached server state, so they take the
+ * cache refresh lock, and wait for any running update action to finish.
  */
 public class ServerConnection {
     private static final Logger LOG = Logger.getInstance(ServerConnection.class);
@@ -72,6 +89,18 @@ public class ServerConnection {
     @Nullable
     private ClientExec clientExec;
 
+    // The idle query connections.  The generation changes when the
+    // connections must all be dropped (going offline), so the ones in use
+    // at that time are disposed when they're returned.
+    private final BlockingQueue<PooledExec> idleQueryExecs = new LinkedBlockingQueue<PooledExec>();
+    private final AtomicInteger queryExecCount = new AtomicInteger(0);
+    private final AtomicInteger queryExecGeneration = new AtomicInteger(0);
+    // Nested queries on the same thread reuse the connection they already have.
+    private final ThreadLocal<PooledExec> activeQueryExec = new ThreadLocal<PooledExec>();
+    private final FileStatusBatcher fileStatusBatcher = new FileStatusBatcher();
+    // Read side: cache refreshes.  Write side: update actions.
+    private final ReadWriteLock cacheUpdateLock = new ReentrantReadWriteLock();
+
 
     public static void assertInServerConnection() {
         ThreadGroup currentGroup = Thread.currentThread().getThreadGroup();
@@ -168,6 +197,15 @@ public class ServerConnection {
         }
         disposed = true;
         background.interrupt();
+        if (! idleQueryExecs.isEmpty()) {
+            // Disconnecting can take a while, so keep it off the EDT.
+            ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+                @Override
+                public void run() {
+                    disposeIdleQueryExecs();
+                }
+            });
+        }
         if (clientExec != null) {
             // If the server communication is taking a really long
             // time, this lock attempt can block the EDT.  So, do
@@ -218,6 +256,8 @@ public class ServerConnection {
             @Override
             public Void perform(@NotNull SynchronizedActionRunner runner)
                     throws InterruptedException {
+                final Lock updateLock = cacheUpdateLock.writeLock();
+                updateLock.lockInterruptibly();
                 try {
                     THREAD_EXECUTION_ACTIVE.set(Boolean.TRUE);
                     action.perform(getExec(project), cacheManager, ServerConnection.this, runner, alertManager);
@@ -227,37 +267,68 @@ public class ServerConnection {
                     LOG.info("Ran immediate action on disposed connection", e);
                 } finally {
                     THREAD_EXECUTION_ACTIVE.remove();
+                    updateLock.unlock();
                 }
                 return null;
             }
         });
     }
 
+    /**
+     * Run the query in the current thread, on a pooled connection, so it
+     * doesn't wait for the update actions or for other queries (up to the
+     * configured number of connections).
+     *
+     * @param query query to run; it must not change anything on the server.
+     */
     @Nullable
     public <T> T query(@NotNull
     final Project project, @NotNull
     final ServerQuery<T> query)
             throws InterruptedException {
-        return synchronizer.runImmediateAction(new ActionRunner<T>() {
+        return synchronizer.runQueryAction(new ActionRunner<T>() {
             @Override
             public T perform(@NotNull SynchronizedActionRunner runner)
                     throws InterruptedException {
+                final PooledExec pooled;
                 try {
-                    THREAD_EXECUTION_ACTIVE.set(Boolean.TRUE);
-                    return query.query(getExec(project), cacheManager, ServerConnection.this, runner, alertManager);
+                    pooled = borrowQueryExec(project);
                 } catch (P4InvalidConfigException e) {
                     alertManager.addCriticalError(new ConfigurationProblemHandler(project, statusController, e), e);
+                    return null;
                 } catch (P4ConnectionDisposedException e) {
                     LOG.info("Ran query on disposed server", e);
+                    return null;
+                }
+                final boolean wasActive = THREAD_EXECUTION_ACTIVE.get() == Boolean.TRUE;
+                try {
+                    THREAD_EXECUTION_ACTIVE.set(Boolean.TRUE);
+                    return query.query(new P4Exec2(project, pooled.exec), cacheManager, ServerConnection.this,
+                            runner, alertManager);
                 } finally {
-                    THREAD_EXECUTION_ACTIVE.remove();
+                    if (! wasActive) {
+                        THREAD_EXECUTION_ACTIVE.remove();
+                    }
+                    returnQueryExec(pooled);
                 }
-                return null;
             }
         });
     }
 
 
+    /**
+     * The lock a cache refresh holds while it loads and replaces the cached
+     * server state.  Update actions hold the other side of it, so a refresh
+     * never runs while an action is changing the server, and can't write
+     * back what it read before the action finished.  Refreshes don't block
+     * each other through it.
+     */
+    @NotNull
+    public Lock getCacheRefreshLock() {
+        return cacheUpdateLock.readLock();
+    }
+
+
     /**
      * Retry running a command that failed.  This should usually be put back at the head
      * of the action queue.  It is sometimes necessary if the command fails due to a
@@ -430,6 +501,22 @@ public class ServerConnection {
     }
 
 
+    /**
+     * Get the file status, combined with any other file status requests
+     * that queries against this server make at about the same time.  Use
+     * this instead of {@link P4Exec2#getFileStatus(List)} for the small,
+     * frequent requests.
+     *
+     * @param exec the exec of the calling query.
+     * @return the status of each of the specs, in the same order.
+     */
+    @NotNull
+    public List<IExtendedFileSpec> getFileStatus(@NotNull P4Exec2 exec, @NotNull List<IFileSpec> specs)
+            throws VcsException, CancellationException, InterruptedException {
+        return fileStatusBatcher.getFileStatus(exec, specs);
+    }
+
+
     void goOffline() {
         synchronized (clientExecLock) {
             if (clientExec != null) {
@@ -437,6 +524,89 @@ public class ServerConnection {
                 clientExec = null;
             }
         }
+        queryExecGeneration.incrementAndGet();
+        disposeIdleQueryExecs();
+    }
+
+
+    @NotNull
+    private PooledExec borrowQueryExec(@NotNull Project project)
+            throws P4InvalidConfigException, P4ConnectionDisposedException, InterruptedException {
+        PooledExec pooled = activeQueryExec.get();
+        if (pooled != null) {
+            pooled.depth++;
+            return pooled;
+        }
+        final long expires = System.currentTimeMillis() +
+                UserProjectPreferences.getMaxConnectionWaitTimeMillis(project);
+        while (true) {
+            if (disposed) {
+                throw new P4ConnectionDisposedException();
+            }
+            pooled = idleQueryExecs.poll();
+            if (pooled == null) {
+                final int count = queryExecCount.get();
+                if (count < UserProjectPreferences.getMaxServerConnections(project)) {
+                    if (! queryExecCount.compareAndSet(count, count + 1)) {
+                        continue;
+                    }
+                    try {
+                        pooled = new PooledExec(ClientExec.createFor(config, statusController),
+                                queryExecGeneration.get());
+                    } catch (P4InvalidConfigException e) {
+                        queryExecCount.decrementAndGet();
+                        throw e;
+                    }
+                } else {
+                    final long wait = expires - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new InterruptedException("timed out waiting for a query connection");
+                    }
+                    pooled = idleQueryExecs.poll(wait, TimeUnit.MILLISECONDS);
+                    if (pooled == null) {
+                        continue;
+                    }
+                }
+            }
+            if (pooled.generation != queryExecGeneration.get()) {
+                discardQueryExec(pooled);
+                continue;
+            }
+            activeQueryExec.set(pooled);
+            return pooled;
+        }
+    }
+
+
+    private void returnQueryExec(@NotNull PooledExec pooled) {
+        if (pooled.depth > 0) {
+            pooled.depth--;
+            return;
+        }
+        activeQueryExec.remove();
+        if (disposed || pooled.generation != queryExecGeneration.get()) {
+            discardQueryExec(pooled);
+            return;
+        }
+        idleQueryExecs.add(pooled);
+        if (disposed) {
+            // Lost a race with dispose.
+            disposeIdleQueryExecs();
+        }
+    }
+
+
+    private void discardQueryExec(@NotNull PooledExec pooled) {
+        queryExecCount.decrementAndGet();
+        pooled.exec.dispose();
+    }
+
+
+    private void disposeIdleQueryExecs() {
+        PooledExec pooled;
+        while ((pooled = idleQueryExecs.poll()) != null) {
+            discardQueryExec(pooled);
+        }
     }
 
 
@@ -520,12 +690,18 @@ public class ServerConnection {
                                 return null;
                             }
                             if (!action.project.isDisposed()) {
-                                action.action.perform(exec,
-                                        cacheManager, ServerConnection.this,
-                                        syncRunner, alertManager);
-                                // only remove the state once we've successfully
-                                // processed the action.
-                                cacheManager.removePendingUpdateStates(action.action.getPendingUpdateStates());
+                                final Lock updateLock = cacheUpdateLock.writeLock();
+                                updateLock.lockInterruptibly();
+                                try {
+                                    action.action.perform(exec,
+                                            cacheManager, ServerConnection.this,
+                                            syncRunner, alertManager);
+                                    // only remove the state once we've successfully
+                                    // processed the action.
+                                    cacheManager.removePendingUpdateStates(action.action.getPendingUpdateStates());
+                                } finally {
+                                    updateLock.unlock();
+                                }
 
                                 // force a changelist refresh
                                 P4ChangesViewRefresher.refreshLater(action.project);
@@ -580,6 +756,19 @@ public class ServerConnection {
     }
 
 
+    private static class PooledExec {
+        final ClientExec exec;
+        final int generation;
+        // Only used by the thread that borrowed it.
+        int depth = 0;
+
+        PooledExec(@NotNull ClientExec exec, int generation) {
+            this.exec = exec;
+            this.generation = generation;
+        }
+    }
+
+
     private static class UpdateAction {
         final ServerUpdateAction action;
         final Project project;
@@ -192,6 +192,15 @@ class Synchronizer {
             }
 
 
+            /**
+             * Queries each borrow their own server connection, so they don't
+             * wait on the connection lock, or for each other.
+             */
+            <T> T runQueryAction(@NotNull final ActionRunner<T> runner) throws InterruptedException {
+                return runner.perform(syncRunner);
+            }
+
+
             /**
              * @return true if the action ran, or false if a wait happened.
              */
@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.groboclown.idea.p4ic.v2.server.util;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+
+/**
+ * The contents of a server file revision, streamed into a temporary file
+ * rather than loaded into memory.  The owner must call {@link #delete()}
+ * when finished with it.
+ */
+public class RemoteFileContents {
+    private static final Logger LOG = Logger.getInstance(RemoteFileContents.class);
+    private static final String DEFAULT_CHARSET = "utf-8";
+
+    private final File file;
+    private final String charset;
+
+
+    RemoteFileContents(@NotNull File file, @Nullable String charset) {
+        this.file = file;
+        this.charset = charset;
+    }
+
+
+    @NotNull
+    public File getFile() {
+        return file;
+    }
+
+
+    /**
+     * @return the server's charset for the file, or null if it didn't say.
+     */
+    @Nullable
+    public String getCharset() {
+        return charset;
+    }
+
+
+    public long getLength() {
+        return file.length();
+    }
+
+
+    @NotNull
+    public InputStream openStream() throws IOException {
+        return new BufferedInputStream(new FileInputStream(file));
+    }
+
+
+    /**
+     * Read all the contents into memory.
+     */
+    @NotNull
+    public byte[] toByteArray() throws IOException {
+        final long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(file + " is too large to load into memory (" + length + " bytes)");
+        }
+        final byte[] ret = new byte[(int) length];
+        final InputStream in = new FileInputStream(file);
+        try {
+            int pos = 0;
+            int len;
+            while (pos < ret.length && (len = in.read(ret, pos, ret.length - pos)) > 0) {
+                pos += len;
+            }
+            if (pos < ret.length) {
+                throw new EOFException(file.toString());
+            }
+        } finally {
+            in.close();
+        }
+        return ret;
+    }
+
+
+    /**
+     * @return a reader that decodes the contents as they're read, using the
+     *      server's charset (or utf-8 if that isn't known).
+     */
+    @NotNull
+    public Reader openReader() throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            return new BufferedReader(new InputStreamReader(in,
+                    charset == null ? DEFAULT_CHARSET : charset));
+        } catch (UnsupportedEncodingException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+
+    public void delete() {
+        if (file.exists() && ! file.delete()) {
+            LOG.info("Could not delete " + file);
+            file.deleteOnExit();
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+}
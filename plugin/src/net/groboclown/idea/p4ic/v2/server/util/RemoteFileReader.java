@@ -17,14 +17,18 @@ package net.groboclown.idea.p4ic.v2.server.util;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vcs.VcsException;
+import com.intellij.vcsUtil.VcsUtil;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
 import com.perforce.p4java.core.file.IExtendedFileSpec;
 import com.perforce.p4java.core.file.IFileSpec;
 import net.groboclown.idea.p4ic.P4Bundle;
+import net.groboclown.idea.p4ic.v2.server.cache.local.RevisionContentCache;
 import net.groboclown.idea.p4ic.v2.server.cache.sync.ClientCacheManager;
 import net.groboclown.idea.p4ic.v2.server.connection.*;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
@@ -32,36 +36,67 @@ import java.util.List;
 public class RemoteFileReader {
     private static final Logger LOG = Logger.getInstance(RemoteFileReader.class);
 
-    public static ServerQuery<byte[]> createByteReader(@NotNull FilePath file, @NotNull IFileSpec spec) {
-        return new ByteReader(file, spec);
+    /**
+     * @param serverId server the spec is read from, for the content cache.
+     * @param contentCache checked for, and stores, the submitted revisions, if not null.
+     */
+    public static ServerQuery<String> createStringReader(@NotNull FilePath file, @NotNull IFileSpec spec,
+            @NotNull String serverId, @Nullable RevisionContentCache contentCache) {
+        return new StringReader(file, spec, serverId, contentCache);
     }
 
 
-    public static ServerQuery<String> createStringReader(@NotNull FilePath file, @NotNull IFileSpec spec) {
-        return new StringReader(file, spec);
+    /**
+     * Streams the contents into a new file in the temporary directory,
+     * rather than memory, so it works for files of any size.  The caller
+     * owns the returned contents, and must delete them.
+     */
+    public static ServerQuery<RemoteFileContents> createTempFileReader(@NotNull FilePath file,
+            @NotNull IFileSpec spec, @NotNull File tempDir) {
+        return new TempFileReader(file, spec, tempDir);
+    }
+
+
+    /**
+     * The loaded contents may be cut short if the file is too big
+     * (see {@link P4Exec2#loadFile(IFileSpec)}); those must not be cached.
+     */
+    private static boolean isComplete(@NotNull byte[] contents) {
+        return contents.length < VcsUtil.getMaxVcsLoadedFileSize();
     }
 
 
 
-    private static final class ByteReader implements ServerQuery<byte[]> {
+    private static final class TempFileReader implements ServerQuery<RemoteFileContents> {
         private final FilePath file;
         private final IFileSpec spec;
+        private final File tempDir;
 
-        private ByteReader(@NotNull final FilePath file, @NotNull final IFileSpec spec) {
+        private TempFileReader(@NotNull final FilePath file, @NotNull final IFileSpec spec,
+                @NotNull File tempDir) {
             this.file = file;
             this.spec = spec;
+            this.tempDir = tempDir;
         }
 
         @Nullable
         @Override
-        public byte[] query(@NotNull final P4Exec2 exec,
-                @NotNull final ClientCacheManager cacheManager,
-                @NotNull final ServerConnection connection,
-                @NotNull final SynchronizedActionRunner runner,
+        public RemoteFileContents query(@NotNull final P4Exec2 exec, @NotNull final ClientCacheManager cacheManager,
+                @NotNull final ServerConnection connection, @NotNull final SynchronizedActionRunner runner,
                 @NotNull final AlertManager alerts)
                 throws InterruptedException {
+            File target = null;
             try {
-                return exec.loadFile(spec);
+                final List<IExtendedFileSpec> es =
+                        connection.getFileStatus(exec, Collections.singletonList(spec));
+                final String charset = es.isEmpty() ? null : es.get(0).getCharset();
+                target = File.createTempFile("p4print", ".tmp", tempDir);
+                if (! exec.loadFile(spec, target)) {
+                    return null;
+                }
+                final RemoteFileContents ret = new RemoteFileContents(target, charset);
+                target = null;
+                return ret;
             } catch (VcsException e) {
                 alerts.addWarning(exec.getProject(),
                         P4Bundle.message("exception.load-file.title"),
@@ -72,6 +107,10 @@ public class RemoteFileReader {
                         P4Bundle.message("exception.load-file.title"),
                         P4Bundle.message("exception.load-file", spec.toString()),
                         e, file);
+            } finally {
+                if (target != null && ! target.delete()) {
+                    LOG.info("Could not delete " + target);
+                }
             }
             return null;
         }
@@ -81,10 +120,15 @@ public class RemoteFileReader {
     private static final class StringReader implements ServerQuery<String> {
         private final FilePath file;
         private final IFileSpec spec;
+        private final String serverId;
+        private final RevisionContentCache contentCache;
 
-        private StringReader(@NotNull final FilePath file, @NotNull final IFileSpec spec) {
+        private StringReader(@NotNull final FilePath file, @NotNull final IFileSpec spec,
+                @NotNull String serverId, @Nullable RevisionContentCache contentCache) {
             this.file = file;
             this.spec = spec;
+            this.serverId = serverId;
+            this.contentCache = contentCache;
         }
 
         @Nullable
@@ -94,15 +138,21 @@ public class RemoteFileReader {
                 @NotNull final AlertManager alerts)
                 throws InterruptedException {
             try {
-                byte[] bytes = exec.loadFile(spec);
-                if (bytes == null) {
-                    return null;
-                }
                 final List<IExtendedFileSpec> es =
-                        exec.getFileStatus(Collections.singletonList(spec));
+                        connection.getFileStatus(exec, Collections.singletonList(spec));
                 String encoding = null;
+                String depotPath = RevisionContentCache.getCacheableDepotPath(spec);
+                int rev = spec.getEndRevision();
                 if (! es.isEmpty()) {
-                    encoding = es.get(0).getCharset();
+                    final IExtendedFileSpec status = es.get(0);
+                    encoding = status.getCharset();
+                    if (depotPath == null && status.getOpStatus() == FileSpecOpStatus.VALID &&
+                            status.getDepotPathString() != null && status.getHeadRev() > 0) {
+                        // A local path or #have spec; the status tells which
+                        // submitted revision it refers to.
+                        depotPath = status.getDepotPathString();
+                        rev = status.getHeadRev();
+                    }
                 }
                 if (encoding == null) {
                     LOG.info("No known encoding for " + file + "; using utf-8");
@@ -110,9 +160,24 @@ public class RemoteFileReader {
                     //        P4Bundle.message("exception.load-file-encoding"),
                     //        new P4FileException(file),
                     //        file);
-                    return new String(bytes, "utf-8");
+                    encoding = "utf-8";
+                } else {
+                    LOG.info("reading " + file + " with encoding " + encoding);
+                }
+                if (depotPath != null && contentCache != null) {
+                    final String cached = contentCache.getString(serverId, depotPath, rev);
+                    if (cached != null) {
+                        return cached;
+                    }
+                }
+
+                byte[] bytes = exec.loadFile(spec);
+                if (bytes == null) {
+                    return null;
+                }
+                if (depotPath != null && contentCache != null && isComplete(bytes)) {
+                    contentCache.put(serverId, depotPath, rev, bytes, encoding);
                 }
-                LOG.info("reading " + file + " with encoding " + encoding);
                 return new String(bytes, encoding);
             } catch (VcsException e) {
                 alerts.addWarning(exec.getProject(),
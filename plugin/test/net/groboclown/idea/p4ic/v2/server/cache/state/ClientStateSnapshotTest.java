@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.groboclown.idea.p4ic.v2.server.cache.state;
+
+import net.groboclown.idea.p4ic.config.P4ServerName;
+import net.groboclown.idea.p4ic.v2.server.cache.ClientServerRef;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ClientStateSnapshotTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        ClientServerRef ref = createRef("client1");
+        ClientLocalServerState state = createState(ref);
+        state.getCachedServerState().getWorkspaceView().setRoots(Arrays.asList("/a/b", "/a/c"));
+        File file = new File(tmp.getRoot(), "client1.bin");
+
+        ClientStateSnapshot.write(file, ref, state);
+        ClientLocalServerState read = ClientStateSnapshot.read(file, ref);
+
+        assertThat(read, notNullValue());
+        assertThat(read.getClientServerId(), is(ref));
+        assertThat(read.getCachedServerState().getWorkspaceView().getRoots(),
+                is(Arrays.asList("/a/b", "/a/c")));
+        assertThat(read.getLocalClientState().getWorkspaceView().getName(), is("client1"));
+    }
+
+    @Test
+    public void testOtherClient() throws Exception {
+        ClientServerRef ref = createRef("client1");
+        File file = new File(tmp.getRoot(), "client1.bin");
+        ClientStateSnapshot.write(file, ref, createState(ref));
+
+        assertThat(ClientStateSnapshot.read(file, createRef("client2")), is(nullValue()));
+    }
+
+    @Test
+    public void testMissing() {
+        assertThat(ClientStateSnapshot.read(new File(tmp.getRoot(), "none.bin"), createRef("client1")),
+                is(nullValue()));
+    }
+
+    @Test
+    public void testDamaged() throws Exception {
+        File file = new File(tmp.getRoot(), "bad.bin");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[] { 1, 2, 3, 4, 5 });
+        } finally {
+            out.close();
+        }
+        assertThat(ClientStateSnapshot.read(file, createRef("client1")), is(nullValue()));
+    }
+
+
+    private static ClientServerRef createRef(String clientName) {
+        P4ServerName serverName = P4ServerName.forPort("localhost:1666");
+        assertThat(serverName, notNullValue());
+        return ClientServerRef.create(serverName, clientName);
+    }
+
+    private static ClientLocalServerState createState(ClientServerRef ref) {
+        return new ClientLocalServerState(
+                new P4ClientState(false, ref, new P4WorkspaceViewState(ref.getClientName()),
+                        new JobStatusListState(), new JobStateList()),
+                new P4ClientState(false, ref, new P4WorkspaceViewState(ref.getClientName()),
+                        new JobStatusListState(), new JobStateList()),
+                new ArrayList<PendingUpdateState>());
+    }
+}
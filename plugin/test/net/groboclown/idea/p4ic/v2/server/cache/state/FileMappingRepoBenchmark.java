@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.groboclown.idea.p4ic.v2.server.cache.state;
+
+import com.intellij.openapi.vcs.FilePath;
+import net.groboclown.idea.p4ic.mock.MockFilePath;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rough lookup throughput of {@link FileMappingRepo} with 1, 4 and 16
+ * threads looking up known files, mostly by location and some by depot
+ * path, as the change provider and the cache sync do.  This isn't a unit
+ * test; run the main method by hand, and compare the numbers between
+ * thread counts (and between revisions of the repo).
+ */
+public class FileMappingRepoBenchmark {
+    private static final int FILE_COUNT = 20000;
+    private static final long WARMUP_MS = 2000L;
+    private static final long RUN_MS = 5000L;
+    private static final int[] THREAD_COUNTS = { 1, 4, 16 };
+
+    public static void main(String[] args) throws Exception {
+        final FileMappingRepo repo = new FileMappingRepo(false);
+        final List<FilePath> locations = new ArrayList<FilePath>(FILE_COUNT);
+        final List<String> depots = new ArrayList<String>(FILE_COUNT);
+        // Strong references, so the weakly held mappings stay around.
+        final List<P4ClientFileMapping> mappings = new ArrayList<P4ClientFileMapping>(FILE_COUNT);
+        for (int i = 0; i < FILE_COUNT; i++) {
+            final FilePath location = new MockFilePath(new File("/work/src/dir" + (i % 100) + "/file" + i + ".java"));
+            final String depot = "//depot/src/dir" + (i % 100) + "/file" + i + ".java";
+            locations.add(location);
+            depots.add(depot);
+            mappings.add(repo.getByDepotLocation(depot, location));
+        }
+
+        run(repo, locations, depots, 4, WARMUP_MS);
+        for (int threads : THREAD_COUNTS) {
+            final long ops = run(repo, locations, depots, threads, RUN_MS);
+            System.out.println(threads + " thread(s): " + (ops / RUN_MS) + " lookups/ms");
+        }
+        System.out.println("(" + mappings.size() + " mappings)");
+    }
+
+
+    private static long run(final FileMappingRepo repo, final List<FilePath> locations,
+            final List<String> depots, final int threadCount, final long durationMs)
+            throws InterruptedException {
+        final AtomicLong total = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final long end = System.currentTimeMillis() + durationMs;
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long count = 0;
+                        int i = seed * 7919;
+                        while ((count & 0xff) != 0 || System.currentTimeMillis() < end) {
+                            final int index = (i++ & Integer.MAX_VALUE) % FILE_COUNT;
+                            if ((i & 0x7) == 0) {
+                                repo.getByDepotLocation(depots.get(index), locations.get(index));
+                            } else {
+                                repo.getByLocation(locations.get(index));
+                            }
+                            count++;
+                        }
+                        total.addAndGet(count);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "lookup-" + t).start();
+        }
+        start.countDown();
+        done.await();
+        return total.get();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.groboclown.idea.p4ic.v2.server.connection;
+
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IExtendedFileSpec;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.impl.generic.core.file.ExtendedFileSpec;
+import com.perforce.p4java.impl.generic.core.file.FileSpec;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FileStatusBatcherTest {
+    @Test
+    public void testResultsMatchedByPath() throws Exception {
+        IExtendedFileSpec a = found("//depot/a.txt");
+        IExtendedFileSpec b = found("//depot/b.txt");
+        Responses responses = new Responses(Arrays.asList(b, a));
+
+        List<IExtendedFileSpec> ret = new FileStatusBatcher().getFileStatus(
+                responses.exec, specs("//depot/a.txt", "//depot/b.txt"));
+
+        assertThat(ret.size(), is(2));
+        assertThat(ret.get(0), sameInstance(a));
+        assertThat(ret.get(1), sameInstance(b));
+        assertThat(responses.calls.size(), is(1));
+    }
+
+    @Test
+    public void testErrorsMatchedByPosition() throws Exception {
+        IExtendedFileSpec a = found("//depot/a.txt");
+        IExtendedFileSpec missing = error();
+        Responses responses = new Responses(Arrays.asList(a, missing));
+
+        List<IExtendedFileSpec> ret = new FileStatusBatcher().getFileStatus(
+                responses.exec, specs("//depot/a.txt", "//depot/missing.txt"));
+
+        assertThat(ret.get(0), sameInstance(a));
+        assertThat(ret.get(1), sameInstance(missing));
+        assertThat(responses.calls.size(), is(1));
+    }
+
+    @Test
+    public void testUnmatchedRunsSeparately() throws Exception {
+        IExtendedFileSpec a = found("//depot/a.txt");
+        IExtendedFileSpec missing = error();
+        // The batched command drops a result, so there's no telling which
+        // spec the error belongs to; the request is run on its own.
+        Responses responses = new Responses(
+                Arrays.<IExtendedFileSpec>asList(missing),
+                Arrays.asList(a, missing));
+
+        List<IExtendedFileSpec> ret = new FileStatusBatcher().getFileStatus(
+                responses.exec, specs("//depot/a.txt", "//depot/b.txt"));
+
+        assertThat(ret.get(0), sameInstance(a));
+        assertThat(ret.get(1), sameInstance(missing));
+        assertThat(responses.calls.size(), is(2));
+    }
+
+    @Test
+    public void testDuplicateSpecsShareResult() throws Exception {
+        IExtendedFileSpec a = found("//depot/a.txt");
+        Responses responses = new Responses(Arrays.asList(a));
+
+        List<IExtendedFileSpec> ret = new FileStatusBatcher().getFileStatus(
+                responses.exec, specs("//depot/a.txt", "//depot/a.txt"));
+
+        assertThat(ret.get(0), sameInstance(a));
+        assertThat(ret.get(1), sameInstance(a));
+        assertThat(responses.calls.get(0).size(), is(1));
+    }
+
+
+    private static List<IFileSpec> specs(String... paths) {
+        List<IFileSpec> ret = new ArrayList<IFileSpec>();
+        for (String path : paths) {
+            ret.add(new FileSpec(path));
+        }
+        return ret;
+    }
+
+    private static IExtendedFileSpec found(String depotPath) {
+        ExtendedFileSpec ret = new ExtendedFileSpec();
+        ret.setOpStatus(FileSpecOpStatus.VALID);
+        ret.setDepotPath(depotPath);
+        return ret;
+    }
+
+    private static IExtendedFileSpec error() {
+        // Error results don't say which file they're for.
+        ExtendedFileSpec ret = new ExtendedFileSpec();
+        ret.setOpStatus(FileSpecOpStatus.ERROR);
+        return ret;
+    }
+
+    private static class Responses implements Answer<List<IExtendedFileSpec>> {
+        final P4Exec2 exec = mock(P4Exec2.class);
+        final LinkedList<List<IExtendedFileSpec>> responses = new LinkedList<List<IExtendedFileSpec>>();
+        final List<List<IFileSpec>> calls = new ArrayList<List<IFileSpec>>();
+
+        Responses(List<IExtendedFileSpec>... responses) throws Exception {
+            this.responses.addAll(Arrays.asList(responses));
+            when(exec.getFileStatus(anyListOf(IFileSpec.class))).thenAnswer(this);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public List<IExtendedFileSpec> answer(InvocationOnMock invocation) throws Throwable {
+            calls.add((List<IFileSpec>) invocation.getArguments()[0]);
+            return responses.removeFirst();
+        }
+    }
+}
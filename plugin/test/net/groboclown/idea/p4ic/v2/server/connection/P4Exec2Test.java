@@ -0,0 +1,157 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.groboclown.idea.p4ic.v2.server.connection;
+
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.impl.generic.core.file.FileSpec;
+import com.perforce.p4java.option.server.GetFileContentsOptions;
+import com.perforce.p4java.server.IOptionsServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Arrays;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class P4Exec2Test {
+    private File target;
+
+    @Before
+    public void createTarget() throws IOException {
+        target = File.createTempFile("p4exec2", ".tmp");
+    }
+
+    @After
+    public void deleteTarget() {
+        if (! target.delete()) {
+            target.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void testCopyOverwritesTarget() throws Exception {
+        write(target, "older contents, longer than the new ones");
+        IOptionsServer server = serverReturning(new ByteArrayInputStream(bytes("new")));
+
+        assertThat(P4Exec2.copyFileContents(server, mock(ClientExec.ServerCount.class), spec(), target),
+                is(true));
+
+        assertThat(read(target), is("new"));
+    }
+
+    @Test
+    public void testRetryStartsOver() throws Exception {
+        // The first attempt fails part way through, after some of the
+        // contents were written.
+        IOptionsServer server = serverReturning(
+                new FailingInputStream(bytes("partial")),
+                new ByteArrayInputStream(bytes("complete")));
+        ClientExec.ServerCount count = mock(ClientExec.ServerCount.class);
+
+        try {
+            P4Exec2.copyFileContents(server, count, spec(), target);
+            fail("no exception thrown");
+        } catch (IOException e) {
+            // expected
+        }
+        assertThat(P4Exec2.copyFileContents(server, count, spec(), target), is(true));
+
+        assertThat(read(target), is("complete"));
+    }
+
+    @Test
+    public void testNoContents() throws Exception {
+        IOptionsServer server = serverReturning((InputStream) null);
+
+        assertThat(P4Exec2.copyFileContents(server, mock(ClientExec.ServerCount.class), spec(), target),
+                is(false));
+    }
+
+
+    private static IOptionsServer serverReturning(InputStream first, InputStream... rest) throws Exception {
+        IOptionsServer server = mock(IOptionsServer.class);
+        when(server.getFileContents(anyListOf(IFileSpec.class), any(GetFileContentsOptions.class)))
+                .thenReturn(first, rest);
+        return server;
+    }
+
+    private static IFileSpec spec() {
+        return new FileSpec("//depot/a.bin#1");
+    }
+
+    private static byte[] bytes(String s) throws UnsupportedEncodingException {
+        return s.getBytes("UTF-8");
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes(contents));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buff = new byte[1024];
+            int len;
+            while ((len = in.read(buff)) > 0) {
+                ret.write(buff, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return ret.toString("UTF-8");
+    }
+
+
+    /**
+     * Returns the first part of the contents, then fails like a dropped
+     * connection.
+     */
+    private static class FailingInputStream extends InputStream {
+        private final byte[] sent;
+        private boolean failed = false;
+
+        FailingInputStream(byte[] sent) {
+            this.sent = sent;
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new IOException("connection lost");
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (failed) {
+                throw new IOException("connection lost");
+            }
+            failed = true;
+            System.arraycopy(sent, 0, b, off, sent.length);
+            return sent.length;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.groboclown.idea.p4ic.v2.server.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class RemoteFileContentsTest {
+    // Has characters that are encoded differently in each charset.
+    private static final String TEXT = "h\u00e9llo w\u00f6rld";
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("p4print", ".tmp");
+    }
+
+    @After
+    public void deleteFile() {
+        if (file.exists() && ! file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void testReaderUsesServerCharset() throws IOException {
+        write(TEXT.getBytes("UTF-16LE"));
+
+        assertThat(read(new RemoteFileContents(file, "UTF-16LE")), is(TEXT));
+    }
+
+    @Test
+    public void testReaderDefaultsToUtf8() throws IOException {
+        write(TEXT.getBytes("UTF-8"));
+
+        assertThat(read(new RemoteFileContents(file, null)), is(TEXT));
+    }
+
+    @Test(expected = UnsupportedEncodingException.class)
+    public void testReaderUnknownCharset() throws IOException {
+        write(TEXT.getBytes("UTF-8"));
+
+        new RemoteFileContents(file, "no-such-charset").openReader();
+    }
+
+    @Test
+    public void testToByteArray() throws IOException {
+        final byte[] contents = TEXT.getBytes("UTF-16LE");
+        write(contents);
+        RemoteFileContents remote = new RemoteFileContents(file, "UTF-16LE");
+
+        assertThat(remote.toByteArray(), is(contents));
+        assertThat(remote.getLength(), is((long) contents.length));
+
+        remote.delete();
+        assertThat(file.exists(), is(false));
+    }
+
+
+    private void write(byte[] contents) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String read(RemoteFileContents contents) throws IOException {
+        StringBuilder ret = new StringBuilder();
+        Reader reader = contents.openReader();
+        try {
+            char[] buff = new char[3];
+            int len;
+            while ((len = reader.read(buff)) > 0) {
+                ret.append(buff, 0, len);
+            }
+        } finally {
+            reader.close();
+        }
+        return ret.toString();
+    }
+}